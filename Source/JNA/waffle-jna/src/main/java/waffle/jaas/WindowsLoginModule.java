@@ -39,6 +39,9 @@ import waffle.windows.auth.IWindowsAccount;
 import waffle.windows.auth.IWindowsAuthProvider;
 import waffle.windows.auth.IWindowsIdentity;
 import waffle.windows.auth.PrincipalFormat;
+import waffle.windows.auth.WindowsAccount;
+import waffle.windows.auth.WindowsGroupFilter;
+import waffle.windows.auth.WindowsIdentitySnapshot;
 import waffle.windows.auth.impl.WindowsAuthProviderImpl;
 
 /**
@@ -60,6 +63,7 @@ public class WindowsLoginModule implements LoginModule {
     private PrincipalFormat      principalFormat = PrincipalFormat.FQN;
     private PrincipalFormat      roleFormat      = PrincipalFormat.FQN;
     private boolean              allowGuestLogin = true;
+    private WindowsGroupFilter   groupFilter     = WindowsGroupFilter.all();
 
     @Override
     public void initialize(final Subject initSubject, final CallbackHandler initCallbackHandler,
@@ -68,6 +72,9 @@ public class WindowsLoginModule implements LoginModule {
         this.subject = initSubject;
         this.callbackHandler = initCallbackHandler;
 
+        String groupFilterSids = null;
+        String groupFilterDomains = null;
+        String groupFilterPattern = null;
         for (Entry<String, ?> option : initOptions.entrySet()) {
             if (option.getKey().equalsIgnoreCase("debug")) {
                 this.debug = Boolean.parseBoolean((String) option.getValue());
@@ -76,8 +83,15 @@ public class WindowsLoginModule implements LoginModule {
                         .valueOf(((String) option.getValue()).toUpperCase(Locale.ENGLISH));
             } else if (option.getKey().equalsIgnoreCase("roleFormat")) {
                 this.roleFormat = PrincipalFormat.valueOf(((String) option.getValue()).toUpperCase(Locale.ENGLISH));
+            } else if (option.getKey().equalsIgnoreCase("groupFilterSids")) {
+                groupFilterSids = (String) option.getValue();
+            } else if (option.getKey().equalsIgnoreCase("groupFilterDomains")) {
+                groupFilterDomains = (String) option.getValue();
+            } else if (option.getKey().equalsIgnoreCase("groupFilterPattern")) {
+                groupFilterPattern = (String) option.getValue();
             }
         }
+        this.groupFilter = WindowsGroupFilter.of(groupFilterSids, groupFilterDomains, groupFilterPattern);
     }
 
     /**
@@ -129,16 +143,18 @@ public class WindowsLoginModule implements LoginModule {
                 throw new LoginException("Guest login disabled");
             }
 
+            final WindowsIdentitySnapshot snapshot = WindowsIdentitySnapshot.of(windowsIdentity, this.groupFilter,
+                    this.roleFormat);
             this.principals = new LinkedHashSet<Principal>();
-            this.principals.addAll(getUserPrincipals(windowsIdentity, this.principalFormat));
+            this.principals.addAll(getUserPrincipals(snapshot, this.principalFormat));
             if (this.roleFormat != PrincipalFormat.NONE) {
-                for (IWindowsAccount group : windowsIdentity.getGroups()) {
+                for (WindowsAccount group : snapshot.getGroups()) {
                     this.principals.addAll(getRolePrincipals(group, this.roleFormat));
                 }
             }
 
-            this.username = windowsIdentity.getFqn();
-            LOGGER.debug("successfully logged in {} ({})", this.username, windowsIdentity.getSidString());
+            this.username = snapshot.getFqn();
+            LOGGER.debug("successfully logged in {} ({})", this.username, snapshot.getSidString());
         } finally {
             windowsIdentity.dispose();
         }
@@ -229,26 +245,26 @@ public class WindowsLoginModule implements LoginModule {
     /**
      * Returns a list of user principal objects.
      * 
-     * @param windowsIdentity
-     *            Windows identity.
+     * @param snapshot
+     *            Windows identity snapshot.
      * @param principalFormat
      *            Principal format.
      * @return A list of user principal objects.
      */
-    private static List<Principal> getUserPrincipals(final IWindowsIdentity windowsIdentity,
+    private static List<Principal> getUserPrincipals(final WindowsIdentitySnapshot snapshot,
             final PrincipalFormat principalFormat) {
 
         final List<Principal> principalsList = new ArrayList<Principal>();
         switch (principalFormat) {
             case FQN:
-                principalsList.add(new UserPrincipal(windowsIdentity.getFqn()));
+                principalsList.add(new UserPrincipal(snapshot.getFqn()));
                 break;
             case SID:
-                principalsList.add(new UserPrincipal(windowsIdentity.getSidString()));
+                principalsList.add(new UserPrincipal(snapshot.getSidString()));
                 break;
             case BOTH:
-                principalsList.add(new UserPrincipal(windowsIdentity.getFqn()));
-                principalsList.add(new UserPrincipal(windowsIdentity.getSidString()));
+                principalsList.add(new UserPrincipal(snapshot.getFqn()));
+                principalsList.add(new UserPrincipal(snapshot.getSidString()));
                 break;
             case NONE:
                 break;
@@ -308,4 +324,23 @@ public class WindowsLoginModule implements LoginModule {
     public void setAllowGuestLogin(final boolean value) {
         this.allowGuestLogin = value;
     }
+
+    /**
+     * Filter selecting the groups that become role principals.
+     * 
+     * @return Group filter.
+     */
+    public WindowsGroupFilter getGroupFilter() {
+        return this.groupFilter;
+    }
+
+    /**
+     * Set the filter selecting the groups that become role principals.
+     * 
+     * @param value
+     *            Group filter.
+     */
+    public void setGroupFilter(final WindowsGroupFilter value) {
+        this.groupFilter = value;
+    }
 }
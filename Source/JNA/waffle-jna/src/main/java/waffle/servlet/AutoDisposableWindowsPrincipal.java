@@ -18,10 +18,18 @@ import javax.servlet.http.HttpSessionBindingListener;
 
 import waffle.windows.auth.IWindowsIdentity;
 import waffle.windows.auth.PrincipalFormat;
+import waffle.windows.auth.WindowsGroupFilter;
 
 public class AutoDisposableWindowsPrincipal extends WindowsPrincipal implements HttpSessionBindingListener {
 
-    private static final long serialVersionUID = 1L;
+    private static final long serialVersionUID = 2L;
+
+    /**
+     * An empty windows principal, used by deserialization only.
+     */
+    public AutoDisposableWindowsPrincipal() {
+        super();
+    }
 
     public AutoDisposableWindowsPrincipal(final IWindowsIdentity windowsIdentity) {
         super(windowsIdentity);
@@ -32,6 +40,12 @@ public class AutoDisposableWindowsPrincipal extends WindowsPrincipal implements
         super(windowsIdentity, principalFormat, roleFormat);
     }
 
+    public AutoDisposableWindowsPrincipal(final IWindowsIdentity windowsIdentity,
+            final PrincipalFormat principalFormat, final PrincipalFormat roleFormat,
+            final WindowsGroupFilter groupFilter) {
+        super(windowsIdentity, principalFormat, roleFormat, groupFilter);
+    }
+
     @Override
     public void valueBound(final HttpSessionBindingEvent evt) {
         // Do nothing
@@ -36,14 +36,30 @@ import javax.servlet.http.HttpSession;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import com.google.common.io.BaseEncoding;
+
+import waffle.servlet.spi.ChallengeMode;
 import waffle.servlet.spi.SecurityFilterProvider;
 import waffle.servlet.spi.SecurityFilterProviderCollection;
+import waffle.util.AuthenticationTiming;
+import waffle.util.AuthenticationTiming.Phase;
 import waffle.util.AuthorizationHeader;
+import waffle.util.AuthorizationHeaderStatus;
+import waffle.util.WaffleMetrics;
 import waffle.windows.auth.IWindowsAuthProvider;
 import waffle.windows.auth.IWindowsIdentity;
 import waffle.windows.auth.IWindowsImpersonationContext;
 import waffle.windows.auth.PrincipalFormat;
+import waffle.windows.auth.WindowsAuthProviderBusyException;
+import waffle.windows.auth.WindowsGroupFilter;
+import waffle.windows.auth.WindowsIdentitySnapshot;
+import waffle.windows.auth.WindowsLogonThrottledException;
+import waffle.windows.auth.impl.BoundedWindowsAuthProvider;
+import waffle.windows.auth.impl.CachingWindowsAuthProvider;
+import waffle.windows.auth.impl.ForwardingWindowsAuthProvider;
+import waffle.windows.auth.impl.ThrottlingWindowsAuthProvider;
 import waffle.windows.auth.impl.WindowsAuthProviderImpl;
+import waffle.windows.auth.impl.WindowsTopologyCache;
 
 /**
  * A Negotiate (NTLM/Kerberos) Security Filter
@@ -58,8 +74,18 @@ public class NegotiateSecurityFilter implements Filter {
     private PrincipalFormat                  roleFormat          = PrincipalFormat.FQN;
     private SecurityFilterProviderCollection providers;
     private IWindowsAuthProvider             auth;
+    private IWindowsAuthProvider             unwrappedAuth;
+    private boolean                          ownsAuth;
     private boolean                          allowGuestLogin     = true;
     private boolean                          impersonate;
+    private WindowsPrincipalCookie           principalCookie;
+    private WindowsGroupFilter               groupFilter         = WindowsGroupFilter.all();
+    private ChallengeMode                    challengeMode       = ChallengeMode.ERROR;
+    private PathPolicyTable                  pathPolicies;
+    private boolean                          serverTiming;
+    private int                              slowAuthenticationThreshold;
+    private boolean                          metrics;
+    private boolean                          topology;
     private static final String              PRINCIPALSESSIONKEY = NegotiateSecurityFilter.class.getName()
                                                                          + ".PRINCIPAL";
 
@@ -69,6 +95,21 @@ public class NegotiateSecurityFilter implements Filter {
 
     @Override
     public void destroy() {
+        if (this.unwrappedAuth != null) {
+            // a provider set with setAuth belongs to the caller, only the wrappers added by init are disposed
+            ForwardingWindowsAuthProvider.dispose(this.auth, this.ownsAuth ? null : this.unwrappedAuth);
+            this.auth = this.ownsAuth ? null : this.unwrappedAuth;
+            this.unwrappedAuth = null;
+            this.ownsAuth = false;
+        }
+        if (this.topology) {
+            WindowsTopologyCache.getDefault().release();
+            this.topology = false;
+        }
+        if (this.metrics) {
+            WaffleMetrics.getDefault().disable();
+            this.metrics = false;
+        }
         LOGGER.info("[waffle.servlet.NegotiateSecurityFilter] stopped");
     }
 
@@ -82,18 +123,39 @@ public class NegotiateSecurityFilter implements Filter {
         LOGGER.debug("{} {}, contentlength: {}", request.getMethod(), request.getRequestURI(),
                 Integer.valueOf(request.getContentLength()));
 
-        if (doFilterPrincipal(request, response, chain)) {
+        final PathPolicy policy = this.pathPolicies == null ? PathPolicy.AUTHENTICATE : this.pathPolicies
+                .match(request);
+        if (policy.isSkip()) {
+            LOGGER.debug("authentication skipped by path policy");
+            chain.doFilter(request, response);
+            return;
+        }
+
+        final boolean impersonate = this.impersonate && policy.isImpersonate();
+
+        if (doFilterPrincipal(request, response, chain, policy, impersonate)) {
             // previously authenticated user
             return;
         }
 
-        final AuthorizationHeader authorizationHeader = new AuthorizationHeader(request);
+        final AuthorizationHeader authorizationHeader = AuthorizationHeader.of(request);
 
         // authenticate user
         if (!authorizationHeader.isNull()) {
 
+            final AuthorizationHeaderStatus status = this.providers.validate(request);
+            if (status != AuthorizationHeaderStatus.VALID) {
+                LOGGER.debug("rejected authorization header: {}", status);
+                sendUnauthorized(response, true);
+                return;
+            }
+
+            final AuthenticationTiming timing = AuthenticationTiming.start(request, this.serverTiming,
+                    this.slowAuthenticationThreshold);
+
             // log the user in using the token
-            IWindowsIdentity windowsIdentity;
+            IWindowsIdentity windowsIdentity = null;
+            ThrottlingWindowsAuthProvider.setSource(request.getRemoteAddr());
             try {
                 windowsIdentity = this.providers.doFilter(request, response);
                 if (windowsIdentity == null) {
@@ -104,9 +166,28 @@ public class NegotiateSecurityFilter implements Filter {
                 LOGGER.trace("{}", e);
                 sendUnauthorized(response, true);
                 return;
+            } catch (WindowsAuthProviderBusyException e) {
+                LOGGER.warn("error logging in user: {}", e.getMessage());
+                sendServiceUnavailable(response, e.getRetryAfter());
+                return;
+            } catch (WindowsLogonThrottledException e) {
+                LOGGER.warn("error logging in user: {}", e.getMessage());
+                response.setHeader("Retry-After", String.valueOf(e.getRetryAfter()));
+                sendUnauthorized(response, true);
+                return;
+            } finally {
+                ThrottlingWindowsAuthProvider.setSource(null);
+                if (timing != null && windowsIdentity == null) {
+                    timing.end(response, null);
+                }
+            }
+
+            if (timing != null) {
+                timing.lap(Phase.HANDSHAKE);
             }
 
             IWindowsImpersonationContext ctx = null;
+            boolean retained = false;
             try {
                 if (!this.allowGuestLogin && windowsIdentity.isGuest()) {
                     LOGGER.warn("guest login disabled: {}", windowsIdentity.getFqn());
@@ -116,45 +197,79 @@ public class NegotiateSecurityFilter implements Filter {
 
                 LOGGER.debug("logged in user: {} ({})", windowsIdentity.getFqn(), windowsIdentity.getSidString());
 
-                HttpSession session = request.getSession(true);
-                if (session == null) {
-                    throw new ServletException("Expected HttpSession");
+                WindowsPrincipal windowsPrincipal = null;
+                WindowsIdentitySnapshot snapshot = null;
+                if (timing != null) {
+                    timing.attach();
+                }
+                try {
+                    if (this.impersonate) {
+                        windowsPrincipal = new AutoDisposableWindowsPrincipal(windowsIdentity, this.principalFormat,
+                                this.roleFormat, this.groupFilter);
+                    } else if (this.principalCookie != null) {
+                        snapshot = WindowsIdentitySnapshot.of(windowsIdentity, this.groupFilter, this.roleFormat);
+                        windowsPrincipal = new WindowsPrincipal(snapshot, this.principalFormat, this.roleFormat);
+                    } else {
+                        windowsPrincipal = new WindowsPrincipal(windowsIdentity, this.principalFormat,
+                                this.roleFormat, this.groupFilter);
+                    }
+                } finally {
+                    if (timing != null) {
+                        timing.detach(Phase.PRINCIPAL);
+                    }
                 }
 
-                Subject subject = (Subject) session.getAttribute("javax.security.auth.subject");
-                if (subject == null) {
-                    subject = new Subject();
+                if (LOGGER.isDebugEnabled()) {
+                    LOGGER.debug("roles: {}", windowsPrincipal.getRolesString());
                 }
 
-                WindowsPrincipal windowsPrincipal = null;
-                if (this.impersonate) {
-                    windowsPrincipal = new AutoDisposableWindowsPrincipal(windowsIdentity, this.principalFormat,
-                            this.roleFormat);
+                if (snapshot != null && this.principalCookie.write(request, response, snapshot)) {
+                    LOGGER.debug("issued principal cookie: {}", this.principalCookie.getName());
                 } else {
-                    windowsPrincipal = new WindowsPrincipal(windowsIdentity, this.principalFormat, this.roleFormat);
+                    HttpSession session = request.getSession(true);
+                    if (session == null) {
+                        throw new ServletException("Expected HttpSession");
+                    }
+
+                    Subject subject = (Subject) session.getAttribute("javax.security.auth.subject");
+                    if (subject == null) {
+                        subject = new Subject();
+                    }
+
+                    subject.getPrincipals().add(windowsPrincipal);
+                    session.setAttribute("javax.security.auth.subject", subject);
+                    session.setAttribute(PRINCIPALSESSIONKEY, windowsPrincipal);
+                    // the session principal impersonates on later requests
+                    retained = this.impersonate;
                 }
 
-                LOGGER.debug("roles: {}", windowsPrincipal.getRolesString());
-                subject.getPrincipals().add(windowsPrincipal);
-                session.setAttribute("javax.security.auth.subject", subject);
+                if (timing != null) {
+                    timing.lap(Phase.SESSION);
+                    timing.end(response, windowsIdentity.getFqn());
+                }
 
                 LOGGER.info("successfully logged in user: {}", windowsIdentity.getFqn());
 
-                request.getSession().setAttribute(PRINCIPALSESSIONKEY, windowsPrincipal);
+                if (!policy.isPermitted(windowsPrincipal)) {
+                    LOGGER.debug("user {} lacks the roles of the path policy", windowsIdentity.getFqn());
+                    sendForbidden(response);
+                    return;
+                }
 
                 NegotiateRequestWrapper requestWrapper = new NegotiateRequestWrapper(request, windowsPrincipal);
 
-                if (this.impersonate) {
+                if (impersonate) {
                     LOGGER.debug("impersonating user");
                     ctx = windowsIdentity.impersonate();
                 }
 
                 chain.doFilter(requestWrapper, response);
             } finally {
-                if (this.impersonate && ctx != null) {
+                if (ctx != null) {
                     LOGGER.debug("terminating impersonation");
                     ctx.revertToSelf();
-                } else {
+                }
+                if (!retained) {
                     windowsIdentity.dispose();
                 }
             }
@@ -175,14 +290,27 @@ public class NegotiateSecurityFilter implements Filter {
      *            HTTP response.
      * @param chain
      *            Filter chain.
+     * @param policy
+     *            Policy of the request path.
+     * @param impersonate
+     *            Impersonate the user.
      * @return True if a user already authenticated.
      * @throws ServletException
      * @throws IOException
      */
     private boolean doFilterPrincipal(final HttpServletRequest request, final HttpServletResponse response,
-            final FilterChain chain) throws IOException, ServletException {
+            final FilterChain chain, final PathPolicy policy, final boolean impersonate) throws IOException,
+            ServletException {
         Principal principal = request.getUserPrincipal();
+        if (principal == null && this.principalCookie != null && !this.impersonate) {
+            // stateless mode, the principal is read from the signed cookie
+            final WindowsIdentitySnapshot snapshot = this.principalCookie.read(request);
+            if (snapshot != null) {
+                principal = new WindowsPrincipal(snapshot, this.principalFormat, this.roleFormat);
+            }
+        }
         if (principal == null) {
+            // principals too large for a cookie are kept in the session
             HttpSession session = request.getSession(false);
             if (session != null) {
                 principal = (Principal) session.getAttribute(PRINCIPALSESSIONKEY);
@@ -205,28 +333,38 @@ public class NegotiateSecurityFilter implements Filter {
             LOGGER.debug("previously authenticated Windows user: {}", principal.getName());
             final WindowsPrincipal windowsPrincipal = (WindowsPrincipal) principal;
 
-            if (this.impersonate && windowsPrincipal.getIdentity() == null) {
+            if (impersonate && windowsPrincipal.getIdentity() == null) {
                 // This can happen when the session has been serialized then de-serialized
                 // and because the IWindowsIdentity field is transient. In this case re-ask an
                 // authentication to get a new identity.
                 return false;
             }
 
+            if (!policy.isPermitted(windowsPrincipal)) {
+                LOGGER.debug("user {} lacks the roles of the path policy", principal.getName());
+                sendForbidden(response);
+                return true;
+            }
+
             final NegotiateRequestWrapper requestWrapper = new NegotiateRequestWrapper(request, windowsPrincipal);
 
             IWindowsImpersonationContext ctx = null;
-            if (this.impersonate) {
+            if (impersonate) {
                 LOGGER.debug("re-impersonating user");
                 ctx = windowsPrincipal.getIdentity().impersonate();
             }
             try {
                 chain.doFilter(requestWrapper, response);
             } finally {
-                if (this.impersonate && ctx != null) {
+                if (ctx != null) {
                     LOGGER.debug("terminating impersonation");
                     ctx.revertToSelf();
                 }
             }
+        } else if (!policy.getRoles().isEmpty()) {
+            // roles of the path policy are only known for Windows principals
+            LOGGER.debug("user {} lacks the roles of the path policy", principal.getName());
+            sendForbidden(response);
         } else {
             LOGGER.debug("previously authenticated user: {}", principal.getName());
             chain.doFilter(request, response);
@@ -241,6 +379,22 @@ public class NegotiateSecurityFilter implements Filter {
 
         String authProvider = null;
         String[] providerNames = null;
+        int authMaxConcurrency = 0;
+        int authQueueSize = 0;
+        long authTimeout = 30000;
+        int authRetryAfter = BoundedWindowsAuthProvider.DEFAULT_RETRY_AFTER;
+        int logonCacheTtl = 0;
+        int logonCacheMaxSize = CachingWindowsAuthProvider.DEFAULT_MAX_SIZE;
+        int logonMaxFailures = 0;
+        int logonMaxSourceFailures = 0;
+        int logonFailureWindow = ThrottlingWindowsAuthProvider.DEFAULT_WINDOW;
+        String principalCookieKey = null;
+        String principalCookieName = WindowsPrincipalCookie.DEFAULT_NAME;
+        int principalCookieTtl = WindowsPrincipalCookie.DEFAULT_TTL;
+        String groupFilterSids = null;
+        String groupFilterDomains = null;
+        String groupFilterPattern = null;
+        String pathPolicies = null;
         if (filterConfig != null) {
             Enumeration<String> parameterNames = filterConfig.getInitParameterNames();
             while (parameterNames.hasMoreElements()) {
@@ -251,6 +405,8 @@ public class NegotiateSecurityFilter implements Filter {
                     this.principalFormat = PrincipalFormat.valueOf(parameterValue.toUpperCase(Locale.ENGLISH));
                 } else if (parameterName.equals("roleFormat")) {
                     this.roleFormat = PrincipalFormat.valueOf(parameterValue.toUpperCase(Locale.ENGLISH));
+                } else if (parameterName.equals("challengeMode")) {
+                    this.challengeMode = ChallengeMode.parse(parameterValue);
                 } else if (parameterName.equals("allowGuestLogin")) {
                     this.allowGuestLogin = Boolean.parseBoolean(parameterValue);
                 } else if (parameterName.equals("impersonate")) {
@@ -259,6 +415,47 @@ public class NegotiateSecurityFilter implements Filter {
                     providerNames = parameterValue.split("\\s+");
                 } else if (parameterName.equals("authProvider")) {
                     authProvider = parameterValue;
+                } else if (parameterName.equals("authMaxConcurrency")) {
+                    authMaxConcurrency = Integer.parseInt(parameterValue);
+                } else if (parameterName.equals("authQueueSize")) {
+                    authQueueSize = Integer.parseInt(parameterValue);
+                } else if (parameterName.equals("authTimeout")) {
+                    authTimeout = Long.parseLong(parameterValue);
+                } else if (parameterName.equals("authRetryAfter")) {
+                    authRetryAfter = Integer.parseInt(parameterValue);
+                } else if (parameterName.equals("logonCacheTtl")) {
+                    logonCacheTtl = Integer.parseInt(parameterValue);
+                } else if (parameterName.equals("logonCacheMaxSize")) {
+                    logonCacheMaxSize = Integer.parseInt(parameterValue);
+                } else if (parameterName.equals("logonMaxFailures")) {
+                    logonMaxFailures = Integer.parseInt(parameterValue);
+                } else if (parameterName.equals("logonMaxSourceFailures")) {
+                    logonMaxSourceFailures = Integer.parseInt(parameterValue);
+                } else if (parameterName.equals("logonFailureWindow")) {
+                    logonFailureWindow = Integer.parseInt(parameterValue);
+                } else if (parameterName.equals("principalCookieKey")) {
+                    principalCookieKey = parameterValue;
+                } else if (parameterName.equals("principalCookieName")) {
+                    principalCookieName = parameterValue;
+                } else if (parameterName.equals("principalCookieTtl")) {
+                    principalCookieTtl = Integer.parseInt(parameterValue);
+                } else if (parameterName.equals("groupFilterSids")) {
+                    groupFilterSids = parameterValue;
+                } else if (parameterName.equals("groupFilterDomains")) {
+                    groupFilterDomains = parameterValue;
+                } else if (parameterName.equals("groupFilterPattern")) {
+                    groupFilterPattern = parameterValue;
+                } else if (parameterName.equals("pathPolicies")) {
+                    pathPolicies = parameterValue;
+                } else if (parameterName.equals("serverTiming")) {
+                    this.serverTiming = Boolean.parseBoolean(parameterValue);
+                } else if (parameterName.equals("slowAuthenticationThreshold")) {
+                    this.slowAuthenticationThreshold = Integer.parseInt(parameterValue);
+                } else if (parameterName.equals("metrics")) {
+                    if (Boolean.parseBoolean(parameterValue) && !this.metrics) {
+                        WaffleMetrics.getDefault().enable();
+                        this.metrics = true;
+                    }
                 } else {
                     implParameters.put(parameterName, parameterValue);
                 }
@@ -268,6 +465,7 @@ public class NegotiateSecurityFilter implements Filter {
         if (authProvider != null) {
             try {
                 this.auth = (IWindowsAuthProvider) Class.forName(authProvider).getConstructor().newInstance();
+                this.ownsAuth = true;
             } catch (ClassNotFoundException e) {
                 LOGGER.error("error loading '{}': {}", authProvider, e.getMessage());
                 LOGGER.trace("{}", e);
@@ -301,6 +499,61 @@ public class NegotiateSecurityFilter implements Filter {
 
         if (this.auth == null) {
             this.auth = new WindowsAuthProviderImpl();
+            this.ownsAuth = true;
+        }
+        this.unwrappedAuth = this.auth;
+
+        if (authMaxConcurrency > 0) {
+            LOGGER.debug("limiting auth provider to {} concurrent call(s), {} queued, {} ms",
+                    Integer.valueOf(authMaxConcurrency), Integer.valueOf(authQueueSize), Long.valueOf(authTimeout));
+            this.auth = new BoundedWindowsAuthProvider(this.auth, authMaxConcurrency, authQueueSize, authTimeout,
+                    authRetryAfter);
+        }
+
+        if (logonMaxFailures > 0 || logonMaxSourceFailures > 0) {
+            LOGGER.debug("throttling logons after {} failure(s) per user, {} per source, in {} second(s)",
+                    Integer.valueOf(logonMaxFailures), Integer.valueOf(logonMaxSourceFailures),
+                    Integer.valueOf(logonFailureWindow));
+            this.auth = new ThrottlingWindowsAuthProvider(this.auth, logonMaxFailures, logonMaxSourceFailures,
+                    logonFailureWindow);
+        }
+
+        if (logonCacheTtl > 0) {
+            LOGGER.debug("caching successful logons for {} second(s), up to {} logon(s)",
+                    Integer.valueOf(logonCacheTtl), Integer.valueOf(logonCacheMaxSize));
+            this.auth = new CachingWindowsAuthProvider(this.auth, logonCacheTtl, logonCacheMaxSize);
+        }
+
+        if (principalCookieKey != null) {
+            try {
+                this.principalCookie = new WindowsPrincipalCookie(BaseEncoding.base64().decode(principalCookieKey),
+                        principalCookieTtl);
+            } catch (IllegalArgumentException e) {
+                LOGGER.error("invalid principalCookieKey: {}", e.getMessage());
+                throw new ServletException(e);
+            }
+            this.principalCookie.setName(principalCookieName);
+            if (this.impersonate) {
+                LOGGER.warn("impersonation requires a Windows identity, principal cookie not used");
+            } else {
+                LOGGER.debug("keeping principals in a signed cookie for {} second(s)",
+                        Integer.valueOf(principalCookieTtl));
+            }
+        }
+
+        this.groupFilter = WindowsGroupFilter.of(groupFilterSids, groupFilterDomains, groupFilterPattern);
+        if (!this.groupFilter.isAll()) {
+            LOGGER.debug("keeping only the groups accepted by the group filter");
+        }
+
+        if (pathPolicies != null) {
+            try {
+                this.pathPolicies = PathPolicyTable.parse(pathPolicies);
+            } catch (IllegalArgumentException e) {
+                LOGGER.error("invalid pathPolicies: {}", e.getMessage());
+                throw new ServletException(e);
+            }
+            LOGGER.debug("applying {} path policies", Integer.valueOf(this.pathPolicies.size()));
         }
 
         if (providerNames != null) {
@@ -340,6 +593,11 @@ public class NegotiateSecurityFilter implements Filter {
             }
         }
 
+        if (!this.topology) {
+            WindowsTopologyCache.getDefault().acquire();
+            this.topology = true;
+        }
+
         LOGGER.info("[waffle.servlet.NegotiateSecurityFilter] started");
     }
 
@@ -383,6 +641,26 @@ public class NegotiateSecurityFilter implements Filter {
         return this.roleFormat;
     }
 
+    /**
+     * Set how 401 Unauthorized challenges are sent.
+     * 
+     * @param mode
+     *            Challenge mode, "error" (default) to render the container's error page or "status" for an empty body.
+     */
+    public void setChallengeMode(final String mode) {
+        this.challengeMode = ChallengeMode.parse(mode);
+        LOGGER.info("challenge mode: {}", this.challengeMode);
+    }
+
+    /**
+     * Challenge mode.
+     * 
+     * @return Challenge mode.
+     */
+    public ChallengeMode getChallengeMode() {
+        return this.challengeMode;
+    }
+
     /**
      * Send a 401 Unauthorized along with protocol authentication headers.
      * 
@@ -399,7 +677,39 @@ public class NegotiateSecurityFilter implements Filter {
             } else {
                 response.setHeader("Connection", "keep-alive");
             }
-            response.sendError(HttpServletResponse.SC_UNAUTHORIZED);
+            this.challengeMode.sendUnauthorized(response);
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    /**
+     * Send a 503 Service Unavailable when the Windows auth provider is too busy to process the request.
+     * 
+     * @param response
+     *            HTTP Response
+     * @param retryAfter
+     *            Seconds after which the client may retry.
+     */
+    private static void sendServiceUnavailable(final HttpServletResponse response, final int retryAfter) {
+        try {
+            response.setHeader("Retry-After", String.valueOf(retryAfter));
+            response.sendError(HttpServletResponse.SC_SERVICE_UNAVAILABLE);
+            response.flushBuffer();
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    /**
+     * Send a 403 Forbidden when the user lacks the roles required by the path policy.
+     * 
+     * @param response
+     *            HTTP Response
+     */
+    private static void sendForbidden(final HttpServletResponse response) {
+        try {
+            response.sendError(HttpServletResponse.SC_FORBIDDEN);
             response.flushBuffer();
         } catch (IOException e) {
             throw new RuntimeException(e);
@@ -416,13 +726,110 @@ public class NegotiateSecurityFilter implements Filter {
     }
 
     /**
-     * Set Windows auth provider.
+     * Set Windows auth provider. The provider belongs to the caller and is not disposed when this filter is destroyed.
      * 
      * @param provider
      *            Class implements IWindowsAuthProvider.
      */
     public void setAuth(final IWindowsAuthProvider provider) {
         this.auth = provider;
+        this.unwrappedAuth = provider;
+        this.ownsAuth = false;
+    }
+
+    /**
+     * Signed cookie the principal is kept in instead of the HTTP session.
+     * 
+     * @return Principal cookie or null if principals are kept in the session.
+     */
+    public WindowsPrincipalCookie getPrincipalCookie() {
+        return this.principalCookie;
+    }
+
+    /**
+     * Keep principals in a signed cookie instead of the HTTP session. Not used when impersonating.
+     * 
+     * @param value
+     *            Principal cookie or null to keep principals in the session.
+     */
+    public void setPrincipalCookie(final WindowsPrincipalCookie value) {
+        this.principalCookie = value;
+    }
+
+    /**
+     * Filter selecting the groups that principals keep.
+     * 
+     * @return Group filter.
+     */
+    public WindowsGroupFilter getGroupFilter() {
+        return this.groupFilter;
+    }
+
+    /**
+     * Set the filter selecting the groups that principals keep.
+     * 
+     * @param value
+     *            Group filter.
+     */
+    public void setGroupFilter(final WindowsGroupFilter value) {
+        this.groupFilter = value;
+    }
+
+    /**
+     * Per-path policies.
+     * 
+     * @return Path policies or null if every path is authenticated.
+     */
+    public PathPolicyTable getPathPolicies() {
+        return this.pathPolicies;
+    }
+
+    /**
+     * Set per-path policies, see {@link PathPolicyTable}.
+     * 
+     * @param value
+     *            Path policies or null to authenticate every path.
+     */
+    public void setPathPolicies(final PathPolicyTable value) {
+        this.pathPolicies = value;
+    }
+
+    /**
+     * True if a Server-Timing header with the duration of each authentication phase is sent.
+     * 
+     * @return True if the header is sent.
+     */
+    public boolean isServerTiming() {
+        return this.serverTiming;
+    }
+
+    /**
+     * Send a Server-Timing header with the duration of each authentication phase, see {@link AuthenticationTiming}.
+     * 
+     * @param value
+     *            True to send the header.
+     */
+    public void setServerTiming(final boolean value) {
+        this.serverTiming = value;
+    }
+
+    /**
+     * Duration from which authentications are logged with the time of each phase.
+     * 
+     * @return Threshold in milliseconds, 0 if slow authentications are not logged.
+     */
+    public int getSlowAuthenticationThreshold() {
+        return this.slowAuthenticationThreshold;
+    }
+
+    /**
+     * Log authentications that take at least the given time with the time of each phase.
+     * 
+     * @param value
+     *            Threshold in milliseconds, 0 to not log slow authentications.
+     */
+    public void setSlowAuthenticationThreshold(final int value) {
+        this.slowAuthenticationThreshold = value;
     }
 
     /**
@@ -0,0 +1,120 @@
+/**
+ * Waffle (https://github.com/dblock/waffle)
+ *
+ * Copyright (c) 2010 - 2014 Application Security, Inc.
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors:
+ *     Application Security, Inc.
+ */
+package waffle.servlet;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * What {@link NegotiateSecurityFilter} does for the requests of a path, see {@link PathPolicyTable}.
+ * 
+ * @author dblock[at]dblock[dot]org
+ */
+public final class PathPolicy {
+
+    /**
+     * Authenticate as configured on the filter.
+     */
+    public static final PathPolicy AUTHENTICATE = new PathPolicy(false, true, new String[0]);
+
+    /**
+     * Pass requests on without authentication.
+     */
+    public static final PathPolicy SKIP         = new PathPolicy(true, false, new String[0]);
+
+    private final boolean          skip;
+    private final boolean          impersonate;
+    private final String[]         roles;
+
+    private PathPolicy(final boolean skipAuthentication, final boolean allowImpersonation, final String[] required) {
+        this.skip = skipAuthentication;
+        this.impersonate = allowImpersonation;
+        this.roles = required;
+    }
+
+    /**
+     * A policy authenticating requests.
+     * 
+     * @param impersonate
+     *            False to never impersonate the user, even when the filter impersonates.
+     * @param roles
+     *            Roles of which the user must have at least one, none to admit any authenticated user.
+     * @return Policy.
+     */
+    public static PathPolicy of(final boolean impersonate, final String... roles) {
+        if (impersonate && roles.length == 0) {
+            return AUTHENTICATE;
+        }
+        return new PathPolicy(false, impersonate, roles.clone());
+    }
+
+    /**
+     * Returns whether requests are passed on without authentication.
+     * 
+     * @return True to skip authentication.
+     */
+    public boolean isSkip() {
+        return this.skip;
+    }
+
+    /**
+     * Returns whether the user may be impersonated, when the filter impersonates.
+     * 
+     * @return False to never impersonate.
+     */
+    public boolean isImpersonate() {
+        return this.impersonate;
+    }
+
+    /**
+     * Roles of which the user must have at least one.
+     * 
+     * @return Roles, empty if any authenticated user is admitted.
+     */
+    public List<String> getRoles() {
+        return Collections.unmodifiableList(Arrays.asList(this.roles));
+    }
+
+    /**
+     * Returns whether a user is admitted.
+     * 
+     * @param principal
+     *            Authenticated user.
+     * @return True if no role is required or the user has one of the required roles.
+     */
+    public boolean isPermitted(final WindowsPrincipal principal) {
+        if (this.roles.length == 0) {
+            return true;
+        }
+        for (String role : this.roles) {
+            if (principal.hasRole(role)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    @Override
+    public String toString() {
+        if (this.skip) {
+            return "skip";
+        }
+        final StringBuilder sb = new StringBuilder(this.impersonate ? "authenticate" : "noimpersonate");
+        if (this.roles.length > 0) {
+            sb.append(" roles=").append(Arrays.toString(this.roles));
+        }
+        return sb.toString();
+    }
+}
@@ -0,0 +1,255 @@
+/**
+ * Waffle (https://github.com/dblock/waffle)
+ *
+ * Copyright (c) 2010 - 2014 Application Security, Inc.
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors:
+ *     Application Security, Inc.
+ */
+package waffle.servlet;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+
+import javax.servlet.http.HttpServletRequest;
+
+/**
+ * Per-path policies of {@link NegotiateSecurityFilter}, compiled into a trie of path segments.
+ * 
+ * <p>
+ * The table is parsed from entries separated by semicolons or new lines, each <code>[METHOD] PATH ACTION...</code>. A
+ * path is a prefix of whole segments, <code>*</code> or <code>/</code> matching all paths. The actions are
+ * <code>skip</code>, <code>authenticate</code>, <code>noimpersonate</code> and <code>roles=ROLE[,ROLE...]</code>, which
+ * takes the rest of the entry, eg.
+ * </p>
+ * 
+ * <pre>
+ * /static skip; /api noimpersonate; OPTIONS /api skip; /admin roles=CORP\Domain Admins
+ * </pre>
+ * 
+ * <p>
+ * A request follows the entry with the longest path matching its servlet path and path info, an entry for its method
+ * over one for any method. Requests matching no entry are authenticated.
+ * </p>
+ * 
+ * @author dblock[at]dblock[dot]org
+ */
+public final class PathPolicyTable {
+
+    private static final String ROLES = "roles=";
+
+    private final Node          root  = new Node();
+    private int                 size;
+
+    /**
+     * Compile a policy table.
+     * 
+     * @param value
+     *            Policy entries.
+     * @return Policy table.
+     * @throws IllegalArgumentException
+     *             when an entry is invalid.
+     */
+    public static PathPolicyTable parse(final String value) {
+        final PathPolicyTable table = new PathPolicyTable();
+        for (String entry : value.split("[;\\r\\n]+")) {
+            entry = entry.trim();
+            if (entry.length() > 0) {
+                table.add(entry);
+            }
+        }
+        return table;
+    }
+
+    /**
+     * Number of entries.
+     * 
+     * @return Number of entries.
+     */
+    public int size() {
+        return this.size;
+    }
+
+    /**
+     * Policy of a request.
+     * 
+     * @param request
+     *            Http request.
+     * @return Policy, {@link PathPolicy#AUTHENTICATE} if no entry matches.
+     */
+    public PathPolicy match(final HttpServletRequest request) {
+        final String servletPath = request.getServletPath();
+        final String pathInfo = request.getPathInfo();
+        final String path = pathInfo == null ? servletPath : servletPath == null ? pathInfo : servletPath + pathInfo;
+        return match(request.getMethod(), path == null ? "" : path);
+    }
+
+    /**
+     * Policy of a request.
+     * 
+     * @param method
+     *            Http method.
+     * @param path
+     *            Path within the application.
+     * @return Policy, {@link PathPolicy#AUTHENTICATE} if no entry matches.
+     */
+    public PathPolicy match(final String method, final String path) {
+        Node node = this.root;
+        PathPolicy policy = node.get(method);
+        final int length = path.length();
+        int start = 0;
+        while (start < length && node.children != null) {
+            if (path.charAt(start) == '/') {
+                start++;
+                continue;
+            }
+            int end = path.indexOf('/', start);
+            if (end < 0) {
+                end = length;
+            }
+            node = node.children.get(path.substring(start, end));
+            if (node == null) {
+                break;
+            }
+            final PathPolicy nodePolicy = node.get(method);
+            if (nodePolicy != null) {
+                policy = nodePolicy;
+            }
+            start = end;
+        }
+        return policy == null ? PathPolicy.AUTHENTICATE : policy;
+    }
+
+    private void add(final String entry) {
+        String[] fields = entry.split("\\s+", 2);
+        String method = null;
+        if (!isPath(fields[0])) {
+            method = fields[0].toUpperCase(Locale.ENGLISH);
+            if (fields.length < 2) {
+                throw new IllegalArgumentException("Missing path: " + entry);
+            }
+            fields = fields[1].split("\\s+", 2);
+            if (!isPath(fields[0])) {
+                throw new IllegalArgumentException("Invalid path: " + entry);
+            }
+        }
+        if (fields.length < 2) {
+            throw new IllegalArgumentException("Missing action: " + entry);
+        }
+
+        Node node = this.root;
+        for (String segment : fields[0].split("/")) {
+            if (segment.length() > 0 && !segment.equals("*")) {
+                node = node.getOrAddChild(segment);
+            }
+        }
+        if (!node.put(method, toPolicy(fields[1]))) {
+            throw new IllegalArgumentException("Duplicate path: " + entry);
+        }
+        this.size++;
+    }
+
+    private static boolean isPath(final String value) {
+        return value.startsWith("/") || value.equals("*");
+    }
+
+    private static PathPolicy toPolicy(final String actions) {
+        boolean skip = false;
+        boolean impersonate = true;
+        String[] roles = new String[0];
+        String rest = actions;
+        while (rest.length() > 0) {
+            if (rest.startsWith(ROLES)) {
+                roles = toRoles(rest.substring(ROLES.length()));
+                break;
+            }
+            final String[] fields = rest.split("\\s+", 2);
+            if (fields[0].equals("skip")) {
+                skip = true;
+            } else if (fields[0].equals("noimpersonate")) {
+                impersonate = false;
+            } else if (!fields[0].equals("authenticate")) {
+                throw new IllegalArgumentException("Invalid action: " + fields[0]);
+            }
+            rest = fields.length < 2 ? "" : fields[1];
+        }
+        if (skip) {
+            if (!impersonate || roles.length > 0) {
+                throw new IllegalArgumentException("Skipped paths cannot have other actions: " + actions);
+            }
+            return PathPolicy.SKIP;
+        }
+        return PathPolicy.of(impersonate, roles);
+    }
+
+    private static String[] toRoles(final String value) {
+        final List<String> roles = new ArrayList<String>();
+        for (String role : value.split(",")) {
+            role = role.trim();
+            if (role.length() > 0) {
+                roles.add(role);
+            }
+        }
+        if (roles.isEmpty()) {
+            throw new IllegalArgumentException("Missing roles: " + value);
+        }
+        return roles.toArray(new String[roles.size()]);
+    }
+
+    /**
+     * A path segment, with the policies of the paths ending there.
+     */
+    private static final class Node {
+
+        Map<String, Node>       children;
+        Map<String, PathPolicy> methods;
+        PathPolicy              any;
+
+        Node() {
+        }
+
+        Node getOrAddChild(final String segment) {
+            if (this.children == null) {
+                this.children = new HashMap<String, Node>();
+            }
+            Node child = this.children.get(segment);
+            if (child == null) {
+                child = new Node();
+                this.children.put(segment, child);
+            }
+            return child;
+        }
+
+        boolean put(final String method, final PathPolicy policy) {
+            if (method == null || method.equals("*")) {
+                if (this.any != null) {
+                    return false;
+                }
+                this.any = policy;
+                return true;
+            }
+            if (this.methods == null) {
+                this.methods = new HashMap<String, PathPolicy>();
+            }
+            return this.methods.put(method, policy) == null;
+        }
+
+        PathPolicy get(final String method) {
+            if (this.methods != null) {
+                final PathPolicy policy = this.methods.get(method);
+                if (policy != null) {
+                    return policy;
+                }
+            }
+            return this.any;
+        }
+    }
+}
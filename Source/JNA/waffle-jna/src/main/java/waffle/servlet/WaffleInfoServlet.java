@@ -34,6 +34,7 @@ import org.w3c.dom.Document;
 import org.w3c.dom.Element;
 
 import waffle.util.WaffleInfo;
+import waffle.windows.auth.impl.WindowsTopologyCache;
 
 /**
  * A servlet that returns WaffleInfo as XML
@@ -42,6 +43,29 @@ public class WaffleInfoServlet extends HttpServlet {
 
     private static final long serialVersionUID = 1L;
 
+    /**
+     * Applies the "topologyRefreshInterval" init parameter, the number of seconds between background refreshes of the
+     * cached computer and domain information, and registers this servlet as a user of the cache.
+     */
+    @Override
+    public void init() throws ServletException {
+        final String refreshInterval = getInitParameter("topologyRefreshInterval");
+        if (refreshInterval != null) {
+            WindowsTopologyCache.getDefault().setRefreshInterval(Integer.parseInt(refreshInterval));
+        }
+        WindowsTopologyCache.getDefault().acquire();
+    }
+
+    /**
+     * Releases the cached computer and domain information, stopping its background refresh when no other filter or
+     * servlet uses it.
+     */
+    @Override
+    public void destroy() {
+        WindowsTopologyCache.getDefault().release();
+        super.destroy();
+    }
+
     @Override
     public void doGet(final HttpServletRequest request, final HttpServletResponse response) throws ServletException,
             IOException {
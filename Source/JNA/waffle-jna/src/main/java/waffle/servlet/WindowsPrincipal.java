@@ -13,34 +13,69 @@
  */
 package waffle.servlet;
 
-import java.io.Serializable;
+import java.io.Externalizable;
+import java.io.IOException;
+import java.io.ObjectInput;
+import java.io.ObjectOutput;
 import java.security.Principal;
 import java.util.ArrayList;
-import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
 
 import com.google.common.base.Joiner;
 
-import waffle.windows.auth.IWindowsAccount;
 import waffle.windows.auth.IWindowsIdentity;
 import waffle.windows.auth.PrincipalFormat;
+import waffle.windows.auth.Sid;
 import waffle.windows.auth.WindowsAccount;
+import waffle.windows.auth.WindowsGroupFilter;
+import waffle.windows.auth.WindowsGroupSet;
+import waffle.windows.auth.WindowsIdentitySnapshot;
+import waffle.windows.auth.WindowsLazyGroupSet;
+import waffle.windows.auth.WindowsPrincipalCodec;
 
 /**
  * A Windows Principal.
  * 
+ * <p>
+ * Principals are serialized in the compact format of {@link WindowsPrincipalCodec}. The underlying identity is not
+ * serialized.
+ * </p>
+ * 
+ * <p>
+ * Group memberships are kept as a {@link WindowsGroupSet} of ids into the process-wide group dictionary, and roles are
+ * derived from them rather than stored. A principal built from an identity only keeps its group SIDs until the groups
+ * are first needed, so that logons of applications that never check roles do not resolve group names. Role checks
+ * are hashed lookups in the dictionary followed by a membership test. Role names are matched case-insensitively, like
+ * Windows account names, and the SID and the fully qualified name of the user or of a group are aliases of each other:
+ * a principal with the FQN role of a group also has the role of its SID, and vice versa.
+ * </p>
+ * 
  * @author dblock[at]dblock[dot]org
  */
-public class WindowsPrincipal implements Principal, Serializable {
+public class WindowsPrincipal implements Principal, Externalizable {
 
-    private static final long           serialVersionUID = 1L;
-    private String                      fqn;
-    private byte[]                      sid;
-    private String                      sidString;
-    private List<String>                roles;
-    private transient IWindowsIdentity  identity;
-    private Map<String, WindowsAccount> groups;
+    private static final long          serialVersionUID = 2L;
+    private static final String[]      NO_ROLES         = new String[0];
+    private String                     fqn;
+    private byte[]                     sid;
+    private String                     sidString;
+    private transient Sid              securityIdentifier;
+    private WindowsLazyGroupSet        groups;
+    private PrincipalFormat            principalFormat;
+    private PrincipalFormat            roleFormat;
+    private String[]                   otherRoles       = NO_ROLES;
+    private transient IWindowsIdentity identity;
+    private transient String           rolesString;
+
+    /**
+     * An empty windows principal, used by deserialization only.
+     */
+    public WindowsPrincipal() {
+        // Do Nothing
+    }
 
     /**
      * A windows principal.
@@ -64,30 +99,64 @@ public class WindowsPrincipal implements Principal, Serializable {
      */
     public WindowsPrincipal(final IWindowsIdentity windowsIdentity, final PrincipalFormat principalFormat,
             final PrincipalFormat roleFormat) {
-        this.identity = windowsIdentity;
+        this(windowsIdentity, principalFormat, roleFormat, WindowsGroupFilter.all());
+    }
+
+    /**
+     * A windows principal with the groups kept by a filter.
+     * 
+     * @param windowsIdentity
+     *            Windows identity.
+     * @param principalFormat
+     *            Principal format.
+     * @param roleFormat
+     *            Role format.
+     * @param groupFilter
+     *            Group filter.
+     */
+    public WindowsPrincipal(final IWindowsIdentity windowsIdentity, final PrincipalFormat principalFormat,
+            final PrincipalFormat roleFormat, final WindowsGroupFilter groupFilter) {
         this.fqn = windowsIdentity.getFqn();
         this.sid = windowsIdentity.getSid();
         this.sidString = windowsIdentity.getSidString();
-        this.groups = getGroups(windowsIdentity.getGroups());
-        this.roles = getRoles(windowsIdentity, principalFormat, roleFormat);
+        this.groups = WindowsLazyGroupSet.of(windowsIdentity, groupFilter, roleFormat);
+        this.principalFormat = principalFormat;
+        this.roleFormat = roleFormat;
+        this.identity = windowsIdentity;
     }
 
-    private static List<String> getRoles(final IWindowsIdentity windowsIdentity, final PrincipalFormat principalFormat,
+    /**
+     * A windows principal built from an identity snapshot, without access to the underlying identity.
+     * 
+     * @param snapshot
+     *            Windows identity snapshot.
+     * @param principalFormat
+     *            Principal format.
+     * @param roleFormat
+     *            Role format.
+     */
+    public WindowsPrincipal(final WindowsIdentitySnapshot snapshot, final PrincipalFormat principalFormat,
             final PrincipalFormat roleFormat) {
-        final List<String> roles = new ArrayList<String>();
-        roles.addAll(getPrincipalNames(windowsIdentity, principalFormat));
-        for (IWindowsAccount group : windowsIdentity.getGroups()) {
-            roles.addAll(getRoleNames(group, roleFormat));
-        }
-        return roles;
+        this.fqn = snapshot.getFqn();
+        this.sid = snapshot.getSid();
+        this.sidString = snapshot.getSidString();
+        this.groups = WindowsLazyGroupSet.of(WindowsGroupSet.of(snapshot.getGroups()));
+        this.principalFormat = principalFormat;
+        this.roleFormat = roleFormat;
     }
 
-    private static Map<String, WindowsAccount> getGroups(final IWindowsAccount[] groups) {
-        final Map<String, WindowsAccount> groupMap = new HashMap<String, WindowsAccount>();
-        for (IWindowsAccount group : groups) {
-            groupMap.put(group.getFqn(), new WindowsAccount(group));
+    private List<String> getRoles() {
+        final List<String> roles = new ArrayList<String>();
+        roles.addAll(getPrincipalNames(this.fqn, this.sidString, this.principalFormat));
+        if (this.roleFormat != PrincipalFormat.NONE) {
+            for (WindowsAccount group : getGroupSet().getGroups()) {
+                roles.addAll(getRoleNames(group, this.roleFormat));
+            }
         }
-        return groupMap;
+        for (String role : this.otherRoles) {
+            roles.add(role);
+        }
+        return roles;
     }
 
     /**
@@ -99,6 +168,20 @@ public class WindowsPrincipal implements Principal, Serializable {
         return this.sid.clone();
     }
 
+    /**
+     * Security identifier, shared rather than copied like {@link #getSid()}.
+     * 
+     * @return Sid, or null if the principal does not carry a valid SID.
+     */
+    public Sid getSecurityIdentifier() {
+        Sid value = this.securityIdentifier;
+        if (value == null) {
+            value = Sid.isValid(this.sid) ? Sid.of(this.sid) : Sid.tryParse(this.sidString);
+            this.securityIdentifier = value;
+        }
+        return value;
+    }
+
     /**
      * String representation of the SID.
      * 
@@ -114,7 +197,17 @@ public class WindowsPrincipal implements Principal, Serializable {
      * @return A map of group names to groups.
      */
     public Map<String, WindowsAccount> getGroups() {
-        return this.groups;
+        return getGroupSet().getGroupMap();
+    }
+
+    /**
+     * Windows groups that the user is a member of, as ids into the process-wide group dictionary. Group names are
+     * resolved on the first call.
+     * 
+     * @return Group set.
+     */
+    public WindowsGroupSet getGroupSet() {
+        return this.groups.get();
     }
 
     /**
@@ -126,7 +219,7 @@ public class WindowsPrincipal implements Principal, Serializable {
      *            Principal format.
      * @return List of role principal objects.
      */
-    private static List<String> getRoleNames(final IWindowsAccount group, final PrincipalFormat principalFormat) {
+    private static List<String> getRoleNames(final WindowsAccount group, final PrincipalFormat principalFormat) {
         final List<String> principals = new ArrayList<String>();
         switch (principalFormat) {
             case FQN:
@@ -150,25 +243,27 @@ public class WindowsPrincipal implements Principal, Serializable {
     /**
      * Returns a list of user principal objects.
      * 
-     * @param windowsIdentity
-     *            Windows identity.
+     * @param fqn
+     *            Fully qualified name.
+     * @param sidString
+     *            String representation of the SID.
      * @param principalFormat
      *            Principal format.
      * @return A list of user principal objects.
      */
-    private static List<String> getPrincipalNames(final IWindowsIdentity windowsIdentity,
+    private static List<String> getPrincipalNames(final String fqn, final String sidString,
             final PrincipalFormat principalFormat) {
         final List<String> principals = new ArrayList<String>();
         switch (principalFormat) {
             case FQN:
-                principals.add(windowsIdentity.getFqn());
+                principals.add(fqn);
                 break;
             case SID:
-                principals.add(windowsIdentity.getSidString());
+                principals.add(sidString);
                 break;
             case BOTH:
-                principals.add(windowsIdentity.getFqn());
-                principals.add(windowsIdentity.getSidString());
+                principals.add(fqn);
+                principals.add(sidString);
                 break;
             case NONE:
                 break;
@@ -184,18 +279,39 @@ public class WindowsPrincipal implements Principal, Serializable {
      * @return Role1, Role2, ...
      */
     public String getRolesString() {
-        return Joiner.on(", ").join(this.roles);
+        String value = this.rolesString;
+        if (value == null) {
+            value = Joiner.on(", ").join(getRoles());
+            this.rolesString = value;
+        }
+        return value;
     }
 
     /**
-     * Checks whether the principal has a given role.
+     * Checks whether the principal has a given role, ignoring case. The SID of a user or group role is equivalent to
+     * its name.
      * 
      * @param role
-     *            Role name.
+     *            Role name or SID.
      * @return True if the principal has a role, false otherwise.
      */
     public boolean hasRole(final String role) {
-        return this.roles.contains(role);
+        if (role == null) {
+            return false;
+        }
+        if (this.principalFormat != PrincipalFormat.NONE
+                && (role.equalsIgnoreCase(this.fqn) || role.equalsIgnoreCase(this.sidString))) {
+            return true;
+        }
+        if (this.roleFormat != PrincipalFormat.NONE && getGroupSet().containsName(role)) {
+            return true;
+        }
+        for (String otherRole : this.otherRoles) {
+            if (role.equalsIgnoreCase(otherRole)) {
+                return true;
+            }
+        }
+        return false;
     }
 
     /**
@@ -222,4 +338,31 @@ public class WindowsPrincipal implements Principal, Serializable {
         return this.getName();
     }
 
+    @Override
+    public void writeExternal(final ObjectOutput out) throws IOException {
+        WindowsPrincipalCodec.write(out, this.fqn, this.sid, this.sidString, this.principalFormat, this.roleFormat,
+                getGroupSet().getGroups(), getRoles());
+    }
+
+    @Override
+    public void readExternal(final ObjectInput in) throws IOException {
+        final List<PrincipalFormat> formats = new ArrayList<PrincipalFormat>(2);
+        final List<String> newRoles = new ArrayList<String>();
+        final WindowsIdentitySnapshot snapshot = WindowsPrincipalCodec.read(in, formats, newRoles);
+        this.fqn = snapshot.getFqn();
+        this.sid = snapshot.getSid();
+        this.sidString = snapshot.getSidString();
+        this.groups = WindowsLazyGroupSet.of(WindowsGroupSet.of(snapshot.getGroups()));
+        this.principalFormat = formats.get(0);
+        this.roleFormat = formats.get(1);
+        // roles not built from the user and its groups are kept as is
+        this.otherRoles = NO_ROLES;
+        final Set<String> otherRolesSet = new HashSet<String>(newRoles);
+        otherRolesSet.removeAll(getRoles());
+        if (!otherRolesSet.isEmpty()) {
+            this.otherRoles = otherRolesSet.toArray(new String[otherRolesSet.size()]);
+        }
+        this.rolesString = null;
+    }
+
 }
@@ -0,0 +1,258 @@
+/**
+ * Waffle (https://github.com/dblock/waffle)
+ *
+ * Copyright (c) 2010 - 2014 Application Security, Inc.
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors:
+ *     Application Security, Inc.
+ */
+package waffle.servlet;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.InflaterInputStream;
+
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+import javax.servlet.http.Cookie;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.common.io.BaseEncoding;
+
+import waffle.windows.auth.PrincipalFormat;
+import waffle.windows.auth.WindowsIdentitySnapshot;
+import waffle.windows.auth.WindowsPrincipalCodec;
+
+/**
+ * A stateless alternative to keeping the logged on principal in the HTTP session: the user's name, SID and group
+ * memberships are written to a compact, expiring cookie signed with HMAC-SHA256. Any server that shares the key can
+ * verify the cookie and rebuild the principal without a session lookup or a Windows logon.
+ * 
+ * <p>
+ * The cookie value is the expiry and the identity in the compact format of {@link WindowsPrincipalCodec}, deflated,
+ * followed by the signature, both base64url-encoded. The signature is verified before anything else is read from the
+ * cookie. Identities that do not fit in {@link #MAX_LENGTH} are not written, callers keep them in the session. The cookie is HttpOnly, and Secure when it was
+ * issued over a secure request. Group memberships are only as fresh as the cookie, keep the time to live short.
+ * </p>
+ * 
+ * @author dblock[at]dblock[dot]org
+ */
+public class WindowsPrincipalCookie {
+
+    private static final Logger       LOGGER         = LoggerFactory.getLogger(WindowsPrincipalCookie.class);
+
+    /**
+     * Default cookie name.
+     */
+    public static final String        DEFAULT_NAME   = "WAFFLE_PRINCIPAL";
+
+    /**
+     * Default time to live of a cookie, in seconds.
+     */
+    public static final int           DEFAULT_TTL    = 3600;
+
+    /**
+     * Minimum length of the signing key, in bytes.
+     */
+    public static final int           MIN_KEY_LENGTH = 16;
+
+    /**
+     * Largest cookie value written, browsers drop cookies above about 4096 bytes.
+     */
+    public static final int           MAX_LENGTH     = 3800;
+
+    private static final String       ALGORITHM      = "HmacSHA256";
+    private static final byte         VERSION        = 2;
+    private static final char         SEPARATOR      = '.';
+    private static final BaseEncoding BASE64URL      = BaseEncoding.base64Url().omitPadding();
+
+    private final SecretKeySpec       key;
+    private final int                 ttl;
+    private String                    name           = DEFAULT_NAME;
+
+    /**
+     * A principal cookie.
+     * 
+     * @param newKey
+     *            Signing key, shared by all servers that accept the cookie.
+     * @param newTtl
+     *            Time to live of a cookie, in seconds.
+     */
+    public WindowsPrincipalCookie(final byte[] newKey, final int newTtl) {
+        if (newKey == null || newKey.length < MIN_KEY_LENGTH) {
+            throw new IllegalArgumentException("The principal cookie key must be at least " + MIN_KEY_LENGTH
+                    + " bytes long");
+        }
+        this.key = new SecretKeySpec(newKey, ALGORITHM);
+        this.ttl = newTtl;
+        // fail early on a JRE without HmacSHA256
+        newMac();
+    }
+
+    public String getName() {
+        return this.name;
+    }
+
+    public void setName(final String value) {
+        this.name = value;
+    }
+
+    /**
+     * Time to live of a cookie.
+     * 
+     * @return Number of seconds.
+     */
+    public int getTtl() {
+        return this.ttl;
+    }
+
+    /**
+     * Encode and sign an identity.
+     * 
+     * @param snapshot
+     *            Windows identity snapshot.
+     * @param now
+     *            Current time, in milliseconds.
+     * @return Cookie value.
+     */
+    public String encode(final WindowsIdentitySnapshot snapshot, final long now) {
+        final ByteArrayOutputStream bytes = new ByteArrayOutputStream(512);
+        try {
+            final DataOutputStream out = new DataOutputStream(new DeflaterOutputStream(bytes, new Deflater(
+                    Deflater.BEST_COMPRESSION)));
+            out.writeByte(VERSION);
+            out.writeLong(now + TimeUnit.SECONDS.toMillis(this.ttl));
+            // roles are rebuilt from the groups with the formats of the reader
+            WindowsPrincipalCodec.write(out, snapshot.getFqn(), snapshot.getSid(), snapshot.getSidString(), null,
+                    null, snapshot.getGroups(), Collections.<String> emptyList());
+            out.close();
+        } catch (IOException e) {
+            throw new IllegalStateException(e);
+        }
+        final byte[] payload = bytes.toByteArray();
+        return BASE64URL.encode(payload) + SEPARATOR + BASE64URL.encode(newMac().doFinal(payload));
+    }
+
+    /**
+     * Verify and decode a cookie value.
+     * 
+     * @param value
+     *            Cookie value.
+     * @param now
+     *            Current time, in milliseconds.
+     * @return Windows identity snapshot or null if the cookie is malformed, was not signed with this key or expired.
+     */
+    public WindowsIdentitySnapshot decode(final String value, final long now) {
+        final int separator = value.indexOf(SEPARATOR);
+        if (separator <= 0) {
+            return null;
+        }
+        final byte[] payload;
+        final byte[] signature;
+        try {
+            payload = BASE64URL.decode(value.substring(0, separator));
+            signature = BASE64URL.decode(value.substring(separator + 1));
+        } catch (IllegalArgumentException e) {
+            LOGGER.debug("malformed principal cookie");
+            return null;
+        }
+        if (!MessageDigest.isEqual(signature, newMac().doFinal(payload))) {
+            LOGGER.debug("invalid principal cookie signature");
+            return null;
+        }
+        try {
+            final DataInputStream in = new DataInputStream(new InflaterInputStream(new ByteArrayInputStream(payload)));
+            if (in.readByte() != VERSION) {
+                return null;
+            }
+            if (in.readLong() <= now) {
+                LOGGER.debug("expired principal cookie");
+                return null;
+            }
+            return WindowsPrincipalCodec.read(in, new ArrayList<PrincipalFormat>(2), new ArrayList<String>());
+        } catch (IOException e) {
+            LOGGER.warn("error reading principal cookie: {}", e.getMessage());
+            LOGGER.trace("{}", e);
+            return null;
+        }
+    }
+
+    /**
+     * Read the identity from the cookie of a request.
+     * 
+     * @param request
+     *            Http Request.
+     * @return Windows identity snapshot or null if the request has no valid cookie.
+     */
+    public WindowsIdentitySnapshot read(final HttpServletRequest request) {
+        final Cookie[] cookies = request.getCookies();
+        if (cookies == null) {
+            return null;
+        }
+        for (Cookie cookie : cookies) {
+            if (this.name.equals(cookie.getName()) && cookie.getValue() != null) {
+                return decode(cookie.getValue(), System.currentTimeMillis());
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Issue a cookie for an identity.
+     * 
+     * @param request
+     *            Http Request.
+     * @param response
+     *            Http Response.
+     * @param snapshot
+     *            Windows identity snapshot.
+     * @return True if the cookie was written, false if it would be too large.
+     */
+    public boolean write(final HttpServletRequest request, final HttpServletResponse response,
+            final WindowsIdentitySnapshot snapshot) {
+        final String value = encode(snapshot, System.currentTimeMillis());
+        if (value.length() > MAX_LENGTH) {
+            LOGGER.warn("principal cookie of {} is too large: {} character(s)", snapshot.getFqn(),
+                    Integer.valueOf(value.length()));
+            return false;
+        }
+        final String path = request.getContextPath();
+        final StringBuilder header = new StringBuilder(value.length() + 96).append(this.name).append('=')
+                .append(value).append("; Path=").append(path == null || path.length() == 0 ? "/" : path)
+                .append("; Max-Age=").append(this.ttl).append("; HttpOnly");
+        if (request.isSecure()) {
+            header.append("; Secure");
+        }
+        response.addHeader("Set-Cookie", header.toString());
+        return true;
+    }
+
+    private Mac newMac() {
+        try {
+            final Mac mac = Mac.getInstance(ALGORITHM);
+            mac.init(this.key);
+            return mac;
+        } catch (GeneralSecurityException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+}
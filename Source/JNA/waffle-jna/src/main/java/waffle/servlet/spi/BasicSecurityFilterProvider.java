@@ -37,17 +37,19 @@ public class BasicSecurityFilterProvider implements SecurityFilterProvider {
 
     private static final Logger  LOGGER = LoggerFactory.getLogger(BasicSecurityFilterProvider.class);
     private String               realm  = "BasicSecurityFilterProvider";
+    private String               challenge;
     private IWindowsAuthProvider auth;
 
     public BasicSecurityFilterProvider(final IWindowsAuthProvider newAuthProvider) {
         this.auth = newAuthProvider;
+        this.challenge = toChallenge(this.realm);
     }
 
     @Override
     public IWindowsIdentity doFilter(final HttpServletRequest request, final HttpServletResponse response)
             throws IOException {
 
-        final AuthorizationHeader authorizationHeader = new AuthorizationHeader(request);
+        final AuthorizationHeader authorizationHeader = AuthorizationHeader.of(request);
         final String usernamePassword = new String(authorizationHeader.getTokenBytes(), Charsets.UTF_8);
         final String[] usernamePasswordArray = usernamePassword.split(":", 2);
         if (usernamePasswordArray.length != 2) {
@@ -69,7 +71,11 @@ public class BasicSecurityFilterProvider implements SecurityFilterProvider {
 
     @Override
     public void sendUnauthorized(final HttpServletResponse response) {
-        response.addHeader("WWW-Authenticate", "Basic realm=\"" + this.realm + "\"");
+        response.addHeader("WWW-Authenticate", this.challenge);
+    }
+
+    private static String toChallenge(final String realm) {
+        return "Basic realm=\"" + realm + "\"";
     }
 
     /**
@@ -89,6 +95,7 @@ public class BasicSecurityFilterProvider implements SecurityFilterProvider {
      */
     public void setRealm(final String value) {
         this.realm = value;
+        this.challenge = toChallenge(value);
     }
 
     /**
@@ -0,0 +1,79 @@
+/**
+ * Waffle (https://github.com/dblock/waffle)
+ *
+ * Copyright (c) 2010 - 2014 Application Security, Inc.
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors:
+ *     Application Security, Inc.
+ */
+package waffle.servlet.spi;
+
+import java.io.IOException;
+import java.util.Locale;
+
+import javax.servlet.http.HttpServletResponse;
+
+/**
+ * How a 401 Unauthorized challenge is sent once its WWW-Authenticate headers are set.
+ * 
+ * <p>
+ * Browsers discard the body of a challenge and retry at once, so rendering the container's error page for every first
+ * leg of a handshake is wasted work. {@link #STATUS} only sets the status and an empty body.
+ * </p>
+ * 
+ * @author dblock[at]dblock[dot]org
+ */
+public enum ChallengeMode {
+
+    /**
+     * Send the challenge with {@link HttpServletResponse#sendError(int)}, rendering the container's error page.
+     */
+    ERROR {
+        @Override
+        void send(final HttpServletResponse response) throws IOException {
+            response.sendError(HttpServletResponse.SC_UNAUTHORIZED);
+        }
+    },
+
+    /**
+     * Set the status and an empty body, without an error page.
+     */
+    STATUS {
+        @Override
+        void send(final HttpServletResponse response) throws IOException {
+            response.setStatus(HttpServletResponse.SC_UNAUTHORIZED);
+            response.setContentLength(0);
+        }
+    };
+
+    abstract void send(final HttpServletResponse response) throws IOException;
+
+    /**
+     * Send a 401 Unauthorized status and flush the response, whose headers must have been set.
+     * 
+     * @param response
+     *            HTTP Response
+     * @throws IOException
+     *             when the response cannot be written.
+     */
+    public void sendUnauthorized(final HttpServletResponse response) throws IOException {
+        send(response);
+        response.flushBuffer();
+    }
+
+    /**
+     * Parse a challenge mode, case-insensitively.
+     * 
+     * @param value
+     *            Challenge mode name, eg. "status".
+     * @return Challenge mode.
+     */
+    public static ChallengeMode parse(final String value) {
+        return valueOf(value.trim().toUpperCase(Locale.ENGLISH));
+    }
+}
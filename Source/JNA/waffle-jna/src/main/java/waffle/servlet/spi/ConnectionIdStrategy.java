@@ -0,0 +1,39 @@
+/**
+ * Waffle (https://github.com/dblock/waffle)
+ *
+ * Copyright (c) 2010 - 2014 Application Security, Inc.
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors:
+ *     Application Security, Inc.
+ */
+package waffle.servlet.spi;
+
+import javax.servlet.http.HttpServletRequest;
+
+/**
+ * Identifies the connection a request arrived on. NTLM and Negotiate handshakes span several requests, the pending
+ * security context of a handshake is kept under this id between them.
+ * 
+ * <p>
+ * Implementations are called on every handshake leg and must not block, in particular they must not resolve the
+ * remote host name.
+ * </p>
+ * 
+ * @author dblock[at]dblock[dot]org
+ */
+public interface ConnectionIdStrategy {
+
+    /**
+     * Returns a connection id for a request.
+     * 
+     * @param request
+     *            Http Request.
+     * @return Connection id, equal for all requests on the same connection.
+     */
+    String getConnectionId(final HttpServletRequest request);
+}
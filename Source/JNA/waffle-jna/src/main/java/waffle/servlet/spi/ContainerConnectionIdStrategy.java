@@ -0,0 +1,146 @@
+/**
+ * Waffle (https://github.com/dblock/waffle)
+ *
+ * Copyright (c) 2010 - 2014 Application Security, Inc.
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors:
+ *     Application Security, Inc.
+ */
+package waffle.servlet.spi;
+
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.util.Map;
+import java.util.WeakHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.servlet.ServletRequest;
+import javax.servlet.ServletRequestWrapper;
+import javax.servlet.http.HttpServletRequest;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Identifies a connection by the connection object of the servlet container, so that the id stays correct when the
+ * remote address and port do not identify the client, eg. behind a proxy that multiplexes clients.
+ * 
+ * <p>
+ * Jetty (6 to 9) exposes the connection serving the current thread through a static getCurrentConnection() method,
+ * which is looked up once through the class loader of the container request. Each connection object is given a short
+ * sequential id, held weakly so that closed connections are forgotten. On containers that do not expose their
+ * connections, such as Tomcat, whose remote address and port are read from the socket and already identify the
+ * connection, the fallback strategy is used.
+ * </p>
+ * 
+ * @author dblock[at]dblock[dot]org
+ */
+public class ContainerConnectionIdStrategy implements ConnectionIdStrategy {
+
+    private static final Logger        LOGGER      = LoggerFactory.getLogger(ContainerConnectionIdStrategy.class);
+
+    private static final String[]      CONNECTIONS = { "org.eclipse.jetty.server.HttpConnection",
+            "org.eclipse.jetty.server.AbstractHttpConnection", "org.mortbay.jetty.HttpConnection" };
+
+    private final ConnectionIdStrategy fallback;
+    private final Map<Object, String>  ids         = new WeakHashMap<Object, String>();
+    private final AtomicLong           sequence    = new AtomicLong();
+    private volatile Method            currentConnection;
+    private volatile boolean           resolved;
+
+    public ContainerConnectionIdStrategy() {
+        this(new RemoteAddressConnectionIdStrategy());
+    }
+
+    /**
+     * A container connection id strategy.
+     * 
+     * @param newFallback
+     *            Strategy used when the container does not expose its connections.
+     */
+    public ContainerConnectionIdStrategy(final ConnectionIdStrategy newFallback) {
+        this.fallback = newFallback;
+    }
+
+    @Override
+    public String getConnectionId(final HttpServletRequest request) {
+        final Object connection = getConnection(request);
+        if (connection == null) {
+            return this.fallback.getConnectionId(request);
+        }
+        synchronized (this.ids) {
+            String id = this.ids.get(connection);
+            if (id == null) {
+                id = "c:" + Long.toString(this.sequence.incrementAndGet(), Character.MAX_RADIX);
+                this.ids.put(connection, id);
+            }
+            return id;
+        }
+    }
+
+    /**
+     * Returns the container connection serving a request.
+     * 
+     * @param request
+     *            Http Request.
+     * @return Connection object or null if the container does not expose it.
+     */
+    protected Object getConnection(final HttpServletRequest request) {
+        if (!this.resolved) {
+            resolve(request);
+        }
+        final Method method = this.currentConnection;
+        if (method == null) {
+            return null;
+        }
+        try {
+            return method.invoke(null);
+        } catch (IllegalAccessException e) {
+            LOGGER.trace("{}", e);
+        } catch (InvocationTargetException e) {
+            LOGGER.trace("{}", e);
+        }
+        return null;
+    }
+
+    private synchronized void resolve(final HttpServletRequest request) {
+        if (this.resolved) {
+            return;
+        }
+        ServletRequest containerRequest = request;
+        while (containerRequest instanceof ServletRequestWrapper) {
+            containerRequest = ((ServletRequestWrapper) containerRequest).getRequest();
+        }
+        final ClassLoader loader = containerRequest.getClass().getClassLoader();
+        for (String className : CONNECTIONS) {
+            try {
+                this.currentConnection = Class.forName(className, false, loader).getMethod("getCurrentConnection");
+                LOGGER.debug("using {}.getCurrentConnection()", className);
+                break;
+            } catch (ClassNotFoundException e) {
+                LOGGER.trace("{} not found", className);
+            } catch (NoSuchMethodException e) {
+                LOGGER.trace("{}.getCurrentConnection() not found", className);
+            } catch (SecurityException e) {
+                LOGGER.trace("{}", e);
+            }
+        }
+        this.resolved = true;
+    }
+
+    /**
+     * Number of container connections currently known.
+     * 
+     * @return Number of connection ids.
+     */
+    public int size() {
+        synchronized (this.ids) {
+            return this.ids.size();
+        }
+    }
+}
@@ -27,6 +27,8 @@ import org.slf4j.LoggerFactory;
 
 import com.google.common.io.BaseEncoding;
 
+import waffle.util.AuthenticationTiming;
+import waffle.util.AuthenticationTiming.Phase;
 import waffle.util.AuthorizationHeader;
 import waffle.util.NtlmServletRequest;
 import waffle.windows.auth.IWindowsAuthProvider;
@@ -40,16 +42,19 @@ import waffle.windows.auth.IWindowsSecurityContext;
  */
 public class NegotiateSecurityFilterProvider implements SecurityFilterProvider {
 
-    private static final Logger  LOGGER           = LoggerFactory.getLogger(NegotiateSecurityFilterProvider.class);
+    private static final Logger  LOGGER               = LoggerFactory
+                                                              .getLogger(NegotiateSecurityFilterProvider.class);
 
-    private static final String  WWW_AUTHENTICATE = "WWW-Authenticate";
+    private static final String  WWW_AUTHENTICATE     = "WWW-Authenticate";
 
-    private static final String  PROTOCOLS        = "protocols";
-    private static final String  NEGOTIATE        = "Negotiate";
-    private static final String  NTLM             = "NTLM";
+    private static final String  PROTOCOLS            = "protocols";
+    private static final String  CONNECTION_ID        = "connectionIdStrategy";
+    private static final String  NEGOTIATE            = "Negotiate";
+    private static final String  NTLM                 = "NTLM";
 
-    private List<String>         protocols        = new ArrayList<String>();
+    private List<String>         protocols            = new ArrayList<String>();
     private IWindowsAuthProvider auth;
+    private ConnectionIdStrategy connectionIdStrategy = new RemoteAddressConnectionIdStrategy();
 
     public NegotiateSecurityFilterProvider(final IWindowsAuthProvider newAuthProvider) {
         this.auth = newAuthProvider;
@@ -65,6 +70,20 @@ public class NegotiateSecurityFilterProvider implements SecurityFilterProvider {
         this.protocols = values;
     }
 
+    public ConnectionIdStrategy getConnectionIdStrategy() {
+        return this.connectionIdStrategy;
+    }
+
+    /**
+     * Set the strategy identifying the connection an NTLM or Negotiate handshake is in progress on.
+     * 
+     * @param value
+     *            Connection id strategy.
+     */
+    public void setConnectionIdStrategy(final ConnectionIdStrategy value) {
+        this.connectionIdStrategy = value;
+    }
+
     @Override
     public void sendUnauthorized(final HttpServletResponse response) {
         final Iterator<String> protocolsIterator = this.protocols.iterator();
@@ -75,7 +94,7 @@ public class NegotiateSecurityFilterProvider implements SecurityFilterProvider {
 
     @Override
     public boolean isPrincipalException(final HttpServletRequest request) {
-        final AuthorizationHeader authorizationHeader = new AuthorizationHeader(request);
+        final AuthorizationHeader authorizationHeader = AuthorizationHeader.of(request);
         final boolean ntlmPost = authorizationHeader.isNtlmType1PostAuthorizationHeader();
         LOGGER.debug("authorization: {}, ntlm post: {}", authorizationHeader, Boolean.valueOf(ntlmPost));
         return ntlmPost;
@@ -85,11 +104,11 @@ public class NegotiateSecurityFilterProvider implements SecurityFilterProvider {
     public IWindowsIdentity doFilter(final HttpServletRequest request, final HttpServletResponse response)
             throws IOException {
 
-        final AuthorizationHeader authorizationHeader = new AuthorizationHeader(request);
+        final AuthorizationHeader authorizationHeader = AuthorizationHeader.of(request);
         final boolean ntlmPost = authorizationHeader.isNtlmType1PostAuthorizationHeader();
 
         // maintain a connection-based session for NTLM tokens
-        final String connectionId = NtlmServletRequest.getConnectionId(request);
+        final String connectionId = this.connectionIdStrategy.getConnectionId(request);
         final String securityPackage = authorizationHeader.getSecurityPackage();
         LOGGER.debug("security package: {}, connection id: {}", securityPackage, connectionId);
 
@@ -102,6 +121,10 @@ public class NegotiateSecurityFilterProvider implements SecurityFilterProvider {
         LOGGER.debug("token buffer: {} byte(s)", Integer.valueOf(tokenBuffer.length));
         final IWindowsSecurityContext securityContext = this.auth.acceptSecurityToken(connectionId, tokenBuffer,
                 securityPackage);
+        final AuthenticationTiming timing = AuthenticationTiming.of(request);
+        if (timing != null) {
+            timing.lap(Phase.HANDSHAKE);
+        }
 
         final byte[] continueTokenBytes = securityContext.getToken();
         if (continueTokenBytes != null && continueTokenBytes.length > 0) {
@@ -114,12 +137,18 @@ public class NegotiateSecurityFilterProvider implements SecurityFilterProvider {
         if (securityContext.isContinue() || ntlmPost) {
             response.setHeader("Connection", "keep-alive");
             response.setStatus(HttpServletResponse.SC_UNAUTHORIZED);
+            if (timing != null) {
+                timing.end(response, null);
+            }
             response.flushBuffer();
             return null;
         }
 
         final IWindowsIdentity identity = securityContext.getIdentity();
         securityContext.dispose();
+        if (timing != null) {
+            timing.lap(Phase.IDENTITY);
+        }
         return identity;
     }
 
@@ -150,6 +179,9 @@ public class NegotiateSecurityFilterProvider implements SecurityFilterProvider {
                     }
                 }
             }
+        } else if (parameterName.equals(CONNECTION_ID)) {
+            LOGGER.debug("init connection id strategy: {}", parameterValue);
+            this.connectionIdStrategy = NtlmServletRequest.getConnectionIdStrategy(parameterValue);
         } else {
             throw new InvalidParameterException(parameterName);
         }
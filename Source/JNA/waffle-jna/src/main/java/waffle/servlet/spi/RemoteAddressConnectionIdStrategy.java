@@ -0,0 +1,35 @@
+/**
+ * Waffle (https://github.com/dblock/waffle)
+ *
+ * Copyright (c) 2010 - 2014 Application Security, Inc.
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors:
+ *     Application Security, Inc.
+ */
+package waffle.servlet.spi;
+
+import javax.servlet.http.HttpServletRequest;
+
+/**
+ * Identifies a connection by the remote address and port of the client, eg. "192.168.1.1:49152". Both are known to
+ * the container without a reverse DNS lookup, regardless of enableLookups. This is the default strategy.
+ * 
+ * @author dblock[at]dblock[dot]org
+ */
+public class RemoteAddressConnectionIdStrategy implements ConnectionIdStrategy {
+
+    @Override
+    public String getConnectionId(final HttpServletRequest request) {
+        final String address = request.getRemoteAddr();
+        final StringBuilder connectionId = new StringBuilder(address == null ? 6 : address.length() + 6);
+        if (address != null) {
+            connectionId.append(address);
+        }
+        return connectionId.append(':').append(request.getRemotePort()).toString();
+    }
+}
@@ -18,6 +18,8 @@ import java.lang.reflect.Constructor;
 import java.lang.reflect.InvocationTargetException;
 import java.util.ArrayList;
 import java.util.List;
+import java.util.Locale;
+import java.util.Map;
 
 import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
@@ -25,15 +27,23 @@ import javax.servlet.http.HttpServletResponse;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import com.google.common.collect.Maps;
 import com.sun.jna.platform.win32.Win32Exception;
 
 import waffle.util.AuthorizationHeader;
+import waffle.util.AuthorizationHeaderStatus;
 import waffle.windows.auth.IWindowsAuthProvider;
 import waffle.windows.auth.IWindowsIdentity;
 
 /**
  * A collection of security filter providers.
  * 
+ * <p>
+ * Requests are dispatched to a provider with a table keyed by security package, filled the first time a package is
+ * seen, ie. once the providers have been initialized. Principal exceptions are only checked for the requests that can
+ * be one: an empty POST or PUT with an Authorization header.
+ * </p>
+ * 
  * @author dblock[at]dblock[dot]org
  */
 public class SecurityFilterProviderCollection {
@@ -41,6 +51,9 @@ public class SecurityFilterProviderCollection {
     private static final Logger          LOGGER    = LoggerFactory.getLogger(SecurityFilterProviderCollection.class);
     private List<SecurityFilterProvider> providers = new ArrayList<SecurityFilterProvider>();
 
+    // providers by lower case security package
+    private final Map<String, SecurityFilterProvider> packages = Maps.newConcurrentMap();
+
     public SecurityFilterProviderCollection(final SecurityFilterProvider[] providerArray) {
         for (SecurityFilterProvider provider : providerArray) {
             LOGGER.info("using '{}'", provider.getClass().getName());
@@ -103,6 +116,22 @@ public class SecurityFilterProviderCollection {
     }
 
     private SecurityFilterProvider get(final String securityPackage) {
+        if (securityPackage == null) {
+            return null;
+        }
+        final String key = securityPackage.toLowerCase(Locale.ENGLISH);
+        SecurityFilterProvider provider = this.packages.get(key);
+        if (provider == null) {
+            // only supported packages are added, so that arbitrary client values cannot grow the table
+            provider = find(securityPackage);
+            if (provider != null) {
+                this.packages.put(key, provider);
+            }
+        }
+        return provider;
+    }
+
+    private SecurityFilterProvider find(final String securityPackage) {
         for (SecurityFilterProvider provider : this.providers) {
             if (provider.isSecurityPackageSupported(securityPackage)) {
                 return provider;
@@ -111,6 +140,32 @@ public class SecurityFilterProviderCollection {
         return null;
     }
 
+    /**
+     * Forget the providers of security packages seen so far, eg. after changing the protocols of a provider once
+     * requests have been served.
+     */
+    public void reset() {
+        this.packages.clear();
+    }
+
+    /**
+     * Validate the authorization header of a request without throwing. A well-formed header of a security package
+     * that no provider supports is counted as rejected.
+     * 
+     * @param request
+     *            Http Request
+     * @return {@link AuthorizationHeaderStatus#VALID} if a provider can handle the request.
+     */
+    public AuthorizationHeaderStatus validate(final HttpServletRequest request) {
+        final AuthorizationHeader authorizationHeader = AuthorizationHeader.of(request);
+        final AuthorizationHeaderStatus status = authorizationHeader.getStatus();
+        if (status == AuthorizationHeaderStatus.VALID && get(authorizationHeader.getSecurityPackage()) == null) {
+            AuthorizationHeader.countRejection(AuthorizationHeaderStatus.UNSUPPORTED);
+            return AuthorizationHeaderStatus.UNSUPPORTED;
+        }
+        return status;
+    }
+
     /**
      * Filter.
      * 
@@ -124,7 +179,7 @@ public class SecurityFilterProviderCollection {
      */
     public IWindowsIdentity doFilter(final HttpServletRequest request, final HttpServletResponse response)
             throws IOException {
-        final AuthorizationHeader authorizationHeader = new AuthorizationHeader(request);
+        final AuthorizationHeader authorizationHeader = AuthorizationHeader.of(request);
         final SecurityFilterProvider provider = get(authorizationHeader.getSecurityPackage());
         if (provider == null) {
             throw new RuntimeException("Unsupported security package: " + authorizationHeader.getSecurityPackage());
@@ -137,13 +192,19 @@ public class SecurityFilterProviderCollection {
     }
 
     /**
-     * Returns true if authentication still needs to happen despite an existing principal.
+     * Returns true if authentication still needs to happen despite an existing principal. Only an empty POST or PUT
+     * with an Authorization header, the shape of an NTLM re-negotiation, is passed on to the providers.
      * 
      * @param request
      *            Http Request
      * @return True if authentication is required.
      */
     public boolean isPrincipalException(final HttpServletRequest request) {
+        final String method = request.getMethod();
+        if (!"POST".equals(method) && !"PUT".equals(method) || request.getContentLength() != 0
+                || request.getHeader("Authorization") == null) {
+            return false;
+        }
         for (SecurityFilterProvider provider : this.providers) {
             if (provider.isPrincipalException(request)) {
                 return true;
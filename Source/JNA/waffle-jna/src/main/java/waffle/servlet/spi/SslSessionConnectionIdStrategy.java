@@ -0,0 +1,69 @@
+/**
+ * Waffle (https://github.com/dblock/waffle)
+ *
+ * Copyright (c) 2010 - 2014 Application Security, Inc.
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors:
+ *     Application Security, Inc.
+ */
+package waffle.servlet.spi;
+
+import javax.servlet.http.HttpServletRequest;
+
+/**
+ * Identifies a connection by its TLS session id, for deployments where the remote address and port do not identify
+ * the client connection, eg. behind a TLS-passthrough load balancer. Requests that were not received over TLS are
+ * identified by a fallback strategy.
+ * 
+ * <p>
+ * A client may resume the same TLS session on several connections, and these then share a pending handshake. Only use
+ * this strategy when clients are known to authenticate one connection at a time.
+ * </p>
+ * 
+ * @author dblock[at]dblock[dot]org
+ */
+public class SslSessionConnectionIdStrategy implements ConnectionIdStrategy {
+
+    /**
+     * Request attribute holding the TLS session id (Servlet 3.0).
+     */
+    public static final String         SSL_SESSION_ID_ATTRIBUTE = "javax.servlet.request.ssl_session_id";
+
+    /**
+     * Request attribute holding the TLS session id in Tomcat 5.5 and 6.
+     */
+    public static final String         SSL_SESSION_ATTRIBUTE    = "javax.servlet.request.ssl_session";
+
+    private final ConnectionIdStrategy fallback;
+
+    public SslSessionConnectionIdStrategy() {
+        this(new RemoteAddressConnectionIdStrategy());
+    }
+
+    /**
+     * A TLS session connection id strategy.
+     * 
+     * @param newFallback
+     *            Strategy for requests that were not received over TLS.
+     */
+    public SslSessionConnectionIdStrategy(final ConnectionIdStrategy newFallback) {
+        this.fallback = newFallback;
+    }
+
+    @Override
+    public String getConnectionId(final HttpServletRequest request) {
+        Object sessionId = request.getAttribute(SSL_SESSION_ID_ATTRIBUTE);
+        if (sessionId == null) {
+            sessionId = request.getAttribute(SSL_SESSION_ATTRIBUTE);
+        }
+        if (sessionId == null) {
+            return this.fallback.getConnectionId(request);
+        }
+        return "tls:" + sessionId;
+    }
+}
@@ -0,0 +1,283 @@
+/**
+ * Waffle (https://github.com/dblock/waffle)
+ *
+ * Copyright (c) 2010 - 2014 Application Security, Inc.
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors:
+ *     Application Security, Inc.
+ */
+package waffle.util;
+
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Time spent in each phase of authenticating a request, measured with {@link System#nanoTime()}.
+ * 
+ * <p>
+ * A timing is started by the filter or authenticator that handles a request, kept in the {@link #ATTRIBUTE} request
+ * attribute so that security filter providers can add their phases, and ended once the user is authenticated or
+ * challenged. Ending it sends a <code>Server-Timing</code> header and logs the phases to
+ * <code>waffle.util.AuthenticationTiming</code> when authentication took longer than a threshold. Nothing is allocated
+ * unless timing was asked for.
+ * </p>
+ * 
+ * <pre>
+ * Server-Timing: handshake;dur=152.031, identity;dur=0.412, groups;dur=3.250, session;dur=0.964, total;dur=157.005
+ * </pre>
+ * 
+ * @author dblock[at]dblock[dot]org
+ */
+public final class AuthenticationTiming {
+
+    /**
+     * Name of the request attribute holding the timing of a request.
+     */
+    public static final String                             ATTRIBUTE     = AuthenticationTiming.class.getName();
+
+    /**
+     * Response header with the duration of each phase, in milliseconds.
+     */
+    public static final String                             SERVER_TIMING = "Server-Timing";
+
+    /**
+     * Timed phases.
+     */
+    public enum Phase {
+
+        /**
+         * AcceptSecurityContext or LogonUser.
+         */
+        HANDSHAKE("handshake"),
+
+        /**
+         * QuerySecurityContextToken.
+         */
+        IDENTITY("identity"),
+
+        /**
+         * Resolution of the groups of the identity.
+         */
+        GROUPS("groups"),
+
+        /**
+         * Construction of the principal, group resolution excluded.
+         */
+        PRINCIPAL("principal"),
+
+        /**
+         * Creation of the session or of the principal cookie.
+         */
+        SESSION("session");
+
+        private final String metric;
+
+        private Phase(final String name) {
+            this.metric = name;
+        }
+
+        /**
+         * Name of the phase in the Server-Timing header.
+         * 
+         * @return Metric name.
+         */
+        public String getMetric() {
+            return this.metric;
+        }
+    }
+
+    private static final Logger                            LOGGER        = LoggerFactory
+                                                                                 .getLogger(AuthenticationTiming.class);
+
+    private static final ThreadLocal<AuthenticationTiming> CURRENT       = new ThreadLocal<AuthenticationTiming>();
+
+    // set once a timing was attached to a thread, until then current() does not touch the thread local
+    private static volatile boolean                        attached;
+
+    private final long[]                                   nanos         = new long[Phase.values().length];
+    private final boolean                                  serverTiming;
+    private final long                                     slowNanos;
+    private final long                                     start;
+    private long                                           lap;
+    private long                                           nested;
+    private long                                           total         = -1;
+
+    private AuthenticationTiming(final boolean sendServerTiming, final long slowThresholdNanos) {
+        this.serverTiming = sendServerTiming;
+        this.slowNanos = slowThresholdNanos;
+        this.start = System.nanoTime();
+        this.lap = this.start;
+    }
+
+    /**
+     * Start timing the authentication of a request.
+     * 
+     * @param request
+     *            Http request.
+     * @param sendServerTiming
+     *            Send a Server-Timing header.
+     * @param slowThresholdMillis
+     *            Log authentications that take at least this long, in milliseconds, 0 to never log.
+     * @return Timing stored in the request, or null if neither a header nor a log was asked for.
+     */
+    public static AuthenticationTiming start(final HttpServletRequest request, final boolean sendServerTiming,
+            final int slowThresholdMillis) {
+        if (!sendServerTiming && slowThresholdMillis <= 0) {
+            return null;
+        }
+        final AuthenticationTiming timing = new AuthenticationTiming(sendServerTiming,
+                slowThresholdMillis <= 0 ? 0L : slowThresholdMillis * 1000000L);
+        request.setAttribute(ATTRIBUTE, timing);
+        return timing;
+    }
+
+    /**
+     * The timing of a request.
+     * 
+     * @param request
+     *            Http request.
+     * @return Timing or null if the request is not timed.
+     */
+    public static AuthenticationTiming of(final HttpServletRequest request) {
+        final Object attribute = request.getAttribute(ATTRIBUTE);
+        return attribute instanceof AuthenticationTiming ? (AuthenticationTiming) attribute : null;
+    }
+
+    /**
+     * The timing attached to the current thread, for phases that happen below the servlet API.
+     * 
+     * @return Timing or null.
+     */
+    public static AuthenticationTiming current() {
+        return attached ? CURRENT.get() : null;
+    }
+
+    /**
+     * End the current phase.
+     * 
+     * @param phase
+     *            Phase that took the time since the previous one ended, minus nested phases.
+     */
+    public void lap(final Phase phase) {
+        final long now = System.nanoTime();
+        this.nanos[phase.ordinal()] += now - this.lap - this.nested;
+        this.nested = 0;
+        this.lap = now;
+    }
+
+    /**
+     * Attach this timing to the current thread until {@link #detach(Phase)}, for {@link #addNested(Phase, long)}.
+     */
+    public void attach() {
+        attached = true;
+        CURRENT.set(this);
+    }
+
+    /**
+     * Detach this timing from the current thread and end the current phase.
+     * 
+     * @param phase
+     *            Phase that took the time since the previous one ended, minus nested phases.
+     */
+    public void detach(final Phase phase) {
+        CURRENT.remove();
+        lap(phase);
+    }
+
+    /**
+     * Add the time of a phase nested in the current one.
+     * 
+     * @param phase
+     *            Nested phase.
+     * @param elapsedNanos
+     *            Time spent in the nested phase.
+     */
+    public void addNested(final Phase phase, final long elapsedNanos) {
+        this.nanos[phase.ordinal()] += elapsedNanos;
+        this.nested += elapsedNanos;
+    }
+
+    /**
+     * Time spent in a phase.
+     * 
+     * @param phase
+     *            Phase.
+     * @return Nanoseconds.
+     */
+    public long getNanos(final Phase phase) {
+        return this.nanos[phase.ordinal()];
+    }
+
+    /**
+     * Time since the timing started, until it ended.
+     * 
+     * @return Nanoseconds.
+     */
+    public long getTotalNanos() {
+        return this.total < 0 ? System.nanoTime() - this.start : this.total;
+    }
+
+    /**
+     * End timing, send the Server-Timing header and log a slow authentication. Only the first call has an effect.
+     * 
+     * @param response
+     *            Http response, the header is not sent once it is committed.
+     * @param user
+     *            Authenticated user or null.
+     */
+    public void end(final HttpServletResponse response, final String user) {
+        if (this.total >= 0) {
+            return;
+        }
+        this.total = System.nanoTime() - this.start;
+        if (this.serverTiming && !response.isCommitted()) {
+            response.setHeader(SERVER_TIMING, getServerTiming());
+        }
+        if (this.slowNanos > 0 && this.total >= this.slowNanos) {
+            LOGGER.warn("slow authentication: user={} {}", user, this);
+        }
+    }
+
+    /**
+     * Value of the Server-Timing header, the phases that took time and the total in milliseconds.
+     * 
+     * @return Header value.
+     */
+    public String getServerTiming() {
+        final StringBuilder sb = new StringBuilder();
+        for (Phase phase : Phase.values()) {
+            if (this.nanos[phase.ordinal()] > 0) {
+                appendMillis(sb.append(phase.getMetric()).append(";dur="), this.nanos[phase.ordinal()]).append(", ");
+            }
+        }
+        return appendMillis(sb.append("total;dur="), getTotalNanos()).toString();
+    }
+
+    @Override
+    public String toString() {
+        final StringBuilder sb = appendMillis(new StringBuilder("total="), getTotalNanos()).append("ms");
+        for (Phase phase : Phase.values()) {
+            appendMillis(sb.append(' ').append(phase.getMetric()).append('='), this.nanos[phase.ordinal()]).append(
+                    "ms");
+        }
+        return sb.toString();
+    }
+
+    private static StringBuilder appendMillis(final StringBuilder sb, final long nanos) {
+        final long micros = Math.max(0L, nanos) / 1000L;
+        final long fraction = micros % 1000L;
+        sb.append(micros / 1000L).append('.');
+        if (fraction < 100) {
+            sb.append(fraction < 10 ? "00" : "0");
+        }
+        return sb.append(fraction);
+    }
+}
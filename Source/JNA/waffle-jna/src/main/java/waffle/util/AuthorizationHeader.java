@@ -13,6 +13,8 @@
  */
 package waffle.util;
 
+import java.util.concurrent.atomic.AtomicLongArray;
+
 import javax.servlet.http.HttpServletRequest;
 
 import com.google.common.io.BaseEncoding;
@@ -20,22 +22,118 @@ import com.google.common.io.BaseEncoding;
 /**
  * Authorization header.
  * 
+ * <p>
+ * The header is parsed once: the security package, the token and its decoded bytes, and whether it carries an NTLM
+ * type 1 or SPNEGO message, are computed on first use and kept for as long as the request returns the same header
+ * value. Use {@link #of(HttpServletRequest)} to share one parsed header between the filter and all providers handling
+ * a request.
+ * </p>
+ * 
+ * <p>
+ * Parsing never throws: {@link #getStatus()} tells a valid header from a missing, oversized, malformed or undecodable
+ * one, which is rejected after a single scan without building an exception. Rejections are counted per reason, see
+ * {@link #getRejectionCount(AuthorizationHeaderStatus)}.
+ * </p>
+ * 
  * @author dblock[at]dblock[dot]org
  */
 public class AuthorizationHeader {
 
-    private HttpServletRequest request;
+    /**
+     * Name of the request attribute holding the parsed authorization header.
+     */
+    public static final String           ATTRIBUTE  = AuthorizationHeader.class.getName();
+
+    /**
+     * Maximum length of an Authorization header, enough for a Kerberos ticket of the largest Windows token size.
+     */
+    public static final int              MAX_LENGTH = 65536;
+
+    // characters allowed in a security package name besides letters and digits, see RFC 7230
+    private static final String          TCHARS     = "!#$%&'*+-.^_`|~";
+
+    private static final AtomicLongArray REJECTIONS = new AtomicLongArray(AuthorizationHeaderStatus.values().length);
+
+    private final HttpServletRequest     request;
+    private ParsedHeader                 parsed;
 
     public AuthorizationHeader(final HttpServletRequest httpServletRequest) {
         this.request = httpServletRequest;
     }
 
+    /**
+     * Returns the authorization header of a request, parsed at most once per request.
+     * 
+     * @param request
+     *            Http request.
+     * @return Authorization header, stored in the {@link #ATTRIBUTE} request attribute.
+     */
+    public static AuthorizationHeader of(final HttpServletRequest request) {
+        final Object attribute = request.getAttribute(ATTRIBUTE);
+        if (attribute instanceof AuthorizationHeader && ((AuthorizationHeader) attribute).request == request) {
+            return (AuthorizationHeader) attribute;
+        }
+        final AuthorizationHeader header = new AuthorizationHeader(request);
+        request.setAttribute(ATTRIBUTE, header);
+        return header;
+    }
+
+    private ParsedHeader getParsedHeader() {
+        final String header = this.request.getHeader("Authorization");
+        ParsedHeader current = this.parsed;
+        if (current == null || !current.isFor(header)) {
+            current = new ParsedHeader(header);
+            this.parsed = current;
+        }
+        return current;
+    }
+
+    /**
+     * Counts a request rejected for the given reason.
+     * 
+     * @param status
+     *            Reason of the rejection.
+     */
+    public static void countRejection(final AuthorizationHeaderStatus status) {
+        REJECTIONS.incrementAndGet(status.ordinal());
+    }
+
+    /**
+     * Number of requests rejected for the given reason since the class was loaded.
+     * 
+     * @param status
+     *            Reason of the rejection.
+     * @return Number of rejected requests.
+     */
+    public static long getRejectionCount(final AuthorizationHeaderStatus status) {
+        return REJECTIONS.get(status.ordinal());
+    }
+
     public String getHeader() {
-        return this.request.getHeader("Authorization");
+        return getParsedHeader().header;
+    }
+
+    /**
+     * Result of parsing the header.
+     * 
+     * @return Status, never null.
+     */
+    public AuthorizationHeaderStatus getStatus() {
+        return getParsedHeader().status;
+    }
+
+    /**
+     * Returns whether the header is a security package followed by a base64 token.
+     * 
+     * @return True if the header is valid.
+     */
+    public boolean isValid() {
+        return getParsedHeader().status == AuthorizationHeaderStatus.VALID;
     }
 
     public boolean isNull() {
-        return getHeader() == null || getHeader().length() == 0;
+        final String header = getHeader();
+        return header == null || header.length() == 0;
     }
 
     /**
@@ -44,43 +142,53 @@ public class AuthorizationHeader {
      * @return Negotiate or NTLM.
      */
     public String getSecurityPackage() {
-        final String header = getHeader();
+        final ParsedHeader current = getParsedHeader();
 
-        if (header == null) {
+        if (current.header == null) {
             throw new RuntimeException("Missing Authorization: header");
         }
 
-        final int space = header.indexOf(' ');
-        if (space > 0) {
-            return header.substring(0, space);
+        if (current.securityPackage == null) {
+            throw new RuntimeException("Invalid Authorization header: " + current.status);
         }
 
-        throw new RuntimeException("Invalid Authorization header: " + header);
+        return current.securityPackage;
     }
 
     @Override
     public String toString() {
-        return isNull() ? "<none>" : getHeader();
+        if (isNull()) {
+            return "<none>";
+        }
+        final ParsedHeader current = getParsedHeader();
+        return current.status == AuthorizationHeaderStatus.TOO_LONG ? "<" + current.header.length() + " chars>"
+                : current.header;
     }
 
     public String getToken() {
-        return getHeader().substring(getSecurityPackage().length() + 1);
+        getSecurityPackage();
+        return getParsedHeader().token;
     }
 
     public byte[] getTokenBytes() {
-        try {
-            return BaseEncoding.base64().decode(getToken());
-        } catch (IllegalArgumentException e) {
+        return getDecodedToken().clone();
+    }
+
+    private byte[] getDecodedToken() {
+        getSecurityPackage();
+        final ParsedHeader current = getParsedHeader();
+        if (current.tokenBytes == null) {
             throw new RuntimeException("Invalid authorization header.");
         }
+        return current.tokenBytes;
     }
 
     public boolean isNtlmType1Message() {
-        if (isNull()) {
+        if (!isValid()) {
             return false;
         }
 
-        final byte[] tokenBytes = getTokenBytes();
+        final byte[] tokenBytes = getDecodedToken();
         if (!NtlmMessage.isNtlmMessage(tokenBytes)) {
             return false;
         }
@@ -90,16 +198,11 @@ public class AuthorizationHeader {
 
     public boolean isSPNegoMessage() {
 
-        if (isNull()) {
-            return false;
-        }
-
-        final byte[] tokenBytes = getTokenBytes();
-        if (!SPNegoMessage.isSPNegoMessage(tokenBytes)) {
+        if (!isValid()) {
             return false;
         }
 
-        return true;
+        return SPNegoMessage.isSPNegoMessage(getDecodedToken());
     }
 
     /**
@@ -121,4 +224,92 @@ public class AuthorizationHeader {
 
         return isNtlmType1Message() || isSPNegoMessage();
     }
+
+    /**
+     * An authorization header value split into security package and token, with the token decoded.
+     */
+    private static final class ParsedHeader {
+
+        final String                    header;
+        final AuthorizationHeaderStatus status;
+        final String                    securityPackage;
+        final String                    token;
+        final byte[]                    tokenBytes;
+
+        ParsedHeader(final String value) {
+            this.header = value;
+            final AuthorizationHeaderStatus result = validate(value);
+            this.status = result;
+            if (result == AuthorizationHeaderStatus.VALID || result == AuthorizationHeaderStatus.INVALID_TOKEN) {
+                final int space = value.indexOf(' ');
+                this.securityPackage = value.substring(0, space);
+                this.token = value.substring(space + 1);
+            } else {
+                this.securityPackage = null;
+                this.token = null;
+            }
+            if (result == AuthorizationHeaderStatus.VALID) {
+                this.tokenBytes = BaseEncoding.base64().decode(this.token);
+            } else {
+                this.tokenBytes = null;
+                if (result.isRejected()) {
+                    countRejection(result);
+                }
+            }
+        }
+
+        private static AuthorizationHeaderStatus validate(final String value) {
+            if (value == null || value.length() == 0) {
+                return AuthorizationHeaderStatus.MISSING;
+            }
+            if (value.length() > MAX_LENGTH) {
+                return AuthorizationHeaderStatus.TOO_LONG;
+            }
+            final int space = value.indexOf(' ');
+            if (space <= 0 || !isSecurityPackage(value, space)) {
+                return AuthorizationHeaderStatus.MALFORMED;
+            }
+            if (!isBase64(value, space + 1)) {
+                return AuthorizationHeaderStatus.INVALID_TOKEN;
+            }
+            return AuthorizationHeaderStatus.VALID;
+        }
+
+        private static boolean isSecurityPackage(final String value, final int end) {
+            for (int i = 0; i < end; i++) {
+                final char c = value.charAt(i);
+                if (!isLetterOrDigit(c) && TCHARS.indexOf(c) < 0) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        // accepts exactly what BaseEncoding.base64() decodes, so that decoding cannot fail
+        private static boolean isBase64(final String value, final int start) {
+            int end = value.length();
+            while (end > start && value.charAt(end - 1) == '=') {
+                end--;
+            }
+            final int length = end - start;
+            if (length == 0 || length % 4 == 1) {
+                return false;
+            }
+            for (int i = start; i < end; i++) {
+                final char c = value.charAt(i);
+                if (!isLetterOrDigit(c) && c != '+' && c != '/') {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        private static boolean isLetterOrDigit(final char c) {
+            return c >= 'a' && c <= 'z' || c >= 'A' && c <= 'Z' || c >= '0' && c <= '9';
+        }
+
+        boolean isFor(final String value) {
+            return this.header == null ? value == null : this.header.equals(value);
+        }
+    }
 }
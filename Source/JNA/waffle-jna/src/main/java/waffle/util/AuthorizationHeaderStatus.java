@@ -0,0 +1,61 @@
+/**
+ * Waffle (https://github.com/dblock/waffle)
+ *
+ * Copyright (c) 2010 - 2014 Application Security, Inc.
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors:
+ *     Application Security, Inc.
+ */
+package waffle.util;
+
+/**
+ * Result of parsing an Authorization header.
+ * 
+ * @author dblock[at]dblock[dot]org
+ */
+public enum AuthorizationHeaderStatus {
+
+    /**
+     * A security package followed by a base64 token.
+     */
+    VALID,
+
+    /**
+     * No Authorization header, or an empty one.
+     */
+    MISSING,
+
+    /**
+     * Longer than {@link AuthorizationHeader#MAX_LENGTH}.
+     */
+    TOO_LONG,
+
+    /**
+     * Not a security package followed by a space and a token.
+     */
+    MALFORMED,
+
+    /**
+     * A token that is empty or not base64.
+     */
+    INVALID_TOKEN,
+
+    /**
+     * A well-formed header for a security package that is not supported.
+     */
+    UNSUPPORTED;
+
+    /**
+     * Returns whether a request with this header is rejected without being authenticated.
+     * 
+     * @return True unless the header is valid or missing.
+     */
+    public boolean isRejected() {
+        return this != VALID && this != MISSING;
+    }
+}
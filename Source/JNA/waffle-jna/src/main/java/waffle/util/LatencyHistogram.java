@@ -0,0 +1,153 @@
+/**
+ * Waffle (https://github.com/dblock/waffle)
+ *
+ * Copyright (c) 2010 - 2014 Application Security, Inc.
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors:
+ *     Application Security, Inc.
+ */
+package waffle.util;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A lock-free latency histogram with power of two buckets of microseconds.
+ * 
+ * <p>
+ * Recording a latency is two atomic increments and an atomic add; percentiles are read from the buckets and are exact
+ * within a factor of two, which is all an alert on a slow domain controller needs.
+ * </p>
+ * 
+ * @author dblock[at]dblock[dot]org
+ */
+public class LatencyHistogram {
+
+    /**
+     * Number of buckets, the last one holds latencies of 2^(BUCKETS - 2) microseconds (about 18 minutes) and more.
+     */
+    public static final int       BUCKETS = 32;
+
+    private final AtomicLongArray buckets = new AtomicLongArray(BUCKETS);
+    private final AtomicLong      total   = new AtomicLong();
+    private final AtomicLong      max     = new AtomicLong();
+
+    /**
+     * Record a latency.
+     * 
+     * @param nanos
+     *            Latency in nanoseconds.
+     */
+    public void record(final long nanos) {
+        final long micros = Math.max(0L, nanos / 1000L);
+        // bucket 0 holds 0 microseconds, bucket b > 0 holds [2^(b-1), 2^b) microseconds
+        this.buckets.incrementAndGet(Math.min(BUCKETS - 1, Long.SIZE - Long.numberOfLeadingZeros(micros)));
+        this.total.addAndGet(micros);
+        long current = this.max.get();
+        while (micros > current && !this.max.compareAndSet(current, micros)) {
+            current = this.max.get();
+        }
+    }
+
+    /**
+     * Forget all recorded latencies.
+     */
+    public void reset() {
+        for (int i = 0; i < BUCKETS; i++) {
+            this.buckets.set(i, 0L);
+        }
+        this.total.set(0L);
+        this.max.set(0L);
+    }
+
+    /**
+     * A snapshot of this histogram.
+     * 
+     * @return Latency snapshot.
+     */
+    public Snapshot getSnapshot() {
+        final long[] counts = new long[BUCKETS];
+        long count = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            counts[i] = this.buckets.get(i);
+            count += counts[i];
+        }
+        return new Snapshot(count, count == 0 ? 0L : this.total.get() / count, this.max.get(), percentile(counts,
+                count, 50), percentile(counts, count, 99));
+    }
+
+    private static long percentile(final long[] counts, final long count, final int percent) {
+        final long rank = (count * percent + 99) / 100;
+        long seen = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            seen += counts[i];
+            if (seen >= rank && seen > 0) {
+                // upper bound of the bucket
+                return 1L << i;
+            }
+        }
+        return 0L;
+    }
+
+    /**
+     * Latencies recorded by a histogram, in microseconds.
+     */
+    public static final class Snapshot {
+
+        private final long count;
+        private final long meanMicros;
+        private final long maxMicros;
+        private final long p50Micros;
+        private final long p99Micros;
+
+        Snapshot(final long count, final long meanMicros, final long maxMicros, final long p50Micros,
+                final long p99Micros) {
+            this.count = count;
+            this.meanMicros = meanMicros;
+            this.maxMicros = maxMicros;
+            this.p50Micros = p50Micros;
+            this.p99Micros = p99Micros;
+        }
+
+        public long getCount() {
+            return this.count;
+        }
+
+        public long getMeanMicros() {
+            return this.meanMicros;
+        }
+
+        public long getMaxMicros() {
+            return this.maxMicros;
+        }
+
+        /**
+         * Median latency, the upper bound of its bucket.
+         * 
+         * @return Median latency in microseconds.
+         */
+        public long getP50Micros() {
+            return this.p50Micros;
+        }
+
+        /**
+         * 99th percentile latency, the upper bound of its bucket.
+         * 
+         * @return 99th percentile latency in microseconds.
+         */
+        public long getP99Micros() {
+            return this.p99Micros;
+        }
+
+        @Override
+        public String toString() {
+            return "count=" + this.count + ", mean=" + this.meanMicros + "us, p50=" + this.p50Micros + "us, p99="
+                    + this.p99Micros + "us, max=" + this.maxMicros + "us";
+        }
+    }
+}
@@ -15,27 +15,51 @@ package waffle.util;
 
 import javax.servlet.http.HttpServletRequest;
 
-import com.google.common.base.Joiner;
+import waffle.servlet.spi.ConnectionIdStrategy;
+import waffle.servlet.spi.ContainerConnectionIdStrategy;
+import waffle.servlet.spi.RemoteAddressConnectionIdStrategy;
+import waffle.servlet.spi.SslSessionConnectionIdStrategy;
 
 /**
  * @author dblock[at]dblock[dot]org
  */
 public final class NtlmServletRequest {
 
+    private static final ConnectionIdStrategy DEFAULT_STRATEGY = new RemoteAddressConnectionIdStrategy();
+
     /**
-     * Returns a unique connection id for a given servlet request.
+     * Returns a unique connection id for a given servlet request, made of the remote address and port.
      * 
      * @param request
      *            Servlet request.
      * @return String.
      */
     public static String getConnectionId(final HttpServletRequest request) {
-        return Joiner.on(":").useForNull("")
-                .join(NtlmServletRequest.getRemoteHost(request), Integer.valueOf(request.getRemotePort()));
+        return DEFAULT_STRATEGY.getConnectionId(request);
     }
 
-    private static String getRemoteHost(final HttpServletRequest request) {
-        return request.getRemoteHost() == null ? request.getRemoteAddr() : request.getRemoteHost();
+    /**
+     * Returns a connection id strategy by name.
+     * 
+     * @param name
+     *            "address", "container", "tls" or the class name of a {@link ConnectionIdStrategy} with a public
+     *            default constructor.
+     * @return Connection id strategy.
+     */
+    public static ConnectionIdStrategy getConnectionIdStrategy(final String name) {
+        final String value = name.trim();
+        if ("address".equalsIgnoreCase(value)) {
+            return new RemoteAddressConnectionIdStrategy();
+        } else if ("container".equalsIgnoreCase(value)) {
+            return new ContainerConnectionIdStrategy();
+        } else if ("tls".equalsIgnoreCase(value)) {
+            return new SslSessionConnectionIdStrategy();
+        }
+        try {
+            return (ConnectionIdStrategy) Class.forName(value).getConstructor().newInstance();
+        } catch (Exception e) {
+            throw new IllegalArgumentException("Invalid connection id strategy: " + value, e);
+        }
     }
 
     private NtlmServletRequest() {
@@ -39,8 +39,6 @@ import com.google.common.base.Charsets;
 import com.google.common.io.Files;
 import com.sun.jna.Platform;
 import com.sun.jna.platform.WindowUtils;
-import com.sun.jna.platform.win32.LMJoin;
-import com.sun.jna.platform.win32.Netapi32Util;
 import com.sun.jna.platform.win32.Win32Exception;
 
 import waffle.windows.auth.IWindowsAccount;
@@ -162,7 +160,7 @@ public class WaffleInfo {
         child.appendChild(value);
 
         // Only Show Domains if we are in a Domain
-        if (Netapi32Util.getJoinStatus() == LMJoin.NETSETUP_JOIN_STATUS.NetSetupDomainName) {
+        if ("NetSetupDomainName".equals(c.getJoinStatus())) {
             child = doc.createElement("domains");
             node.appendChild(child);
 
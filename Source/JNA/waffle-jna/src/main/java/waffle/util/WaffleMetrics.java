@@ -0,0 +1,372 @@
+/**
+ * Waffle (https://github.com/dblock/waffle)
+ *
+ * Copyright (c) 2010 - 2014 Application Security, Inc.
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors:
+ *     Application Security, Inc.
+ */
+package waffle.util;
+
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.WeakHashMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import waffle.windows.auth.impl.WindowsAuthProviderImpl;
+
+/**
+ * Counters and latencies of the authentication hot paths, exposed over JMX as <code>waffle:type=Metrics</code>.
+ * 
+ * <p>
+ * Metrics are off by default, in which case every call site costs a volatile read. They are turned on with
+ * {@link #enable()}, by the <code>waffle.metrics</code> system property, or by the <code>metrics</code> option of the
+ * servlet filter, of the Tomcat authenticators and of the Spring and Shiro filters, which all share the process-wide
+ * instance.
+ * </p>
+ * 
+ * <p>
+ * Every {@link #enable()} is paired with a {@link #disable()} when the component that enabled the metrics stops, the
+ * last one unregisters the MBean so that a redeployed web application does not leak its class loader. When another
+ * web application already registered <code>waffle:type=Metrics</code>, the metrics are registered with an additional
+ * <code>instance</code> key instead.
+ * </p>
+ * 
+ * @author dblock[at]dblock[dot]org
+ */
+public final class WaffleMetrics implements WaffleMetricsMXBean {
+
+    /**
+     * JMX name of the process-wide metrics.
+     */
+    public static final String                       OBJECT_NAME      = "waffle:type=Metrics";
+
+    /**
+     * System property that enables the process-wide metrics at startup.
+     */
+    public static final String                       ENABLED_PROPERTY = "waffle.metrics";
+
+    /**
+     * Counted events.
+     */
+    public enum Counter {
+        HANDSHAKES, LEGS, AUTHENTICATIONS, LOGONS
+    }
+
+    /**
+     * Timed calls.
+     */
+    public enum Timer {
+        ACCEPT_SECURITY_TOKEN, GET_IDENTITY, GET_GROUPS, LOGON_USER
+    }
+
+    private static final Logger                      LOGGER           = LoggerFactory.getLogger(WaffleMetrics.class);
+
+    private static final WaffleMetrics               DEFAULT          = new WaffleMetrics();
+
+    static {
+        if (Boolean.getBoolean(ENABLED_PROPERTY)) {
+            DEFAULT.enable();
+        }
+    }
+
+    private volatile boolean                         enabled;
+    private int                                      users;
+    private ObjectName                               objectName;
+    private final AtomicLongArray                    counters         = new AtomicLongArray(Counter.values().length);
+    private final LatencyHistogram[]                 timers           = new LatencyHistogram[Timer.values().length];
+    private final ConcurrentMap<Integer, AtomicLong> failures         = new ConcurrentHashMap<Integer, AtomicLong>();
+    private final Set<WindowsAuthProviderImpl>       authProviders;
+
+    public WaffleMetrics() {
+        this.authProviders = Collections.newSetFromMap(new WeakHashMap<WindowsAuthProviderImpl, Boolean>());
+        for (int i = 0; i < this.timers.length; i++) {
+            this.timers[i] = new LatencyHistogram();
+        }
+    }
+
+    /**
+     * The process-wide metrics.
+     * 
+     * @return Metrics.
+     */
+    public static WaffleMetrics getDefault() {
+        return DEFAULT;
+    }
+
+    /**
+     * Start recording metrics and register them with the platform MBean server, once.
+     */
+    public synchronized void enable() {
+        this.enabled = true;
+        this.users++;
+        if (this.objectName != null) {
+            return;
+        }
+        try {
+            final MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+            ObjectName name = new ObjectName(OBJECT_NAME);
+            if (server.isRegistered(name)) {
+                // registered by another web application
+                name = new ObjectName(OBJECT_NAME + ",instance=" + Integer.toHexString(System.identityHashCode(this)));
+            }
+            server.registerMBean(this, name);
+            this.objectName = name;
+            LOGGER.info("metrics registered as {}", name);
+        } catch (JMException e) {
+            LOGGER.warn("error registering metrics: {}", e.getMessage());
+            LOGGER.trace("{}", e);
+        }
+    }
+
+    /**
+     * Release a previous {@link #enable()}. The last release stops recording metrics and unregisters them from the
+     * platform MBean server.
+     */
+    public synchronized void disable() {
+        if (this.users == 0 || --this.users > 0) {
+            return;
+        }
+        this.enabled = false;
+        if (this.objectName == null) {
+            return;
+        }
+        try {
+            ManagementFactory.getPlatformMBeanServer().unregisterMBean(this.objectName);
+            LOGGER.info("metrics unregistered: {}", this.objectName);
+        } catch (JMException e) {
+            LOGGER.warn("error unregistering metrics: {}", e.getMessage());
+            LOGGER.trace("{}", e);
+        } finally {
+            this.objectName = null;
+        }
+    }
+
+    /**
+     * JMX name the metrics are registered with.
+     * 
+     * @return Object name or null when not registered.
+     */
+    public synchronized ObjectName getObjectName() {
+        return this.objectName;
+    }
+
+    @Override
+    public boolean isEnabled() {
+        return this.enabled;
+    }
+
+    @Override
+    public void setEnabled(final boolean value) {
+        this.enabled = value;
+    }
+
+    /**
+     * Count an event.
+     * 
+     * @param counter
+     *            Event.
+     */
+    public void count(final Counter counter) {
+        if (this.enabled) {
+            this.counters.incrementAndGet(counter.ordinal());
+        }
+    }
+
+    /**
+     * Count a failure.
+     * 
+     * @param errorCode
+     *            Win32 error code.
+     */
+    public void countFailure(final int errorCode) {
+        if (this.enabled) {
+            final Integer key = Integer.valueOf(errorCode);
+            AtomicLong count = this.failures.get(key);
+            if (count == null) {
+                final AtomicLong added = new AtomicLong();
+                count = this.failures.putIfAbsent(key, added);
+                if (count == null) {
+                    count = added;
+                }
+            }
+            count.incrementAndGet();
+        }
+    }
+
+    /**
+     * Start timing a call.
+     * 
+     * @return Start time to pass to {@link #stopTimer(Timer, long)}, 0 when metrics are disabled.
+     */
+    public long startTimer() {
+        return this.enabled ? System.nanoTime() : 0L;
+    }
+
+    /**
+     * Record the latency of a call.
+     * 
+     * @param timer
+     *            Timed call.
+     * @param start
+     *            Value of {@link #startTimer()} before the call, nothing is recorded when 0.
+     */
+    public void stopTimer(final Timer timer, final long start) {
+        if (start != 0L) {
+            this.timers[timer.ordinal()].record(System.nanoTime() - start);
+        }
+    }
+
+    /**
+     * Record the latency of a call timed by the caller.
+     * 
+     * @param timer
+     *            Timed call.
+     * @param nanos
+     *            Latency in nanoseconds.
+     */
+    public void record(final Timer timer, final long nanos) {
+        if (this.enabled) {
+            this.timers[timer.ordinal()].record(nanos);
+        }
+    }
+
+    /**
+     * Value of a counter.
+     * 
+     * @param counter
+     *            Event.
+     * @return Number of events.
+     */
+    public long getCount(final Counter counter) {
+        return this.counters.get(counter.ordinal());
+    }
+
+    /**
+     * Latencies of a call.
+     * 
+     * @param timer
+     *            Timed call.
+     * @return Latency snapshot.
+     */
+    public LatencyHistogram.Snapshot getLatency(final Timer timer) {
+        return this.timers[timer.ordinal()].getSnapshot();
+    }
+
+    /**
+     * Report the continue contexts of an auth provider in {@link #getContinueContexts()}, until it is garbage
+     * collected.
+     * 
+     * @param provider
+     *            Windows auth provider.
+     */
+    public void addAuthProvider(final WindowsAuthProviderImpl provider) {
+        synchronized (this.authProviders) {
+            this.authProviders.add(provider);
+        }
+    }
+
+    @Override
+    public long getHandshakes() {
+        return getCount(Counter.HANDSHAKES);
+    }
+
+    @Override
+    public long getLegs() {
+        return getCount(Counter.LEGS);
+    }
+
+    @Override
+    public long getAuthentications() {
+        return getCount(Counter.AUTHENTICATIONS);
+    }
+
+    @Override
+    public long getLogons() {
+        return getCount(Counter.LOGONS);
+    }
+
+    @Override
+    public Map<String, Long> getFailures() {
+        final Map<String, Long> result = new TreeMap<String, Long>();
+        for (Map.Entry<Integer, AtomicLong> failure : this.failures.entrySet()) {
+            result.put(String.format("0x%08X", failure.getKey()), Long.valueOf(failure.getValue().get()));
+        }
+        return result;
+    }
+
+    @Override
+    public Map<String, Long> getHeaderRejections() {
+        final Map<String, Long> result = new TreeMap<String, Long>();
+        for (AuthorizationHeaderStatus status : AuthorizationHeaderStatus.values()) {
+            if (status.isRejected()) {
+                result.put(status.name(), Long.valueOf(AuthorizationHeader.getRejectionCount(status)));
+            }
+        }
+        return result;
+    }
+
+    @Override
+    public int getContinueContexts() {
+        final List<WindowsAuthProviderImpl> providers;
+        synchronized (this.authProviders) {
+            providers = new ArrayList<WindowsAuthProviderImpl>(this.authProviders);
+        }
+        int size = 0;
+        for (WindowsAuthProviderImpl provider : providers) {
+            size += provider.getContinueContextsSize();
+        }
+        return size;
+    }
+
+    @Override
+    public LatencyHistogram.Snapshot getAcceptSecurityTokenLatency() {
+        return getLatency(Timer.ACCEPT_SECURITY_TOKEN);
+    }
+
+    @Override
+    public LatencyHistogram.Snapshot getIdentityLatency() {
+        return getLatency(Timer.GET_IDENTITY);
+    }
+
+    @Override
+    public LatencyHistogram.Snapshot getGroupsLatency() {
+        return getLatency(Timer.GET_GROUPS);
+    }
+
+    @Override
+    public LatencyHistogram.Snapshot getLogonLatency() {
+        return getLatency(Timer.LOGON_USER);
+    }
+
+    @Override
+    public void reset() {
+        for (int i = 0; i < this.counters.length(); i++) {
+            this.counters.set(i, 0L);
+        }
+        for (LatencyHistogram timer : this.timers) {
+            timer.reset();
+        }
+        this.failures.clear();
+    }
+}
@@ -0,0 +1,121 @@
+/**
+ * Waffle (https://github.com/dblock/waffle)
+ *
+ * Copyright (c) 2010 - 2014 Application Security, Inc.
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors:
+ *     Application Security, Inc.
+ */
+package waffle.util;
+
+import java.util.Map;
+
+/**
+ * Management interface of {@link WaffleMetrics}, registered as <code>waffle:type=Metrics</code>.
+ * 
+ * @author dblock[at]dblock[dot]org
+ */
+public interface WaffleMetricsMXBean {
+
+    /**
+     * True if metrics are recorded.
+     * 
+     * @return True if enabled.
+     */
+    boolean isEnabled();
+
+    /**
+     * Start or stop recording metrics.
+     * 
+     * @param value
+     *            True to record metrics.
+     */
+    void setEnabled(boolean value);
+
+    /**
+     * Handshakes started, first legs of Negotiate or NTLM authentications.
+     * 
+     * @return Number of handshakes.
+     */
+    long getHandshakes();
+
+    /**
+     * Security tokens accepted or rejected, all legs included.
+     * 
+     * @return Number of legs.
+     */
+    long getLegs();
+
+    /**
+     * Handshakes that authenticated a user.
+     * 
+     * @return Number of authentications.
+     */
+    long getAuthentications();
+
+    /**
+     * User name and password logons, successful or not.
+     * 
+     * @return Number of logons.
+     */
+    long getLogons();
+
+    /**
+     * Failed security tokens and logons by Win32 error code, eg. <code>0x8009030C</code>.
+     * 
+     * @return Number of failures per error code.
+     */
+    Map<String, Long> getFailures();
+
+    /**
+     * Requests rejected for their Authorization header, by reason.
+     * 
+     * @return Number of rejections per reason.
+     */
+    Map<String, Long> getHeaderRejections();
+
+    /**
+     * Security contexts of handshakes in progress, in all Windows auth providers.
+     * 
+     * @return Number of continue contexts.
+     */
+    int getContinueContexts();
+
+    /**
+     * Latency of AcceptSecurityContext.
+     * 
+     * @return Latency snapshot.
+     */
+    LatencyHistogram.Snapshot getAcceptSecurityTokenLatency();
+
+    /**
+     * Latency of the identity of an authenticated security context.
+     * 
+     * @return Latency snapshot.
+     */
+    LatencyHistogram.Snapshot getIdentityLatency();
+
+    /**
+     * Latency of the groups of an identity.
+     * 
+     * @return Latency snapshot.
+     */
+    LatencyHistogram.Snapshot getGroupsLatency();
+
+    /**
+     * Latency of LogonUser.
+     * 
+     * @return Latency snapshot.
+     */
+    LatencyHistogram.Snapshot getLogonLatency();
+
+    /**
+     * Forget all recorded counters and latencies.
+     */
+    void reset();
+}
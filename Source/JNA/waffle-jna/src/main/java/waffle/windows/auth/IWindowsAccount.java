@@ -27,6 +27,13 @@ public interface IWindowsAccount {
      */
     String getSidString();
 
+    /**
+     * Security identifier as an interned value, shared by every holder of the same SID.
+     * 
+     * @return Sid, or null if the identifier is not a valid SID.
+     */
+    Sid getSecurityIdentifier();
+
     /**
      * Fully qualified username.
      * 
@@ -0,0 +1,50 @@
+/**
+ * Waffle (https://github.com/dblock/waffle)
+ *
+ * Copyright (c) 2010 - 2014 Application Security, Inc.
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors:
+ *     Application Security, Inc.
+ */
+package waffle.windows.auth;
+
+/**
+ * Implemented by identities that can apply a {@link WindowsGroupFilter} to their group memberships before resolving
+ * group names, and that can hand out their group memberships for resolution after the identity was disposed.
+ * 
+ * @author dblock[at]dblock[dot]org
+ */
+public interface IWindowsGroupSource {
+
+    /**
+     * Group memberships kept by a filter.
+     * 
+     * @param filter
+     *            Group filter.
+     * @return Array of accounts, in token order.
+     */
+    IWindowsAccount[] getGroups(WindowsGroupFilter filter);
+
+    /**
+     * Group memberships kept by a filter, without looking up group names: the name and fully qualified name of each
+     * group are its SID string. Names are still looked up when the filter has rules on names.
+     * 
+     * @param filter
+     *            Group filter.
+     * @return Array of accounts, in token order.
+     */
+    IWindowsAccount[] getGroupSids(WindowsGroupFilter filter);
+
+    /**
+     * A group source that remains valid once this identity has been disposed. The group SIDs are read immediately,
+     * group names are only resolved when the groups are requested.
+     * 
+     * @return Group source.
+     */
+    IWindowsGroupSource detach();
+}
@@ -0,0 +1,237 @@
+/**
+ * Waffle (https://github.com/dblock/waffle)
+ *
+ * Copyright (c) 2010 - 2014 Application Security, Inc.
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors:
+ *     Application Security, Inc.
+ */
+package waffle.windows.auth;
+
+import java.io.InvalidObjectException;
+import java.io.ObjectStreamException;
+import java.io.Serializable;
+import java.util.Arrays;
+
+import com.google.common.collect.Interner;
+import com.google.common.collect.Interners;
+
+/**
+ * An immutable security identifier.
+ * 
+ * <p>
+ * A SID is compared, hashed and converted to and from its "S-1-5-32-544" string form in Java, without
+ * ConvertSidToStringSid or ConvertStringSidToSid. Instances are interned: the same SID seen in many tokens and
+ * principals is held once, and two instances of a SID are usually the same object, which makes comparisons cheap. The
+ * hash code is computed once.
+ * </p>
+ * 
+ * @author dblock[at]dblock[dot]org
+ */
+public final class Sid implements Serializable {
+
+    private static final long          serialVersionUID    = 1L;
+    private static final int           MAX_SUB_AUTHORITIES = 15;
+    private static final Interner<Sid> INTERNER            = Interners.newWeakInterner();
+    private final byte[]               bytes;
+    private final int                  hash;
+    private transient String           string;
+
+    private Sid(final byte[] newBytes, final String newString) {
+        this.bytes = newBytes;
+        this.hash = Arrays.hashCode(newBytes);
+        this.string = newString;
+    }
+
+    /**
+     * A SID from its binary form.
+     * 
+     * @param sid
+     *            SID bytes, copied.
+     * @return Interned SID.
+     * @throws IllegalArgumentException
+     *             when the bytes are not a SID.
+     */
+    public static Sid of(final byte[] sid) {
+        if (!isValid(sid)) {
+            throw new IllegalArgumentException("Invalid SID, length: " + (sid == null ? 0 : sid.length));
+        }
+        return INTERNER.intern(new Sid(sid.clone(), null));
+    }
+
+    /**
+     * A SID from its string form.
+     * 
+     * @param sidString
+     *            SID string, eg. S-1-5-32-544.
+     * @return Interned SID.
+     * @throws IllegalArgumentException
+     *             when the string is not a SID.
+     */
+    public static Sid parse(final String sidString) {
+        final Sid sid = tryParse(sidString);
+        if (sid == null) {
+            throw new IllegalArgumentException("Invalid SID: " + sidString);
+        }
+        return sid;
+    }
+
+    /**
+     * A SID from its string form, if it is one.
+     * 
+     * @param sidString
+     *            SID string, eg. S-1-5-32-544.
+     * @return Interned SID, or null if the string is not a SID that converts back to the same string.
+     */
+    public static Sid tryParse(final String sidString) {
+        final byte[] sid = toBytes(sidString);
+        return sid == null ? null : INTERNER.intern(new Sid(sid, sidString));
+    }
+
+    /**
+     * Checks whether bytes are a well-formed binary SID.
+     * 
+     * @param sid
+     *            SID bytes.
+     * @return True if the length matches the number of sub-authorities.
+     */
+    public static boolean isValid(final byte[] sid) {
+        return sid != null && sid.length >= 8 && sid.length == 8 + 4 * (sid[1] & 0xFF);
+    }
+
+    /**
+     * String form of a binary SID.
+     * 
+     * @param sid
+     *            SID bytes.
+     * @return SID string, eg. S-1-5-32-544, or null if the bytes are not a SID.
+     */
+    public static String format(final byte[] sid) {
+        if (!isValid(sid)) {
+            return null;
+        }
+        long authority = 0;
+        for (int i = 2; i < 8; i++) {
+            authority = authority << 8 | sid[i] & 0xFF;
+        }
+        final StringBuilder sidString = new StringBuilder(16 + 11 * (sid[1] & 0xFF)).append("S-")
+                .append(sid[0] & 0xFF).append('-');
+        if (authority > 0xFFFFFFFFL) {
+            sidString.append(String.format("0x%012X", Long.valueOf(authority)));
+        } else {
+            sidString.append(authority);
+        }
+        for (int offset = 8; offset < sid.length; offset += 4) {
+            final long sub = (sid[offset] & 0xFFL) | (sid[offset + 1] & 0xFFL) << 8 | (sid[offset + 2] & 0xFFL) << 16
+                    | (sid[offset + 3] & 0xFFL) << 24;
+            sidString.append('-').append(sub);
+        }
+        return sidString.toString();
+    }
+
+    /**
+     * Binary form of a SID string.
+     * 
+     * @param sidString
+     *            SID string, eg. S-1-5-32-544.
+     * @return SID bytes or null if the string is not a SID that converts back to the same string.
+     */
+    static byte[] toBytes(final String sidString) {
+        if (sidString == null) {
+            return null;
+        }
+        final String[] parts = sidString.split("-", -1);
+        if (parts.length < 3 || parts.length > 3 + MAX_SUB_AUTHORITIES || !"S".equals(parts[0])) {
+            return null;
+        }
+        final byte[] sid = new byte[8 + 4 * (parts.length - 3)];
+        try {
+            final int revision = Integer.parseInt(parts[1]);
+            final long authority = parts[2].startsWith("0x") ? Long.parseLong(parts[2].substring(2), 16) : Long
+                    .parseLong(parts[2]);
+            if (revision < 0 || revision > 0xFF || authority < 0 || authority > 0xFFFFFFFFFFFFL) {
+                return null;
+            }
+            sid[0] = (byte) revision;
+            sid[1] = (byte) (parts.length - 3);
+            for (int i = 0; i < 6; i++) {
+                sid[2 + i] = (byte) (authority >>> 8 * (5 - i));
+            }
+            for (int i = 3; i < parts.length; i++) {
+                final long sub = Long.parseLong(parts[i]);
+                if (sub < 0 || sub > 0xFFFFFFFFL) {
+                    return null;
+                }
+                final int offset = 8 + 4 * (i - 3);
+                for (int b = 0; b < 4; b++) {
+                    sid[offset + b] = (byte) (sub >>> 8 * b);
+                }
+            }
+        } catch (NumberFormatException e) {
+            return null;
+        }
+        return sidString.equals(format(sid)) ? sid : null;
+    }
+
+    /**
+     * Binary form.
+     * 
+     * @return A copy of the SID bytes.
+     */
+    public byte[] getBytes() {
+        return this.bytes.clone();
+    }
+
+    /**
+     * Length of the binary form.
+     * 
+     * @return Number of bytes.
+     */
+    public int length() {
+        return this.bytes.length;
+    }
+
+    @Override
+    public boolean equals(final Object o) {
+        if (this == o) {
+            return true;
+        }
+        if (!(o instanceof Sid)) {
+            return false;
+        }
+        final Sid other = (Sid) o;
+        return this.hash == other.hash && Arrays.equals(this.bytes, other.bytes);
+    }
+
+    @Override
+    public int hashCode() {
+        return this.hash;
+    }
+
+    /**
+     * String form.
+     * 
+     * @return SID string, eg. S-1-5-32-544.
+     */
+    @Override
+    public String toString() {
+        String value = this.string;
+        if (value == null) {
+            value = format(this.bytes);
+            this.string = value;
+        }
+        return value;
+    }
+
+    private Object readResolve() throws ObjectStreamException {
+        if (!isValid(this.bytes) || this.hash != Arrays.hashCode(this.bytes)) {
+            throw new InvalidObjectException("Invalid SID");
+        }
+        return INTERNER.intern(this);
+    }
+}
@@ -20,13 +20,14 @@ import java.io.Serializable;
  * 
  * @author dblock[at]dblock[dot]org
  */
-public class WindowsAccount implements Serializable {
+public class WindowsAccount implements Serializable, IWindowsAccount {
 
     private static final long serialVersionUID = 1L;
     private String            sidString;
     private String            fqn;
     private String            name;
     private String            domain;
+    private transient Sid     securityIdentifier;
 
     public WindowsAccount(final IWindowsAccount account) {
         this.sidString = account.getSidString();
@@ -35,18 +36,50 @@ public class WindowsAccount implements Serializable {
         this.domain = account.getDomain();
     }
 
+    /**
+     * A flattened Windows Account.
+     * 
+     * @param newSidString
+     *            String representation of the SID.
+     * @param newFqn
+     *            Fully qualified name.
+     * @param newName
+     *            Account name.
+     * @param newDomain
+     *            Account domain.
+     */
+    public WindowsAccount(final String newSidString, final String newFqn, final String newName,
+            final String newDomain) {
+        this.sidString = newSidString;
+        this.fqn = newFqn;
+        this.name = newName;
+        this.domain = newDomain;
+    }
+
+    @Override
     public String getSidString() {
         return this.sidString;
     }
 
+    @Override
+    public Sid getSecurityIdentifier() {
+        if (this.securityIdentifier == null) {
+            this.securityIdentifier = Sid.tryParse(this.sidString);
+        }
+        return this.securityIdentifier;
+    }
+
+    @Override
     public String getFqn() {
         return this.fqn;
     }
 
+    @Override
     public String getName() {
         return this.name;
     }
 
+    @Override
     public String getDomain() {
         return this.domain;
     }
@@ -0,0 +1,49 @@
+/**
+ * Waffle (https://github.com/dblock/waffle)
+ *
+ * Copyright (c) 2010 - 2014 Application Security, Inc.
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors:
+ *     Application Security, Inc.
+ */
+package waffle.windows.auth;
+
+/**
+ * Thrown when a Windows auth provider cannot accept more work, either because its concurrency limit and queue are
+ * exhausted or because a call did not complete in time. Adapters map it to "503 Service Unavailable".
+ * 
+ * @author dblock[at]dblock[dot]org
+ */
+public class WindowsAuthProviderBusyException extends RuntimeException {
+
+    private static final long serialVersionUID = 1L;
+
+    private final int         retryAfter;
+
+    /**
+     * A busy exception.
+     * 
+     * @param message
+     *            Message.
+     * @param newRetryAfter
+     *            Seconds after which the client may retry.
+     */
+    public WindowsAuthProviderBusyException(final String message, final int newRetryAfter) {
+        super(message);
+        this.retryAfter = newRetryAfter;
+    }
+
+    /**
+     * Seconds after which the client may retry, sent as the Retry-After header.
+     * 
+     * @return Number of seconds.
+     */
+    public int getRetryAfter() {
+        return this.retryAfter;
+    }
+}
@@ -0,0 +1,176 @@
+/**
+ * Waffle (https://github.com/dblock/waffle)
+ *
+ * Copyright (c) 2010 - 2014 Application Security, Inc.
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors:
+ *     Application Security, Inc.
+ */
+package waffle.windows.auth;
+
+import java.util.Locale;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * A process-wide dictionary of Windows groups that assigns each distinct group a small integer id.
+ * 
+ * <p>
+ * The same few hundred groups are shared by most users. Principals keep their group memberships as a
+ * {@link WindowsGroupSet} of ids into this dictionary, so that each group's name, SID and {@link WindowsAccount} exist
+ * once per process rather than once per session. A group is identified by its SID and name, a renamed group gets a new
+ * id. Ids are never reused; once the dictionary is full, new groups are not assigned an id and group sets hold them
+ * directly.
+ * </p>
+ * 
+ * @author dblock[at]dblock[dot]org
+ */
+public final class WindowsGroupDictionary {
+
+    /**
+     * Default maximum number of groups.
+     */
+    public static final int                      DEFAULT_MAX_SIZE = 65536;
+
+    private static final WindowsGroupDictionary  DEFAULT          = new WindowsGroupDictionary(DEFAULT_MAX_SIZE);
+
+    private static final int[]                   NO_IDS           = new int[0];
+
+    private final ConcurrentMap<String, Integer> ids              = new ConcurrentHashMap<String, Integer>();
+    private final ConcurrentMap<String, int[]>   names            = new ConcurrentHashMap<String, int[]>();
+    private final int                            maxSize;
+    private volatile WindowsAccount[]            groups           = new WindowsAccount[64];
+    private volatile int                         size;
+
+    /**
+     * A group dictionary.
+     * 
+     * @param newMaxSize
+     *            Maximum number of groups.
+     */
+    public WindowsGroupDictionary(final int newMaxSize) {
+        this.maxSize = newMaxSize;
+    }
+
+    /**
+     * The process-wide group dictionary.
+     * 
+     * @return Group dictionary.
+     */
+    public static WindowsGroupDictionary getDefault() {
+        return DEFAULT;
+    }
+
+    /**
+     * Id of a group, assigning a new one if the group was not seen before.
+     * 
+     * @param group
+     *            Group.
+     * @return Group id, or -1 if the group has no SID or the dictionary is full.
+     */
+    public int getId(final WindowsAccount group) {
+        final String sidString = group.getSidString();
+        if (sidString == null) {
+            return -1;
+        }
+        final String fqn = group.getFqn();
+        final String key = fqn == null ? sidString : sidString + '\n' + fqn;
+        final Integer id = this.ids.get(key);
+        if (id != null) {
+            return id.intValue();
+        }
+        return add(key, group);
+    }
+
+    private synchronized int add(final String key, final WindowsAccount group) {
+        final Integer existing = this.ids.get(key);
+        if (existing != null) {
+            return existing.intValue();
+        }
+        final int id = this.size;
+        if (id >= this.maxSize) {
+            return -1;
+        }
+        WindowsAccount[] newGroups = this.groups;
+        if (id == newGroups.length) {
+            final WindowsAccount[] grown = new WindowsAccount[Math.min(newGroups.length * 2, this.maxSize)];
+            System.arraycopy(newGroups, 0, grown, 0, id);
+            newGroups = grown;
+        }
+        newGroups[id] = group;
+        this.groups = newGroups;
+        this.size = id + 1;
+        addName(group.getSidString(), id);
+        if (group.getFqn() != null) {
+            addName(group.getFqn(), id);
+        }
+        this.ids.put(key, Integer.valueOf(id));
+        return id;
+    }
+
+    private void addName(final String name, final int id) {
+        final String key = toKey(name);
+        final int[] current = this.names.get(key);
+        if (current == null) {
+            this.names.put(key, new int[] { id });
+        } else {
+            final int[] grown = new int[current.length + 1];
+            System.arraycopy(current, 0, grown, 0, current.length);
+            grown[current.length] = id;
+            this.names.put(key, grown);
+        }
+    }
+
+    /**
+     * Group with a given id.
+     * 
+     * @param id
+     *            Group id.
+     * @return The group, shared by all principals that are members of it.
+     */
+    public WindowsAccount get(final int id) {
+        if (id < 0 || id >= this.size) {
+            throw new IndexOutOfBoundsException("Invalid group id: " + id);
+        }
+        return this.groups[id];
+    }
+
+    /**
+     * Ids of the groups with a given name or SID, ignoring case. There is more than one id when a group was renamed.
+     * 
+     * @param name
+     *            Fully qualified name or string representation of the SID.
+     * @return Group ids, possibly empty.
+     */
+    public int[] getIds(final String name) {
+        final int[] found = this.names.get(toKey(name));
+        return found == null ? NO_IDS : found;
+    }
+
+    static String toKey(final String name) {
+        return name.toLowerCase(Locale.ENGLISH);
+    }
+
+    /**
+     * Number of groups.
+     * 
+     * @return Number of groups with an id.
+     */
+    public int size() {
+        return this.size;
+    }
+
+    /**
+     * Maximum number of groups.
+     * 
+     * @return Maximum number of groups with an id.
+     */
+    public int getMaxSize() {
+        return this.maxSize;
+    }
+}
@@ -0,0 +1,159 @@
+/**
+ * Waffle (https://github.com/dblock/waffle)
+ *
+ * Copyright (c) 2010 - 2014 Application Security, Inc.
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors:
+ *     Application Security, Inc.
+ */
+package waffle.windows.auth;
+
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Locale;
+import java.util.Set;
+import java.util.regex.Pattern;
+
+/**
+ * Selects the group memberships that principals keep, so that groups never used for authorization (Everyone, BUILTIN,
+ * distribution lists, etc.) are not resolved, stored or serialized.
+ * 
+ * <p>
+ * A group is kept when its SID is listed, when its domain is listed, or when its fully qualified name matches the
+ * pattern. A filter without any rule keeps all groups. When the filter only lists SIDs, the groups of a native identity
+ * are dropped by SID before their names are looked up.
+ * </p>
+ * 
+ * @author dblock[at]dblock[dot]org
+ */
+public final class WindowsGroupFilter {
+
+    private static final WindowsGroupFilter ALL = new WindowsGroupFilter(Collections.<String> emptySet(),
+                                                        Collections.<String> emptySet(), null);
+
+    private final Set<String>               sids;
+    private final Set<String>               domains;
+    private final Pattern                   pattern;
+
+    /**
+     * A group filter.
+     * 
+     * @param newSids
+     *            String representations of the SIDs of the groups to keep.
+     * @param newDomains
+     *            Domains whose groups to keep.
+     * @param newPattern
+     *            Pattern matching the fully qualified names of the groups to keep, or null.
+     */
+    public WindowsGroupFilter(final Collection<String> newSids, final Collection<String> newDomains,
+            final Pattern newPattern) {
+        this.sids = toKeys(newSids);
+        this.domains = toKeys(newDomains);
+        this.pattern = newPattern;
+    }
+
+    private static Set<String> toKeys(final Collection<String> values) {
+        final Set<String> keys = new HashSet<String>();
+        for (String value : values) {
+            keys.add(value.toUpperCase(Locale.ENGLISH));
+        }
+        return Collections.unmodifiableSet(keys);
+    }
+
+    /**
+     * A filter that keeps all groups.
+     * 
+     * @return Group filter.
+     */
+    public static WindowsGroupFilter all() {
+        return ALL;
+    }
+
+    /**
+     * Parse a group filter from configuration values.
+     * 
+     * @param sids
+     *            SIDs of the groups to keep, separated by commas or whitespace, or null.
+     * @param domains
+     *            Domains whose groups to keep, separated by commas or whitespace, or null.
+     * @param pattern
+     *            Regular expression matching the fully qualified names of the groups to keep, or null.
+     * @return Group filter.
+     */
+    public static WindowsGroupFilter of(final String sids, final String domains, final String pattern) {
+        final Set<String> sidList = split(sids);
+        final Set<String> domainList = split(domains);
+        final boolean noPattern = pattern == null || pattern.trim().length() == 0;
+        if (sidList.isEmpty() && domainList.isEmpty() && noPattern) {
+            return ALL;
+        }
+        return new WindowsGroupFilter(sidList, domainList, noPattern ? null : Pattern.compile(pattern.trim(),
+                Pattern.CASE_INSENSITIVE));
+    }
+
+    private static Set<String> split(final String values) {
+        final Set<String> result = new HashSet<String>();
+        if (values != null) {
+            for (String value : values.split("[\\s,]+")) {
+                if (value.length() > 0) {
+                    result.add(value);
+                }
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Checks whether this filter keeps all groups.
+     * 
+     * @return True if the filter has no rule.
+     */
+    public boolean isAll() {
+        return this.sids.isEmpty() && this.domains.isEmpty() && this.pattern == null;
+    }
+
+    /**
+     * Checks whether this filter needs the name of a group whose SID is not listed.
+     * 
+     * @return True if the filter has a domain or pattern rule.
+     */
+    public boolean isNameRequired() {
+        return !this.domains.isEmpty() || this.pattern != null;
+    }
+
+    /**
+     * Checks whether a SID is listed.
+     * 
+     * @param sidString
+     *            String representation of a group SID.
+     * @return True if the group is kept because of its SID.
+     */
+    public boolean acceptsSid(final String sidString) {
+        return sidString != null && this.sids.contains(sidString.toUpperCase(Locale.ENGLISH));
+    }
+
+    /**
+     * Checks whether a group is kept.
+     * 
+     * @param group
+     *            Group.
+     * @return True if the group is kept.
+     */
+    public boolean accepts(final IWindowsAccount group) {
+        if (isAll() || acceptsSid(group.getSidString())) {
+            return true;
+        }
+        final String domain = group.getDomain();
+        if (domain != null && this.domains.contains(domain.toUpperCase(Locale.ENGLISH))) {
+            return true;
+        }
+        final String fqn = group.getFqn();
+        return this.pattern != null && fqn != null && this.pattern.matcher(fqn).matches();
+    }
+}
@@ -0,0 +1,260 @@
+/**
+ * Waffle (https://github.com/dblock/waffle)
+ *
+ * Copyright (c) 2010 - 2014 Application Security, Inc.
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors:
+ *     Application Security, Inc.
+ */
+package waffle.windows.auth;
+
+import java.io.ObjectStreamException;
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * An immutable set of group memberships, stored as ids into a {@link WindowsGroupDictionary}.
+ * 
+ * <p>
+ * Ids are kept in a bitset, or in a sorted array when they are sparse enough for the array to be smaller. Groups that
+ * the dictionary could not assign an id to are kept as is. Membership tests by id, name or SID take constant time for
+ * the bitset and logarithmic time for the array. Group sets are serialized as their list of groups and re-interned when
+ * read.
+ * </p>
+ * 
+ * @author dblock[at]dblock[dot]org
+ */
+public final class WindowsGroupSet implements Serializable {
+
+    private static final long             serialVersionUID = 1L;
+
+    private static final WindowsAccount[] NO_GROUPS        = new WindowsAccount[0];
+
+    private static final WindowsGroupSet  EMPTY            = new WindowsGroupSet(
+                                                                   WindowsGroupDictionary.getDefault(), null, null,
+                                                                   NO_GROUPS, 0);
+
+    private final WindowsGroupDictionary  dictionary;
+    private final long[]                  bits;
+    private final int[]                   ids;
+    private final WindowsAccount[]        others;
+    private final int                     size;
+
+    private WindowsGroupSet(final WindowsGroupDictionary newDictionary, final long[] newBits, final int[] newIds,
+            final WindowsAccount[] newOthers, final int newSize) {
+        this.dictionary = newDictionary;
+        this.bits = newBits;
+        this.ids = newIds;
+        this.others = newOthers;
+        this.size = newSize;
+    }
+
+    /**
+     * An empty group set.
+     * 
+     * @return Group set.
+     */
+    public static WindowsGroupSet empty() {
+        return EMPTY;
+    }
+
+    /**
+     * Group memberships, interned in the process-wide dictionary.
+     * 
+     * @param groups
+     *            Groups.
+     * @return Group set.
+     */
+    public static WindowsGroupSet of(final Collection<WindowsAccount> groups) {
+        return of(WindowsGroupDictionary.getDefault(), groups);
+    }
+
+    /**
+     * Group memberships, interned in a dictionary.
+     * 
+     * @param dictionary
+     *            Group dictionary.
+     * @param groups
+     *            Groups.
+     * @return Group set.
+     */
+    public static WindowsGroupSet of(final WindowsGroupDictionary dictionary, final Collection<WindowsAccount> groups) {
+        if (groups.isEmpty()) {
+            return dictionary == EMPTY.dictionary ? EMPTY : new WindowsGroupSet(dictionary, null, null, NO_GROUPS, 0);
+        }
+        int[] newIds = new int[groups.size()];
+        int count = 0;
+        int maxId = -1;
+        List<WindowsAccount> newOthers = null;
+        for (WindowsAccount group : groups) {
+            final int id = dictionary.getId(group);
+            if (id >= 0) {
+                newIds[count++] = id;
+                maxId = Math.max(maxId, id);
+            } else {
+                if (newOthers == null) {
+                    newOthers = new ArrayList<WindowsAccount>();
+                }
+                if (!newOthers.contains(group)) {
+                    newOthers.add(group);
+                }
+            }
+        }
+        newIds = Arrays.copyOf(newIds, count);
+        Arrays.sort(newIds);
+        count = unique(newIds);
+        final WindowsAccount[] othersArray = newOthers == null ? NO_GROUPS : newOthers
+                .toArray(new WindowsAccount[newOthers.size()]);
+        // a long holds 64 ids, an int holds one
+        if (maxId / 64 + 1 <= (count + 1) / 2) {
+            final long[] newBits = new long[maxId / 64 + 1];
+            for (int i = 0; i < count; i++) {
+                newBits[newIds[i] >>> 6] |= 1L << newIds[i];
+            }
+            return new WindowsGroupSet(dictionary, newBits, null, othersArray, count + othersArray.length);
+        }
+        return new WindowsGroupSet(dictionary, null, Arrays.copyOf(newIds, count), othersArray, count
+                + othersArray.length);
+    }
+
+    private static int unique(final int[] sorted) {
+        int count = 0;
+        for (int i = 0; i < sorted.length; i++) {
+            if (count == 0 || sorted[count - 1] != sorted[i]) {
+                sorted[count++] = sorted[i];
+            }
+        }
+        return count;
+    }
+
+    /**
+     * Checks whether a group with a given id is a member of this set.
+     * 
+     * @param id
+     *            Group id in the dictionary.
+     * @return True if the group is a member.
+     */
+    public boolean contains(final int id) {
+        if (id < 0) {
+            return false;
+        }
+        if (this.bits != null) {
+            final int word = id >>> 6;
+            return word < this.bits.length && (this.bits[word] & 1L << id) != 0;
+        }
+        return this.ids != null && Arrays.binarySearch(this.ids, id) >= 0;
+    }
+
+    /**
+     * Checks whether a group with a given name or SID is a member of this set, ignoring case.
+     * 
+     * @param name
+     *            Fully qualified name or string representation of the SID.
+     * @return True if the group is a member.
+     */
+    public boolean containsName(final String name) {
+        if (name == null) {
+            return false;
+        }
+        for (int id : this.dictionary.getIds(name)) {
+            if (contains(id)) {
+                return true;
+            }
+        }
+        for (WindowsAccount other : this.others) {
+            if (name.equalsIgnoreCase(other.getFqn()) || name.equalsIgnoreCase(other.getSidString())) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Number of groups.
+     * 
+     * @return Number of groups.
+     */
+    public int size() {
+        return this.size;
+    }
+
+    /**
+     * Checks whether there are no groups.
+     * 
+     * @return True if the set is empty.
+     */
+    public boolean isEmpty() {
+        return this.size == 0;
+    }
+
+    /**
+     * Groups, ordered by id.
+     * 
+     * @return An unmodifiable list of groups, shared with other group sets.
+     */
+    public List<WindowsAccount> getGroups() {
+        final List<WindowsAccount> groups = new ArrayList<WindowsAccount>(this.size);
+        if (this.bits != null) {
+            for (int word = 0; word < this.bits.length; word++) {
+                long value = this.bits[word];
+                while (value != 0) {
+                    groups.add(this.dictionary.get(word << 6 | Long.numberOfTrailingZeros(value)));
+                    value &= value - 1;
+                }
+            }
+        } else if (this.ids != null) {
+            for (int id : this.ids) {
+                groups.add(this.dictionary.get(id));
+            }
+        }
+        groups.addAll(Arrays.asList(this.others));
+        return Collections.unmodifiableList(groups);
+    }
+
+    /**
+     * Groups by fully qualified name.
+     * 
+     * @return An unmodifiable map of group names to groups.
+     */
+    public Map<String, WindowsAccount> getGroupMap() {
+        final List<WindowsAccount> groups = getGroups();
+        final Map<String, WindowsAccount> groupMap = new LinkedHashMap<String, WindowsAccount>(
+                groups.size() * 4 / 3 + 1);
+        for (WindowsAccount group : groups) {
+            groupMap.put(group.getFqn(), group);
+        }
+        return Collections.unmodifiableMap(groupMap);
+    }
+
+    private Object writeReplace() throws ObjectStreamException {
+        return new SerializedForm(new ArrayList<WindowsAccount>(getGroups()));
+    }
+
+    /**
+     * Serialized form of a group set: its groups, interned in the process-wide dictionary when read.
+     */
+    private static final class SerializedForm implements Serializable {
+
+        private static final long          serialVersionUID = 1L;
+        private final List<WindowsAccount> groups;
+
+        SerializedForm(final List<WindowsAccount> newGroups) {
+            this.groups = newGroups;
+        }
+
+        private Object readResolve() throws ObjectStreamException {
+            return WindowsGroupSet.of(this.groups);
+        }
+    }
+}
@@ -0,0 +1,212 @@
+/**
+ * Waffle (https://github.com/dblock/waffle)
+ *
+ * Copyright (c) 2010 - 2014 Application Security, Inc.
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors:
+ *     Application Security, Inc.
+ */
+package waffle.windows.auth;
+
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * An immutable copy of a Windows identity: its name, SID and group memberships, read from the identity exactly once.
+ * Principals are built from a snapshot, so that group memberships are resolved a single time per logon no matter how
+ * many views (roles, group map) of them a principal needs.
+ * 
+ * @author dblock[at]dblock[dot]org
+ */
+public final class WindowsIdentitySnapshot implements Serializable {
+
+    private static final long                 serialVersionUID = 1L;
+    private final String                      fqn;
+    private final byte[]                      sid;
+    private final String                      sidString;
+    private final List<WindowsAccount>        groups;
+    private final Map<String, WindowsAccount> groupMap;
+
+    private WindowsIdentitySnapshot(final String newFqn, final byte[] newSid, final String newSidString,
+            final List<WindowsAccount> newGroups) {
+        this.fqn = newFqn;
+        this.sid = newSid;
+        this.sidString = newSidString;
+        final Map<String, WindowsAccount> groupsByFqn = new LinkedHashMap<String, WindowsAccount>(
+                newGroups.size() * 4 / 3 + 1);
+        for (WindowsAccount group : newGroups) {
+            groupsByFqn.put(group.getFqn(), group);
+        }
+        this.groups = Collections.unmodifiableList(newGroups);
+        this.groupMap = Collections.unmodifiableMap(groupsByFqn);
+    }
+
+    /**
+     * Take a snapshot of a Windows identity.
+     * 
+     * @param identity
+     *            Windows identity.
+     * @return An immutable snapshot.
+     */
+    public static WindowsIdentitySnapshot of(final IWindowsIdentity identity) {
+        return of(identity, WindowsGroupFilter.all());
+    }
+
+    /**
+     * Take a snapshot of a Windows identity, keeping only the groups accepted by a filter. Identities that implement
+     * {@link IWindowsGroupSource} apply the filter before resolving group names.
+     * 
+     * @param identity
+     *            Windows identity.
+     * @param filter
+     *            Group filter.
+     * @return An immutable snapshot.
+     */
+    public static WindowsIdentitySnapshot of(final IWindowsIdentity identity, final WindowsGroupFilter filter) {
+        return of(identity, filter, PrincipalFormat.FQN);
+    }
+
+    /**
+     * Take a snapshot of a Windows identity for principals with a given role format, keeping only the groups accepted
+     * by a filter. When roles are SIDs, group names are not looked up by identities that implement
+     * {@link IWindowsGroupSource}, and the groups of the snapshot are named after their SID.
+     * 
+     * @param identity
+     *            Windows identity.
+     * @param filter
+     *            Group filter.
+     * @param roleFormat
+     *            Role format.
+     * @return An immutable snapshot.
+     */
+    public static WindowsIdentitySnapshot of(final IWindowsIdentity identity, final WindowsGroupFilter filter,
+            final PrincipalFormat roleFormat) {
+        final IWindowsAccount[] identityGroups;
+        if (identity instanceof IWindowsGroupSource && (!filter.isAll() || !isNameRequired(roleFormat))) {
+            identityGroups = getGroups((IWindowsGroupSource) identity, filter, roleFormat);
+        } else {
+            identityGroups = identity.getGroups();
+        }
+        final List<WindowsAccount> groups = toGroups(identityGroups, filter);
+        return new WindowsIdentitySnapshot(identity.getFqn(), identity.getSid(), identity.getSidString(), groups);
+    }
+
+    /**
+     * Checks whether roles of a given format need group names.
+     * 
+     * @param roleFormat
+     *            Role format.
+     * @return False for SID roles.
+     */
+    static boolean isNameRequired(final PrincipalFormat roleFormat) {
+        return roleFormat != PrincipalFormat.SID;
+    }
+
+    /**
+     * Group memberships of a group source kept by a filter, with names only if roles of the given format need them.
+     * 
+     * @param source
+     *            Group source.
+     * @param filter
+     *            Group filter.
+     * @param roleFormat
+     *            Role format.
+     * @return Array of accounts.
+     */
+    static IWindowsAccount[] getGroups(final IWindowsGroupSource source, final WindowsGroupFilter filter,
+            final PrincipalFormat roleFormat) {
+        return isNameRequired(roleFormat) ? source.getGroups(filter) : source.getGroupSids(filter);
+    }
+
+    /**
+     * Copy the group memberships accepted by a filter.
+     * 
+     * @param identityGroups
+     *            Group memberships of an identity.
+     * @param filter
+     *            Group filter.
+     * @return A list of groups, in the order of the identity.
+     */
+    static List<WindowsAccount> toGroups(final IWindowsAccount[] identityGroups, final WindowsGroupFilter filter) {
+        final List<WindowsAccount> groups = new ArrayList<WindowsAccount>(identityGroups.length);
+        for (IWindowsAccount identityGroup : identityGroups) {
+            if (filter.accepts(identityGroup)) {
+                groups.add(new WindowsAccount(identityGroup));
+            }
+        }
+        return groups;
+    }
+
+    /**
+     * Restore a snapshot from previously captured values, eg. read back from a signed token.
+     * 
+     * @param fqn
+     *            Fully qualified name.
+     * @param sid
+     *            Byte representation of the SID.
+     * @param sidString
+     *            String representation of the SID.
+     * @param groups
+     *            Group memberships.
+     * @return An immutable snapshot.
+     */
+    public static WindowsIdentitySnapshot of(final String fqn, final byte[] sid, final String sidString,
+            final List<WindowsAccount> groups) {
+        return new WindowsIdentitySnapshot(fqn, sid == null ? null : sid.clone(), sidString,
+                new ArrayList<WindowsAccount>(groups));
+    }
+
+    /**
+     * Fully qualified name.
+     * 
+     * @return String.
+     */
+    public String getFqn() {
+        return this.fqn;
+    }
+
+    /**
+     * Byte representation of the SID.
+     * 
+     * @return Array of bytes.
+     */
+    public byte[] getSid() {
+        return this.sid == null ? null : this.sid.clone();
+    }
+
+    /**
+     * String representation of the SID.
+     * 
+     * @return String.
+     */
+    public String getSidString() {
+        return this.sidString;
+    }
+
+    /**
+     * Group memberships, in the order returned by the identity.
+     * 
+     * @return An unmodifiable list of groups.
+     */
+    public List<WindowsAccount> getGroups() {
+        return this.groups;
+    }
+
+    /**
+     * Group memberships by fully qualified name.
+     * 
+     * @return An unmodifiable map of group names to groups.
+     */
+    public Map<String, WindowsAccount> getGroupMap() {
+        return this.groupMap;
+    }
+}
@@ -0,0 +1,104 @@
+/**
+ * Waffle (https://github.com/dblock/waffle)
+ *
+ * Copyright (c) 2010 - 2014 Application Security, Inc.
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors:
+ *     Application Security, Inc.
+ */
+package waffle.windows.auth;
+
+/**
+ * The group memberships of a principal, resolved on first use.
+ * 
+ * <p>
+ * Identities that implement {@link IWindowsGroupSource} only hand over their group SIDs at logon, names are looked up
+ * and the {@link WindowsGroupSet} is built the first time the groups are needed, eg. for a role check. Since the
+ * source is detached from the identity, this is safe after the identity (and its access token) has been disposed.
+ * Groups of other identities are read immediately. When roles are SIDs, group names are not looked up at all.
+ * </p>
+ * 
+ * @author dblock[at]dblock[dot]org
+ */
+public final class WindowsLazyGroupSet {
+
+    private volatile WindowsGroupSet groups;
+    private IWindowsGroupSource      source;
+    private WindowsGroupFilter       filter;
+    private PrincipalFormat          roleFormat;
+
+    private WindowsLazyGroupSet(final WindowsGroupSet newGroups, final IWindowsGroupSource newSource,
+            final WindowsGroupFilter newFilter, final PrincipalFormat newRoleFormat) {
+        this.groups = newGroups;
+        this.source = newSource;
+        this.filter = newFilter;
+        this.roleFormat = newRoleFormat;
+    }
+
+    /**
+     * Group memberships that are already resolved.
+     * 
+     * @param groups
+     *            Group set.
+     * @return Lazy group set.
+     */
+    public static WindowsLazyGroupSet of(final WindowsGroupSet groups) {
+        return new WindowsLazyGroupSet(groups, null, null, null);
+    }
+
+    /**
+     * Group memberships of an identity, kept by a filter.
+     * 
+     * @param identity
+     *            Windows identity.
+     * @param filter
+     *            Group filter.
+     * @param roleFormat
+     *            Role format of the principal, group names are not looked up for SID roles.
+     * @return Lazy group set.
+     */
+    public static WindowsLazyGroupSet of(final IWindowsIdentity identity, final WindowsGroupFilter filter,
+            final PrincipalFormat roleFormat) {
+        if (identity instanceof IWindowsGroupSource) {
+            return new WindowsLazyGroupSet(null, ((IWindowsGroupSource) identity).detach(), filter, roleFormat);
+        }
+        return of(WindowsGroupSet.of(WindowsIdentitySnapshot.toGroups(identity.getGroups(), filter)));
+    }
+
+    /**
+     * Whether the group memberships have been resolved.
+     * 
+     * @return True if resolved.
+     */
+    public boolean isResolved() {
+        return this.groups != null;
+    }
+
+    /**
+     * Group memberships, resolved on the first call.
+     * 
+     * @return Group set.
+     */
+    public WindowsGroupSet get() {
+        WindowsGroupSet value = this.groups;
+        if (value == null) {
+            synchronized (this) {
+                value = this.groups;
+                if (value == null) {
+                    value = WindowsGroupSet.of(WindowsIdentitySnapshot.toGroups(
+                            WindowsIdentitySnapshot.getGroups(this.source, this.filter, this.roleFormat), this.filter));
+                    this.groups = value;
+                    this.source = null;
+                    this.filter = null;
+                    this.roleFormat = null;
+                }
+            }
+        }
+        return value;
+    }
+}
@@ -0,0 +1,49 @@
+/**
+ * Waffle (https://github.com/dblock/waffle)
+ *
+ * Copyright (c) 2010 - 2014 Application Security, Inc.
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors:
+ *     Application Security, Inc.
+ */
+package waffle.windows.auth;
+
+/**
+ * Thrown instead of attempting a logon when the user or the client recently failed to log on too many times. Adapters
+ * treat it as a failed logon.
+ * 
+ * @author dblock[at]dblock[dot]org
+ */
+public class WindowsLogonThrottledException extends RuntimeException {
+
+    private static final long serialVersionUID = 1L;
+
+    private final int         retryAfter;
+
+    /**
+     * A throttled logon exception.
+     * 
+     * @param message
+     *            Message.
+     * @param newRetryAfter
+     *            Seconds after which the logon may be attempted again.
+     */
+    public WindowsLogonThrottledException(final String message, final int newRetryAfter) {
+        super(message);
+        this.retryAfter = newRetryAfter;
+    }
+
+    /**
+     * Seconds after which the logon may be attempted again, sent as the Retry-After header.
+     * 
+     * @return Number of seconds.
+     */
+    public int getRetryAfter() {
+        return this.retryAfter;
+    }
+}
@@ -0,0 +1,333 @@
+/**
+ * Waffle (https://github.com/dblock/waffle)
+ *
+ * Copyright (c) 2010 - 2014 Application Security, Inc.
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors:
+ *     Application Security, Inc.
+ */
+package waffle.windows.auth;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.io.StreamCorruptedException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import com.google.common.base.Charsets;
+
+/**
+ * Compact, versioned binary encoding of a Windows principal: its name, SID, group memberships and roles. Used by the
+ * Externalizable principals instead of default Java serialization, which repeats class descriptors and strings for
+ * every group.
+ * 
+ * <p>
+ * Lengths and counts are unsigned varints, strings are UTF-8, SIDs are written in their binary form whenever that
+ * reproduces the SID string exactly, group domains are written once in a domain table, and roles are written as
+ * references to the user and group names and SIDs they were built from. The principal and role formats are written
+ * explicitly, they cannot be told from the roles when a group name equals its SID or a group has no name.
+ * </p>
+ * 
+ * @author dblock[at]dblock[dot]org
+ */
+public final class WindowsPrincipalCodec {
+
+    /**
+     * Current version of the encoding.
+     */
+    public static final int  VERSION        = 2;
+
+    private static final int MAX_LENGTH     = 1 << 20;
+
+    private static final int SID_NULL       = 0;
+    private static final int SID_BINARY     = 1;
+    private static final int SID_STRING     = 2;
+    private static final int SID_FROM_BYTES = 3;
+
+    private static final int FQN_STRING     = 0;
+    private static final int FQN_QUALIFIED  = 1;
+    private static final int FQN_NAME       = 2;
+    private static final int FQN_NULL       = 3;
+
+    private WindowsPrincipalCodec() {
+        // Prevent Instantiation of object
+    }
+
+    /**
+     * Write a principal.
+     * 
+     * @param out
+     *            Output.
+     * @param fqn
+     *            Fully qualified name.
+     * @param sid
+     *            Byte representation of the SID.
+     * @param sidString
+     *            String representation of the SID.
+     * @param principalFormat
+     *            Principal format, may be null.
+     * @param roleFormat
+     *            Role format, may be null.
+     * @param groups
+     *            Group memberships.
+     * @param roles
+     *            Roles.
+     * @throws IOException
+     *             on write.
+     */
+    public static void write(final DataOutput out, final String fqn, final byte[] sid, final String sidString,
+            final PrincipalFormat principalFormat, final PrincipalFormat roleFormat,
+            final Collection<WindowsAccount> groups, final List<String> roles) throws IOException {
+        out.writeByte(VERSION);
+        writeFormat(out, principalFormat);
+        writeFormat(out, roleFormat);
+        writeString(out, fqn);
+        writeBytes(out, sid);
+        if (sidString != null && sid != null && sidString.equals(Sid.format(sid))) {
+            writeVarInt(out, SID_FROM_BYTES);
+        } else {
+            writeSid(out, sidString);
+        }
+
+        final Map<String, Integer> domains = new LinkedHashMap<String, Integer>();
+        for (WindowsAccount group : groups) {
+            if (group.getDomain() != null && !domains.containsKey(group.getDomain())) {
+                domains.put(group.getDomain(), Integer.valueOf(domains.size() + 1));
+            }
+        }
+        writeVarInt(out, domains.size());
+        for (String domain : domains.keySet()) {
+            writeString(out, domain);
+        }
+
+        final Map<String, Integer> refs = new HashMap<String, Integer>();
+        addRef(refs, fqn, 1);
+        addRef(refs, sidString, 2);
+        writeVarInt(out, groups.size());
+        int ref = 3;
+        for (WindowsAccount group : groups) {
+            writeSid(out, group.getSidString());
+            final String domain = group.getDomain();
+            writeVarInt(out, domain == null ? 0 : domains.get(domain).intValue());
+            writeString(out, group.getName());
+            final String groupFqn = group.getFqn();
+            if (groupFqn == null) {
+                writeVarInt(out, FQN_NULL);
+            } else if (domain != null && domain.length() > 0 && group.getName() != null
+                    && groupFqn.equals(domain + "\\" + group.getName())) {
+                writeVarInt(out, FQN_QUALIFIED);
+            } else if (groupFqn.equals(group.getName())) {
+                writeVarInt(out, FQN_NAME);
+            } else {
+                writeVarInt(out, FQN_STRING);
+                writeString(out, groupFqn);
+            }
+            addRef(refs, groupFqn, ref++);
+            addRef(refs, group.getSidString(), ref++);
+        }
+
+        writeVarInt(out, roles.size());
+        for (String role : roles) {
+            final Integer roleRef = role == null ? null : refs.get(role);
+            if (roleRef == null) {
+                writeVarInt(out, 0);
+                writeString(out, role);
+            } else {
+                writeVarInt(out, roleRef.intValue());
+            }
+        }
+    }
+
+    /**
+     * Read a principal.
+     * 
+     * @param in
+     *            Input.
+     * @param formats
+     *            List the principal format and then the role format are added to, either may be null.
+     * @param roles
+     *            List the roles are added to.
+     * @return Snapshot of the principal's identity.
+     * @throws IOException
+     *             on read or when the input is not a principal of a known version.
+     */
+    public static WindowsIdentitySnapshot read(final DataInput in, final List<PrincipalFormat> formats,
+            final List<String> roles) throws IOException {
+        final int version = in.readUnsignedByte();
+        if (version != VERSION) {
+            throw new StreamCorruptedException("Unsupported principal version: " + version);
+        }
+        formats.add(readFormat(in));
+        formats.add(readFormat(in));
+        final String fqn = readString(in);
+        final byte[] sid = readBytes(in);
+        final int sidType = readVarInt(in);
+        final String sidString = sidType == SID_FROM_BYTES ? Sid.format(sid) : readSid(in, sidType);
+
+        final int domainCount = readCount(in);
+        final String[] domains = new String[domainCount];
+        for (int i = 0; i < domainCount; i++) {
+            domains[i] = readString(in);
+        }
+
+        final int groupCount = readCount(in);
+        final List<WindowsAccount> groups = new ArrayList<WindowsAccount>(groupCount);
+        final String[] refs = new String[3 + 2 * groupCount];
+        refs[1] = fqn;
+        refs[2] = sidString;
+        for (int i = 0; i < groupCount; i++) {
+            final String groupSidString = readSid(in, readVarInt(in));
+            final int domainRef = readVarInt(in);
+            if (domainRef < 0 || domainRef > domainCount) {
+                throw new StreamCorruptedException("Invalid domain reference: " + domainRef);
+            }
+            final String domain = domainRef == 0 ? null : domains[domainRef - 1];
+            final String name = readString(in);
+            final int fqnType = readVarInt(in);
+            final String groupFqn;
+            switch (fqnType) {
+                case FQN_STRING:
+                    groupFqn = readString(in);
+                    break;
+                case FQN_QUALIFIED:
+                    groupFqn = domain + "\\" + name;
+                    break;
+                case FQN_NAME:
+                    groupFqn = name;
+                    break;
+                case FQN_NULL:
+                    groupFqn = null;
+                    break;
+                default:
+                    throw new StreamCorruptedException("Invalid name type: " + fqnType);
+            }
+            groups.add(new WindowsAccount(groupSidString, groupFqn, name, domain));
+            refs[3 + 2 * i] = groupFqn;
+            refs[4 + 2 * i] = groupSidString;
+        }
+
+        final int roleCount = readCount(in);
+        for (int i = 0; i < roleCount; i++) {
+            final int ref = readVarInt(in);
+            if (ref < 0 || ref >= refs.length) {
+                throw new StreamCorruptedException("Invalid role reference: " + ref);
+            }
+            roles.add(ref == 0 ? readString(in) : refs[ref]);
+        }
+        return WindowsIdentitySnapshot.of(fqn, sid, sidString, groups);
+    }
+
+    private static void addRef(final Map<String, Integer> refs, final String value, final int ref) {
+        if (value != null && !refs.containsKey(value)) {
+            refs.put(value, Integer.valueOf(ref));
+        }
+    }
+
+    private static void writeFormat(final DataOutput out, final PrincipalFormat format) throws IOException {
+        writeVarInt(out, format == null ? 0 : format.ordinal() + 1);
+    }
+
+    private static PrincipalFormat readFormat(final DataInput in) throws IOException {
+        final int format = readVarInt(in);
+        final PrincipalFormat[] values = PrincipalFormat.values();
+        if (format < 0 || format > values.length) {
+            throw new StreamCorruptedException("Invalid principal format: " + format);
+        }
+        return format == 0 ? null : values[format - 1];
+    }
+
+    private static void writeSid(final DataOutput out, final String sidString) throws IOException {
+        if (sidString == null) {
+            writeVarInt(out, SID_NULL);
+            return;
+        }
+        final byte[] sid = Sid.toBytes(sidString);
+        if (sid == null) {
+            writeVarInt(out, SID_STRING);
+            writeString(out, sidString);
+        } else {
+            writeVarInt(out, SID_BINARY);
+            writeBytes(out, sid);
+        }
+    }
+
+    private static String readSid(final DataInput in, final int type) throws IOException {
+        switch (type) {
+            case SID_NULL:
+                return null;
+            case SID_BINARY:
+                return Sid.format(readBytes(in));
+            case SID_STRING:
+                return readString(in);
+            default:
+                throw new StreamCorruptedException("Invalid SID type: " + type);
+        }
+    }
+
+    static void writeVarInt(final DataOutput out, final int value) throws IOException {
+        int remaining = value;
+        while ((remaining & ~0x7F) != 0) {
+            out.writeByte(remaining & 0x7F | 0x80);
+            remaining >>>= 7;
+        }
+        out.writeByte(remaining);
+    }
+
+    static int readVarInt(final DataInput in) throws IOException {
+        int value = 0;
+        for (int shift = 0; shift < 32; shift += 7) {
+            final int b = in.readUnsignedByte();
+            value |= (b & 0x7F) << shift;
+            if ((b & 0x80) == 0) {
+                return value;
+            }
+        }
+        throw new StreamCorruptedException("Invalid varint");
+    }
+
+    private static int readCount(final DataInput in) throws IOException {
+        final int count = readVarInt(in);
+        if (count < 0 || count > MAX_LENGTH) {
+            throw new StreamCorruptedException("Invalid length: " + count);
+        }
+        return count;
+    }
+
+    private static void writeBytes(final DataOutput out, final byte[] value) throws IOException {
+        if (value == null) {
+            writeVarInt(out, 0);
+        } else {
+            writeVarInt(out, value.length + 1);
+            out.write(value);
+        }
+    }
+
+    private static byte[] readBytes(final DataInput in) throws IOException {
+        final int length = readCount(in);
+        if (length == 0) {
+            return null;
+        }
+        final byte[] value = new byte[length - 1];
+        in.readFully(value);
+        return value;
+    }
+
+    private static void writeString(final DataOutput out, final String value) throws IOException {
+        writeBytes(out, value == null ? null : value.getBytes(Charsets.UTF_8));
+    }
+
+    private static String readString(final DataInput in) throws IOException {
+        final byte[] value = readBytes(in);
+        return value == null ? null : new String(value, Charsets.UTF_8);
+    }
+}
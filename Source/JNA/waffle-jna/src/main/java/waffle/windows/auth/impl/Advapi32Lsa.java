@@ -0,0 +1,227 @@
+/**
+ * Waffle (https://github.com/dblock/waffle)
+ *
+ * Copyright (c) 2010 - 2014 Application Security, Inc.
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors:
+ *     Application Security, Inc.
+ */
+package waffle.windows.auth.impl;
+
+import java.util.Arrays;
+import java.util.List;
+
+import com.sun.jna.Native;
+import com.sun.jna.Pointer;
+import com.sun.jna.Structure;
+import com.sun.jna.platform.win32.WinNT.HANDLE;
+import com.sun.jna.platform.win32.WinNT.HANDLEByReference;
+import com.sun.jna.ptr.PointerByReference;
+import com.sun.jna.win32.StdCallLibrary;
+import com.sun.jna.win32.W32APIOptions;
+
+/**
+ * The LSA policy functions of advapi32.dll that resolve many SIDs in one call, which the JNA platform Advapi32 does not
+ * map.
+ * 
+ * @author dblock[at]dblock[dot]org
+ */
+public interface Advapi32Lsa extends StdCallLibrary {
+
+    Advapi32Lsa INSTANCE               = (Advapi32Lsa) Native.loadLibrary("advapi32", Advapi32Lsa.class,
+                                               W32APIOptions.DEFAULT_OPTIONS);
+
+    int         POLICY_LOOKUP_NAMES    = 0x00000800;
+
+    int         STATUS_SUCCESS         = 0x00000000;
+    int         STATUS_SOME_NOT_MAPPED = 0x00000107;
+    int         STATUS_NONE_MAPPED     = 0xC0000073;
+
+    /**
+     * A counted UTF-16 string, not necessarily null-terminated.
+     */
+    class LSA_UNICODE_STRING extends Structure {
+
+        public short   Length;
+        public short   MaximumLength;
+        public Pointer Buffer;
+
+        @SuppressWarnings("rawtypes")
+        @Override
+        protected List getFieldOrder() {
+            return Arrays.asList(new String[] { "Length", "MaximumLength", "Buffer" });
+        }
+
+        @Override
+        public String toString() {
+            if (this.Buffer == null) {
+                return "";
+            }
+            // Length is in bytes
+            return new String(this.Buffer.getCharArray(0, (this.Length & 0xFFFF) / 2));
+        }
+    }
+
+    /**
+     * Unused, but must be zeroed.
+     */
+    class LSA_OBJECT_ATTRIBUTES extends Structure {
+
+        public int     Length;
+        public Pointer RootDirectory;
+        public Pointer ObjectName;
+        public int     Attributes;
+        public Pointer SecurityDescriptor;
+        public Pointer SecurityQualityOfService;
+
+        public LSA_OBJECT_ATTRIBUTES() {
+            this.Length = size();
+        }
+
+        @SuppressWarnings("rawtypes")
+        @Override
+        protected List getFieldOrder() {
+            return Arrays.asList(new String[] { "Length", "RootDirectory", "ObjectName", "Attributes",
+                    "SecurityDescriptor", "SecurityQualityOfService" });
+        }
+    }
+
+    /**
+     * A domain referenced by translated names.
+     */
+    class LSA_TRUST_INFORMATION extends Structure {
+
+        public LSA_UNICODE_STRING Name;
+        public Pointer            Sid;
+
+        public LSA_TRUST_INFORMATION() {
+            super();
+        }
+
+        public LSA_TRUST_INFORMATION(final Pointer memory) {
+            super(memory);
+            read();
+        }
+
+        @SuppressWarnings("rawtypes")
+        @Override
+        protected List getFieldOrder() {
+            return Arrays.asList(new String[] { "Name", "Sid" });
+        }
+    }
+
+    /**
+     * The domains referenced by translated names.
+     */
+    class LSA_REFERENCED_DOMAIN_LIST extends Structure {
+
+        public int     Entries;
+        public Pointer Domains;
+
+        public LSA_REFERENCED_DOMAIN_LIST() {
+            super();
+        }
+
+        public LSA_REFERENCED_DOMAIN_LIST(final Pointer memory) {
+            super(memory);
+            read();
+        }
+
+        @SuppressWarnings("rawtypes")
+        @Override
+        protected List getFieldOrder() {
+            return Arrays.asList(new String[] { "Entries", "Domains" });
+        }
+    }
+
+    /**
+     * The name of a SID, and the index of its domain in the referenced domain list or -1.
+     */
+    class LSA_TRANSLATED_NAME extends Structure {
+
+        public int                Use;
+        public LSA_UNICODE_STRING Name;
+        public int                DomainIndex;
+
+        public LSA_TRANSLATED_NAME() {
+            super();
+        }
+
+        public LSA_TRANSLATED_NAME(final Pointer memory) {
+            super(memory);
+            read();
+        }
+
+        @SuppressWarnings("rawtypes")
+        @Override
+        protected List getFieldOrder() {
+            return Arrays.asList(new String[] { "Use", "Name", "DomainIndex" });
+        }
+    }
+
+    /**
+     * Opens a handle to the policy of a system.
+     * 
+     * @param SystemName
+     *            System, null for the local one.
+     * @param ObjectAttributes
+     *            Zeroed attributes.
+     * @param DesiredAccess
+     *            Access mask, eg. POLICY_LOOKUP_NAMES.
+     * @param PolicyHandle
+     *            Receives the policy handle, closed with LsaClose.
+     * @return NTSTATUS.
+     */
+    int LsaOpenPolicy(LSA_UNICODE_STRING SystemName, LSA_OBJECT_ATTRIBUTES ObjectAttributes, int DesiredAccess,
+            HANDLEByReference PolicyHandle);
+
+    /**
+     * Looks up the names of SIDs.
+     * 
+     * @param PolicyHandle
+     *            Policy handle with POLICY_LOOKUP_NAMES access.
+     * @param Count
+     *            Number of SIDs.
+     * @param Sids
+     *            SIDs.
+     * @param ReferencedDomains
+     *            Receives an LSA_REFERENCED_DOMAIN_LIST, freed with LsaFreeMemory.
+     * @param Names
+     *            Receives Count LSA_TRANSLATED_NAMEs, freed with LsaFreeMemory.
+     * @return NTSTATUS, STATUS_SOME_NOT_MAPPED and STATUS_NONE_MAPPED when names could not be found.
+     */
+    int LsaLookupSids(HANDLE PolicyHandle, int Count, Pointer[] Sids, PointerByReference ReferencedDomains,
+            PointerByReference Names);
+
+    /**
+     * Frees memory allocated by the LSA functions.
+     * 
+     * @param Buffer
+     *            Buffer.
+     * @return NTSTATUS.
+     */
+    int LsaFreeMemory(Pointer Buffer);
+
+    /**
+     * Closes a policy handle.
+     * 
+     * @param ObjectHandle
+     *            Policy handle.
+     * @return NTSTATUS.
+     */
+    int LsaClose(HANDLE ObjectHandle);
+
+    /**
+     * Converts an NTSTATUS to a Windows error code.
+     * 
+     * @param Status
+     *            NTSTATUS.
+     * @return Windows error code.
+     */
+    int LsaNtStatusToWinError(int Status);
+}
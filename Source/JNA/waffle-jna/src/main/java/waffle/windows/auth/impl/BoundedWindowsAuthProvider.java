@@ -0,0 +1,415 @@
+/**
+ * Waffle (https://github.com/dblock/waffle)
+ *
+ * Copyright (c) 2010 - 2014 Application Security, Inc.
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors:
+ *     Application Security, Inc.
+ */
+package waffle.windows.auth.impl;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import waffle.windows.auth.IWindowsAuthProvider;
+import waffle.windows.auth.IWindowsIdentity;
+import waffle.windows.auth.IWindowsImpersonationContext;
+import waffle.windows.auth.IWindowsSecurityContext;
+import waffle.windows.auth.WindowsAuthProviderBusyException;
+
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import com.sun.jna.platform.win32.Sspi.CtxtHandle;
+import com.sun.jna.platform.win32.Sspi.SecBufferDesc;
+
+/**
+ * A bulkhead around a Windows auth provider. Calls that may block on a domain controller (AcceptSecurityContext,
+ * QuerySecurityContextToken and LogonUser) run on a bounded pool of threads with a bounded queue, so that a slow
+ * domain controller ties up at most a fixed number of threads instead of the whole container worker pool.
+ * 
+ * <p>
+ * A call is rejected with a {@link WindowsAuthProviderBusyException} when both the pool and the queue are full, or
+ * when it did not complete within the timeout. The native call itself cannot be interrupted: it keeps its thread until
+ * it returns, and a result that arrives after the caller gave up is disposed.
+ * </p>
+ * 
+ * @author dblock[at]dblock[dot]org
+ */
+public class BoundedWindowsAuthProvider extends ForwardingWindowsAuthProvider {
+
+    private static final Logger           LOGGER              = LoggerFactory
+                                                                      .getLogger(BoundedWindowsAuthProvider.class);
+
+    /**
+     * Default Retry-After sent with rejected calls, in seconds.
+     */
+    public static final int               DEFAULT_RETRY_AFTER = 5;
+
+    private final ThreadPoolExecutor      executor;
+    private final BlockingQueue<Runnable> queue;
+    private final long                    timeoutMillis;
+    private final int                     retryAfter;
+    private final AtomicInteger           peakQueueDepth      = new AtomicInteger();
+    private final AtomicLong              completed           = new AtomicLong();
+    private final AtomicLong              rejected            = new AtomicLong();
+    private final AtomicLong              timeouts            = new AtomicLong();
+
+    /**
+     * A bounded auth provider.
+     * 
+     * @param provider
+     *            Windows auth provider to protect.
+     * @param maxConcurrency
+     *            Maximum number of concurrent calls.
+     * @param queueSize
+     *            Maximum number of calls waiting for a thread, 0 to reject as soon as all threads are busy.
+     * @param newTimeoutMillis
+     *            Maximum time a caller waits for a call, including queueing, in milliseconds.
+     */
+    public BoundedWindowsAuthProvider(final IWindowsAuthProvider provider, final int maxConcurrency,
+            final int queueSize, final long newTimeoutMillis) {
+        this(provider, maxConcurrency, queueSize, newTimeoutMillis, DEFAULT_RETRY_AFTER);
+    }
+
+    /**
+     * A bounded auth provider.
+     * 
+     * @param provider
+     *            Windows auth provider to protect.
+     * @param maxConcurrency
+     *            Maximum number of concurrent calls.
+     * @param queueSize
+     *            Maximum number of calls waiting for a thread, 0 to reject as soon as all threads are busy.
+     * @param newTimeoutMillis
+     *            Maximum time a caller waits for a call, including queueing, in milliseconds.
+     * @param newRetryAfter
+     *            Retry-After sent with rejected calls, in seconds.
+     */
+    public BoundedWindowsAuthProvider(final IWindowsAuthProvider provider, final int maxConcurrency,
+            final int queueSize, final long newTimeoutMillis, final int newRetryAfter) {
+        super(provider);
+        if (maxConcurrency <= 0) {
+            throw new IllegalArgumentException("maxConcurrency must be positive: " + maxConcurrency);
+        }
+        this.timeoutMillis = newTimeoutMillis;
+        this.retryAfter = newRetryAfter;
+        this.queue = queueSize > 0 ? new ArrayBlockingQueue<Runnable>(queueSize) : new SynchronousQueue<Runnable>();
+        this.executor = new ThreadPoolExecutor(maxConcurrency, maxConcurrency, 60, TimeUnit.SECONDS, this.queue,
+                new ThreadFactoryBuilder().setNameFormat("waffle-auth-%d").setDaemon(true).build());
+        this.executor.allowCoreThreadTimeOut(true);
+    }
+
+    /**
+     * A call that disposes its result when the caller stopped waiting for it.
+     */
+    private abstract static class BoundedCall<T> implements Callable<T> {
+
+        private final AtomicBoolean claimed = new AtomicBoolean();
+
+        @Override
+        public final T call() {
+            final T result = execute();
+            if (!this.claimed.compareAndSet(false, true)) {
+                abandon(result);
+            }
+            return result;
+        }
+
+        /**
+         * Called by the waiting thread that timed out.
+         * 
+         * @return True if the result, if any, will be disposed by the executing thread.
+         */
+        final boolean giveUp() {
+            return this.claimed.compareAndSet(false, true);
+        }
+
+        abstract T execute();
+
+        abstract void abandon(T result);
+    }
+
+    private <T> T call(final BoundedCall<T> call, final String name) {
+        final Future<T> future;
+        try {
+            future = this.executor.submit(call);
+        } catch (RejectedExecutionException e) {
+            this.rejected.incrementAndGet();
+            LOGGER.warn("{} rejected, {} call(s) active, {} queued", name,
+                    Integer.valueOf(this.executor.getActiveCount()), Integer.valueOf(this.queue.size()));
+            throw new WindowsAuthProviderBusyException(name + " rejected: too many concurrent calls", this.retryAfter);
+        }
+        updatePeakQueueDepth();
+        try {
+            final T result = getResult(future, call, name);
+            this.completed.incrementAndGet();
+            return result;
+        } catch (ExecutionException e) {
+            final Throwable cause = e.getCause();
+            if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            } else if (cause instanceof Error) {
+                throw (Error) cause;
+            }
+            throw new RuntimeException(cause);
+        }
+    }
+
+    private <T> T getResult(final Future<T> future, final BoundedCall<T> call, final String name)
+            throws ExecutionException {
+        boolean interrupted = false;
+        try {
+            while (true) {
+                try {
+                    return future.get(this.timeoutMillis, TimeUnit.MILLISECONDS);
+                } catch (InterruptedException e) {
+                    interrupted = true;
+                } catch (TimeoutException e) {
+                    if (call.giveUp()) {
+                        future.cancel(false);
+                        this.timeouts.incrementAndGet();
+                        LOGGER.warn("{} timed out after {} ms", name, Long.valueOf(this.timeoutMillis));
+                        throw new WindowsAuthProviderBusyException(name + " timed out", this.retryAfter);
+                    }
+                    // completed just in time, the next get() returns immediately
+                } catch (CancellationException e) {
+                    throw new WindowsAuthProviderBusyException(name + " cancelled", this.retryAfter);
+                }
+            }
+        } finally {
+            if (interrupted) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    private void updatePeakQueueDepth() {
+        final int depth = this.queue.size();
+        int peak = this.peakQueueDepth.get();
+        while (depth > peak && !this.peakQueueDepth.compareAndSet(peak, depth)) {
+            peak = this.peakQueueDepth.get();
+        }
+    }
+
+    private static void disposeIdentity(final IWindowsIdentity identity) {
+        if (identity != null) {
+            identity.dispose();
+        }
+    }
+
+    @Override
+    public IWindowsSecurityContext acceptSecurityToken(final String connectionId, final byte[] token,
+            final String securityPackage) {
+        final IWindowsSecurityContext securityContext = call(new BoundedCall<IWindowsSecurityContext>() {
+            @Override
+            IWindowsSecurityContext execute() {
+                return getAuth().acceptSecurityToken(connectionId, token, securityPackage);
+            }
+
+            @Override
+            void abandon(final IWindowsSecurityContext result) {
+                // a context that needs to continue is owned by the continue-context store
+                if (result != null && !result.isContinue()) {
+                    result.dispose();
+                }
+            }
+        }, "AcceptSecurityContext");
+        return securityContext == null ? null : new BoundedSecurityContext(securityContext);
+    }
+
+    @Override
+    public IWindowsIdentity logonDomainUser(final String username, final String domain, final String password) {
+        return call(new BoundedCall<IWindowsIdentity>() {
+            @Override
+            IWindowsIdentity execute() {
+                return getAuth().logonDomainUser(username, domain, password);
+            }
+
+            @Override
+            void abandon(final IWindowsIdentity result) {
+                disposeIdentity(result);
+            }
+        }, "LogonUser");
+    }
+
+    @Override
+    public IWindowsIdentity logonDomainUserEx(final String username, final String domain, final String password,
+            final int logonType, final int logonProvider) {
+        return call(new BoundedCall<IWindowsIdentity>() {
+            @Override
+            IWindowsIdentity execute() {
+                return getAuth().logonDomainUserEx(username, domain, password, logonType, logonProvider);
+            }
+
+            @Override
+            void abandon(final IWindowsIdentity result) {
+                disposeIdentity(result);
+            }
+        }, "LogonUser");
+    }
+
+    @Override
+    public IWindowsIdentity logonUser(final String username, final String password) {
+        return call(new BoundedCall<IWindowsIdentity>() {
+            @Override
+            IWindowsIdentity execute() {
+                return getAuth().logonUser(username, password);
+            }
+
+            @Override
+            void abandon(final IWindowsIdentity result) {
+                disposeIdentity(result);
+            }
+        }, "LogonUser");
+    }
+
+    /**
+     * Stop the worker threads.
+     */
+    @Override
+    protected void disposeProvider() {
+        this.executor.shutdownNow();
+    }
+
+    /**
+     * Number of calls currently executing.
+     * 
+     * @return Number of active calls.
+     */
+    public int getActiveCount() {
+        return this.executor.getActiveCount();
+    }
+
+    /**
+     * Number of calls waiting for a thread.
+     * 
+     * @return Queue depth.
+     */
+    public int getQueueDepth() {
+        return this.queue.size();
+    }
+
+    /**
+     * Largest queue depth observed.
+     * 
+     * @return Peak queue depth.
+     */
+    public int getPeakQueueDepth() {
+        return this.peakQueueDepth.get();
+    }
+
+    /**
+     * Number of calls that returned a result or a provider error in time.
+     * 
+     * @return Number of completed calls.
+     */
+    public long getCompletedCount() {
+        return this.completed.get();
+    }
+
+    /**
+     * Number of calls rejected because all threads and queue slots were taken.
+     * 
+     * @return Number of rejected calls.
+     */
+    public long getRejectedCount() {
+        return this.rejected.get();
+    }
+
+    /**
+     * Number of calls the caller stopped waiting for.
+     * 
+     * @return Number of timed out calls.
+     */
+    public long getTimeoutCount() {
+        return this.timeouts.get();
+    }
+
+    /**
+     * A security context whose identity is queried through the bulkhead.
+     */
+    private class BoundedSecurityContext implements IWindowsSecurityContext {
+
+        private final IWindowsSecurityContext securityContext;
+
+        BoundedSecurityContext(final IWindowsSecurityContext newSecurityContext) {
+            this.securityContext = newSecurityContext;
+        }
+
+        @Override
+        public String getSecurityPackage() {
+            return this.securityContext.getSecurityPackage();
+        }
+
+        @Override
+        public String getPrincipalName() {
+            return this.securityContext.getPrincipalName();
+        }
+
+        @Override
+        public byte[] getToken() {
+            return this.securityContext.getToken();
+        }
+
+        @Override
+        public boolean isContinue() {
+            return this.securityContext.isContinue();
+        }
+
+        @Override
+        public IWindowsIdentity getIdentity() {
+            return call(new BoundedCall<IWindowsIdentity>() {
+                @Override
+                IWindowsIdentity execute() {
+                    return BoundedSecurityContext.this.securityContext.getIdentity();
+                }
+
+                @Override
+                void abandon(final IWindowsIdentity result) {
+                    disposeIdentity(result);
+                }
+            }, "QuerySecurityContextToken");
+        }
+
+        @Override
+        public CtxtHandle getHandle() {
+            return this.securityContext.getHandle();
+        }
+
+        @Override
+        public void initialize(final CtxtHandle continueCtx, final SecBufferDesc continueToken,
+                final String targetName) {
+            this.securityContext.initialize(continueCtx, continueToken, targetName);
+        }
+
+        @Override
+        public IWindowsImpersonationContext impersonate() {
+            // impersonation applies to the calling thread
+            return this.securityContext.impersonate();
+        }
+
+        @Override
+        public void dispose() {
+            this.securityContext.dispose();
+        }
+    }
+}
@@ -0,0 +1,400 @@
+/**
+ * Waffle (https://github.com/dblock/waffle)
+ *
+ * Copyright (c) 2010 - 2014 Application Security, Inc.
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors:
+ *     Application Security, Inc.
+ */
+package waffle.windows.auth.impl;
+
+import java.security.GeneralSecurityException;
+import java.security.SecureRandom;
+import java.util.Arrays;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.crypto.SecretKeyFactory;
+import javax.crypto.spec.PBEKeySpec;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import waffle.windows.auth.IWindowsAccount;
+import waffle.windows.auth.IWindowsAuthProvider;
+import waffle.windows.auth.IWindowsGroupSource;
+import waffle.windows.auth.IWindowsIdentity;
+import waffle.windows.auth.IWindowsImpersonationContext;
+import waffle.windows.auth.Sid;
+import waffle.windows.auth.WindowsGroupFilter;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.RemovalListener;
+import com.google.common.cache.RemovalNotification;
+import com.google.common.io.BaseEncoding;
+import com.google.common.util.concurrent.UncheckedExecutionException;
+
+/**
+ * A Windows auth provider that remembers successful username/password logons for a short time, so that clients
+ * sending Basic credentials with every request do not cause a LogonUser call, and a domain controller round trip, per
+ * request.
+ * 
+ * <p>
+ * Entries are keyed by a salted PBKDF2 hash of the logon parameters; neither passwords nor reversible hashes of them
+ * are kept. The salt is random and lives only as long as the provider. Concurrent logons with identical credentials
+ * are coalesced into a single native call. Failed logons are never cached.
+ * </p>
+ * 
+ * <p>
+ * The cached identity, and its logon token, is shared by all callers within the time to live. Each caller receives
+ * its own view of it, and the token is closed once it was evicted and every view was disposed.
+ * </p>
+ * 
+ * @author dblock[at]dblock[dot]org
+ */
+public class CachingWindowsAuthProvider extends ForwardingWindowsAuthProvider {
+
+    private static final Logger                 LOGGER             = LoggerFactory
+                                                                           .getLogger(CachingWindowsAuthProvider.class);
+
+    /**
+     * Default time to live of a successful logon, in seconds.
+     */
+    public static final int                     DEFAULT_TTL        = 60;
+
+    /**
+     * Default maximum number of cached logons.
+     */
+    public static final int                     DEFAULT_MAX_SIZE   = 1000;
+
+    /**
+     * Default number of PBKDF2 iterations used to hash the credentials.
+     */
+    public static final int                     DEFAULT_ITERATIONS = 1000;
+
+    private static final String                 KEY_ALGORITHM      = "PBKDF2WithHmacSHA1";
+    private static final int                    KEY_LENGTH         = 160;
+    private static final int                    SALT_LENGTH        = 16;
+
+    private final Cache<String, CachedIdentity> identities;
+    private final SecretKeyFactory              keyFactory;
+    private final byte[]                        salt               = new byte[SALT_LENGTH];
+    private final int                           iterations;
+    private final AtomicLong                    requests           = new AtomicLong();
+    private final AtomicLong                    logons             = new AtomicLong();
+
+    /**
+     * A caching auth provider.
+     * 
+     * @param provider
+     *            Windows auth provider to forward logons to.
+     * @param ttlSeconds
+     *            Time to live of a successful logon, in seconds.
+     * @param maxSize
+     *            Maximum number of cached logons.
+     */
+    public CachingWindowsAuthProvider(final IWindowsAuthProvider provider, final int ttlSeconds, final int maxSize) {
+        this(provider, ttlSeconds, maxSize, DEFAULT_ITERATIONS);
+    }
+
+    /**
+     * A caching auth provider.
+     * 
+     * @param provider
+     *            Windows auth provider to forward logons to.
+     * @param ttlSeconds
+     *            Time to live of a successful logon, in seconds.
+     * @param maxSize
+     *            Maximum number of cached logons.
+     * @param newIterations
+     *            Number of PBKDF2 iterations used to hash the credentials.
+     */
+    public CachingWindowsAuthProvider(final IWindowsAuthProvider provider, final int ttlSeconds, final int maxSize,
+            final int newIterations) {
+        super(provider);
+        this.iterations = newIterations;
+        try {
+            this.keyFactory = SecretKeyFactory.getInstance(KEY_ALGORITHM);
+        } catch (GeneralSecurityException e) {
+            throw new RuntimeException(e);
+        }
+        new SecureRandom().nextBytes(this.salt);
+        this.identities = CacheBuilder.newBuilder().expireAfterWrite(ttlSeconds, TimeUnit.SECONDS)
+                .maximumSize(maxSize).removalListener(new RemovalListener<String, CachedIdentity>() {
+                    @Override
+                    public void onRemoval(final RemovalNotification<String, CachedIdentity> notification) {
+                        notification.getValue().release();
+                    }
+                }).build();
+    }
+
+    @Override
+    public IWindowsIdentity logonUser(final String username, final String password) {
+        return logon(new Callable<IWindowsIdentity>() {
+            @Override
+            public IWindowsIdentity call() {
+                return getAuth().logonUser(username, password);
+            }
+        }, password, "U", username);
+    }
+
+    @Override
+    public IWindowsIdentity logonDomainUser(final String username, final String domain, final String password) {
+        return logon(new Callable<IWindowsIdentity>() {
+            @Override
+            public IWindowsIdentity call() {
+                return getAuth().logonDomainUser(username, domain, password);
+            }
+        }, password, "D", username, domain);
+    }
+
+    @Override
+    public IWindowsIdentity logonDomainUserEx(final String username, final String domain, final String password,
+            final int logonType, final int logonProvider) {
+        return logon(new Callable<IWindowsIdentity>() {
+            @Override
+            public IWindowsIdentity call() {
+                return getAuth().logonDomainUserEx(username, domain, password, logonType, logonProvider);
+            }
+        }, password, "X", username, domain, String.valueOf(logonType), String.valueOf(logonProvider));
+    }
+
+    private IWindowsIdentity logon(final Callable<IWindowsIdentity> logon, final String password,
+            final String... parameters) {
+        this.requests.incrementAndGet();
+        final String key = getKey(password, parameters);
+        while (true) {
+            final CachedIdentity cached;
+            try {
+                cached = this.identities.get(key, new Callable<CachedIdentity>() {
+                    @Override
+                    public CachedIdentity call() throws Exception {
+                        CachingWindowsAuthProvider.this.logons.incrementAndGet();
+                        return new CachedIdentity(logon.call());
+                    }
+                });
+            } catch (ExecutionException e) {
+                throw new RuntimeException(e.getCause());
+            } catch (UncheckedExecutionException e) {
+                final Throwable cause = e.getCause();
+                throw cause instanceof RuntimeException ? (RuntimeException) cause : e;
+            }
+            final IWindowsIdentity identity = cached.acquire();
+            if (identity != null) {
+                return identity;
+            }
+            // evicted and closed between the lookup and acquire
+            this.identities.asMap().remove(key, cached);
+        }
+    }
+
+    /**
+     * Cache key of a logon: a salted hash of the password and the other logon parameters.
+     * 
+     * @param password
+     *            Password.
+     * @param parameters
+     *            Logon method and parameters, such as username and domain.
+     * @return Cache key.
+     */
+    String getKey(final String password, final String... parameters) {
+        final StringBuilder sb = new StringBuilder();
+        for (String parameter : parameters) {
+            sb.append(parameter == null ? "" : parameter).append('\0');
+        }
+        final char[] chars = new char[sb.length() + (password == null ? 0 : password.length())];
+        sb.getChars(0, sb.length(), chars, 0);
+        if (password != null) {
+            password.getChars(0, password.length(), chars, sb.length());
+        }
+        final PBEKeySpec spec = new PBEKeySpec(chars, this.salt, this.iterations, KEY_LENGTH);
+        try {
+            return BaseEncoding.base64().encode(this.keyFactory.generateSecret(spec).getEncoded());
+        } catch (GeneralSecurityException e) {
+            throw new RuntimeException(e);
+        } finally {
+            spec.clearPassword();
+            Arrays.fill(chars, '\0');
+        }
+    }
+
+    /**
+     * Forget all cached logons, eg. after a password change that should take effect immediately.
+     */
+    public void invalidateAll() {
+        this.identities.invalidateAll();
+    }
+
+    /**
+     * Number of cached logons.
+     * 
+     * @return Number of entries.
+     */
+    public long size() {
+        return this.identities.size();
+    }
+
+    /**
+     * Number of logons served from the cache.
+     * 
+     * @return Number of cache hits.
+     */
+    public long getHitCount() {
+        return this.requests.get() - this.logons.get();
+    }
+
+    /**
+     * Number of logons forwarded to the underlying provider.
+     * 
+     * @return Number of logons.
+     */
+    public long getLogonCount() {
+        return this.logons.get();
+    }
+
+    /**
+     * Forget all cached logons.
+     */
+    @Override
+    protected void disposeProvider() {
+        this.identities.invalidateAll();
+    }
+
+    /**
+     * A cached logon, shared by the callers that obtained it. The identity is disposed once it is no longer cached and
+     * no caller holds it.
+     */
+    private static class CachedIdentity {
+
+        private final IWindowsIdentity identity;
+        // the cache holds one reference
+        private final AtomicInteger    references = new AtomicInteger(1);
+
+        CachedIdentity(final IWindowsIdentity newIdentity) {
+            this.identity = newIdentity;
+        }
+
+        IWindowsIdentity acquire() {
+            int count = this.references.get();
+            while (count > 0) {
+                if (this.references.compareAndSet(count, count + 1)) {
+                    return new SharedIdentity(this);
+                }
+                count = this.references.get();
+            }
+            return null;
+        }
+
+        void release() {
+            if (this.references.decrementAndGet() == 0) {
+                LOGGER.debug("disposing cached logon");
+                this.identity.dispose();
+            }
+        }
+    }
+
+    /**
+     * A caller's view of a cached logon. Disposing it releases the caller's reference.
+     */
+    private static class SharedIdentity implements IWindowsIdentity, IWindowsGroupSource {
+
+        private final CachedIdentity cached;
+        private final AtomicBoolean  disposed = new AtomicBoolean();
+
+        SharedIdentity(final CachedIdentity newCached) {
+            this.cached = newCached;
+        }
+
+        @Override
+        public String getSidString() {
+            return this.cached.identity.getSidString();
+        }
+
+        @Override
+        public Sid getSecurityIdentifier() {
+            return this.cached.identity.getSecurityIdentifier();
+        }
+
+        @Override
+        public byte[] getSid() {
+            return this.cached.identity.getSid();
+        }
+
+        @Override
+        public String getFqn() {
+            return this.cached.identity.getFqn();
+        }
+
+        @Override
+        public IWindowsAccount[] getGroups() {
+            return this.cached.identity.getGroups();
+        }
+
+        @Override
+        public IWindowsAccount[] getGroups(final WindowsGroupFilter filter) {
+            if (this.cached.identity instanceof IWindowsGroupSource) {
+                return ((IWindowsGroupSource) this.cached.identity).getGroups(filter);
+            }
+            return this.cached.identity.getGroups();
+        }
+
+        @Override
+        public IWindowsAccount[] getGroupSids(final WindowsGroupFilter filter) {
+            if (this.cached.identity instanceof IWindowsGroupSource) {
+                return ((IWindowsGroupSource) this.cached.identity).getGroupSids(filter);
+            }
+            return this.cached.identity.getGroups();
+        }
+
+        @Override
+        public IWindowsGroupSource detach() {
+            if (this.cached.identity instanceof IWindowsGroupSource) {
+                return ((IWindowsGroupSource) this.cached.identity).detach();
+            }
+            final IWindowsAccount[] groups = this.cached.identity.getGroups();
+            return new IWindowsGroupSource() {
+                @Override
+                public IWindowsAccount[] getGroups(final WindowsGroupFilter filter) {
+                    return groups.clone();
+                }
+
+                @Override
+                public IWindowsAccount[] getGroupSids(final WindowsGroupFilter filter) {
+                    return groups.clone();
+                }
+
+                @Override
+                public IWindowsGroupSource detach() {
+                    return this;
+                }
+            };
+        }
+
+        @Override
+        public IWindowsImpersonationContext impersonate() {
+            return this.cached.identity.impersonate();
+        }
+
+        @Override
+        public void dispose() {
+            if (this.disposed.compareAndSet(false, true)) {
+                this.cached.release();
+            }
+        }
+
+        @Override
+        public boolean isGuest() {
+            return this.cached.identity.isGuest();
+        }
+    }
+}
@@ -0,0 +1,138 @@
+/**
+ * Waffle (https://github.com/dblock/waffle)
+ *
+ * Copyright (c) 2010 - 2014 Application Security, Inc.
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors:
+ *     Application Security, Inc.
+ */
+package waffle.windows.auth.impl;
+
+import waffle.windows.auth.IWindowsAccount;
+import waffle.windows.auth.IWindowsAuthProvider;
+import waffle.windows.auth.IWindowsComputer;
+import waffle.windows.auth.IWindowsDomain;
+import waffle.windows.auth.IWindowsIdentity;
+import waffle.windows.auth.IWindowsSecurityContext;
+
+/**
+ * A Windows auth provider that forwards all calls to another provider. Base class of the providers that add a concern
+ * (concurrency limits, caching) around the native one.
+ * 
+ * @author dblock[at]dblock[dot]org
+ */
+public abstract class ForwardingWindowsAuthProvider implements IWindowsAuthProvider {
+
+    private final IWindowsAuthProvider auth;
+
+    /**
+     * A forwarding auth provider.
+     * 
+     * @param provider
+     *            Windows auth provider to forward calls to.
+     */
+    protected ForwardingWindowsAuthProvider(final IWindowsAuthProvider provider) {
+        this.auth = provider;
+    }
+
+    /**
+     * Dispose a Windows auth provider and the providers it forwards to, when they hold resources.
+     * 
+     * @param provider
+     *            Windows auth provider, may be null.
+     */
+    public static void dispose(final IWindowsAuthProvider provider) {
+        dispose(provider, null);
+    }
+
+    /**
+     * Dispose a Windows auth provider and the providers it forwards to, when they hold resources, stopping at a
+     * provider that belongs to someone else.
+     * 
+     * @param provider
+     *            Windows auth provider, may be null.
+     * @param keep
+     *            Provider that is neither disposed nor descended into, null to dispose the whole chain.
+     */
+    public static void dispose(final IWindowsAuthProvider provider, final IWindowsAuthProvider keep) {
+        IWindowsAuthProvider current = provider;
+        while (current != keep && current instanceof ForwardingWindowsAuthProvider) {
+            final ForwardingWindowsAuthProvider forwarding = (ForwardingWindowsAuthProvider) current;
+            forwarding.disposeProvider();
+            current = forwarding.getAuth();
+        }
+        if (current != keep && current instanceof WindowsAuthProviderImpl) {
+            ((WindowsAuthProviderImpl) current).dispose();
+        }
+    }
+
+    @Override
+    public IWindowsSecurityContext acceptSecurityToken(final String connectionId, final byte[] token,
+            final String securityPackage) {
+        return this.auth.acceptSecurityToken(connectionId, token, securityPackage);
+    }
+
+    @Override
+    public IWindowsComputer getCurrentComputer() {
+        return this.auth.getCurrentComputer();
+    }
+
+    @Override
+    public IWindowsDomain[] getDomains() {
+        return this.auth.getDomains();
+    }
+
+    @Override
+    public IWindowsIdentity logonDomainUser(final String username, final String domain, final String password) {
+        return this.auth.logonDomainUser(username, domain, password);
+    }
+
+    @Override
+    public IWindowsIdentity logonDomainUserEx(final String username, final String domain, final String password,
+            final int logonType, final int logonProvider) {
+        return this.auth.logonDomainUserEx(username, domain, password, logonType, logonProvider);
+    }
+
+    @Override
+    public IWindowsIdentity logonUser(final String username, final String password) {
+        return this.auth.logonUser(username, password);
+    }
+
+    @Override
+    public IWindowsAccount lookupAccount(final String username) {
+        return this.auth.lookupAccount(username);
+    }
+
+    @Override
+    public void resetSecurityToken(final String connectionId) {
+        this.auth.resetSecurityToken(connectionId);
+    }
+
+    /**
+     * The Windows auth provider calls are forwarded to.
+     * 
+     * @return Windows auth provider.
+     */
+    public IWindowsAuthProvider getAuth() {
+        return this.auth;
+    }
+
+    /**
+     * Free the resources held by this provider and by the provider calls are forwarded to.
+     */
+    public void dispose() {
+        dispose(this, null);
+    }
+
+    /**
+     * Free the resources held by this provider alone, not by the provider calls are forwarded to.
+     */
+    protected void disposeProvider() {
+        // nothing to free
+    }
+}
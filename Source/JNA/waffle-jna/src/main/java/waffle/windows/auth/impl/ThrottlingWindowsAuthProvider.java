@@ -0,0 +1,327 @@
+/**
+ * Waffle (https://github.com/dblock/waffle)
+ *
+ * Copyright (c) 2010 - 2014 Application Security, Inc.
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors:
+ *     Application Security, Inc.
+ */
+package waffle.windows.auth.impl;
+
+import java.util.Locale;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import waffle.windows.auth.IWindowsAuthProvider;
+import waffle.windows.auth.IWindowsIdentity;
+import waffle.windows.auth.WindowsLogonThrottledException;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.sun.jna.platform.win32.W32Errors;
+import com.sun.jna.platform.win32.Win32Exception;
+import com.sun.jna.platform.win32.WinError;
+import com.sun.jna.platform.win32.WinNT.HRESULT;
+
+/**
+ * A Windows auth provider that stops forwarding username/password logons for a user, or from a client, that failed to
+ * log on too many times recently. Repeated bad credentials from a misconfigured client or a password spray are then
+ * rejected without a domain controller round trip and without driving accounts into lockout.
+ * 
+ * <p>
+ * Failures are counted in a sliding window, per user and per source. The source is the client address of the request
+ * being processed, set with {@link #setSource(String)} by the adapter handling the request; logons without a source
+ * are only throttled per user. A successful logon clears the user's failures, but not the source's.
+ * </p>
+ * 
+ * <p>
+ * Only rejected credentials are counted as failures: bad user names or passwords and account restrictions. Other
+ * errors, eg. no domain controller available, are passed on without locking out users and sources.
+ * </p>
+ * 
+ * @author dblock[at]dblock[dot]org
+ */
+public class ThrottlingWindowsAuthProvider extends ForwardingWindowsAuthProvider {
+
+    private static final Logger                LOGGER                      = LoggerFactory
+                                                                                     .getLogger(ThrottlingWindowsAuthProvider.class);
+
+    /**
+     * Default number of failed logons of a user within the window after which logons are rejected.
+     */
+    public static final int                    DEFAULT_MAX_FAILURES        = 5;
+
+    /**
+     * Default number of failed logons from a source within the window after which logons are rejected.
+     */
+    public static final int                    DEFAULT_MAX_SOURCE_FAILURES = 20;
+
+    /**
+     * Default length of the sliding window, in seconds.
+     */
+    public static final int                    DEFAULT_WINDOW              = 300;
+
+    private static final int                   MAX_SIZE                    = 10000;
+
+    private static final ThreadLocal<String>   SOURCE                      = new ThreadLocal<String>();
+
+    private final Cache<String, FailureWindow> users;
+    private final Cache<String, FailureWindow> sources;
+    private final int                          maxFailures;
+    private final int                          maxSourceFailures;
+    private final long                         windowMillis;
+    private final AtomicLong                   failures                    = new AtomicLong();
+    private final AtomicLong                   rejected                    = new AtomicLong();
+
+    /**
+     * A throttling auth provider.
+     * 
+     * @param provider
+     *            Windows auth provider to forward logons to.
+     * @param newMaxFailures
+     *            Number of failed logons of a user within the window after which logons are rejected, 0 for no limit.
+     * @param newMaxSourceFailures
+     *            Number of failed logons from a source within the window after which logons are rejected, 0 for no
+     *            limit.
+     * @param windowSeconds
+     *            Length of the sliding window, in seconds.
+     */
+    public ThrottlingWindowsAuthProvider(final IWindowsAuthProvider provider, final int newMaxFailures,
+            final int newMaxSourceFailures, final int windowSeconds) {
+        super(provider);
+        this.maxFailures = newMaxFailures;
+        this.maxSourceFailures = newMaxSourceFailures;
+        this.windowMillis = TimeUnit.SECONDS.toMillis(windowSeconds);
+        this.users = CacheBuilder.newBuilder().expireAfterAccess(windowSeconds, TimeUnit.SECONDS)
+                .maximumSize(MAX_SIZE).build();
+        this.sources = CacheBuilder.newBuilder().expireAfterAccess(windowSeconds, TimeUnit.SECONDS)
+                .maximumSize(MAX_SIZE).build();
+    }
+
+    /**
+     * Set the source, typically the client address, of the logons made by the current thread.
+     * 
+     * @param source
+     *            Source, or null to clear it.
+     */
+    public static void setSource(final String source) {
+        if (source == null) {
+            SOURCE.remove();
+        } else {
+            SOURCE.set(source);
+        }
+    }
+
+    /**
+     * The source of the logons made by the current thread.
+     * 
+     * @return Source or null.
+     */
+    public static String getSource() {
+        return SOURCE.get();
+    }
+
+    @Override
+    public IWindowsIdentity logonUser(final String username, final String password) {
+        final String user = toUserKey(null, username);
+        final String source = SOURCE.get();
+        checkThrottled(user, source);
+        try {
+            return onSuccess(getAuth().logonUser(username, password), user);
+        } catch (RuntimeException e) {
+            onFailure(e, user, source);
+            throw e;
+        }
+    }
+
+    @Override
+    public IWindowsIdentity logonDomainUser(final String username, final String domain, final String password) {
+        final String user = toUserKey(domain, username);
+        final String source = SOURCE.get();
+        checkThrottled(user, source);
+        try {
+            return onSuccess(getAuth().logonDomainUser(username, domain, password), user);
+        } catch (RuntimeException e) {
+            onFailure(e, user, source);
+            throw e;
+        }
+    }
+
+    @Override
+    public IWindowsIdentity logonDomainUserEx(final String username, final String domain, final String password,
+            final int logonType, final int logonProvider) {
+        final String user = toUserKey(domain, username);
+        final String source = SOURCE.get();
+        checkThrottled(user, source);
+        try {
+            return onSuccess(getAuth().logonDomainUserEx(username, domain, password, logonType, logonProvider), user);
+        } catch (RuntimeException e) {
+            onFailure(e, user, source);
+            throw e;
+        }
+    }
+
+    private static String toUserKey(final String domain, final String username) {
+        final String user = domain == null ? String.valueOf(username) : domain + "\\" + username;
+        return user.toLowerCase(Locale.ENGLISH);
+    }
+
+    private void checkThrottled(final String user, final String source) {
+        final long now = System.currentTimeMillis();
+        long blockedUntil = getBlockedUntil(this.users, user, now);
+        if (source != null) {
+            blockedUntil = Math.max(blockedUntil, getBlockedUntil(this.sources, source, now));
+        }
+        if (blockedUntil > now) {
+            this.rejected.incrementAndGet();
+            LOGGER.warn("logon throttled: {} from {}", user, source);
+            final int retryAfter = (int) TimeUnit.MILLISECONDS.toSeconds(blockedUntil - now + 999);
+            throw new WindowsLogonThrottledException("Too many failed logons: " + user, retryAfter);
+        }
+    }
+
+    private long getBlockedUntil(final Cache<String, FailureWindow> windows, final String key, final long now) {
+        final FailureWindow window = windows.getIfPresent(key);
+        return window == null ? 0 : window.getBlockedUntil(now, this.windowMillis);
+    }
+
+    private IWindowsIdentity onSuccess(final IWindowsIdentity identity, final String user) {
+        this.users.invalidate(user);
+        return identity;
+    }
+
+    private void onFailure(final RuntimeException e, final String user, final String source) {
+        if (!isCredentialFailure(e)) {
+            // an infrastructure error or a busy provider, not a failed logon
+            LOGGER.debug("logon error not counted as a failure: {}", e.getMessage());
+            return;
+        }
+        this.failures.incrementAndGet();
+        final long now = System.currentTimeMillis();
+        if (this.maxFailures > 0) {
+            addFailure(this.users, user, this.maxFailures, now);
+        }
+        if (source != null && this.maxSourceFailures > 0) {
+            addFailure(this.sources, source, this.maxSourceFailures, now);
+        }
+    }
+
+    /**
+     * Returns whether a logon failed because the credentials were rejected.
+     * 
+     * @param e
+     *            Logon error.
+     * @return True for a bad user name or password, or an account restriction.
+     */
+    static boolean isCredentialFailure(final RuntimeException e) {
+        if (!(e instanceof Win32Exception)) {
+            return false;
+        }
+        final HRESULT hr = ((Win32Exception) e).getHR();
+        if (hr == null) {
+            return false;
+        }
+        final int code = hr.intValue();
+        return code == W32Errors.HRESULT_FROM_WIN32(WinError.ERROR_LOGON_FAILURE).intValue()
+                || code == W32Errors.HRESULT_FROM_WIN32(WinError.ERROR_ACCOUNT_RESTRICTION).intValue()
+                || code == WinError.SEC_E_LOGON_DENIED;
+    }
+
+    private static void addFailure(final Cache<String, FailureWindow> windows, final String key, final int max,
+            final long now) {
+        FailureWindow window = windows.getIfPresent(key);
+        if (window == null) {
+            window = new FailureWindow(max);
+            final FailureWindow existing = windows.asMap().putIfAbsent(key, window);
+            if (existing != null) {
+                window = existing;
+            }
+        }
+        window.add(now);
+    }
+
+    /**
+     * Forget all failed logons, eg. after an account was unlocked.
+     */
+    public void reset() {
+        this.users.invalidateAll();
+        this.sources.invalidateAll();
+    }
+
+    /**
+     * Number of failed logons forwarded to the underlying provider.
+     * 
+     * @return Number of failures.
+     */
+    public long getFailureCount() {
+        return this.failures.get();
+    }
+
+    /**
+     * Number of logons rejected without being forwarded.
+     * 
+     * @return Number of rejected logons.
+     */
+    public long getRejectedCount() {
+        return this.rejected.get();
+    }
+
+    /**
+     * Number of users with recent failed logons.
+     * 
+     * @return Number of users.
+     */
+    public long getUserCount() {
+        return this.users.size();
+    }
+
+    /**
+     * Number of sources with recent failed logons.
+     * 
+     * @return Number of sources.
+     */
+    public long getSourceCount() {
+        return this.sources.size();
+    }
+
+    /**
+     * The times of the most recent failures of a user or source, as many as the limit.
+     */
+    private static class FailureWindow {
+
+        private final long[] times;
+        private int          next;
+        private int          count;
+
+        FailureWindow(final int max) {
+            this.times = new long[max];
+        }
+
+        synchronized void add(final long now) {
+            this.times[this.next] = now;
+            this.next = (this.next + 1) % this.times.length;
+            if (this.count < this.times.length) {
+                this.count++;
+            }
+        }
+
+        /**
+         * Once the limit was reached, logons are rejected until the oldest of the recorded failures leaves the window.
+         */
+        synchronized long getBlockedUntil(final long now, final long windowMillis) {
+            if (this.count < this.times.length) {
+                return 0;
+            }
+            final long blockedUntil = this.times[this.next] + windowMillis;
+            return blockedUntil > now ? blockedUntil : 0;
+        }
+    }
+}
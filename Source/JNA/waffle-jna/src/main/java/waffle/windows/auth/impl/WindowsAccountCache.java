@@ -0,0 +1,591 @@
+/**
+ * Waffle (https://github.com/dblock/waffle)
+ *
+ * Copyright (c) 2010 - 2014 Application Security, Inc.
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors:
+ *     Application Security, Inc.
+ */
+package waffle.windows.auth.impl;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import waffle.windows.auth.Sid;
+import waffle.windows.auth.impl.Advapi32Lsa.LSA_OBJECT_ATTRIBUTES;
+import waffle.windows.auth.impl.Advapi32Lsa.LSA_REFERENCED_DOMAIN_LIST;
+import waffle.windows.auth.impl.Advapi32Lsa.LSA_TRANSLATED_NAME;
+import waffle.windows.auth.impl.Advapi32Lsa.LSA_TRUST_INFORMATION;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.util.concurrent.AbstractFuture;
+import com.google.common.util.concurrent.Uninterruptibles;
+import com.google.common.util.concurrent.UncheckedExecutionException;
+import com.sun.jna.Memory;
+import com.sun.jna.Pointer;
+import com.sun.jna.platform.win32.Advapi32;
+import com.sun.jna.platform.win32.Advapi32Util;
+import com.sun.jna.platform.win32.Advapi32Util.Account;
+import com.sun.jna.platform.win32.Kernel32;
+import com.sun.jna.platform.win32.W32Errors;
+import com.sun.jna.platform.win32.Win32Exception;
+import com.sun.jna.platform.win32.WinNT;
+import com.sun.jna.platform.win32.WinNT.HANDLE;
+import com.sun.jna.platform.win32.WinNT.HANDLEByReference;
+import com.sun.jna.platform.win32.WinNT.HRESULT;
+import com.sun.jna.platform.win32.WinNT.SID_AND_ATTRIBUTES;
+import com.sun.jna.platform.win32.WinNT.SID_NAME_USE;
+import com.sun.jna.ptr.IntByReference;
+import com.sun.jna.ptr.PointerByReference;
+
+/**
+ * A process-wide cache of account lookups, by SID (LsaLookupSids) and by name (LookupAccountName).
+ * 
+ * <p>
+ * Group SIDs are shared by most users, so resolving a token's groups through this cache costs one LSA lookup per
+ * distinct SID per TTL rather than one per group per logon, and the SIDs of a token that are not cached are resolved
+ * together with a single LsaLookupSids call. SIDs and names that cannot be resolved are cached too, for a shorter time.
+ * Concurrent lookups of the same key wait for a single load.
+ * </p>
+ * 
+ * @author dblock[at]dblock[dot]org
+ */
+public class WindowsAccountCache {
+
+    /**
+     * Default time an account stays cached, in seconds.
+     */
+    public static final int                            DEFAULT_TTL          = 600;
+
+    /**
+     * Default time an unresolvable SID or name stays cached, in seconds.
+     */
+    public static final int                            DEFAULT_NEGATIVE_TTL = 60;
+
+    /**
+     * Default maximum number of cached SIDs and names.
+     */
+    public static final int                            DEFAULT_MAX_SIZE     = 10000;
+
+    private static final WindowsAccountCache           DEFAULT              = new WindowsAccountCache(DEFAULT_TTL,
+                                                                                    DEFAULT_NEGATIVE_TTL,
+                                                                                    DEFAULT_MAX_SIZE);
+
+    private final Cache<String, CachedAccount>         accounts;
+    private final ConcurrentMap<String, PendingLookup> pending;
+    private final long                                 negativeTtlMillis;
+    private final AtomicLong                           hits                 = new AtomicLong();
+    private final AtomicLong                           lookups              = new AtomicLong();
+
+    /**
+     * An account cache.
+     * 
+     * @param ttlSeconds
+     *            Time an account stays cached, in seconds.
+     * @param negativeTtlSeconds
+     *            Time an unresolvable SID or name stays cached, in seconds. At most ttlSeconds.
+     * @param maxSize
+     *            Maximum number of cached SIDs and names.
+     */
+    public WindowsAccountCache(final int ttlSeconds, final int negativeTtlSeconds, final int maxSize) {
+        this.accounts = CacheBuilder.newBuilder().expireAfterWrite(ttlSeconds, TimeUnit.SECONDS).maximumSize(maxSize)
+                .build();
+        // SIDs being looked up, that concurrent lookups of the same SID wait for
+        this.pending = new ConcurrentHashMap<String, PendingLookup>();
+        this.negativeTtlMillis = TimeUnit.SECONDS.toMillis(negativeTtlSeconds);
+    }
+
+    /**
+     * The process-wide account cache.
+     * 
+     * @return Account cache.
+     */
+    public static WindowsAccountCache getDefault() {
+        return DEFAULT;
+    }
+
+    /**
+     * Resolve a SID.
+     * 
+     * @param sid
+     *            SID bytes.
+     * @return Account.
+     * @throws Win32Exception
+     *             when the SID cannot be resolved.
+     */
+    public Account getAccountBySid(final byte[] sid) {
+        return getSids(Collections.singletonList(sid))[0].getAccount();
+    }
+
+    /**
+     * Resolve a list of SIDs, such as the groups of a token. SIDs that cannot be resolved are returned as an account
+     * whose name is the SID string, as Advapi32Util.getTokenGroups does.
+     * 
+     * @param sids
+     *            SIDs.
+     * @return Accounts, in the same order.
+     */
+    public Account[] getAccountsBySid(final List<byte[]> sids) {
+        final CachedAccount[] cached = getSids(sids);
+        final Account[] result = new Account[cached.length];
+        for (int i = 0; i < result.length; i++) {
+            result[i] = cached[i].account == null ? newUnresolvedAccount(sids.get(i)) : cached[i].account;
+        }
+        return result;
+    }
+
+    private CachedAccount[] getSids(final List<byte[]> sids) {
+        final CachedAccount[] result = new CachedAccount[sids.size()];
+        // lookups to wait for, by index, those of other threads and then this thread's own
+        final Map<Integer, PendingLookup> waits = new LinkedHashMap<Integer, PendingLookup>();
+        // misses this thread looks up in one batch, by key
+        final Map<String, PendingLookup> loads = new LinkedHashMap<String, PendingLookup>();
+        final List<byte[]> loadSids = new ArrayList<byte[]>();
+        for (int i = 0; i < result.length; i++) {
+            final byte[] sid = sids.get(i);
+            final String key = sidKey(sid);
+            result[i] = getIfPresent(key);
+            if (result[i] != null) {
+                this.hits.incrementAndGet();
+                continue;
+            }
+            PendingLookup future = loads.get(key);
+            if (future == null) {
+                final PendingLookup load = new PendingLookup();
+                future = this.pending.putIfAbsent(key, load);
+                if (future == null) {
+                    // registered before looking up, then checked again in case a load completed in between
+                    result[i] = getIfPresent(key);
+                    if (result[i] != null) {
+                        this.pending.remove(key, load);
+                        load.set(result[i]);
+                        this.hits.incrementAndGet();
+                        continue;
+                    }
+                    loads.put(key, load);
+                    loadSids.add(sid);
+                    future = load;
+                }
+            }
+            waits.put(Integer.valueOf(i), future);
+        }
+        if (!loads.isEmpty()) {
+            load(loads, loadSids);
+        }
+        for (Map.Entry<Integer, PendingLookup> wait : waits.entrySet()) {
+            try {
+                result[wait.getKey().intValue()] = Uninterruptibles.getUninterruptibly(wait.getValue());
+            } catch (ExecutionException e) {
+                final Throwable cause = e.getCause();
+                throw cause instanceof RuntimeException ? (RuntimeException) cause : new RuntimeException(cause);
+            }
+        }
+        return result;
+    }
+
+    private void load(final Map<String, PendingLookup> loads, final List<byte[]> loadSids) {
+        try {
+            this.lookups.incrementAndGet();
+            CachedAccount[] loaded;
+            try {
+                final Account[] accounts = lookupAccountsBySid(loadSids);
+                loaded = new CachedAccount[accounts.length];
+                for (int i = 0; i < loaded.length; i++) {
+                    loaded[i] = accounts[i] == null ? newNegative(W32Errors
+                            .HRESULT_FROM_WIN32(W32Errors.ERROR_NONE_MAPPED)) : new CachedAccount(accounts[i], null,
+                            Long.MAX_VALUE);
+                }
+            } catch (Win32Exception e) {
+                loaded = new CachedAccount[loadSids.size()];
+                for (int i = 0; i < loaded.length; i++) {
+                    loaded[i] = newNegative(e.getHR());
+                }
+            }
+            int i = 0;
+            for (Map.Entry<String, PendingLookup> load : loads.entrySet()) {
+                this.accounts.put(load.getKey(), loaded[i]);
+                load.getValue().set(loaded[i]);
+                i++;
+            }
+        } catch (RuntimeException e) {
+            for (PendingLookup load : loads.values()) {
+                load.setException(e);
+            }
+            throw e;
+        } finally {
+            for (Map.Entry<String, PendingLookup> load : loads.entrySet()) {
+                this.pending.remove(load.getKey(), load.getValue());
+            }
+        }
+    }
+
+    private CachedAccount getIfPresent(final String key) {
+        final CachedAccount cached = this.accounts.getIfPresent(key);
+        if (cached != null && cached.isExpired(System.currentTimeMillis())) {
+            this.accounts.asMap().remove(key, cached);
+            return null;
+        }
+        return cached;
+    }
+
+    private CachedAccount newNegative(final HRESULT error) {
+        return new CachedAccount(null, error, System.currentTimeMillis() + this.negativeTtlMillis);
+    }
+
+    /**
+     * Resolve an account name.
+     * 
+     * @param systemName
+     *            Machine name, null for the local machine.
+     * @param accountName
+     *            Account name.
+     * @return Account.
+     * @throws Win32Exception
+     *             when the name cannot be resolved.
+     */
+    public Account getAccountByName(final String systemName, final String accountName) {
+        final String key = "N:" + (systemName == null ? "" : systemName.toLowerCase(Locale.ENGLISH)) + "\\"
+                + accountName.toLowerCase(Locale.ENGLISH);
+        return get(key, new Callable<Account>() {
+            @Override
+            public Account call() {
+                return lookupAccountByName(systemName, accountName);
+            }
+        }).getAccount();
+    }
+
+    /**
+     * Look up SIDs with a single LsaLookupSids call, bypassing the cache. The SID strings are formatted in Java rather
+     * than with ConvertSidToStringSid.
+     * 
+     * @param sids
+     *            SIDs.
+     * @return Accounts, in the same order, null for the SIDs that could not be resolved.
+     * @throws Win32Exception
+     *             when the lookup fails as a whole.
+     */
+    protected Account[] lookupAccountsBySid(final List<byte[]> sids) {
+        final Advapi32Lsa lsa = Advapi32Lsa.INSTANCE;
+        final HANDLEByReference policy = new HANDLEByReference();
+        int status = lsa.LsaOpenPolicy(null, new LSA_OBJECT_ATTRIBUTES(), Advapi32Lsa.POLICY_LOOKUP_NAMES, policy);
+        if (status != Advapi32Lsa.STATUS_SUCCESS) {
+            throw new Win32Exception(lsa.LsaNtStatusToWinError(status));
+        }
+        final PointerByReference referencedDomains = new PointerByReference();
+        final PointerByReference names = new PointerByReference();
+        try {
+            final Pointer[] psids = new Pointer[sids.size()];
+            for (int i = 0; i < psids.length; i++) {
+                final byte[] sid = sids.get(i);
+                psids[i] = new Memory(sid.length);
+                psids[i].write(0, sid, 0, sid.length);
+            }
+            status = lsa.LsaLookupSids(policy.getValue(), psids.length, psids, referencedDomains, names);
+            final Account[] accounts = new Account[psids.length];
+            if (status == Advapi32Lsa.STATUS_NONE_MAPPED) {
+                return accounts;
+            } else if (status != Advapi32Lsa.STATUS_SUCCESS && status != Advapi32Lsa.STATUS_SOME_NOT_MAPPED) {
+                throw new Win32Exception(lsa.LsaNtStatusToWinError(status));
+            }
+            final LSA_REFERENCED_DOMAIN_LIST domainList = new LSA_REFERENCED_DOMAIN_LIST(referencedDomains.getValue());
+            final String[] domains = new String[domainList.Entries];
+            if (domains.length > 0) {
+                final LSA_TRUST_INFORMATION[] trusts = (LSA_TRUST_INFORMATION[]) new LSA_TRUST_INFORMATION(
+                        domainList.Domains).toArray(domains.length);
+                for (int i = 0; i < domains.length; i++) {
+                    domains[i] = trusts[i].Name.toString();
+                }
+            }
+            final LSA_TRANSLATED_NAME[] translated = (LSA_TRANSLATED_NAME[]) new LSA_TRANSLATED_NAME(names.getValue())
+                    .toArray(psids.length);
+            for (int i = 0; i < accounts.length; i++) {
+                accounts[i] = newAccount(sids.get(i), translated[i], domains);
+            }
+            return accounts;
+        } finally {
+            if (referencedDomains.getValue() != null) {
+                lsa.LsaFreeMemory(referencedDomains.getValue());
+            }
+            if (names.getValue() != null) {
+                lsa.LsaFreeMemory(names.getValue());
+            }
+            lsa.LsaClose(policy.getValue());
+        }
+    }
+
+    private static Account newAccount(final byte[] sid, final LSA_TRANSLATED_NAME translated, final String[] domains) {
+        if (translated.Use == SID_NAME_USE.SidTypeUnknown || translated.Use == SID_NAME_USE.SidTypeInvalid) {
+            return null;
+        }
+        final int domainIndex = translated.DomainIndex;
+        final String domain = domainIndex >= 0 && domainIndex < domains.length ? domains[domainIndex] : null;
+        final Account account = new Account();
+        account.accountType = translated.Use;
+        account.name = translated.Name.toString();
+        if (domain != null && domain.length() > 0) {
+            if (account.name.length() == 0) {
+                // a domain SID, named after the domain as LookupAccountSid does
+                account.name = domain;
+            }
+            account.domain = domain;
+            account.fqn = account.domain + "\\" + account.name;
+        } else {
+            account.fqn = account.name;
+        }
+        account.sid = sid.clone();
+        account.sidString = toSidString(sid);
+        return account;
+    }
+
+    /**
+     * Look up an account name, bypassing the cache.
+     * 
+     * @param systemName
+     *            Machine name, null for the local machine.
+     * @param accountName
+     *            Account name.
+     * @return Account.
+     */
+    protected Account lookupAccountByName(final String systemName, final String accountName) {
+        return Advapi32Util.getAccountByName(systemName, accountName);
+    }
+
+    /**
+     * Resolve the user of an access token.
+     * 
+     * @param hToken
+     *            Access token.
+     * @return Account.
+     */
+    public Account getTokenAccount(final HANDLE hToken) {
+        return getAccountBySid(getTokenUserSid(hToken));
+    }
+
+    /**
+     * Read the user SID of an access token, without resolving it.
+     * 
+     * @param hToken
+     *            Access token.
+     * @return SID bytes.
+     */
+    public byte[] getTokenUserSid(final HANDLE hToken) {
+        final IntByReference tokenInformationLength = new IntByReference();
+        getTokenInformationLength(hToken, WinNT.TOKEN_INFORMATION_CLASS.TokenUser, tokenInformationLength);
+        final WinNT.TOKEN_USER user = new WinNT.TOKEN_USER(tokenInformationLength.getValue());
+        if (!Advapi32.INSTANCE.GetTokenInformation(hToken, WinNT.TOKEN_INFORMATION_CLASS.TokenUser, user,
+                tokenInformationLength.getValue(), tokenInformationLength)) {
+            throw new Win32Exception(Kernel32.INSTANCE.GetLastError());
+        }
+        return user.User.Sid.getBytes();
+    }
+
+    /**
+     * Resolve the groups of an access token.
+     * 
+     * @param hToken
+     *            Access token.
+     * @return Group accounts.
+     */
+    public Account[] getTokenGroups(final HANDLE hToken) {
+        return getAccountsBySid(getTokenGroupSids(hToken));
+    }
+
+    /**
+     * Read the group SIDs of an access token, without resolving them.
+     * 
+     * @param hToken
+     *            Access token.
+     * @return SID bytes, in token order.
+     */
+    public List<byte[]> getTokenGroupSids(final HANDLE hToken) {
+        final IntByReference tokenInformationLength = new IntByReference();
+        getTokenInformationLength(hToken, WinNT.TOKEN_INFORMATION_CLASS.TokenGroups, tokenInformationLength);
+        final WinNT.TOKEN_GROUPS groups = new WinNT.TOKEN_GROUPS(tokenInformationLength.getValue());
+        if (!Advapi32.INSTANCE.GetTokenInformation(hToken, WinNT.TOKEN_INFORMATION_CLASS.TokenGroups, groups,
+                tokenInformationLength.getValue(), tokenInformationLength)) {
+            throw new Win32Exception(Kernel32.INSTANCE.GetLastError());
+        }
+        final SID_AND_ATTRIBUTES[] sidAndAttributes = groups.getGroups();
+        final List<byte[]> sids = new ArrayList<byte[]>(sidAndAttributes.length);
+        for (SID_AND_ATTRIBUTES sidAndAttribute : sidAndAttributes) {
+            sids.add(sidAndAttribute.Sid.getBytes());
+        }
+        return sids;
+    }
+
+    private static void getTokenInformationLength(final HANDLE hToken, final int tokenInformationClass,
+            final IntByReference tokenInformationLength) {
+        if (Advapi32.INSTANCE.GetTokenInformation(hToken, tokenInformationClass, null, 0, tokenInformationLength)) {
+            throw new RuntimeException("Expected GetTokenInformation to fail with ERROR_INSUFFICIENT_BUFFER");
+        }
+        final int rc = Kernel32.INSTANCE.GetLastError();
+        if (rc != W32Errors.ERROR_INSUFFICIENT_BUFFER) {
+            throw new Win32Exception(rc);
+        }
+    }
+
+    private CachedAccount get(final String key, final Callable<Account> loader) {
+        CachedAccount cached = getIfPresent(key);
+        if (cached != null) {
+            this.hits.incrementAndGet();
+        } else {
+            try {
+                cached = this.accounts.get(key, new CountingLoader(loader));
+            } catch (ExecutionException e) {
+                throw new RuntimeException(e.getCause());
+            } catch (UncheckedExecutionException e) {
+                final Throwable cause = e.getCause();
+                throw cause instanceof RuntimeException ? (RuntimeException) cause : e;
+            }
+        }
+        return cached;
+    }
+
+    /**
+     * Calls the underlying lookup and caches its failure, if any, for the negative TTL.
+     */
+    private final class CountingLoader implements Callable<CachedAccount> {
+
+        private final Callable<Account> loader;
+
+        CountingLoader(final Callable<Account> newLoader) {
+            this.loader = newLoader;
+        }
+
+        @Override
+        public CachedAccount call() throws Exception {
+            WindowsAccountCache.this.lookups.incrementAndGet();
+            try {
+                return new CachedAccount(this.loader.call(), null, Long.MAX_VALUE);
+            } catch (Win32Exception e) {
+                return newNegative(e.getHR());
+            }
+        }
+    }
+
+    private static String sidKey(final byte[] sid) {
+        return "S:" + toSidString(sid);
+    }
+
+    /**
+     * Formats a binary SID as a string, eg. "S-1-5-32-544", without calling ConvertSidToStringSid.
+     * 
+     * @param sid
+     *            SID bytes.
+     * @return SID string.
+     */
+    static String toSidString(final byte[] sid) {
+        final String sidString = Sid.format(sid);
+        if (sidString == null) {
+            throw new IllegalArgumentException("Invalid SID, length: " + sid.length);
+        }
+        return sidString;
+    }
+
+    /**
+     * An account for a SID that is not looked up, named after its SID string.
+     * 
+     * @param sid
+     *            SID bytes.
+     * @return Account.
+     */
+    static Account newUnresolvedAccount(final byte[] sid) {
+        final Account account = new Account();
+        account.sid = sid;
+        account.sidString = toSidString(sid);
+        account.name = account.sidString;
+        account.fqn = account.sidString;
+        account.accountType = SID_NAME_USE.SidTypeGroup;
+        return account;
+    }
+
+    /**
+     * Remove all cached accounts, eg. after group or account changes that should be visible immediately.
+     */
+    public void invalidateAll() {
+        this.accounts.invalidateAll();
+    }
+
+    /**
+     * Number of lookups served from the cache.
+     * 
+     * @return Number of cache hits.
+     */
+    public long getHitCount() {
+        return this.hits.get();
+    }
+
+    /**
+     * Number of LsaLookupSids and LookupAccountName calls.
+     * 
+     * @return Number of lookups.
+     */
+    public long getLookupCount() {
+        return this.lookups.get();
+    }
+
+    /**
+     * Number of cached SIDs and names, including unresolvable ones.
+     * 
+     * @return Number of entries.
+     */
+    public long size() {
+        return this.accounts.size();
+    }
+
+    /**
+     * A lookup in progress, that concurrent lookups of the same SID wait for.
+     */
+    private static final class PendingLookup extends AbstractFuture<CachedAccount> {
+
+        @Override
+        protected boolean set(final CachedAccount value) {
+            return super.set(value);
+        }
+
+        @Override
+        protected boolean setException(final Throwable throwable) {
+            return super.setException(throwable);
+        }
+    }
+
+    private static final class CachedAccount {
+
+        private final Account account;
+        private final HRESULT error;
+        private final long    expiry;
+
+        CachedAccount(final Account newAccount, final HRESULT newError, final long newExpiry) {
+            this.account = newAccount;
+            this.error = newError;
+            this.expiry = newExpiry;
+        }
+
+        boolean isExpired(final long now) {
+            return now >= this.expiry;
+        }
+
+        Account getAccount() {
+            if (this.account == null) {
+                throw new Win32Exception(this.error);
+            }
+            return this.account;
+        }
+    }
+}
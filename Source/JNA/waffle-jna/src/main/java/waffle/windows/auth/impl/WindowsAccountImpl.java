@@ -14,8 +14,8 @@
 package waffle.windows.auth.impl;
 
 import waffle.windows.auth.IWindowsAccount;
+import waffle.windows.auth.Sid;
 
-import com.sun.jna.platform.win32.Advapi32Util;
 import com.sun.jna.platform.win32.Advapi32Util.Account;
 import com.sun.jna.platform.win32.Secur32.EXTENDED_NAME_FORMAT;
 import com.sun.jna.platform.win32.Secur32Util;
@@ -28,6 +28,7 @@ import com.sun.jna.platform.win32.Secur32Util;
 public class WindowsAccountImpl implements IWindowsAccount {
 
     private final Account account;
+    private Sid           securityIdentifier;
 
     /**
      * Windows Account.
@@ -58,7 +59,7 @@ public class WindowsAccountImpl implements IWindowsAccount {
      *            Machine name.
      */
     public WindowsAccountImpl(final String accountName, final String systemName) {
-        this(Advapi32Util.getAccountByName(systemName, accountName));
+        this(WindowsAccountCache.getDefault().getAccountByName(systemName, accountName));
     }
 
     /**
@@ -100,4 +101,13 @@ public class WindowsAccountImpl implements IWindowsAccount {
         return this.account.sidString;
     }
 
+    @Override
+    public Sid getSecurityIdentifier() {
+        if (this.securityIdentifier == null) {
+            this.securityIdentifier = Sid.isValid(this.account.sid) ? Sid.of(this.account.sid) : Sid
+                    .tryParse(this.account.sidString);
+        }
+        return this.securityIdentifier;
+    }
+
 }
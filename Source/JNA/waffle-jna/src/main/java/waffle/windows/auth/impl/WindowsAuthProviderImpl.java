@@ -13,12 +13,9 @@
  */
 package waffle.windows.auth.impl;
 
-import java.net.InetAddress;
-import java.net.UnknownHostException;
-import java.util.ArrayList;
-import java.util.List;
-import java.util.concurrent.TimeUnit;
-
+import waffle.util.WaffleMetrics;
+import waffle.util.WaffleMetrics.Counter;
+import waffle.util.WaffleMetrics.Timer;
 import waffle.windows.auth.IWindowsAccount;
 import waffle.windows.auth.IWindowsAuthProvider;
 import waffle.windows.auth.IWindowsComputer;
@@ -27,12 +24,8 @@ import waffle.windows.auth.IWindowsDomain;
 import waffle.windows.auth.IWindowsIdentity;
 import waffle.windows.auth.IWindowsSecurityContext;
 
-import com.google.common.cache.Cache;
-import com.google.common.cache.CacheBuilder;
 import com.sun.jna.platform.win32.Advapi32;
 import com.sun.jna.platform.win32.Kernel32;
-import com.sun.jna.platform.win32.Netapi32Util;
-import com.sun.jna.platform.win32.Netapi32Util.DomainTrust;
 import com.sun.jna.platform.win32.Secur32;
 import com.sun.jna.platform.win32.Sspi;
 import com.sun.jna.platform.win32.Sspi.CtxtHandle;
@@ -50,7 +43,9 @@ import com.sun.jna.ptr.IntByReference;
  */
 public class WindowsAuthProviderImpl implements IWindowsAuthProvider {
 
-    private Cache<String, CtxtHandle> continueContexts;
+    private final WindowsContinueContextStore   continueContexts;
+    private final WindowsCredentialsHandleCache credentialsHandles = new WindowsCredentialsHandleCache();
+    private final WindowsTokenBufferPool        tokenBuffers       = WindowsTokenBufferPool.getDefault();
 
     public WindowsAuthProviderImpl() {
         this(30);
@@ -63,98 +58,126 @@ public class WindowsAuthProviderImpl implements IWindowsAuthProvider {
      *            Timeout for security contexts in seconds.
      */
     public WindowsAuthProviderImpl(final int continueContextsTimeout) {
-        this.continueContexts = CacheBuilder.newBuilder().expireAfterWrite(continueContextsTimeout, TimeUnit.SECONDS)
-                .build();
+        this(continueContextsTimeout, WindowsContinueContextStore.DEFAULT_MAX_SIZE);
+    }
+
+    /**
+     * A Windows authentication provider.
+     * 
+     * @param continueContextsTimeout
+     *            Timeout for security contexts in seconds.
+     * @param continueContextsMaxSize
+     *            Maximum number of pending security contexts, the oldest are deleted first.
+     */
+    public WindowsAuthProviderImpl(final int continueContextsTimeout, final int continueContextsMaxSize) {
+        this.continueContexts = new WindowsContinueContextStore(continueContextsTimeout, continueContextsMaxSize);
+        WaffleMetrics.getDefault().addAuthProvider(this);
     }
 
     @Override
     public IWindowsSecurityContext acceptSecurityToken(final String connectionId, final byte[] token,
             final String securityPackage) {
+        final WaffleMetrics metrics = WaffleMetrics.getDefault();
+        metrics.count(Counter.LEGS);
+        final long start = metrics.startTimer();
+        try {
+            return acceptSecurityContext(connectionId, token, securityPackage, metrics);
+        } finally {
+            metrics.stopTimer(Timer.ACCEPT_SECURITY_TOKEN, start);
+        }
+    }
+
+    private IWindowsSecurityContext acceptSecurityContext(final String connectionId, final byte[] token,
+            final String securityPackage, final WaffleMetrics metrics) {
 
         if (token == null || token.length == 0) {
-            this.continueContexts.asMap().remove(connectionId);
+            this.continueContexts.discard(connectionId);
+            metrics.countFailure(WinError.SEC_E_INVALID_TOKEN);
             throw new Win32Exception(WinError.SEC_E_INVALID_TOKEN);
         }
 
-        final IWindowsCredentialsHandle serverCredential = new WindowsCredentialsHandleImpl(null,
-                Sspi.SECPKG_CRED_INBOUND, securityPackage);
-        serverCredential.initialize();
+        final IWindowsCredentialsHandle serverCredential = this.credentialsHandles.get(securityPackage);
 
         WindowsSecurityContextImpl sc;
 
         int rc;
-        int tokenSize = Sspi.MAX_TOKEN_SIZE;
+        int tokenSize = this.tokenBuffers.getTokenSize(securityPackage);
 
-        CtxtHandle continueContext;
+        // take ownership of the pending context, it can no longer expire or be evicted while in use
+        CtxtHandle continueContext = this.continueContexts.remove(connectionId);
         SecBufferDesc pbServerToken;
         SecBufferDesc pbClientToken;
         final IntByReference pfClientContextAttr = new IntByReference();
         final CtxtHandle phNewServerContext = new CtxtHandle();
         do {
-            pbServerToken = new SecBufferDesc(Sspi.SECBUFFER_TOKEN, tokenSize);
-            pbClientToken = new SecBufferDesc(Sspi.SECBUFFER_TOKEN, token);
-
-            continueContext = this.continueContexts.asMap().get(connectionId);
-
-            rc = Secur32.INSTANCE.AcceptSecurityContext(serverCredential.getHandle(), continueContext, pbClientToken,
-                    Sspi.ISC_REQ_CONNECTION, Sspi.SECURITY_NATIVE_DREP, phNewServerContext, pbServerToken,
-                    pfClientContextAttr, null);
-
-            sc = new WindowsSecurityContextImpl();
-            sc.setCredentialsHandle(serverCredential.getHandle());
-            sc.setSecurityPackage(securityPackage);
-            sc.setSecurityContext(phNewServerContext);
-
-            switch (rc) {
-                case WinError.SEC_E_BUFFER_TOO_SMALL:
-                    tokenSize += Sspi.MAX_TOKEN_SIZE;
-                    sc.dispose();
-                    WindowsSecurityContextImpl.dispose(continueContext);
-                    break;
-                case WinError.SEC_E_OK:
-                    // the security context received from the client was accepted
-                    this.continueContexts.asMap().remove(connectionId);
-                    // if an output token was generated by the function, it must be sent to the client process
-                    if (pbServerToken.pBuffers != null && pbServerToken.cBuffers == 1
-                            && pbServerToken.pBuffers[0].cbBuffer > 0) {
-                        sc.setToken(pbServerToken.getBytes() == null ? new byte[0] : pbServerToken.getBytes().clone());
-                    }
-                    sc.setContinue(false);
-                    break;
-                case WinError.SEC_I_CONTINUE_NEEDED:
-                    // the server must send the output token to the client and wait for a returned token
-                    this.continueContexts.put(connectionId, phNewServerContext);
-                    sc.setToken(pbServerToken.getBytes() == null ? new byte[0] : pbServerToken.getBytes().clone());
-                    sc.setContinue(true);
-                    break;
-                default:
-                    sc.dispose();
-                    WindowsSecurityContextImpl.dispose(continueContext);
-                    this.continueContexts.asMap().remove(connectionId);
-                    throw new Win32Exception(rc);
+            pbServerToken = this.tokenBuffers.acquire(tokenSize);
+            pbClientToken = this.tokenBuffers.acquire(token);
+            try {
+                rc = Secur32.INSTANCE.AcceptSecurityContext(serverCredential.getHandle(), continueContext,
+                        pbClientToken, Sspi.ISC_REQ_CONNECTION, Sspi.SECURITY_NATIVE_DREP, phNewServerContext,
+                        pbServerToken, pfClientContextAttr, null);
+                if (continueContext == null && rc != WinError.SEC_E_BUFFER_TOO_SMALL) {
+                    metrics.count(Counter.HANDSHAKES);
+                }
+
+                sc = new WindowsSecurityContextImpl();
+                sc.setCredentialsHandle(serverCredential.getHandle());
+                sc.setSecurityPackage(securityPackage);
+                sc.setSecurityContext(phNewServerContext);
+
+                switch (rc) {
+                    case WinError.SEC_E_BUFFER_TOO_SMALL:
+                        tokenSize += Sspi.MAX_TOKEN_SIZE;
+                        this.tokenBuffers.setTokenSize(securityPackage, tokenSize);
+                        sc.dispose();
+                        this.continueContexts.delete(continueContext);
+                        continueContext = null;
+                        break;
+                    case WinError.SEC_E_OK:
+                        // the security context received from the client was accepted and is owned by sc
+                        // if an output token was generated by the function, it must be sent to the client process
+                        if (pbServerToken.pBuffers != null && pbServerToken.cBuffers == 1
+                                && pbServerToken.pBuffers[0].cbBuffer > 0) {
+                            sc.setToken(getTokenBytes(pbServerToken));
+                        }
+                        sc.setContinue(false);
+                        metrics.count(Counter.AUTHENTICATIONS);
+                        break;
+                    case WinError.SEC_I_CONTINUE_NEEDED:
+                        // the server must send the output token to the client and wait for a returned token
+                        this.continueContexts.put(connectionId, phNewServerContext);
+                        sc.setToken(getTokenBytes(pbServerToken));
+                        sc.setContinue(true);
+                        break;
+                    default:
+                        sc.dispose();
+                        this.continueContexts.delete(continueContext);
+                        metrics.countFailure(rc);
+                        throw new Win32Exception(rc);
+                }
+            } finally {
+                // token bytes were copied out, the native buffers can be reused
+                this.tokenBuffers.release(pbClientToken);
+                this.tokenBuffers.release(pbServerToken);
             }
         } while (rc == WinError.SEC_E_BUFFER_TOO_SMALL);
 
         return sc;
     }
 
+    private static byte[] getTokenBytes(final SecBufferDesc pbToken) {
+        final byte[] bytes = pbToken.getBytes();
+        return bytes == null ? new byte[0] : bytes;
+    }
+
     @Override
     public IWindowsComputer getCurrentComputer() {
-        try {
-            return new WindowsComputerImpl(InetAddress.getLocalHost().getHostName());
-        } catch (UnknownHostException e) {
-            throw new RuntimeException(e);
-        }
+        return WindowsTopologyCache.getDefault().getComputer();
     }
 
     @Override
     public IWindowsDomain[] getDomains() {
-        final List<IWindowsDomain> domains = new ArrayList<IWindowsDomain>();
-        final DomainTrust[] trusts = Netapi32Util.getDomainTrusts();
-        for (DomainTrust trust : trusts) {
-            domains.add(new WindowsDomainImpl(trust));
-        }
-        return domains.toArray(new IWindowsDomain[0]);
+        return WindowsTopologyCache.getDefault().getDomains();
     }
 
     @Override
@@ -166,9 +189,17 @@ public class WindowsAuthProviderImpl implements IWindowsAuthProvider {
     @Override
     public IWindowsIdentity logonDomainUserEx(final String username, final String domain, final String password,
             final int logonType, final int logonProvider) {
+        final WaffleMetrics metrics = WaffleMetrics.getDefault();
+        metrics.count(Counter.LOGONS);
+        final long start = metrics.startTimer();
         final HANDLEByReference phUser = new HANDLEByReference();
-        if (!Advapi32.INSTANCE.LogonUser(username, domain, password, logonType, logonProvider, phUser)) {
-            throw new Win32Exception(Kernel32.INSTANCE.GetLastError());
+        final boolean loggedOn = Advapi32.INSTANCE.LogonUser(username, domain, password, logonType, logonProvider,
+                phUser);
+        metrics.stopTimer(Timer.LOGON_USER, start);
+        if (!loggedOn) {
+            final int rc = Kernel32.INSTANCE.GetLastError();
+            metrics.countFailure(rc);
+            throw new Win32Exception(rc);
         }
         return new WindowsIdentityImpl(phUser.getValue());
     }
@@ -191,7 +222,7 @@ public class WindowsAuthProviderImpl implements IWindowsAuthProvider {
 
     @Override
     public void resetSecurityToken(final String connectionId) {
-        this.continueContexts.asMap().remove(connectionId);
+        this.continueContexts.discard(connectionId);
     }
 
     /**
@@ -200,6 +231,42 @@ public class WindowsAuthProviderImpl implements IWindowsAuthProvider {
      * @return Number of elements in the hash map.
      */
     public int getContinueContextsSize() {
-        return this.continueContexts.asMap().size();
+        return (int) this.continueContexts.size();
+    }
+
+    /**
+     * Security contexts of handshakes in progress.
+     * 
+     * @return Continue context store.
+     */
+    public WindowsContinueContextStore getContinueContexts() {
+        return this.continueContexts;
+    }
+
+    /**
+     * Cache of server credentials handles, one per security package.
+     * 
+     * @return Credentials handle cache.
+     */
+    public WindowsCredentialsHandleCache getCredentialsHandleCache() {
+        return this.credentialsHandles;
+    }
+
+    /**
+     * Pool of native token buffers used by AcceptSecurityContext.
+     * 
+     * @return Token buffer pool.
+     */
+    public WindowsTokenBufferPool getTokenBufferPool() {
+        return this.tokenBuffers;
+    }
+
+    /**
+     * Free the native resources held by this provider, such as pending security contexts and cached server credentials
+     * handles.
+     */
+    public void dispose() {
+        this.continueContexts.dispose();
+        this.credentialsHandles.dispose();
     }
 }
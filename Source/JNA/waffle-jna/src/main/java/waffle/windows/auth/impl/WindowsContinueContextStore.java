@@ -0,0 +1,237 @@
+/**
+ * Waffle (https://github.com/dblock/waffle)
+ *
+ * Copyright (c) 2010 - 2014 Application Security, Inc.
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors:
+ *     Application Security, Inc.
+ */
+package waffle.windows.auth.impl;
+
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.RemovalListener;
+import com.google.common.cache.RemovalNotification;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import com.sun.jna.platform.win32.Sspi.CtxtHandle;
+
+/**
+ * Security contexts of handshakes that are waiting for the next token from the client, keyed by connection.
+ * 
+ * <p>
+ * The store is bounded both in time and in size. Contexts that expire or are evicted to make room are deleted with
+ * DeleteSecurityContext, and a background reaper makes sure this happens even when no new handshakes arrive. The
+ * underlying cache is segmented, so connections hashing to different segments do not contend on the same lock.
+ * </p>
+ * 
+ * <p>
+ * A handshake leg takes ownership of a pending context with {@link #remove(String)} before passing it to
+ * AcceptSecurityContext, and stores it again only when another leg is needed. A context is therefore either in the
+ * store, where it may be deleted by expiry or eviction at any time, or owned by exactly one leg, never both.
+ * </p>
+ * 
+ * @author dblock[at]dblock[dot]org
+ */
+public class WindowsContinueContextStore {
+
+    private static final Logger               LOGGER            = LoggerFactory
+                                                                        .getLogger(WindowsContinueContextStore.class);
+
+    /**
+     * Default maximum number of pending security contexts.
+     */
+    public static final int                   DEFAULT_MAX_SIZE  = 10000;
+
+    private static final int                  CONCURRENCY_LEVEL = 16;
+
+    private final Cache<Object, CtxtHandle>   contexts;
+    private final AtomicLong                  evictions         = new AtomicLong();
+    private final long                        reapIntervalMillis;
+    private volatile ScheduledExecutorService reaper;
+
+    /**
+     * A continue context store.
+     * 
+     * @param timeoutSeconds
+     *            Time after which a pending security context is deleted, in seconds.
+     * @param maxSize
+     *            Maximum number of pending security contexts.
+     */
+    public WindowsContinueContextStore(final int timeoutSeconds, final int maxSize) {
+        this.contexts = CacheBuilder.newBuilder().expireAfterWrite(timeoutSeconds, TimeUnit.SECONDS)
+                .maximumSize(maxSize).concurrencyLevel(CONCURRENCY_LEVEL)
+                .removalListener(new RemovalListener<Object, CtxtHandle>() {
+                    @Override
+                    public void onRemoval(final RemovalNotification<Object, CtxtHandle> notification) {
+                        if (notification.wasEvicted()) {
+                            WindowsContinueContextStore.this.evictions.incrementAndGet();
+                            LOGGER.debug("evicted continue context: {} ({})", notification.getKey(),
+                                    notification.getCause());
+                            delete(notification.getValue());
+                        }
+                    }
+                }).build();
+        this.reapIntervalMillis = Math.max(TimeUnit.SECONDS.toMillis(timeoutSeconds) / 2, 1000);
+    }
+
+    /**
+     * Returns a compact key for a connection id. Connection ids of the form "a.b.c.d:port" are packed into a single
+     * long, other connection ids are used as is.
+     * 
+     * @param connectionId
+     *            Connection id.
+     * @return Cache key.
+     */
+    static Object toKey(final String connectionId) {
+        long key = 0;
+        int octet = 0;
+        int octets = 0;
+        int digits = 0;
+        final int length = connectionId.length();
+        for (int i = 0; i < length; i++) {
+            final char c = connectionId.charAt(i);
+            if (c >= '0' && c <= '9') {
+                octet = octet * 10 + c - '0';
+                if (++digits > 5 || octets < 4 && octet > 255) {
+                    return connectionId;
+                }
+            } else if (digits > 0 && (octets < 3 && c == '.' || octets == 3 && c == ':')) {
+                key = key << 8 | octet;
+                octets++;
+                octet = 0;
+                digits = 0;
+            } else {
+                return connectionId;
+            }
+        }
+        if (octets != 4 || digits == 0 || octet > 0xFFFF) {
+            return connectionId;
+        }
+        return Long.valueOf(key << 16 | octet);
+    }
+
+    /**
+     * Pending security context of a connection. The context stays in the store and may be deleted concurrently, use
+     * {@link #remove(String)} to take ownership of a context before using it.
+     * 
+     * @param connectionId
+     *            Connection id.
+     * @return Security context or null.
+     */
+    public CtxtHandle get(final String connectionId) {
+        return this.contexts.getIfPresent(toKey(connectionId));
+    }
+
+    /**
+     * Store the pending security context of a connection.
+     * 
+     * @param connectionId
+     *            Connection id.
+     * @param ctx
+     *            Security context.
+     */
+    public void put(final String connectionId, final CtxtHandle ctx) {
+        final CtxtHandle previous = this.contexts.asMap().put(toKey(connectionId), ctx);
+        if (previous != null && previous != ctx) {
+            delete(previous);
+        }
+        if (this.reaper == null) {
+            startReaper();
+        }
+    }
+
+    /**
+     * Remove the pending security context of a connection without deleting it. The removal is atomic with respect to
+     * expiry and eviction, so the caller owns the returned context and is responsible for storing or deleting it.
+     * 
+     * @param connectionId
+     *            Connection id.
+     * @return The removed security context or null.
+     */
+    public CtxtHandle remove(final String connectionId) {
+        return this.contexts.asMap().remove(toKey(connectionId));
+    }
+
+    /**
+     * Remove and delete the pending security context of a connection. Used when a handshake is abandoned.
+     * 
+     * @param connectionId
+     *            Connection id.
+     */
+    public void discard(final String connectionId) {
+        delete(remove(connectionId));
+    }
+
+    /**
+     * Delete a security context that is no longer owned by the store or a handshake.
+     * 
+     * @param ctx
+     *            Security context, may be null.
+     */
+    void delete(final CtxtHandle ctx) {
+        try {
+            WindowsSecurityContextImpl.dispose(ctx);
+        } catch (RuntimeException e) {
+            LOGGER.warn("error deleting security context: {}", e.getMessage());
+            LOGGER.trace("{}", e);
+        }
+    }
+
+    private synchronized void startReaper() {
+        if (this.reaper != null) {
+            return;
+        }
+        this.reaper = Executors.newSingleThreadScheduledExecutor(new ThreadFactoryBuilder()
+                .setNameFormat("waffle-continue-context-reaper-%d").setDaemon(true).build());
+        this.reaper.scheduleWithFixedDelay(new Runnable() {
+            @Override
+            public void run() {
+                WindowsContinueContextStore.this.contexts.cleanUp();
+            }
+        }, this.reapIntervalMillis, this.reapIntervalMillis, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Stop the reaper and delete all pending security contexts.
+     */
+    public synchronized void dispose() {
+        if (this.reaper != null) {
+            this.reaper.shutdownNow();
+            this.reaper = null;
+        }
+        for (Object key : this.contexts.asMap().keySet()) {
+            delete(this.contexts.asMap().remove(key));
+        }
+    }
+
+    /**
+     * Number of pending security contexts.
+     * 
+     * @return Number of entries.
+     */
+    public long size() {
+        return this.contexts.size();
+    }
+
+    /**
+     * Number of security contexts deleted because they expired or the store was full.
+     * 
+     * @return Number of evictions.
+     */
+    public long getEvictionCount() {
+        return this.evictions.get();
+    }
+}
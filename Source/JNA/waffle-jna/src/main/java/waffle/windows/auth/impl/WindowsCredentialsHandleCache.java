@@ -0,0 +1,295 @@
+/**
+ * Waffle (https://github.com/dblock/waffle)
+ *
+ * Copyright (c) 2010 - 2014 Application Security, Inc.
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors:
+ *     Application Security, Inc.
+ */
+package waffle.windows.auth.impl;
+
+import java.util.Map;
+import java.util.Queue;
+import java.util.TimeZone;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import waffle.windows.auth.IWindowsCredentialsHandle;
+
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import com.sun.jna.platform.win32.Sspi;
+import com.sun.jna.platform.win32.Sspi.TimeStamp;
+
+/**
+ * A cache of inbound (server) credentials handles, one per security package. Each handle is acquired once, its expiry
+ * is tracked from the lifetime returned by AcquireCredentialsHandle and it is refreshed in the background before it
+ * expires. Handles that were replaced are kept for one more refresh period before being freed, so that handshakes
+ * still using them can complete.
+ * 
+ * @author dblock[at]dblock[dot]org
+ */
+public class WindowsCredentialsHandleCache {
+
+    private static final Logger                         LOGGER            = LoggerFactory
+                                                                                  .getLogger(WindowsCredentialsHandleCache.class);
+
+    /**
+     * Milliseconds between 1601-01-01 (FILETIME epoch) and 1970-01-01.
+     */
+    private static final long                           EPOCH_DIFF_MILLIS = 11644473600000L;
+
+    private final Map<String, CachedCredentialsHandle> handles           = new ConcurrentHashMap<String, CachedCredentialsHandle>();
+    private final Queue<IWindowsCredentialsHandle>      retired           = new ConcurrentLinkedQueue<IWindowsCredentialsHandle>();
+    private final AtomicLong                            hits              = new AtomicLong();
+    private final AtomicLong                            acquisitions      = new AtomicLong();
+    private final AtomicLong                            refreshes         = new AtomicLong();
+    private final long                                  refreshMarginMillis;
+    private final long                                  refreshIntervalMillis;
+    private ScheduledExecutorService                    scheduler;
+    private ScheduledFuture<?>                          refreshTask;
+
+    /**
+     * A credentials handle cache that refreshes handles five minutes before they expire, checking every minute.
+     */
+    public WindowsCredentialsHandleCache() {
+        this(TimeUnit.MINUTES.toMillis(5), TimeUnit.MINUTES.toMillis(1));
+    }
+
+    /**
+     * A credentials handle cache.
+     * 
+     * @param newRefreshMarginMillis
+     *            Refresh a handle when it expires within this many milliseconds.
+     * @param newRefreshIntervalMillis
+     *            Interval between background expiry checks, in milliseconds.
+     */
+    public WindowsCredentialsHandleCache(final long newRefreshMarginMillis, final long newRefreshIntervalMillis) {
+        this.refreshMarginMillis = newRefreshMarginMillis;
+        this.refreshIntervalMillis = newRefreshIntervalMillis;
+    }
+
+    /**
+     * Returns an initialized inbound credentials handle for a security package, acquiring it on first use.
+     * 
+     * @param securityPackage
+     *            Security package, eg. "Negotiate".
+     * @return A credentials handle, owned by the cache. Callers must not dispose it.
+     */
+    public IWindowsCredentialsHandle get(final String securityPackage) {
+        final CachedCredentialsHandle cached = this.handles.get(securityPackage);
+        if (cached != null && !cached.isExpired(System.currentTimeMillis())) {
+            this.hits.incrementAndGet();
+            return cached.handle;
+        }
+        return acquire(securityPackage, cached);
+    }
+
+    private synchronized IWindowsCredentialsHandle acquire(final String securityPackage,
+            final CachedCredentialsHandle expired) {
+        final CachedCredentialsHandle current = this.handles.get(securityPackage);
+        if (current != null && current != expired) {
+            // another thread got here first
+            this.hits.incrementAndGet();
+            return current.handle;
+        }
+        final CachedCredentialsHandle fresh = newCachedHandle(securityPackage);
+        this.handles.put(securityPackage, fresh);
+        if (expired != null) {
+            this.retired.add(expired.handle);
+        }
+        startRefreshTask();
+        return fresh.handle;
+    }
+
+    private CachedCredentialsHandle newCachedHandle(final String securityPackage) {
+        final IWindowsCredentialsHandle handle = newCredentialsHandle(securityPackage);
+        this.acquisitions.incrementAndGet();
+        final long expiry = getExpiry(handle);
+        LOGGER.debug("acquired {} credentials handle, expires: {}", securityPackage, Long.valueOf(expiry));
+        return new CachedCredentialsHandle(handle, expiry);
+    }
+
+    /**
+     * Acquire a new inbound credentials handle.
+     * 
+     * @param securityPackage
+     *            Security package.
+     * @return An initialized credentials handle.
+     */
+    protected IWindowsCredentialsHandle newCredentialsHandle(final String securityPackage) {
+        final IWindowsCredentialsHandle handle = new WindowsCredentialsHandleImpl(null, Sspi.SECPKG_CRED_INBOUND,
+                securityPackage);
+        handle.initialize();
+        return handle;
+    }
+
+    /**
+     * Expiry time of a credentials handle.
+     * 
+     * @param handle
+     *            Credentials handle.
+     * @return Expiry in milliseconds since the epoch, Long.MAX_VALUE if the handle never expires.
+     */
+    protected long getExpiry(final IWindowsCredentialsHandle handle) {
+        if (handle instanceof WindowsCredentialsHandleImpl) {
+            return toMillis(((WindowsCredentialsHandleImpl) handle).getClientLifetime());
+        }
+        return Long.MAX_VALUE;
+    }
+
+    /**
+     * Converts an SSPI TimeStamp, a FILETIME in local time, to milliseconds since the epoch.
+     * 
+     * @param timeStamp
+     *            Time stamp.
+     * @return Milliseconds since the epoch (UTC), Long.MAX_VALUE if the time stamp is missing or means "never".
+     */
+    static long toMillis(final TimeStamp timeStamp) {
+        if (timeStamp == null) {
+            return Long.MAX_VALUE;
+        }
+        final long fileTime = (long) timeStamp.dwUpper << 32 | timeStamp.dwLower & 0xFFFFFFFFL;
+        // negative and maximum values are returned by packages whose credentials never expire
+        if (fileTime <= 0 || fileTime >= Long.MAX_VALUE / 2) {
+            return Long.MAX_VALUE;
+        }
+        final long localMillis = fileTime / 10000 - EPOCH_DIFF_MILLIS;
+        return localMillis - TimeZone.getDefault().getOffset(localMillis);
+    }
+
+    private void startRefreshTask() {
+        if (this.refreshTask != null) {
+            return;
+        }
+        if (this.scheduler == null) {
+            this.scheduler = Executors.newSingleThreadScheduledExecutor(new ThreadFactoryBuilder()
+                    .setNameFormat("waffle-credentials-refresh-%d").setDaemon(true).build());
+        }
+        this.refreshTask = this.scheduler.scheduleWithFixedDelay(new Runnable() {
+            @Override
+            public void run() {
+                refresh();
+            }
+        }, this.refreshIntervalMillis, this.refreshIntervalMillis, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Frees handles retired during the previous run and replaces handles that are about to expire.
+     */
+    synchronized void refresh() {
+        disposeRetired();
+        final long deadline = System.currentTimeMillis() + this.refreshMarginMillis;
+        for (Map.Entry<String, CachedCredentialsHandle> entry : this.handles.entrySet()) {
+            if (!entry.getValue().isExpired(deadline)) {
+                continue;
+            }
+            try {
+                final CachedCredentialsHandle fresh = newCachedHandle(entry.getKey());
+                this.handles.put(entry.getKey(), fresh);
+                this.retired.add(entry.getValue().handle);
+                this.refreshes.incrementAndGet();
+                LOGGER.debug("refreshed {} credentials handle", entry.getKey());
+            } catch (RuntimeException e) {
+                LOGGER.warn("error refreshing {} credentials handle: {}", entry.getKey(), e.getMessage());
+                LOGGER.trace("{}", e);
+            }
+        }
+    }
+
+    private void disposeRetired() {
+        IWindowsCredentialsHandle handle;
+        while ((handle = this.retired.poll()) != null) {
+            dispose(handle);
+        }
+    }
+
+    private static void dispose(final IWindowsCredentialsHandle handle) {
+        try {
+            handle.dispose();
+        } catch (RuntimeException e) {
+            LOGGER.warn("error freeing credentials handle: {}", e.getMessage());
+            LOGGER.trace("{}", e);
+        }
+    }
+
+    /**
+     * Stops the background refresh and frees every cached and retired credentials handle. Handles are acquired again on
+     * next use.
+     */
+    public synchronized void dispose() {
+        if (this.scheduler != null) {
+            this.scheduler.shutdownNow();
+            this.scheduler = null;
+            this.refreshTask = null;
+        }
+        for (CachedCredentialsHandle cached : this.handles.values()) {
+            dispose(cached.handle);
+        }
+        this.handles.clear();
+        disposeRetired();
+    }
+
+    /**
+     * Number of requests served by an already acquired handle.
+     * 
+     * @return Number of cache hits.
+     */
+    public long getHitCount() {
+        return this.hits.get();
+    }
+
+    /**
+     * Number of calls to AcquireCredentialsHandle, including refreshes.
+     * 
+     * @return Number of acquired handles.
+     */
+    public long getAcquireCount() {
+        return this.acquisitions.get();
+    }
+
+    /**
+     * Number of handles replaced in the background before they expired.
+     * 
+     * @return Number of refreshes.
+     */
+    public long getRefreshCount() {
+        return this.refreshes.get();
+    }
+
+    /**
+     * Number of cached handles.
+     * 
+     * @return Number of security packages with a cached handle.
+     */
+    public int size() {
+        return this.handles.size();
+    }
+
+    private static final class CachedCredentialsHandle {
+
+        private final IWindowsCredentialsHandle handle;
+        private final long                      expiry;
+
+        CachedCredentialsHandle(final IWindowsCredentialsHandle newHandle, final long newExpiry) {
+            this.handle = newHandle;
+            this.expiry = newExpiry;
+        }
+
+        boolean isExpired(final long now) {
+            return now >= this.expiry;
+        }
+    }
+}
@@ -101,4 +101,13 @@ public class WindowsCredentialsHandleImpl implements IWindowsCredentialsHandle {
     public CredHandle getHandle() {
         return this.handle;
     }
+
+    /**
+     * Expiration time of the credentials handle, as returned by AcquireCredentialsHandle.
+     * 
+     * @return TimeStamp or null if the handle has not been initialized.
+     */
+    public TimeStamp getClientLifetime() {
+        return this.clientLifetime;
+    }
 }
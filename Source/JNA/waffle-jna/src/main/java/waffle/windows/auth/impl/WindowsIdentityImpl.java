@@ -16,43 +16,66 @@ package waffle.windows.auth.impl;
 import java.util.ArrayList;
 import java.util.List;
 
+import waffle.util.AuthenticationTiming;
+import waffle.util.AuthenticationTiming.Phase;
+import waffle.util.WaffleMetrics;
+import waffle.util.WaffleMetrics.Timer;
 import waffle.windows.auth.IWindowsAccount;
+import waffle.windows.auth.IWindowsGroupSource;
 import waffle.windows.auth.IWindowsIdentity;
 import waffle.windows.auth.IWindowsImpersonationContext;
+import waffle.windows.auth.Sid;
+import waffle.windows.auth.WindowsGroupFilter;
 
-import com.sun.jna.platform.win32.Advapi32Util;
 import com.sun.jna.platform.win32.Kernel32;
 import com.sun.jna.platform.win32.Advapi32Util.Account;
 import com.sun.jna.platform.win32.WinNT.HANDLE;
-import com.sun.jna.platform.win32.WinNT.WELL_KNOWN_SID_TYPE;
 
 /**
  * Windows Identity.
  * 
+ * <p>
+ * The SIDs of the user and of its groups are read from the access token and formatted in Java; account names are
+ * only looked up with LsaLookupSids (through {@link WindowsAccountCache}) when they are asked for. Callers that
+ * only need SIDs, eg. principals with SID roles, use {@link #getSid()}, {@link #getSidString()} and
+ * {@link #getGroupSids(WindowsGroupFilter)} and never resolve a name.
+ * </p>
+ * 
  * @author dblock[at]dblock[dot]org
  */
-public class WindowsIdentityImpl implements IWindowsIdentity {
+public class WindowsIdentityImpl implements IWindowsIdentity, IWindowsGroupSource {
 
-    private HANDLE    windowsIdentity;
-    private Account[] userGroups;
-    private Account   windowsAccount;
+    private HANDLE             windowsIdentity;
+    private byte[]             userSid;
+    private Sid                userSecurityIdentifier;
+    private WindowsTokenGroups tokenGroups;
+    private IWindowsAccount[]  groups;
+    private Account            windowsAccount;
 
     public WindowsIdentityImpl(final HANDLE newWindowsIdentity) {
         this.windowsIdentity = newWindowsIdentity;
     }
 
+    private byte[] getUserSid() {
+        if (this.userSid == null) {
+            this.userSid = WindowsAccountCache.getDefault().getTokenUserSid(this.windowsIdentity);
+        }
+        return this.userSid;
+    }
+
     private Account getWindowsAccount() {
         if (this.windowsAccount == null) {
-            this.windowsAccount = Advapi32Util.getTokenAccount(this.windowsIdentity);
+            this.windowsAccount = WindowsAccountCache.getDefault().getAccountBySid(getUserSid());
         }
         return this.windowsAccount;
     }
 
-    private Account[] getUserGroups() {
-        if (this.userGroups == null) {
-            this.userGroups = Advapi32Util.getTokenGroups(this.windowsIdentity);
+    private WindowsTokenGroups getTokenGroups() {
+        if (this.tokenGroups == null) {
+            this.tokenGroups = new WindowsTokenGroups(WindowsAccountCache.getDefault().getTokenGroupSids(
+                    this.windowsIdentity));
         }
-        return this.userGroups.clone();
+        return this.tokenGroups;
     }
 
     @Override
@@ -62,26 +85,77 @@ public class WindowsIdentityImpl implements IWindowsIdentity {
 
     @Override
     public IWindowsAccount[] getGroups() {
+        if (this.groups == null) {
+            final long start = startGroupsTimer();
+            final Account[] accounts = getTokenGroups().getAccounts();
+            final List<IWindowsAccount> result = new ArrayList<IWindowsAccount>(accounts.length);
+            for (Account userGroup : accounts) {
+                result.add(new WindowsAccountImpl(userGroup));
+            }
+            this.groups = result.toArray(new IWindowsAccount[0]);
+            stopGroupsTimer(start);
+        }
+        return this.groups.clone();
+    }
 
-        final Account[] groups = getUserGroups();
+    @Override
+    public IWindowsAccount[] getGroups(final WindowsGroupFilter filter) {
+        final long start = startGroupsTimer();
+        final IWindowsAccount[] result = getTokenGroups().getGroups(filter);
+        stopGroupsTimer(start);
+        return result;
+    }
+
+    @Override
+    public IWindowsAccount[] getGroupSids(final WindowsGroupFilter filter) {
+        final long start = startGroupsTimer();
+        final IWindowsAccount[] result = getTokenGroups().getGroupSids(filter);
+        stopGroupsTimer(start);
+        return result;
+    }
+
+    // group resolution is timed for the metrics and for the authentication timing, 0 when neither is on
+    private static long startGroupsTimer() {
+        return AuthenticationTiming.current() == null ? WaffleMetrics.getDefault().startTimer() : System.nanoTime();
+    }
 
-        final List<IWindowsAccount> result = new ArrayList<IWindowsAccount>(groups.length);
-        for (Account userGroup : groups) {
-            WindowsAccountImpl account = new WindowsAccountImpl(userGroup);
-            result.add(account);
+    private static void stopGroupsTimer(final long start) {
+        if (start != 0L) {
+            final long nanos = System.nanoTime() - start;
+            WaffleMetrics.getDefault().record(Timer.GET_GROUPS, nanos);
+            final AuthenticationTiming timing = AuthenticationTiming.current();
+            if (timing != null) {
+                timing.addNested(Phase.GROUPS, nanos);
+            }
         }
+    }
 
-        return result.toArray(new IWindowsAccount[0]);
+    /**
+     * The group SIDs of this identity, read now and resolved on demand, that remain valid after it was disposed.
+     * 
+     * @return Token groups.
+     */
+    @Override
+    public IWindowsGroupSource detach() {
+        return getTokenGroups();
     }
 
     @Override
     public byte[] getSid() {
-        return getWindowsAccount().sid;
+        return getUserSid();
     }
 
     @Override
     public String getSidString() {
-        return getWindowsAccount().sidString;
+        return getSecurityIdentifier().toString();
+    }
+
+    @Override
+    public Sid getSecurityIdentifier() {
+        if (this.userSecurityIdentifier == null) {
+            this.userSecurityIdentifier = Sid.of(getUserSid());
+        }
+        return this.userSecurityIdentifier;
     }
 
     @Override
@@ -98,22 +172,11 @@ public class WindowsIdentityImpl implements IWindowsIdentity {
 
     @Override
     public boolean isGuest() {
-        for (Account userGroup : getUserGroups()) {
-            if (Advapi32Util.isWellKnownSid(userGroup.sid, WELL_KNOWN_SID_TYPE.WinBuiltinGuestsSid)) {
-                return true;
-            }
-            if (Advapi32Util.isWellKnownSid(userGroup.sid, WELL_KNOWN_SID_TYPE.WinAccountDomainGuestsSid)) {
-                return true;
-            }
-            if (Advapi32Util.isWellKnownSid(userGroup.sid, WELL_KNOWN_SID_TYPE.WinAccountGuestSid)) {
+        for (byte[] sid : getTokenGroups().getSids()) {
+            if (WindowsWellKnownSids.isGuest(sid)) {
                 return true;
             }
         }
-
-        if (Advapi32Util.isWellKnownSid(getSid(), WELL_KNOWN_SID_TYPE.WinAnonymousSid)) {
-            return true;
-        }
-
-        return false;
+        return WindowsWellKnownSids.isAnonymous(getUserSid());
     }
 }
@@ -13,6 +13,8 @@
  */
 package waffle.windows.auth.impl;
 
+import waffle.util.WaffleMetrics;
+import waffle.util.WaffleMetrics.Timer;
 import waffle.windows.auth.IWindowsCredentialsHandle;
 import waffle.windows.auth.IWindowsIdentity;
 import waffle.windows.auth.IWindowsImpersonationContext;
@@ -37,7 +39,7 @@ public class WindowsSecurityContextImpl implements IWindowsSecurityContext {
 
     private String         principalName;
     private String         securityPackage;
-    private SecBufferDesc  token;
+    private byte[]         token;
     private CtxtHandle     ctx;
     private IntByReference attr;
     private CredHandle     credentials;
@@ -50,9 +52,13 @@ public class WindowsSecurityContextImpl implements IWindowsSecurityContext {
 
     @Override
     public IWindowsIdentity getIdentity() {
+        final WaffleMetrics metrics = WaffleMetrics.getDefault();
+        final long start = metrics.startTimer();
         final HANDLEByReference phContextToken = new HANDLEByReference();
         final int rc = Secur32.INSTANCE.QuerySecurityContextToken(this.ctx, phContextToken);
+        metrics.stopTimer(Timer.GET_IDENTITY, start);
         if (WinError.SEC_E_OK != rc) {
+            metrics.countFailure(rc);
             throw new Win32Exception(rc);
         }
         return new WindowsIdentityImpl(phContextToken.getValue());
@@ -65,7 +71,7 @@ public class WindowsSecurityContextImpl implements IWindowsSecurityContext {
 
     @Override
     public byte[] getToken() {
-        return this.token == null || this.token.getBytes() == null ? null : this.token.getBytes().clone();
+        return this.token == null ? null : this.token.clone();
     }
 
     /**
@@ -96,25 +102,33 @@ public class WindowsSecurityContextImpl implements IWindowsSecurityContext {
     public void initialize(final CtxtHandle continueCtx, final SecBufferDesc continueToken, final String targetName) {
         this.attr = new IntByReference();
         this.ctx = new CtxtHandle();
-        int tokenSize = Sspi.MAX_TOKEN_SIZE;
+        final WindowsTokenBufferPool tokenBuffers = WindowsTokenBufferPool.getDefault();
+        int tokenSize = tokenBuffers.getTokenSize(this.securityPackage);
         int rc = 0;
         do {
-            this.token = new SecBufferDesc(Sspi.SECBUFFER_TOKEN, tokenSize);
-            rc = Secur32.INSTANCE.InitializeSecurityContext(this.credentials, continueCtx, targetName,
-                    Sspi.ISC_REQ_CONNECTION, 0, Sspi.SECURITY_NATIVE_DREP, continueToken, 0, this.ctx, this.token,
-                    this.attr, null);
-            switch (rc) {
-                case WinError.SEC_E_INSUFFICIENT_MEMORY:
-                    tokenSize += Sspi.MAX_TOKEN_SIZE;
-                    break;
-                case WinError.SEC_I_CONTINUE_NEEDED:
-                    this.continueFlag = true;
-                    break;
-                case WinError.SEC_E_OK:
-                    this.continueFlag = false;
-                    break;
-                default:
-                    throw new Win32Exception(rc);
+            final SecBufferDesc pbToken = tokenBuffers.acquire(tokenSize);
+            try {
+                rc = Secur32.INSTANCE.InitializeSecurityContext(this.credentials, continueCtx, targetName,
+                        Sspi.ISC_REQ_CONNECTION, 0, Sspi.SECURITY_NATIVE_DREP, continueToken, 0, this.ctx, pbToken,
+                        this.attr, null);
+                switch (rc) {
+                    case WinError.SEC_E_INSUFFICIENT_MEMORY:
+                        tokenSize += Sspi.MAX_TOKEN_SIZE;
+                        tokenBuffers.setTokenSize(this.securityPackage, tokenSize);
+                        break;
+                    case WinError.SEC_I_CONTINUE_NEEDED:
+                        this.token = pbToken.getBytes();
+                        this.continueFlag = true;
+                        break;
+                    case WinError.SEC_E_OK:
+                        this.token = pbToken.getBytes();
+                        this.continueFlag = false;
+                        break;
+                    default:
+                        throw new Win32Exception(rc);
+                }
+            } finally {
+                tokenBuffers.release(pbToken);
             }
         } while (rc == WinError.SEC_E_INSUFFICIENT_MEMORY);
     }
@@ -161,7 +175,7 @@ public class WindowsSecurityContextImpl implements IWindowsSecurityContext {
     }
 
     public void setToken(final byte[] bytes) {
-        this.token = new SecBufferDesc(Sspi.SECBUFFER_TOKEN, bytes);
+        this.token = bytes;
     }
 
     public void setSecurityPackage(final String value) {
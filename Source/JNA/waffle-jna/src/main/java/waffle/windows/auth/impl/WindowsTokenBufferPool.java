@@ -0,0 +1,210 @@
+/**
+ * Waffle (https://github.com/dblock/waffle)
+ *
+ * Copyright (c) 2010 - 2014 Application Security, Inc.
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors:
+ *     Application Security, Inc.
+ */
+package waffle.windows.auth.impl;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.sun.jna.Memory;
+import com.sun.jna.platform.win32.Sspi;
+import com.sun.jna.platform.win32.Sspi.SecBuffer;
+import com.sun.jna.platform.win32.Sspi.SecBufferDesc;
+
+/**
+ * A pool of single-buffer SECBUFFER_TOKEN descriptors with their native memory, reused across AcceptSecurityContext
+ * and InitializeSecurityContext calls instead of allocating (and finalizing) new JNA memory on every handshake leg.
+ * 
+ * <p>
+ * Buffers are pooled by capacity, rounded up to a multiple of {@link #SIZE_CLASS}. The pool remembers the largest
+ * output token size required by each security package, so that once a large (eg. Kerberos with a big PAC) token was
+ * seen, subsequent calls start with a buffer that is large enough.
+ * </p>
+ * 
+ * @author dblock[at]dblock[dot]org
+ */
+public class WindowsTokenBufferPool {
+
+    /**
+     * Granularity of pooled buffer capacities, in bytes.
+     */
+    public static final int                                            SIZE_CLASS       = 4096;
+
+    /**
+     * Default number of idle buffers kept per capacity.
+     */
+    public static final int                                            DEFAULT_MAX_IDLE = 32;
+
+    private static final WindowsTokenBufferPool                        DEFAULT          = new WindowsTokenBufferPool(
+                                                                                                DEFAULT_MAX_IDLE);
+
+    private final ConcurrentMap<Integer, BlockingQueue<SecBufferDesc>> idle             = new ConcurrentHashMap<Integer, BlockingQueue<SecBufferDesc>>();
+    private final ConcurrentMap<String, Integer>                       tokenSizes       = new ConcurrentHashMap<String, Integer>();
+    private final int                                                  maxIdle;
+    private final AtomicLong                                           allocations      = new AtomicLong();
+    private final AtomicLong                                           reuses           = new AtomicLong();
+
+    /**
+     * A token buffer pool.
+     * 
+     * @param newMaxIdle
+     *            Number of idle buffers kept per capacity.
+     */
+    public WindowsTokenBufferPool(final int newMaxIdle) {
+        this.maxIdle = newMaxIdle;
+    }
+
+    /**
+     * The process-wide token buffer pool.
+     * 
+     * @return Token buffer pool.
+     */
+    public static WindowsTokenBufferPool getDefault() {
+        return DEFAULT;
+    }
+
+    /**
+     * Initial output token size for a security package.
+     * 
+     * @param securityPackage
+     *            Security package.
+     * @return The largest size previously required by the package, at least Sspi.MAX_TOKEN_SIZE.
+     */
+    public int getTokenSize(final String securityPackage) {
+        final Integer size = securityPackage == null ? null : this.tokenSizes.get(securityPackage);
+        return size == null ? Sspi.MAX_TOKEN_SIZE : size.intValue();
+    }
+
+    /**
+     * Record the output token size required by a security package.
+     * 
+     * @param securityPackage
+     *            Security package.
+     * @param size
+     *            Required size, in bytes.
+     */
+    public void setTokenSize(final String securityPackage, final int size) {
+        if (securityPackage == null) {
+            return;
+        }
+        Integer current = this.tokenSizes.putIfAbsent(securityPackage, Integer.valueOf(size));
+        while (current != null && current.intValue() < size
+                && !this.tokenSizes.replace(securityPackage, current, Integer.valueOf(size))) {
+            current = this.tokenSizes.get(securityPackage);
+        }
+    }
+
+    /**
+     * Acquire an empty output token buffer.
+     * 
+     * @param size
+     *            Minimum capacity, in bytes.
+     * @return A token buffer descriptor, to be returned with {@link #release(SecBufferDesc)}.
+     */
+    public SecBufferDesc acquire(final int size) {
+        final SecBufferDesc desc = take(size);
+        reset(desc, getCapacity(desc));
+        return desc;
+    }
+
+    /**
+     * Acquire a token buffer holding a copy of an input token.
+     * 
+     * @param token
+     *            Token bytes.
+     * @return A token buffer descriptor, to be returned with {@link #release(SecBufferDesc)}.
+     */
+    public SecBufferDesc acquire(final byte[] token) {
+        final SecBufferDesc desc = take(token.length);
+        desc.pBuffers[0].pvBuffer.write(0, token, 0, token.length);
+        reset(desc, token.length);
+        return desc;
+    }
+
+    /**
+     * Return a token buffer to the pool. The buffer is cleared and must not be used afterwards.
+     * 
+     * @param desc
+     *            Token buffer descriptor obtained from this pool, may be null.
+     */
+    public void release(final SecBufferDesc desc) {
+        if (desc == null) {
+            return;
+        }
+        final SecBuffer buffer = desc.pBuffers[0];
+        final int capacity = getCapacity(desc);
+        final int used = buffer.cbBuffer;
+        if (used > 0) {
+            buffer.pvBuffer.setMemory(0, Math.min(used, capacity), (byte) 0);
+        }
+        final BlockingQueue<SecBufferDesc> queue = this.idle.get(Integer.valueOf(capacity));
+        if (queue != null) {
+            queue.offer(desc);
+        }
+    }
+
+    private SecBufferDesc take(final int size) {
+        final int capacity = Math.max(1, (size + SIZE_CLASS - 1) / SIZE_CLASS) * SIZE_CLASS;
+        final Integer key = Integer.valueOf(capacity);
+        BlockingQueue<SecBufferDesc> queue = this.idle.get(key);
+        if (queue == null) {
+            queue = new ArrayBlockingQueue<SecBufferDesc>(this.maxIdle);
+            final BlockingQueue<SecBufferDesc> existing = this.idle.putIfAbsent(key, queue);
+            if (existing != null) {
+                queue = existing;
+            }
+        }
+        final SecBufferDesc desc = queue.poll();
+        if (desc != null) {
+            this.reuses.incrementAndGet();
+            return desc;
+        }
+        this.allocations.incrementAndGet();
+        return new SecBufferDesc(Sspi.SECBUFFER_TOKEN, capacity);
+    }
+
+    private static int getCapacity(final SecBufferDesc desc) {
+        return (int) ((Memory) desc.pBuffers[0].pvBuffer).size();
+    }
+
+    private static void reset(final SecBufferDesc desc, final int size) {
+        final SecBuffer buffer = desc.pBuffers[0];
+        buffer.BufferType = Sspi.SECBUFFER_TOKEN;
+        buffer.cbBuffer = size;
+        buffer.write();
+        desc.ulVersion = Sspi.SECBUFFER_VERSION;
+        desc.cBuffers = 1;
+        desc.write();
+    }
+
+    /**
+     * Number of token buffers allocated because none was idle.
+     * 
+     * @return Number of allocations.
+     */
+    public long getAllocationCount() {
+        return this.allocations.get();
+    }
+
+    /**
+     * Number of token buffers served from the pool.
+     * 
+     * @return Number of reused buffers.
+     */
+    public long getReuseCount() {
+        return this.reuses.get();
+    }
+}
@@ -0,0 +1,138 @@
+/**
+ * Waffle (https://github.com/dblock/waffle)
+ *
+ * Copyright (c) 2010 - 2014 Application Security, Inc.
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors:
+ *     Application Security, Inc.
+ */
+package waffle.windows.auth.impl;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import waffle.windows.auth.IWindowsAccount;
+import waffle.windows.auth.IWindowsGroupSource;
+import waffle.windows.auth.WindowsGroupFilter;
+
+import com.sun.jna.platform.win32.Advapi32Util.Account;
+
+/**
+ * The group SIDs of an access token, read once and resolved to accounts on demand. Resolution goes through
+ * {@link WindowsAccountCache} and does not need the token, so the groups remain usable after the token was closed.
+ * 
+ * @author dblock[at]dblock[dot]org
+ */
+public class WindowsTokenGroups implements IWindowsGroupSource {
+
+    private final List<byte[]> sids;
+    private volatile Account[] accounts;
+
+    /**
+     * Token groups.
+     * 
+     * @param newSids
+     *            Group SIDs, in token order.
+     */
+    public WindowsTokenGroups(final List<byte[]> newSids) {
+        this.sids = Collections.unmodifiableList(new ArrayList<byte[]>(newSids));
+    }
+
+    /**
+     * Group SIDs, in token order.
+     * 
+     * @return An unmodifiable list of SID bytes.
+     */
+    public List<byte[]> getSids() {
+        return this.sids;
+    }
+
+    /**
+     * Whether the group SIDs have been resolved to accounts.
+     * 
+     * @return True if resolved.
+     */
+    public boolean isResolved() {
+        return this.accounts != null;
+    }
+
+    /**
+     * All group memberships, resolved once.
+     * 
+     * @return Array of accounts, in token order.
+     */
+    Account[] getAccounts() {
+        Account[] value = this.accounts;
+        if (value == null) {
+            value = WindowsAccountCache.getDefault().getAccountsBySid(this.sids);
+            this.accounts = value;
+        }
+        return value;
+    }
+
+    /**
+     * Group memberships kept by a filter. Groups whose SID the filter rejects are not resolved, unless the filter also
+     * has rules on names.
+     * 
+     * @param filter
+     *            Group filter.
+     * @return Array of accounts.
+     */
+    @Override
+    public IWindowsAccount[] getGroups(final WindowsGroupFilter filter) {
+        final Account[] resolved;
+        if (this.accounts != null || filter.isAll() || filter.isNameRequired()) {
+            resolved = getAccounts();
+        } else {
+            final List<byte[]> accepted = new ArrayList<byte[]>();
+            for (byte[] sid : this.sids) {
+                if (filter.acceptsSid(WindowsAccountCache.toSidString(sid))) {
+                    accepted.add(sid);
+                }
+            }
+            resolved = WindowsAccountCache.getDefault().getAccountsBySid(accepted);
+        }
+        final List<IWindowsAccount> result = new ArrayList<IWindowsAccount>(resolved.length);
+        for (Account account : resolved) {
+            final IWindowsAccount group = new WindowsAccountImpl(account);
+            if (filter.accepts(group)) {
+                result.add(group);
+            }
+        }
+        return result.toArray(new IWindowsAccount[result.size()]);
+    }
+
+    /**
+     * Group memberships kept by a filter, with SID strings formatted from the token and no LsaLookupSids calls,
+     * unless the filter has rules on names.
+     * 
+     * @param filter
+     *            Group filter.
+     * @return Array of accounts.
+     */
+    @Override
+    public IWindowsAccount[] getGroupSids(final WindowsGroupFilter filter) {
+        if (filter.isNameRequired()) {
+            return getGroups(filter);
+        }
+        final List<IWindowsAccount> result = new ArrayList<IWindowsAccount>(this.sids.size());
+        for (byte[] sid : this.sids) {
+            final Account account = WindowsAccountCache.newUnresolvedAccount(sid);
+            if (filter.isAll() || filter.acceptsSid(account.sidString)) {
+                result.add(new WindowsAccountImpl(account));
+            }
+        }
+        return result.toArray(new IWindowsAccount[result.size()]);
+    }
+
+    @Override
+    public IWindowsGroupSource detach() {
+        return this;
+    }
+}
@@ -0,0 +1,338 @@
+/**
+ * Waffle (https://github.com/dblock/waffle)
+ *
+ * Copyright (c) 2010 - 2014 Application Security, Inc.
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors:
+ *     Application Security, Inc.
+ */
+package waffle.windows.auth.impl;
+
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import waffle.windows.auth.IWindowsComputer;
+import waffle.windows.auth.IWindowsDomain;
+
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import com.sun.jna.platform.win32.Netapi32Util;
+import com.sun.jna.platform.win32.Netapi32Util.DomainTrust;
+import com.sun.jna.platform.win32.Win32Exception;
+
+/**
+ * A process-wide copy of the computer and domain topology: computer name, domain membership, join status, local groups
+ * and domain trusts. It is loaded on first use and refreshed in the background, so reads are served from memory and
+ * never wait on NetGetJoinInformation, NetLocalGroupEnum or DsEnumerateDomainTrusts.
+ * 
+ * <p>
+ * A refresh that fails keeps the previous topology. The refresh runs on a daemon thread that is stopped by
+ * {@link #dispose()}. The filters, authenticators and {@code WaffleInfoServlet} share the process-wide cache: each
+ * {@link #acquire()}s it when started and {@link #release()}s it when destroyed, and the last release disposes it so
+ * that an undeployed web application does not keep its class loader alive.
+ * </p>
+ * 
+ * @author dblock[at]dblock[dot]org
+ */
+public class WindowsTopologyCache {
+
+    private static final Logger               LOGGER                   = LoggerFactory
+                                                                               .getLogger(WindowsTopologyCache.class);
+
+    /**
+     * Default interval between background refreshes, in seconds.
+     */
+    public static final int                   DEFAULT_REFRESH_INTERVAL = 300;
+
+    private static final WindowsTopologyCache DEFAULT                  = new WindowsTopologyCache(
+                                                                               DEFAULT_REFRESH_INTERVAL);
+
+    private volatile Topology                 topology;
+    private volatile long                     refreshIntervalMillis;
+    private final AtomicLong                  loads                    = new AtomicLong();
+    private ScheduledExecutorService          scheduler;
+    private ScheduledFuture<?>                refreshTask;
+    private int                               users;
+    private long                              generation;
+
+    /**
+     * A topology cache.
+     * 
+     * @param refreshIntervalSeconds
+     *            Interval between background refreshes, in seconds.
+     */
+    public WindowsTopologyCache(final int refreshIntervalSeconds) {
+        this.refreshIntervalMillis = TimeUnit.SECONDS.toMillis(refreshIntervalSeconds);
+    }
+
+    /**
+     * The process-wide topology cache.
+     * 
+     * @return Topology cache.
+     */
+    public static WindowsTopologyCache getDefault() {
+        return DEFAULT;
+    }
+
+    /**
+     * The current computer.
+     * 
+     * @return A snapshot of the current computer.
+     */
+    public IWindowsComputer getComputer() {
+        return getTopology().computer;
+    }
+
+    /**
+     * Trusted domains of the current computer's domain.
+     * 
+     * @return A copy of the domains array.
+     * @throws RuntimeException
+     *             a new exception, of the same type for a {@link Win32Exception}, caused by the error of the last
+     *             attempt to enumerate the domain trusts.
+     */
+    public IWindowsDomain[] getDomains() {
+        final Topology current = getTopology();
+        if (current.domains == null) {
+            // the cached error is shared, callers get their own exception and stack trace
+            final RuntimeException error = current.domainsError;
+            final RuntimeException e = error instanceof Win32Exception ? new Win32Exception(
+                    ((Win32Exception) error).getHR()) : new RuntimeException(error.getMessage());
+            e.initCause(error);
+            throw e;
+        }
+        return current.domains.clone();
+    }
+
+    private Topology getTopology() {
+        final Topology current = this.topology;
+        return current == null ? loadFirst() : current;
+    }
+
+    private synchronized Topology loadFirst() {
+        if (this.topology == null) {
+            this.topology = load(null);
+            startRefreshTask();
+        }
+        return this.topology;
+    }
+
+    private Topology load(final Topology previous) {
+        this.loads.incrementAndGet();
+        final IWindowsComputer computer = loadComputer();
+        IWindowsDomain[] domains = null;
+        RuntimeException domainsError = null;
+        try {
+            domains = loadDomains();
+        } catch (RuntimeException e) {
+            LOGGER.debug("error enumerating domain trusts: {}", e.getMessage());
+            if (previous != null && previous.domains != null) {
+                domains = previous.domains;
+            } else {
+                domainsError = e;
+            }
+        }
+        return new Topology(computer, domains, domainsError);
+    }
+
+    /**
+     * Read the current computer.
+     * 
+     * @return An immutable computer.
+     */
+    protected IWindowsComputer loadComputer() {
+        final String computerName;
+        try {
+            computerName = InetAddress.getLocalHost().getHostName();
+        } catch (UnknownHostException e) {
+            throw new RuntimeException(e);
+        }
+        final WindowsComputerImpl computer = new WindowsComputerImpl(computerName);
+        return new CachedComputer(computer.getComputerName(), computer.getMemberOf(), computer.getJoinStatus(),
+                computer.getGroups());
+    }
+
+    /**
+     * Enumerate the trusted domains.
+     * 
+     * @return Domains.
+     */
+    protected IWindowsDomain[] loadDomains() {
+        final List<IWindowsDomain> domains = new ArrayList<IWindowsDomain>();
+        for (DomainTrust trust : Netapi32Util.getDomainTrusts()) {
+            domains.add(new WindowsDomainImpl(trust));
+        }
+        return domains.toArray(new IWindowsDomain[0]);
+    }
+
+    /**
+     * Reload the topology now, keeping the previous one if this fails.
+     */
+    public void refresh() {
+        try {
+            final Topology previous;
+            final long expected;
+            synchronized (this) {
+                previous = this.topology;
+                expected = this.generation;
+            }
+            final Topology refreshed = load(previous);
+            synchronized (this) {
+                if (this.generation != expected) {
+                    // disposed while loading, do not bring back the topology
+                    LOGGER.debug("discarded computer and domain topology refreshed across a dispose");
+                    return;
+                }
+                this.topology = refreshed;
+            }
+            LOGGER.debug("refreshed computer and domain topology");
+        } catch (RuntimeException e) {
+            LOGGER.warn("error refreshing computer and domain topology: {}", e.getMessage());
+            LOGGER.trace("{}", e);
+        }
+    }
+
+    /**
+     * Set the interval between background refreshes.
+     * 
+     * @param refreshIntervalSeconds
+     *            Number of seconds.
+     */
+    public synchronized void setRefreshInterval(final int refreshIntervalSeconds) {
+        this.refreshIntervalMillis = TimeUnit.SECONDS.toMillis(refreshIntervalSeconds);
+        if (this.refreshTask != null) {
+            this.refreshTask.cancel(false);
+            this.refreshTask = null;
+            startRefreshTask();
+        }
+    }
+
+    /**
+     * Interval between background refreshes.
+     * 
+     * @return Number of seconds.
+     */
+    public int getRefreshInterval() {
+        return (int) TimeUnit.MILLISECONDS.toSeconds(this.refreshIntervalMillis);
+    }
+
+    private void startRefreshTask() {
+        if (this.scheduler == null) {
+            this.scheduler = Executors.newSingleThreadScheduledExecutor(new ThreadFactoryBuilder()
+                    .setNameFormat("waffle-topology-refresh-%d").setDaemon(true).build());
+        }
+        this.refreshTask = this.scheduler.scheduleWithFixedDelay(new Runnable() {
+            @Override
+            public void run() {
+                refresh();
+            }
+        }, this.refreshIntervalMillis, this.refreshIntervalMillis, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Register a user of this cache, to be matched by a {@link #release()}.
+     */
+    public synchronized void acquire() {
+        this.users++;
+    }
+
+    /**
+     * Release a previous {@link #acquire()}. The last release disposes the cache.
+     */
+    public synchronized void release() {
+        if (this.users == 0 || --this.users > 0) {
+            return;
+        }
+        dispose();
+    }
+
+    /**
+     * Stop the background refresh and forget the topology. It is loaded again on next use. A refresh in progress is
+     * discarded.
+     */
+    public synchronized void dispose() {
+        this.generation++;
+        if (this.scheduler != null) {
+            this.scheduler.shutdownNow();
+            this.scheduler = null;
+            this.refreshTask = null;
+        }
+        this.topology = null;
+    }
+
+    /**
+     * Number of times the topology was loaded, including refreshes.
+     * 
+     * @return Number of loads.
+     */
+    public long getLoadCount() {
+        return this.loads.get();
+    }
+
+    private static class Topology {
+
+        final IWindowsComputer computer;
+        final IWindowsDomain[] domains;
+        final RuntimeException domainsError;
+
+        Topology(final IWindowsComputer newComputer, final IWindowsDomain[] newDomains,
+                final RuntimeException newDomainsError) {
+            this.computer = newComputer;
+            this.domains = newDomains;
+            this.domainsError = newDomainsError;
+        }
+    }
+
+    /**
+     * A computer whose properties were read once.
+     */
+    static class CachedComputer implements IWindowsComputer {
+
+        private final String   computerName;
+        private final String   memberOf;
+        private final String   joinStatus;
+        private final String[] groups;
+
+        CachedComputer(final String newComputerName, final String newMemberOf, final String newJoinStatus,
+                final String[] newGroups) {
+            this.computerName = newComputerName;
+            this.memberOf = newMemberOf;
+            this.joinStatus = newJoinStatus;
+            this.groups = newGroups.clone();
+        }
+
+        @Override
+        public String getComputerName() {
+            return this.computerName;
+        }
+
+        @Override
+        public String getMemberOf() {
+            return this.memberOf;
+        }
+
+        @Override
+        public String getJoinStatus() {
+            return this.joinStatus;
+        }
+
+        @Override
+        public String[] getGroups() {
+            return this.groups.clone();
+        }
+    }
+}
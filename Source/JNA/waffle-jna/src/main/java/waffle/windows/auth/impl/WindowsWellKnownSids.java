@@ -0,0 +1,134 @@
+/**
+ * Waffle (https://github.com/dblock/waffle)
+ *
+ * Copyright (c) 2010 - 2014 Application Security, Inc.
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors:
+ *     Application Security, Inc.
+ */
+package waffle.windows.auth.impl;
+
+import java.util.Arrays;
+
+/**
+ * Well-known SID checks done in Java, equivalent to IsWellKnownSid for the SIDs Waffle needs on every logon, without a
+ * native call per SID.
+ * 
+ * @author dblock[at]dblock[dot]org
+ */
+public final class WindowsWellKnownSids {
+
+    /**
+     * RID of the built-in guest account of a domain (WinAccountGuestSid).
+     */
+    public static final int     DOMAIN_USER_RID_GUEST   = 501;
+
+    /**
+     * RID of the Domain Guests group (WinAccountDomainGuestsSid).
+     */
+    public static final int     DOMAIN_GROUP_RID_GUESTS = 514;
+
+    private static final int    NT_AUTHORITY            = 5;
+    private static final int    NT_NON_UNIQUE           = 21;
+    private static final int    DOMAIN_SUB_AUTHORITIES  = 5;
+
+    /**
+     * S-1-5-32-546, BUILTIN\Guests (WinBuiltinGuestsSid).
+     */
+    private static final byte[] BUILTIN_GUESTS          = newSid(NT_AUTHORITY, 32, 546);
+
+    /**
+     * S-1-5-7, NT AUTHORITY\ANONYMOUS LOGON (WinAnonymousSid).
+     */
+    private static final byte[] ANONYMOUS               = newSid(NT_AUTHORITY, 7);
+
+    private WindowsWellKnownSids() {
+        // Prevent Instantiation of object
+    }
+
+    /**
+     * Builds a binary SID.
+     * 
+     * @param authority
+     *            Identifier authority.
+     * @param subAuthorities
+     *            Sub-authorities.
+     * @return SID bytes.
+     */
+    static byte[] newSid(final long authority, final int... subAuthorities) {
+        final byte[] sid = new byte[8 + 4 * subAuthorities.length];
+        sid[0] = 1;
+        sid[1] = (byte) subAuthorities.length;
+        for (int i = 0; i < 6; i++) {
+            sid[7 - i] = (byte) (authority >>> 8 * i);
+        }
+        for (int i = 0; i < subAuthorities.length; i++) {
+            for (int b = 0; b < 4; b++) {
+                sid[8 + 4 * i + b] = (byte) (subAuthorities[i] >>> 8 * b);
+            }
+        }
+        return sid;
+    }
+
+    /**
+     * Whether a SID is BUILTIN\Guests, the Domain Guests group or the Guest account of any domain.
+     * 
+     * @param sid
+     *            SID bytes, may be null.
+     * @return True if the SID identifies a guest group or account.
+     */
+    public static boolean isGuest(final byte[] sid) {
+        if (sid == null) {
+            return false;
+        }
+        if (Arrays.equals(sid, BUILTIN_GUESTS)) {
+            return true;
+        }
+        final int rid = getDomainRid(sid);
+        return rid == DOMAIN_USER_RID_GUEST || rid == DOMAIN_GROUP_RID_GUESTS;
+    }
+
+    /**
+     * Whether a SID is the anonymous logon SID.
+     * 
+     * @param sid
+     *            SID bytes, may be null.
+     * @return True if the SID is S-1-5-7.
+     */
+    public static boolean isAnonymous(final byte[] sid) {
+        return Arrays.equals(sid, ANONYMOUS);
+    }
+
+    /**
+     * The relative identifier of an account domain SID, S-1-5-21-x-y-z-RID.
+     * 
+     * @param sid
+     *            SID bytes.
+     * @return RID or -1 if the SID is not a domain account SID.
+     */
+    private static int getDomainRid(final byte[] sid) {
+        if (sid.length != 8 + 4 * DOMAIN_SUB_AUTHORITIES || sid[0] != 1 || sid[1] != DOMAIN_SUB_AUTHORITIES) {
+            return -1;
+        }
+        for (int i = 2; i < 7; i++) {
+            if (sid[i] != 0) {
+                return -1;
+            }
+        }
+        if (sid[7] != NT_AUTHORITY || getSubAuthority(sid, 0) != NT_NON_UNIQUE) {
+            return -1;
+        }
+        return getSubAuthority(sid, DOMAIN_SUB_AUTHORITIES - 1);
+    }
+
+    private static int getSubAuthority(final byte[] sid, final int index) {
+        final int offset = 8 + 4 * index;
+        return sid[offset] & 0xFF | (sid[offset + 1] & 0xFF) << 8 | (sid[offset + 2] & 0xFF) << 16
+                | (sid[offset + 3] & 0xFF) << 24;
+    }
+}
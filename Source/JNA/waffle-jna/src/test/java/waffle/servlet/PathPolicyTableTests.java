@@ -0,0 +1,118 @@
+/**
+ * Waffle (https://github.com/dblock/waffle)
+ *
+ * Copyright (c) 2010 - 2014 Application Security, Inc.
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors:
+ *     Application Security, Inc.
+ */
+package waffle.servlet;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Arrays;
+
+import javax.servlet.http.HttpServletRequest;
+
+import org.junit.Test;
+import org.mockito.Mockito;
+
+/**
+ * @author dblock[at]dblock[dot]org
+ */
+public class PathPolicyTableTests {
+
+    @Test
+    public void testParse() {
+        final PathPolicyTable table = PathPolicyTable.parse("OPTIONS * skip; /static skip\n"
+                + "/api noimpersonate\r\n/admin roles=Administrators, CORP\\Domain Admins ;;");
+        assertEquals(4, table.size());
+        assertSame(PathPolicy.SKIP, table.match("OPTIONS", "/index.html"));
+        assertFalse(table.match("OPTIONS", "/api/users").isImpersonate());
+        assertSame(PathPolicy.SKIP, table.match("GET", "/static/waffle.css"));
+        assertFalse(table.match("GET", "/api/users").isImpersonate());
+        assertEquals(Arrays.asList("Administrators", "CORP\\Domain Admins"), table.match("GET", "/admin").getRoles());
+        assertSame(PathPolicy.AUTHENTICATE, table.match("GET", "/"));
+        assertSame(PathPolicy.AUTHENTICATE, table.match("GET", ""));
+    }
+
+    @Test
+    public void testMatchWholeSegments() {
+        final PathPolicyTable table = PathPolicyTable.parse("/static skip");
+        assertSame(PathPolicy.SKIP, table.match("GET", "/static"));
+        assertSame(PathPolicy.SKIP, table.match("GET", "//static//images/"));
+        assertSame(PathPolicy.AUTHENTICATE, table.match("GET", "/staticfiles"));
+        assertSame(PathPolicy.AUTHENTICATE, table.match("GET", "/Static"));
+    }
+
+    @Test
+    public void testMatchLongestPath() {
+        final PathPolicyTable table = PathPolicyTable
+                .parse("/ noimpersonate; /static skip; /static/private authenticate");
+        assertFalse(table.match("GET", "/index.html").isImpersonate());
+        assertSame(PathPolicy.SKIP, table.match("GET", "/static/waffle.css"));
+        final PathPolicy policy = table.match("GET", "/static/private/report.html");
+        assertFalse(policy.isSkip());
+        assertTrue(policy.isImpersonate());
+    }
+
+    @Test
+    public void testMatchMethod() {
+        final PathPolicyTable table = PathPolicyTable
+                .parse("/api noimpersonate; get /api skip; /api/admin authenticate");
+        assertSame(PathPolicy.SKIP, table.match("GET", "/api/users"));
+        assertFalse(table.match("POST", "/api/users").isImpersonate());
+        // a longer path wins over a method
+        assertFalse(table.match("GET", "/api/admin").isSkip());
+    }
+
+    @Test
+    public void testMatchRequest() {
+        final PathPolicyTable table = PathPolicyTable.parse("/static skip");
+        final HttpServletRequest request = Mockito.mock(HttpServletRequest.class);
+        Mockito.when(request.getMethod()).thenReturn("GET");
+        Mockito.when(request.getServletPath()).thenReturn("");
+        Mockito.when(request.getPathInfo()).thenReturn("/static/waffle.css");
+        assertSame(PathPolicy.SKIP, table.match(request));
+        Mockito.when(request.getServletPath()).thenReturn("/app");
+        assertSame(PathPolicy.AUTHENTICATE, table.match(request));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testParseInvalidAction() {
+        PathPolicyTable.parse("/static ignore");
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testParseMissingAction() {
+        PathPolicyTable.parse("GET /static");
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testParseInvalidPath() {
+        PathPolicyTable.parse("GET static skip");
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testParseMissingRoles() {
+        PathPolicyTable.parse("/admin roles= ,");
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testParseSkipWithRoles() {
+        PathPolicyTable.parse("/admin skip roles=Administrators");
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testParseDuplicate() {
+        PathPolicyTable.parse("/static skip; /static/ authenticate");
+    }
+}
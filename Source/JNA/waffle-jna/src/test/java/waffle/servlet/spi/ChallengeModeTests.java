@@ -0,0 +1,58 @@
+/**
+ * Waffle (https://github.com/dblock/waffle)
+ *
+ * Copyright (c) 2010 - 2014 Application Security, Inc.
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors:
+ *     Application Security, Inc.
+ */
+package waffle.servlet.spi;
+
+import static org.junit.Assert.assertEquals;
+
+import java.io.IOException;
+
+import javax.servlet.http.HttpServletResponse;
+
+import org.junit.Test;
+import org.mockito.Mockito;
+
+/**
+ * @author dblock[at]dblock[dot]org
+ */
+public class ChallengeModeTests {
+
+    @Test
+    public void testParse() {
+        assertEquals(ChallengeMode.ERROR, ChallengeMode.parse("error"));
+        assertEquals(ChallengeMode.STATUS, ChallengeMode.parse(" Status "));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testParseInvalid() {
+        ChallengeMode.parse("invalid");
+    }
+
+    @Test
+    public void testSendUnauthorizedError() throws IOException {
+        final HttpServletResponse response = Mockito.mock(HttpServletResponse.class);
+        ChallengeMode.ERROR.sendUnauthorized(response);
+        Mockito.verify(response).sendError(HttpServletResponse.SC_UNAUTHORIZED);
+        Mockito.verify(response).flushBuffer();
+    }
+
+    @Test
+    public void testSendUnauthorizedStatus() throws IOException {
+        final HttpServletResponse response = Mockito.mock(HttpServletResponse.class);
+        ChallengeMode.STATUS.sendUnauthorized(response);
+        Mockito.verify(response).setStatus(HttpServletResponse.SC_UNAUTHORIZED);
+        Mockito.verify(response).setContentLength(0);
+        Mockito.verify(response).flushBuffer();
+        Mockito.verify(response, Mockito.never()).sendError(Mockito.anyInt());
+    }
+}
@@ -18,7 +18,10 @@ import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertNotNull;
 import static org.junit.Assert.assertTrue;
 
+import javax.servlet.http.HttpServletRequest;
+
 import org.junit.Test;
+import org.mockito.Mockito;
 
 import waffle.windows.auth.impl.WindowsAuthProviderImpl;
 
@@ -53,4 +56,28 @@ public class SecurityFilterProviderCollectionTests {
         assertFalse(coll.isSecurityPackageSupported(""));
         assertFalse(coll.isSecurityPackageSupported("Invalid"));
     }
+
+    @Test
+    public void testIsSecurityPackageSupportedIgnoresCase() {
+        final SecurityFilterProviderCollection coll = new SecurityFilterProviderCollection(
+                new WindowsAuthProviderImpl());
+        assertTrue(coll.isSecurityPackageSupported("NEGOTIATE"));
+        assertTrue(coll.isSecurityPackageSupported("negotiate"));
+        assertTrue(coll.isSecurityPackageSupported("ntlm"));
+        assertFalse(coll.isSecurityPackageSupported("invalid"));
+        coll.reset();
+        assertTrue(coll.isSecurityPackageSupported("Negotiate"));
+        assertFalse(coll.isSecurityPackageSupported("Invalid"));
+    }
+
+    @Test
+    public void testIsPrincipalExceptionSkipsGet() {
+        final SecurityFilterProviderCollection coll = new SecurityFilterProviderCollection(
+                new WindowsAuthProviderImpl());
+        final HttpServletRequest request = Mockito.mock(HttpServletRequest.class);
+        Mockito.when(request.getMethod()).thenReturn("GET");
+        Mockito.when(request.getHeader("Authorization")).thenReturn("NTLM TlRMTVNTUAABAAAA");
+        assertFalse(coll.isPrincipalException(request));
+        Mockito.verify(request, Mockito.never()).getHeader("Authorization");
+    }
 }
@@ -0,0 +1,71 @@
+/**
+ * Waffle (https://github.com/dblock/waffle)
+ *
+ * Copyright (c) 2010 - 2014 Application Security, Inc.
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors:
+ *     Application Security, Inc.
+ */
+package waffle.util;
+
+import static org.junit.Assert.assertEquals;
+
+import org.junit.Test;
+
+/**
+ * @author dblock[at]dblock[dot]org
+ */
+public class LatencyHistogramTests {
+
+    @Test
+    public void testEmpty() {
+        final LatencyHistogram.Snapshot snapshot = new LatencyHistogram().getSnapshot();
+        assertEquals(0, snapshot.getCount());
+        assertEquals(0, snapshot.getMeanMicros());
+        assertEquals(0, snapshot.getP50Micros());
+        assertEquals(0, snapshot.getP99Micros());
+    }
+
+    @Test
+    public void testRecord() {
+        final LatencyHistogram histogram = new LatencyHistogram();
+        for (int i = 0; i < 99; i++) {
+            histogram.record(100000L);
+        }
+        histogram.record(10000000L);
+        final LatencyHistogram.Snapshot snapshot = histogram.getSnapshot();
+        assertEquals(100, snapshot.getCount());
+        assertEquals(10000, snapshot.getMaxMicros());
+        assertEquals(199, snapshot.getMeanMicros());
+        // 100us falls in [64, 128)
+        assertEquals(128, snapshot.getP50Micros());
+        assertEquals(128, snapshot.getP99Micros());
+        histogram.record(10000000L);
+        assertEquals(16384, histogram.getSnapshot().getP99Micros());
+    }
+
+    @Test
+    public void testRecordBounds() {
+        final LatencyHistogram histogram = new LatencyHistogram();
+        histogram.record(-1L);
+        histogram.record(Long.MAX_VALUE);
+        final LatencyHistogram.Snapshot snapshot = histogram.getSnapshot();
+        assertEquals(2, snapshot.getCount());
+        assertEquals(1, snapshot.getP50Micros());
+        assertEquals(1L << (LatencyHistogram.BUCKETS - 1), snapshot.getP99Micros());
+    }
+
+    @Test
+    public void testReset() {
+        final LatencyHistogram histogram = new LatencyHistogram();
+        histogram.record(1000L);
+        histogram.reset();
+        assertEquals(0, histogram.getSnapshot().getCount());
+        assertEquals(0, histogram.getSnapshot().getMaxMicros());
+    }
+}
@@ -0,0 +1,137 @@
+/**
+ * Waffle (https://github.com/dblock/waffle)
+ *
+ * Copyright (c) 2010 - 2014 Application Security, Inc.
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors:
+ *     Application Security, Inc.
+ */
+package waffle.util;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.lang.management.ManagementFactory;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import javax.management.openmbean.CompositeData;
+import javax.management.openmbean.TabularData;
+
+import org.junit.Test;
+
+import waffle.util.WaffleMetrics.Counter;
+import waffle.util.WaffleMetrics.Timer;
+
+/**
+ * @author dblock[at]dblock[dot]org
+ */
+public class WaffleMetricsTests {
+
+    @Test
+    public void testDisabled() {
+        final WaffleMetrics metrics = new WaffleMetrics();
+        assertFalse(metrics.isEnabled());
+        metrics.count(Counter.LEGS);
+        metrics.countFailure(0x8009030C);
+        final long start = metrics.startTimer();
+        assertEquals(0L, start);
+        metrics.stopTimer(Timer.ACCEPT_SECURITY_TOKEN, start);
+        assertEquals(0, metrics.getLegs());
+        assertTrue(metrics.getFailures().isEmpty());
+        assertEquals(0, metrics.getAcceptSecurityTokenLatency().getCount());
+    }
+
+    @Test
+    public void testEnabled() {
+        final WaffleMetrics metrics = new WaffleMetrics();
+        metrics.setEnabled(true);
+        metrics.count(Counter.HANDSHAKES);
+        metrics.count(Counter.LEGS);
+        metrics.count(Counter.LEGS);
+        metrics.countFailure(0x8009030C);
+        metrics.countFailure(0x8009030C);
+        metrics.countFailure(1326);
+        metrics.stopTimer(Timer.LOGON_USER, metrics.startTimer());
+        assertEquals(1, metrics.getHandshakes());
+        assertEquals(2, metrics.getLegs());
+        assertEquals(Long.valueOf(2), metrics.getFailures().get("0x8009030C"));
+        assertEquals(Long.valueOf(1), metrics.getFailures().get("0x0000052E"));
+        assertEquals(1, metrics.getLogonLatency().getCount());
+        metrics.reset();
+        assertEquals(0, metrics.getLegs());
+        assertTrue(metrics.getFailures().isEmpty());
+        assertEquals(0, metrics.getLogonLatency().getCount());
+    }
+
+    @Test
+    public void testHeaderRejections() {
+        final WaffleMetrics metrics = new WaffleMetrics();
+        assertFalse(metrics.getHeaderRejections().containsKey(AuthorizationHeaderStatus.VALID.name()));
+        assertEquals(Long.valueOf(AuthorizationHeader.getRejectionCount(AuthorizationHeaderStatus.TOO_LONG)), metrics
+                .getHeaderRejections().get(AuthorizationHeaderStatus.TOO_LONG.name()));
+    }
+
+    @Test
+    public void testMXBean() throws JMException {
+        final WaffleMetrics metrics = WaffleMetrics.getDefault();
+        final boolean enabled = metrics.isEnabled();
+        metrics.enable();
+        try {
+            final MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+            final ObjectName name = metrics.getObjectName();
+            assertEquals(Boolean.TRUE, server.getAttribute(name, "Enabled"));
+            assertTrue(server.getAttribute(name, "Failures") instanceof TabularData);
+            final CompositeData latency = (CompositeData) server.getAttribute(name, "AcceptSecurityTokenLatency");
+            assertTrue(latency.containsKey("p99Micros"));
+            assertTrue(((Integer) server.getAttribute(name, "ContinueContexts")).intValue() >= 0);
+        } finally {
+            metrics.disable();
+            metrics.setEnabled(enabled);
+        }
+    }
+
+    @Test
+    public void testDisableUnregisters() throws JMException {
+        final MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+        final WaffleMetrics first = new WaffleMetrics();
+        final WaffleMetrics second = new WaffleMetrics();
+        first.enable();
+        first.enable();
+        second.enable();
+        try {
+            // both are visible, whichever registered the plain name first
+            final ObjectName firstName = first.getObjectName();
+            final ObjectName secondName = second.getObjectName();
+            assertNotNull(firstName);
+            assertNotNull(secondName);
+            assertFalse(firstName.equals(secondName));
+            assertEquals("Metrics", secondName.getKeyProperty("type"));
+            assertTrue(server.isRegistered(firstName));
+            assertTrue(server.isRegistered(secondName));
+
+            first.disable();
+            assertTrue(first.isEnabled());
+            assertTrue(server.isRegistered(firstName));
+            first.disable();
+            assertFalse(first.isEnabled());
+            assertNull(first.getObjectName());
+            assertFalse(server.isRegistered(firstName));
+            // unbalanced
+            first.disable();
+            assertFalse(first.isEnabled());
+        } finally {
+            second.disable();
+        }
+        assertNull(second.getObjectName());
+    }
+}
@@ -0,0 +1,72 @@
+/**
+ * Waffle (https://github.com/dblock/waffle)
+ *
+ * Copyright (c) 2010 - 2014 Application Security, Inc.
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors:
+ *     Application Security, Inc.
+ */
+package waffle.windows.auth;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+
+import org.junit.Test;
+
+/**
+ * @author dblock[at]dblock[dot]org
+ */
+public class SidTests {
+
+    @Test
+    public void testParseAndFormat() {
+        final Sid sid = Sid.parse("S-1-5-21-1004336348-1177238915-682003330-512");
+        assertEquals(28, sid.length());
+        assertEquals("S-1-5-21-1004336348-1177238915-682003330-512", sid.toString());
+        assertEquals("S-1-5-21-1004336348-1177238915-682003330-512", Sid.format(sid.getBytes()));
+        assertEquals("S-1-0x010000000000-1", Sid.parse("S-1-0x010000000000-1").toString());
+        assertEquals("S-1-1-0", Sid.of(new byte[] { 1, 1, 0, 0, 0, 0, 0, 1, 0, 0, 0, 0 }).toString());
+        assertNull(Sid.tryParse("S-12345"));
+        assertNull(Sid.tryParse("S-1-5-01"));
+        assertNull(Sid.tryParse("S-1-5-4294967296"));
+        assertNull(Sid.tryParse("Everyone"));
+        assertNull(Sid.tryParse(null));
+        assertNull(Sid.format(new byte[0]));
+        assertFalse(Sid.isValid(new byte[] { 1, 2, 0, 0, 0, 0, 0, 5, 32, 0, 0, 0 }));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testOfInvalid() {
+        Sid.of(new byte[] { 1, 2, 0, 0, 0, 0, 0, 5, 32, 0, 0, 0 });
+    }
+
+    @Test
+    public void testInterned() throws IOException, ClassNotFoundException {
+        final Sid admins = Sid.parse("S-1-5-32-544");
+        final byte[] bytes = admins.getBytes();
+        assertSame(admins, Sid.of(bytes));
+        assertArrayEquals(bytes, Sid.of(bytes).getBytes());
+        assertEquals(admins.hashCode(), Sid.of(bytes).hashCode());
+
+        final ByteArrayOutputStream out = new ByteArrayOutputStream();
+        final ObjectOutputStream oos = new ObjectOutputStream(out);
+        oos.writeObject(admins);
+        oos.close();
+        final ObjectInputStream ois = new ObjectInputStream(new ByteArrayInputStream(out.toByteArray()));
+        assertSame(admins, ois.readObject());
+    }
+}
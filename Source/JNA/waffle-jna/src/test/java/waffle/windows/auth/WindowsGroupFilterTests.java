@@ -0,0 +1,67 @@
+/**
+ * Waffle (https://github.com/dblock/waffle)
+ *
+ * Copyright (c) 2010 - 2014 Application Security, Inc.
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors:
+ *     Application Security, Inc.
+ */
+package waffle.windows.auth;
+
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+/**
+ * @author dblock[at]dblock[dot]org
+ */
+public class WindowsGroupFilterTests {
+
+    private static final WindowsAccount EVERYONE   = new WindowsAccount("S-1-1-0", "Everyone", "Everyone", "");
+    private static final WindowsAccount ADMINS     = new WindowsAccount("S-1-5-32-544", "BUILTIN\\Administrators",
+                                                           "Administrators", "BUILTIN");
+    private static final WindowsAccount APP_USERS  = new WindowsAccount("S-1-5-21-1-2-3-1101", "CORP\\App Users",
+                                                           "App Users", "CORP");
+    private static final WindowsAccount DIST_LIST  = new WindowsAccount("S-1-5-21-1-2-3-1102", "CORP\\All Staff",
+                                                           "All Staff", "CORP");
+    private static final WindowsAccount OTHER_USER = new WindowsAccount("S-1-5-21-4-5-6-1103", "OTHER\\App Admins",
+                                                           "App Admins", "OTHER");
+
+    @Test
+    public void testAll() {
+        assertSame(WindowsGroupFilter.all(), WindowsGroupFilter.of(null, " ", ""));
+        assertTrue(WindowsGroupFilter.all().isAll());
+        assertTrue(WindowsGroupFilter.all().accepts(EVERYONE));
+    }
+
+    @Test
+    public void testSids() {
+        final WindowsGroupFilter filter = WindowsGroupFilter.of("s-1-5-32-544, S-1-5-21-1-2-3-1101", null, null);
+        assertFalse(filter.isAll());
+        assertFalse(filter.isNameRequired());
+        assertTrue(filter.acceptsSid("S-1-5-32-544"));
+        assertTrue(filter.accepts(ADMINS));
+        assertTrue(filter.accepts(APP_USERS));
+        assertFalse(filter.accepts(EVERYONE));
+        assertFalse(filter.accepts(DIST_LIST));
+    }
+
+    @Test
+    public void testDomainsAndPattern() {
+        final WindowsGroupFilter filter = WindowsGroupFilter.of(null, "corp", ".*\\\\app .*");
+        assertTrue(filter.isNameRequired());
+        assertFalse(filter.acceptsSid("S-1-5-21-1-2-3-1101"));
+        assertTrue(filter.accepts(APP_USERS));
+        assertTrue(filter.accepts(DIST_LIST));
+        assertTrue(filter.accepts(OTHER_USER));
+        assertFalse(filter.accepts(ADMINS));
+        assertFalse(filter.accepts(EVERYONE));
+    }
+}
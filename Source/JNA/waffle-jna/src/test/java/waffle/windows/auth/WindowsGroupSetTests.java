@@ -0,0 +1,113 @@
+/**
+ * Waffle (https://github.com/dblock/waffle)
+ *
+ * Copyright (c) 2010 - 2014 Application Security, Inc.
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors:
+ *     Application Security, Inc.
+ */
+package waffle.windows.auth;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.junit.Test;
+
+/**
+ * @author dblock[at]dblock[dot]org
+ */
+public class WindowsGroupSetTests {
+
+    private static WindowsAccount newGroup(final int i) {
+        return new WindowsAccount("S-1-5-21-1-2-3-" + (1000 + i), "DOMAIN\\Group" + i, "Group" + i, "DOMAIN");
+    }
+
+    @Test
+    public void testDictionary() {
+        final WindowsGroupDictionary dictionary = new WindowsGroupDictionary(10);
+        final WindowsAccount group = newGroup(0);
+        assertEquals(0, dictionary.getId(group));
+        assertEquals(0, dictionary.getId(newGroup(0)));
+        assertSame(group, dictionary.get(0));
+        assertEquals(1, dictionary.getId(newGroup(1)));
+        // a renamed group gets a new id, both ids are found by SID
+        assertEquals(2, dictionary.getId(new WindowsAccount(group.getSidString(), "DOMAIN\\Renamed", "Renamed",
+                "DOMAIN")));
+        assertEquals(Arrays.toString(new int[] { 0, 2 }), Arrays.toString(dictionary.getIds("s-1-5-21-1-2-3-1000")));
+        assertEquals(Arrays.toString(new int[] { 1 }), Arrays.toString(dictionary.getIds("domain\\group1")));
+        assertEquals(0, dictionary.getIds("DOMAIN\\Group9").length);
+        assertEquals(-1, dictionary.getId(new WindowsAccount(null, "Nobody", "Nobody", "")));
+        assertEquals(3, dictionary.size());
+    }
+
+    @Test
+    public void testContains() {
+        final WindowsGroupDictionary dictionary = new WindowsGroupDictionary(1000);
+        final List<WindowsAccount> groups = new ArrayList<WindowsAccount>();
+        for (int i = 0; i < 500; i++) {
+            dictionary.getId(newGroup(i));
+            if (i % 2 == 0) {
+                groups.add(newGroup(i));
+            }
+        }
+        final WindowsGroupSet dense = WindowsGroupSet.of(dictionary, groups);
+        assertEquals(250, dense.size());
+        assertTrue(dense.contains(498));
+        assertFalse(dense.contains(499));
+        assertFalse(dense.contains(5000));
+        assertTrue(dense.containsName("domain\\GROUP4"));
+        assertTrue(dense.containsName("S-1-5-21-1-2-3-1004"));
+        assertFalse(dense.containsName("DOMAIN\\Group5"));
+        assertFalse(dense.containsName(null));
+
+        final WindowsGroupSet sparse = WindowsGroupSet.of(dictionary, Arrays.asList(newGroup(3), newGroup(499),
+                newGroup(3)));
+        assertEquals(2, sparse.size());
+        assertTrue(sparse.contains(499));
+        assertFalse(sparse.contains(498));
+        assertTrue(sparse.containsName("DOMAIN\\Group3"));
+        assertEquals(Arrays.asList(dictionary.get(3), dictionary.get(499)), sparse.getGroups());
+        assertSame(dictionary.get(499), sparse.getGroupMap().get("DOMAIN\\Group499"));
+    }
+
+    @Test
+    public void testFullDictionary() {
+        final WindowsGroupDictionary dictionary = new WindowsGroupDictionary(1);
+        final WindowsGroupSet groups = WindowsGroupSet.of(dictionary, Arrays.asList(newGroup(0), newGroup(1)));
+        assertEquals(1, dictionary.size());
+        assertEquals(2, groups.size());
+        assertTrue(groups.containsName("DOMAIN\\Group0"));
+        assertTrue(groups.containsName("s-1-5-21-1-2-3-1001"));
+        assertEquals(2, groups.getGroups().size());
+    }
+
+    @Test
+    public void testSerialize() throws IOException, ClassNotFoundException {
+        final WindowsGroupSet groups = WindowsGroupSet.of(Arrays.asList(newGroup(0), newGroup(1)));
+        final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        final ObjectOutputStream out = new ObjectOutputStream(bytes);
+        out.writeObject(groups);
+        out.close();
+        final ObjectInputStream in = new ObjectInputStream(new ByteArrayInputStream(bytes.toByteArray()));
+        final WindowsGroupSet copy = (WindowsGroupSet) in.readObject();
+        assertEquals(groups.getGroups(), copy.getGroups());
+        assertSame(groups.getGroups().get(0), copy.getGroups().get(0));
+        assertSame(WindowsGroupSet.empty(), WindowsGroupSet.of(new ArrayList<WindowsAccount>()));
+    }
+}
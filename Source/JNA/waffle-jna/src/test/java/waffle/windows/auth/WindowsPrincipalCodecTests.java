@@ -0,0 +1,134 @@
+/**
+ * Waffle (https://github.com/dblock/waffle)
+ *
+ * Copyright (c) 2010 - 2014 Application Security, Inc.
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors:
+ *     Application Security, Inc.
+ */
+package waffle.windows.auth;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.StreamCorruptedException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.junit.Test;
+
+/**
+ * @author dblock[at]dblock[dot]org
+ */
+public class WindowsPrincipalCodecTests {
+
+    @Test
+    public void testVarInt() throws IOException {
+        for (int value : new int[] { 0, 1, 127, 128, 16383, 16384, Integer.MAX_VALUE, -1 }) {
+            final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            WindowsPrincipalCodec.writeVarInt(new DataOutputStream(bytes), value);
+            assertEquals(value, WindowsPrincipalCodec.readVarInt(new DataInputStream(new ByteArrayInputStream(bytes
+                    .toByteArray()))));
+        }
+    }
+
+    @Test
+    public void testWriteRead() throws IOException {
+        final byte[] sid = Sid.parse("S-1-5-21-1-2-3-1001").getBytes();
+        final List<WindowsAccount> groups = Arrays.asList(new WindowsAccount("S-1-1-0", "Everyone", "Everyone", ""),
+                new WindowsAccount("S-1-5-21-1-2-3-513", "DOMAIN\\Domain Users", "Domain Users", "DOMAIN"),
+                new WindowsAccount("S-1-5-21-1-2-3-1105", "DOMAIN\\Developers", "Developers", "DOMAIN"),
+                new WindowsAccount("S-99", "odd", "name", null));
+        final List<String> roles = Arrays.asList("DOMAIN\\user", "S-1-5-21-1-2-3-1001", "Everyone",
+                "DOMAIN\\Developers", "S-1-5-21-1-2-3-1105", "odd", "S-99", "extra");
+
+        final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        WindowsPrincipalCodec.write(new DataOutputStream(bytes), "DOMAIN\\user", sid, "S-1-5-21-1-2-3-1001",
+                PrincipalFormat.BOTH, PrincipalFormat.FQN, groups, roles);
+
+        final List<PrincipalFormat> readFormats = new ArrayList<PrincipalFormat>();
+        final List<String> readRoles = new ArrayList<String>();
+        final WindowsIdentitySnapshot snapshot = WindowsPrincipalCodec.read(new DataInputStream(
+                new ByteArrayInputStream(bytes.toByteArray())), readFormats, readRoles);
+        assertEquals(Arrays.asList(PrincipalFormat.BOTH, PrincipalFormat.FQN), readFormats);
+        assertEquals("DOMAIN\\user", snapshot.getFqn());
+        assertArrayEquals(sid, snapshot.getSid());
+        assertEquals("S-1-5-21-1-2-3-1001", snapshot.getSidString());
+        assertEquals(roles, readRoles);
+        assertEquals(groups.size(), snapshot.getGroups().size());
+        for (int i = 0; i < groups.size(); i++) {
+            final WindowsAccount expected = groups.get(i);
+            final WindowsAccount actual = snapshot.getGroups().get(i);
+            assertEquals(expected.getSidString(), actual.getSidString());
+            assertEquals(expected.getFqn(), actual.getFqn());
+            assertEquals(expected.getName(), actual.getName());
+            assertEquals(expected.getDomain(), actual.getDomain());
+        }
+    }
+
+    @Test(expected = StreamCorruptedException.class)
+    public void testUnsupportedVersion() throws IOException {
+        WindowsPrincipalCodec.read(new DataInputStream(new ByteArrayInputStream(new byte[] { 99 })),
+                new ArrayList<PrincipalFormat>(), new ArrayList<String>());
+    }
+
+    @Test
+    public void testNullFormats() throws IOException {
+        final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        WindowsPrincipalCodec.write(new DataOutputStream(bytes), "user", null, null, null, PrincipalFormat.NONE,
+                new ArrayList<WindowsAccount>(), new ArrayList<String>());
+        final List<PrincipalFormat> readFormats = new ArrayList<PrincipalFormat>();
+        WindowsPrincipalCodec.read(new DataInputStream(new ByteArrayInputStream(bytes.toByteArray())), readFormats,
+                new ArrayList<String>());
+        assertEquals(Arrays.asList(null, PrincipalFormat.NONE), readFormats);
+    }
+
+    @Test(expected = StreamCorruptedException.class)
+    public void testInvalidFormat() throws IOException {
+        WindowsPrincipalCodec.read(new DataInputStream(new ByteArrayInputStream(new byte[] {
+                (byte) WindowsPrincipalCodec.VERSION, 9 })), new ArrayList<PrincipalFormat>(), new ArrayList<String>());
+    }
+
+    @Test(expected = StreamCorruptedException.class)
+    public void testNegativeDomainReference() throws IOException {
+        read(0, 1, 0, -1);
+    }
+
+    @Test(expected = StreamCorruptedException.class)
+    public void testNegativeNameType() throws IOException {
+        read(0, 1, 0, 0, 0, -1);
+    }
+
+    @Test(expected = StreamCorruptedException.class)
+    public void testNegativeRoleReference() throws IOException {
+        read(0, 0, 1, -1);
+    }
+
+    /**
+     * Reads a principal with null formats, name and SID, followed by the given varints.
+     */
+    private static WindowsIdentitySnapshot read(final int... values) throws IOException {
+        final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        final DataOutputStream out = new DataOutputStream(bytes);
+        out.writeByte(WindowsPrincipalCodec.VERSION);
+        for (int value : new int[] { 0, 0, 0, 0, 0 }) {
+            WindowsPrincipalCodec.writeVarInt(out, value);
+        }
+        for (int value : values) {
+            WindowsPrincipalCodec.writeVarInt(out, value);
+        }
+        return WindowsPrincipalCodec.read(new DataInputStream(new ByteArrayInputStream(bytes.toByteArray())),
+                new ArrayList<PrincipalFormat>(), new ArrayList<String>());
+    }
+}
@@ -0,0 +1,159 @@
+/**
+ * Waffle (https://github.com/dblock/waffle)
+ *
+ * Copyright (c) 2010 - 2014 Application Security, Inc.
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors:
+ *     Application Security, Inc.
+ */
+package waffle.windows.auth.impl;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.fail;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Test;
+
+import com.sun.jna.platform.win32.Advapi32Util.Account;
+
+/**
+ * @author dblock[at]dblock[dot]org
+ */
+public class WindowsAccountCacheTests {
+
+    // S-1-5-32-544 (BUILTIN\Administrators)
+    private static final byte[] ADMINISTRATORS = { 1, 2, 0, 0, 0, 0, 0, 5, 32, 0, 0, 0, 32, 2, 0, 0 };
+
+    // S-1-5-21-1-2-3-1001
+    private static final byte[] UNKNOWN        = { 1, 5, 0, 0, 0, 0, 0, 5, 21, 0, 0, 0, 1, 0, 0, 0, 2, 0, 0, 0, 3,
+            0, 0, 0, (byte) 0xE9, 3, 0, 0     };
+
+    // S-1-1-0 (Everyone)
+    private static final byte[] EVERYONE       = { 1, 1, 0, 0, 0, 0, 0, 1, 0, 0, 0, 0 };
+
+    private static class TestAccountCache extends WindowsAccountCache {
+
+        private final AtomicInteger lookups    = new AtomicInteger();
+        private final List<byte[]>  lookupSids = new CopyOnWriteArrayList<byte[]>();
+
+        TestAccountCache() {
+            super(600, 60, 100);
+        }
+
+        @Override
+        protected Account[] lookupAccountsBySid(final List<byte[]> sids) {
+            this.lookups.incrementAndGet();
+            this.lookupSids.addAll(sids);
+            try {
+                Thread.sleep(50);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            final Account[] accounts = new Account[sids.size()];
+            for (int i = 0; i < accounts.length; i++) {
+                final byte[] sid = sids.get(i);
+                if (sid[1] == 2) {
+                    accounts[i] = new Account();
+                    accounts[i].sid = sid;
+                    accounts[i].sidString = toSidString(sid);
+                    accounts[i].name = "Administrators";
+                    accounts[i].domain = "BUILTIN";
+                    accounts[i].fqn = "BUILTIN\\Administrators";
+                }
+            }
+            return accounts;
+        }
+    }
+
+    @Test
+    public void testToSidString() {
+        assertEquals("S-1-5-32-544", WindowsAccountCache.toSidString(ADMINISTRATORS));
+        assertEquals("S-1-5-21-1-2-3-1001", WindowsAccountCache.toSidString(UNKNOWN));
+        assertEquals("S-1-1-0", WindowsAccountCache.toSidString(new byte[] { 1, 1, 0, 0, 0, 0, 0, 1, 0, 0, 0, 0 }));
+        assertEquals("S-1-0x010000000000-0",
+                WindowsAccountCache.toSidString(new byte[] { 1, 1, 1, 0, 0, 0, 0, 0, 0, 0, 0, 0 }));
+        try {
+            WindowsAccountCache.toSidString(new byte[] { 1, 2, 0, 0, 0, 0, 0, 5, 32, 0, 0, 0 });
+            fail("expected IllegalArgumentException");
+        } catch (IllegalArgumentException e) {
+            assertEquals("Invalid SID, length: 12", e.getMessage());
+        }
+    }
+
+    @Test
+    public void testGetAccountBySid() {
+        final TestAccountCache cache = new TestAccountCache();
+        final Account account = cache.getAccountBySid(ADMINISTRATORS);
+        assertEquals("BUILTIN\\Administrators", account.fqn);
+        assertSame(account, cache.getAccountBySid(ADMINISTRATORS.clone()));
+        assertEquals(1, cache.lookups.get());
+        assertEquals(1, cache.getHitCount());
+    }
+
+    @Test
+    public void testNegativeCaching() {
+        final TestAccountCache cache = new TestAccountCache();
+        final List<byte[]> sids = new ArrayList<byte[]>();
+        sids.add(ADMINISTRATORS);
+        sids.add(UNKNOWN);
+        Account[] accounts = cache.getAccountsBySid(sids);
+        assertEquals("BUILTIN\\Administrators", accounts[0].fqn);
+        assertEquals("S-1-5-21-1-2-3-1001", accounts[1].fqn);
+        accounts = cache.getAccountsBySid(sids);
+        assertEquals("S-1-5-21-1-2-3-1001", accounts[1].sidString);
+        assertEquals(1, cache.lookups.get());
+        assertEquals(2, cache.size());
+    }
+
+    @Test
+    public void testBatch() {
+        final TestAccountCache cache = new TestAccountCache();
+        cache.getAccountBySid(ADMINISTRATORS);
+        final List<byte[]> sids = new ArrayList<byte[]>();
+        sids.add(UNKNOWN);
+        sids.add(ADMINISTRATORS);
+        sids.add(EVERYONE);
+        sids.add(UNKNOWN.clone());
+        final Account[] accounts = cache.getAccountsBySid(sids);
+        assertEquals(4, accounts.length);
+        assertEquals("S-1-1-0", accounts[2].fqn);
+        assertNull(accounts[3].domain);
+        // the misses are looked up once, together
+        assertEquals(2, cache.lookups.get());
+        assertEquals(3, cache.lookupSids.size());
+        assertEquals("S-1-5-21-1-2-3-1001", WindowsAccountCache.toSidString(cache.lookupSids.get(1)));
+        assertEquals("S-1-1-0", WindowsAccountCache.toSidString(cache.lookupSids.get(2)));
+    }
+
+    @Test
+    public void testSingleFlight() throws InterruptedException {
+        final TestAccountCache cache = new TestAccountCache();
+        final List<Thread> threads = new ArrayList<Thread>();
+        for (int i = 0; i < 8; i++) {
+            final Thread thread = new Thread() {
+                @Override
+                public void run() {
+                    cache.getAccountBySid(ADMINISTRATORS);
+                }
+            };
+            thread.start();
+            threads.add(thread);
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        assertEquals(1, cache.lookups.get());
+        assertEquals(1, cache.getLookupCount());
+    }
+}
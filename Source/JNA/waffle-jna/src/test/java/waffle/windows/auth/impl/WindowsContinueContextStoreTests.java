@@ -0,0 +1,147 @@
+/**
+ * Waffle (https://github.com/dblock/waffle)
+ *
+ * Copyright (c) 2010 - 2014 Application Security, Inc.
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors:
+ *     Application Security, Inc.
+ */
+package waffle.windows.auth.impl;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Test;
+
+import com.sun.jna.platform.win32.Sspi.CtxtHandle;
+
+/**
+ * @author dblock[at]dblock[dot]org
+ */
+public class WindowsContinueContextStoreTests {
+
+    @Test
+    public void testToKey() {
+        assertEquals(Long.valueOf(0x7F000001L << 16 | 8080), WindowsContinueContextStore.toKey("127.0.0.1:8080"));
+        assertEquals(Long.valueOf(0xFFFFFFFFL << 16 | 65535),
+                WindowsContinueContextStore.toKey("255.255.255.255:65535"));
+        assertEquals("localhost:8080", WindowsContinueContextStore.toKey("localhost:8080"));
+        assertEquals("0:0:0:0:0:0:0:1:8080", WindowsContinueContextStore.toKey("0:0:0:0:0:0:0:1:8080"));
+        assertEquals("256.0.0.1:80", WindowsContinueContextStore.toKey("256.0.0.1:80"));
+        assertEquals("1.2.3.4:65536", WindowsContinueContextStore.toKey("1.2.3.4:65536"));
+        assertEquals("1.2.3.4:", WindowsContinueContextStore.toKey("1.2.3.4:"));
+        assertEquals("1.2.3:4", WindowsContinueContextStore.toKey("1.2.3:4"));
+        assertEquals("", WindowsContinueContextStore.toKey(""));
+    }
+
+    @Test
+    public void testPutGetRemove() {
+        final WindowsContinueContextStore store = new WindowsContinueContextStore(30, 10);
+        try {
+            final CtxtHandle ctx = new CtxtHandle();
+            store.put("127.0.0.1:1234", ctx);
+            assertSame(ctx, store.get("127.0.0.1:1234"));
+            assertNull(store.get("127.0.0.1:1235"));
+            assertEquals(1, store.size());
+            assertSame(ctx, store.remove("127.0.0.1:1234"));
+            assertEquals(0, store.size());
+            store.put("localhost:1234", ctx);
+            store.discard("localhost:1234");
+            assertNull(store.get("localhost:1234"));
+            assertEquals(0, store.getEvictionCount());
+        } finally {
+            store.dispose();
+        }
+    }
+
+    @Test
+    public void testMaxSize() {
+        final WindowsContinueContextStore store = new WindowsContinueContextStore(30, 10);
+        try {
+            for (int i = 0; i < 100; i++) {
+                store.put("10.0.0.1:" + i, new CtxtHandle());
+            }
+            assertTrue(store.size() <= 10);
+            assertEquals(100 - store.size(), store.getEvictionCount());
+        } finally {
+            store.dispose();
+        }
+        assertEquals(0, store.size());
+    }
+
+    @Test
+    public void testRemoveTakesOwnership() throws Exception {
+        final Set<CtxtHandle> deleted = Collections.newSetFromMap(new IdentityHashMap<CtxtHandle, Boolean>());
+        final Set<CtxtHandle> owned = Collections.newSetFromMap(new IdentityHashMap<CtxtHandle, Boolean>());
+        final WindowsContinueContextStore store = new WindowsContinueContextStore(30, 1) {
+            @Override
+            void delete(final CtxtHandle ctx) {
+                if (ctx != null) {
+                    synchronized (deleted) {
+                        // a context must not be deleted once a handshake took ownership of it
+                        assertFalse(owned.contains(ctx));
+                        assertTrue(deleted.add(ctx));
+                    }
+                }
+            }
+        };
+        final int threads = 8;
+        final int legs = 2000;
+        final ExecutorService executor = Executors.newFixedThreadPool(threads);
+        try {
+            final CountDownLatch start = new CountDownLatch(1);
+            final Future<?>[] futures = new Future<?>[threads];
+            for (int t = 0; t < threads; t++) {
+                final String connectionId = "10.0.0." + t + ":80";
+                futures[t] = executor.submit(new Runnable() {
+                    @Override
+                    public void run() {
+                        try {
+                            start.await();
+                        } catch (final InterruptedException e) {
+                            Thread.currentThread().interrupt();
+                            return;
+                        }
+                        for (int i = 0; i < legs; i++) {
+                            store.put(connectionId, new CtxtHandle());
+                            final CtxtHandle ctx = store.remove(connectionId);
+                            if (ctx != null) {
+                                synchronized (deleted) {
+                                    assertFalse(deleted.contains(ctx));
+                                    assertTrue(owned.add(ctx));
+                                }
+                            }
+                        }
+                    }
+                });
+            }
+            start.countDown();
+            for (Future<?> future : futures) {
+                future.get(30, TimeUnit.SECONDS);
+            }
+        } finally {
+            executor.shutdownNow();
+            store.dispose();
+        }
+        assertEquals(threads * legs, owned.size() + deleted.size());
+        assertEquals(deleted.size(), store.getEvictionCount());
+        assertEquals(0, store.size());
+    }
+}
@@ -0,0 +1,166 @@
+/**
+ * Waffle (https://github.com/dblock/waffle)
+ *
+ * Copyright (c) 2010 - 2014 Application Security, Inc.
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors:
+ *     Application Security, Inc.
+ */
+package waffle.windows.auth.impl;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.TimeZone;
+
+import org.junit.Test;
+
+import waffle.windows.auth.IWindowsCredentialsHandle;
+
+import com.sun.jna.platform.win32.Sspi.CredHandle;
+import com.sun.jna.platform.win32.Sspi.TimeStamp;
+
+/**
+ * @author dblock[at]dblock[dot]org
+ */
+public class WindowsCredentialsHandleCacheTests {
+
+    private static class TestCredentialsHandle implements IWindowsCredentialsHandle {
+
+        private final long expiry;
+        private boolean    disposed;
+
+        TestCredentialsHandle(final long newExpiry) {
+            this.expiry = newExpiry;
+        }
+
+        @Override
+        public void initialize() {
+            // Do Nothing
+        }
+
+        @Override
+        public void dispose() {
+            this.disposed = true;
+        }
+
+        @Override
+        public CredHandle getHandle() {
+            return null;
+        }
+    }
+
+    private static class TestCredentialsHandleCache extends WindowsCredentialsHandleCache {
+
+        private final List<TestCredentialsHandle> acquired = new ArrayList<TestCredentialsHandle>();
+        private long                              lifetime;
+
+        TestCredentialsHandleCache(final long newLifetime) {
+            super(1000, 60000);
+            this.lifetime = newLifetime;
+        }
+
+        @Override
+        protected IWindowsCredentialsHandle newCredentialsHandle(final String securityPackage) {
+            final TestCredentialsHandle handle = new TestCredentialsHandle(System.currentTimeMillis() + this.lifetime);
+            this.acquired.add(handle);
+            return handle;
+        }
+
+        @Override
+        protected long getExpiry(final IWindowsCredentialsHandle handle) {
+            return ((TestCredentialsHandle) handle).expiry;
+        }
+    }
+
+    @Test
+    public void testGetAcquiresOncePerPackage() {
+        final TestCredentialsHandleCache cache = new TestCredentialsHandleCache(3600000);
+        try {
+            final IWindowsCredentialsHandle negotiate = cache.get("Negotiate");
+            assertSame(negotiate, cache.get("Negotiate"));
+            assertNotSame(negotiate, cache.get("NTLM"));
+            assertEquals(2, cache.getAcquireCount());
+            assertEquals(1, cache.getHitCount());
+            assertEquals(2, cache.size());
+        } finally {
+            cache.dispose();
+        }
+    }
+
+    @Test
+    public void testExpiredHandleIsReplaced() {
+        final TestCredentialsHandleCache cache = new TestCredentialsHandleCache(-1);
+        try {
+            final IWindowsCredentialsHandle first = cache.get("Negotiate");
+            final IWindowsCredentialsHandle second = cache.get("Negotiate");
+            assertNotSame(first, second);
+            assertEquals(2, cache.getAcquireCount());
+            // the replaced handle is freed on the next refresh, not immediately
+            assertFalse(cache.acquired.get(0).disposed);
+            cache.lifetime = 3600000;
+            cache.refresh();
+            assertTrue(cache.acquired.get(0).disposed);
+        } finally {
+            cache.dispose();
+        }
+    }
+
+    @Test
+    public void testRefreshReplacesExpiringHandles() {
+        final TestCredentialsHandleCache cache = new TestCredentialsHandleCache(500);
+        try {
+            final IWindowsCredentialsHandle first = cache.get("Negotiate");
+            cache.lifetime = 3600000;
+            cache.refresh();
+            assertEquals(1, cache.getRefreshCount());
+            final IWindowsCredentialsHandle second = cache.get("Negotiate");
+            assertNotSame(first, second);
+            cache.refresh();
+            assertEquals(1, cache.getRefreshCount());
+            assertTrue(cache.acquired.get(0).disposed);
+        } finally {
+            cache.dispose();
+        }
+    }
+
+    @Test
+    public void testDisposeFreesAllHandles() {
+        final TestCredentialsHandleCache cache = new TestCredentialsHandleCache(3600000);
+        cache.get("Negotiate");
+        cache.get("NTLM");
+        cache.dispose();
+        assertEquals(0, cache.size());
+        for (TestCredentialsHandle handle : cache.acquired) {
+            assertTrue(handle.disposed);
+        }
+    }
+
+    @Test
+    public void testToMillis() {
+        final TimeStamp never = new TimeStamp();
+        never.dwLower = 0xFFFFFFFF;
+        never.dwUpper = 0x7FFFFFFF;
+        assertEquals(Long.MAX_VALUE, WindowsCredentialsHandleCache.toMillis(never));
+        assertEquals(Long.MAX_VALUE, WindowsCredentialsHandleCache.toMillis(null));
+
+        // 2014-01-01T00:00:00 local time
+        final long fileTime = 130330080000000000L;
+        final TimeStamp timeStamp = new TimeStamp();
+        timeStamp.dwLower = (int) fileTime;
+        timeStamp.dwUpper = (int) (fileTime >>> 32);
+        final long localMillis = 1388534400000L;
+        assertEquals(localMillis - TimeZone.getDefault().getOffset(localMillis),
+                WindowsCredentialsHandleCache.toMillis(timeStamp));
+    }
+}
@@ -0,0 +1,69 @@
+/**
+ * Waffle (https://github.com/dblock/waffle)
+ *
+ * Copyright (c) 2010 - 2014 Application Security, Inc.
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors:
+ *     Application Security, Inc.
+ */
+package waffle.windows.auth.impl;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+
+import org.junit.Test;
+
+import com.sun.jna.platform.win32.Sspi;
+import com.sun.jna.platform.win32.Sspi.SecBufferDesc;
+
+/**
+ * @author dblock[at]dblock[dot]org
+ */
+public class WindowsTokenBufferPoolTests {
+
+    @Test
+    public void testAcquireRelease() {
+        final WindowsTokenBufferPool pool = new WindowsTokenBufferPool(2);
+        final SecBufferDesc first = pool.acquire(Sspi.MAX_TOKEN_SIZE);
+        assertEquals(3 * WindowsTokenBufferPool.SIZE_CLASS, first.pBuffers[0].cbBuffer);
+        assertEquals(Sspi.SECBUFFER_TOKEN, first.pBuffers[0].BufferType);
+        pool.release(first);
+        final SecBufferDesc second = pool.acquire(Sspi.MAX_TOKEN_SIZE - 100);
+        assertSame(first, second);
+        assertNotSame(second, pool.acquire(Sspi.MAX_TOKEN_SIZE));
+        assertEquals(2, pool.getAllocationCount());
+        assertEquals(1, pool.getReuseCount());
+    }
+
+    @Test
+    public void testInputToken() {
+        final WindowsTokenBufferPool pool = new WindowsTokenBufferPool(2);
+        final byte[] token = new byte[] { 1, 2, 3, 4, 5 };
+        final SecBufferDesc desc = pool.acquire(token);
+        assertEquals(token.length, desc.pBuffers[0].cbBuffer);
+        assertArrayEquals(token, desc.getBytes());
+        pool.release(desc);
+        // the previous token was cleared
+        final SecBufferDesc reused = pool.acquire(1);
+        assertSame(desc, reused);
+        assertArrayEquals(new byte[token.length], reused.pBuffers[0].pvBuffer.getByteArray(0, token.length));
+    }
+
+    @Test
+    public void testTokenSize() {
+        final WindowsTokenBufferPool pool = new WindowsTokenBufferPool(2);
+        assertEquals(Sspi.MAX_TOKEN_SIZE, pool.getTokenSize("Negotiate"));
+        pool.setTokenSize("Negotiate", 2 * Sspi.MAX_TOKEN_SIZE);
+        pool.setTokenSize("Negotiate", Sspi.MAX_TOKEN_SIZE);
+        assertEquals(2 * Sspi.MAX_TOKEN_SIZE, pool.getTokenSize("Negotiate"));
+        assertEquals(Sspi.MAX_TOKEN_SIZE, pool.getTokenSize("NTLM"));
+        assertEquals(Sspi.MAX_TOKEN_SIZE, pool.getTokenSize(null));
+    }
+}
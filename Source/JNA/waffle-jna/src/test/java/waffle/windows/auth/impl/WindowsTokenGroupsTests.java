@@ -0,0 +1,56 @@
+/**
+ * Waffle (https://github.com/dblock/waffle)
+ *
+ * Copyright (c) 2010 - 2014 Application Security, Inc.
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors:
+ *     Application Security, Inc.
+ */
+package waffle.windows.auth.impl;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.Test;
+
+import waffle.windows.auth.IWindowsAccount;
+import waffle.windows.auth.WindowsGroupFilter;
+
+/**
+ * @author dblock[at]dblock[dot]org
+ */
+public class WindowsTokenGroupsTests {
+
+    // S-1-1-0 (Everyone)
+    private static final byte[] EVERYONE       = { 1, 1, 0, 0, 0, 0, 0, 1, 0, 0, 0, 0 };
+
+    // S-1-5-32-544 (BUILTIN\Administrators)
+    private static final byte[] ADMINISTRATORS = { 1, 2, 0, 0, 0, 0, 0, 5, 32, 0, 0, 0, 32, 2, 0, 0 };
+
+    @Test
+    public void testGroupSidsAreNotResolved() {
+        final List<byte[]> sids = new ArrayList<byte[]>();
+        sids.add(EVERYONE);
+        sids.add(ADMINISTRATORS);
+        final WindowsTokenGroups groups = new WindowsTokenGroups(sids);
+
+        final IWindowsAccount[] all = groups.getGroupSids(WindowsGroupFilter.all());
+        assertEquals(2, all.length);
+        assertEquals("S-1-1-0", all[0].getSidString());
+        assertEquals("S-1-1-0", all[0].getFqn());
+        assertEquals("S-1-5-32-544", all[1].getFqn());
+
+        final IWindowsAccount[] filtered = groups.getGroupSids(WindowsGroupFilter.of("S-1-5-32-544", null, null));
+        assertEquals(1, filtered.length);
+        assertEquals("S-1-5-32-544", filtered[0].getSidString());
+        assertFalse(groups.isResolved());
+    }
+}
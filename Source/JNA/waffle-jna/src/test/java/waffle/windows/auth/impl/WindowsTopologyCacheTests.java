@@ -0,0 +1,194 @@
+/**
+ * Waffle (https://github.com/dblock/waffle)
+ *
+ * Copyright (c) 2010 - 2014 Application Security, Inc.
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors:
+ *     Application Security, Inc.
+ */
+package waffle.windows.auth.impl;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import org.junit.Test;
+
+import waffle.windows.auth.IWindowsComputer;
+import waffle.windows.auth.IWindowsDomain;
+
+/**
+ * @author dblock[at]dblock[dot]org
+ */
+public class WindowsTopologyCacheTests {
+
+    private static class TestTopologyCache extends WindowsTopologyCache {
+
+        private int              computerLoads;
+        private IWindowsDomain[] domains;
+        private RuntimeException domainsError;
+        private RuntimeException computerError;
+        private boolean          disposeOnLoad;
+
+        TestTopologyCache() {
+            super(3600);
+        }
+
+        @Override
+        protected IWindowsComputer loadComputer() {
+            if (this.computerError != null) {
+                throw this.computerError;
+            }
+            this.computerLoads++;
+            if (this.disposeOnLoad) {
+                this.disposeOnLoad = false;
+                dispose();
+            }
+            return new CachedComputer("computer" + this.computerLoads, "DOMAIN", "NetSetupDomainName",
+                    new String[] { "Administrators", "Users" });
+        }
+
+        @Override
+        protected IWindowsDomain[] loadDomains() {
+            if (this.domainsError != null) {
+                throw this.domainsError;
+            }
+            return this.domains;
+        }
+    }
+
+    @Test
+    public void testReadsFromMemory() {
+        final TestTopologyCache cache = new TestTopologyCache();
+        cache.domains = new IWindowsDomain[] { new WindowsDomainImpl("domain.local") };
+        try {
+            final IWindowsComputer computer = cache.getComputer();
+            assertEquals("computer1", computer.getComputerName());
+            assertArrayEquals(new String[] { "Administrators", "Users" }, computer.getGroups());
+            assertSame(computer, cache.getComputer());
+            assertEquals("domain.local", cache.getDomains()[0].getFqn());
+            assertEquals(1, cache.getLoadCount());
+        } finally {
+            cache.dispose();
+        }
+    }
+
+    @Test
+    public void testRefresh() {
+        final TestTopologyCache cache = new TestTopologyCache();
+        cache.domains = new IWindowsDomain[] { new WindowsDomainImpl("domain.local") };
+        try {
+            cache.getComputer();
+            cache.refresh();
+            assertEquals("computer2", cache.getComputer().getComputerName());
+            // a failed refresh keeps the previous topology
+            cache.computerError = new RuntimeException("computer");
+            cache.refresh();
+            assertEquals("computer2", cache.getComputer().getComputerName());
+            cache.computerError = null;
+            cache.domainsError = new RuntimeException("domains");
+            cache.refresh();
+            assertEquals("computer3", cache.getComputer().getComputerName());
+            assertEquals("domain.local", cache.getDomains()[0].getFqn());
+        } finally {
+            cache.dispose();
+        }
+    }
+
+    @Test
+    public void testDomainsError() {
+        final TestTopologyCache cache = new TestTopologyCache();
+        cache.domainsError = new RuntimeException("not joined");
+        try {
+            assertEquals("computer1", cache.getComputer().getComputerName());
+            final RuntimeException first = getDomainsError(cache);
+            assertEquals("not joined", first.getMessage());
+            assertSame(cache.domainsError, first.getCause());
+            // every caller gets a new exception
+            final RuntimeException second = getDomainsError(cache);
+            assertNotSame(first, second);
+            assertSame(cache.domainsError, second.getCause());
+        } finally {
+            cache.dispose();
+        }
+    }
+
+    @Test
+    public void testDisposeStopsRefresh() throws InterruptedException {
+        final TestTopologyCache cache = new TestTopologyCache();
+        cache.domains = new IWindowsDomain[0];
+        cache.getComputer();
+        assertTrue(hasRefreshThread());
+        cache.dispose();
+        for (int i = 0; i < 100 && hasRefreshThread(); i++) {
+            Thread.sleep(10);
+        }
+        assertFalse(hasRefreshThread());
+        // loaded again on next use
+        assertEquals("computer2", cache.getComputer().getComputerName());
+        cache.dispose();
+    }
+
+    @Test
+    public void testRefreshAcrossDispose() {
+        final TestTopologyCache cache = new TestTopologyCache();
+        cache.domains = new IWindowsDomain[0];
+        try {
+            cache.getComputer();
+            cache.disposeOnLoad = true;
+            cache.refresh();
+            // the refreshed topology is not published after the dispose, it is loaded again
+            assertEquals("computer3", cache.getComputer().getComputerName());
+            assertEquals(3, cache.getLoadCount());
+        } finally {
+            cache.dispose();
+        }
+    }
+
+    @Test
+    public void testRelease() {
+        final TestTopologyCache cache = new TestTopologyCache();
+        cache.domains = new IWindowsDomain[0];
+        try {
+            cache.release();
+            cache.acquire();
+            cache.acquire();
+            cache.getComputer();
+            cache.release();
+            assertEquals("computer1", cache.getComputer().getComputerName());
+            // the last release disposes
+            cache.release();
+            assertEquals("computer2", cache.getComputer().getComputerName());
+        } finally {
+            cache.dispose();
+        }
+    }
+
+    private static boolean hasRefreshThread() {
+        for (Thread thread : Thread.getAllStackTraces().keySet()) {
+            if (thread.isAlive() && thread.getName().startsWith("waffle-topology-refresh-")) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static RuntimeException getDomainsError(final WindowsTopologyCache cache) {
+        try {
+            cache.getDomains();
+        } catch (RuntimeException e) {
+            return e;
+        }
+        fail("expected RuntimeException");
+        return null;
+    }
+}
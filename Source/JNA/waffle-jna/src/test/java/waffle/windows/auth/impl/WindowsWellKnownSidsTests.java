@@ -0,0 +1,54 @@
+/**
+ * Waffle (https://github.com/dblock/waffle)
+ *
+ * Copyright (c) 2010 - 2014 Application Security, Inc.
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors:
+ *     Application Security, Inc.
+ */
+package waffle.windows.auth.impl;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+/**
+ * @author dblock[at]dblock[dot]org
+ */
+public class WindowsWellKnownSidsTests {
+
+    @Test
+    public void testNewSid() {
+        assertEquals("S-1-5-32-546", WindowsAccountCache.toSidString(WindowsWellKnownSids.newSid(5, 32, 546)));
+        assertEquals("S-1-5-21-1004336348-1177238915-682003330-501", WindowsAccountCache
+                .toSidString(WindowsWellKnownSids.newSid(5, 21, 1004336348, 1177238915, 682003330, 501)));
+    }
+
+    @Test
+    public void testIsGuest() {
+        assertTrue(WindowsWellKnownSids.isGuest(WindowsWellKnownSids.newSid(5, 32, 546)));
+        assertTrue(WindowsWellKnownSids.isGuest(WindowsWellKnownSids.newSid(5, 21, 1, 2, 3, 501)));
+        assertTrue(WindowsWellKnownSids.isGuest(WindowsWellKnownSids.newSid(5, 21, 1, 2, 3, 514)));
+        assertFalse(WindowsWellKnownSids.isGuest(WindowsWellKnownSids.newSid(5, 32, 544)));
+        assertFalse(WindowsWellKnownSids.isGuest(WindowsWellKnownSids.newSid(5, 21, 1, 2, 3, 500)));
+        assertFalse(WindowsWellKnownSids.isGuest(WindowsWellKnownSids.newSid(5, 21, 1, 2, 3, 4, 501)));
+        assertFalse(WindowsWellKnownSids.isGuest(WindowsWellKnownSids.newSid(5, 32, 1, 2, 3, 501)));
+        assertFalse(WindowsWellKnownSids.isGuest(WindowsWellKnownSids.newSid(1, 21, 1, 2, 3, 501)));
+        assertFalse(WindowsWellKnownSids.isGuest(new byte[0]));
+        assertFalse(WindowsWellKnownSids.isGuest(null));
+    }
+
+    @Test
+    public void testIsAnonymous() {
+        assertTrue(WindowsWellKnownSids.isAnonymous(WindowsWellKnownSids.newSid(5, 7)));
+        assertFalse(WindowsWellKnownSids.isAnonymous(WindowsWellKnownSids.newSid(5, 18)));
+        assertFalse(WindowsWellKnownSids.isAnonymous(null));
+    }
+}
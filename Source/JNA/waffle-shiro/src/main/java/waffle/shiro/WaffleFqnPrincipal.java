@@ -18,19 +18,23 @@ import java.util.Collections;
 import java.util.HashSet;
 import java.util.Set;
 
-import waffle.windows.auth.IWindowsAccount;
 import waffle.windows.auth.IWindowsIdentity;
+import waffle.windows.auth.WindowsAccount;
+import waffle.windows.auth.WindowsGroupSet;
+import waffle.windows.auth.WindowsIdentitySnapshot;
 
 public class WaffleFqnPrincipal implements Serializable {
-    private static final long serialVersionUID = 1;
-    private final String      fqn;
-    private final Set<String> groupFqns        = new HashSet<String>();
+    private static final long     serialVersionUID = 2;
+    private final String          fqn;
+    private final WindowsGroupSet groups;
 
     WaffleFqnPrincipal(final IWindowsIdentity identity) {
-        this.fqn = identity.getFqn();
-        for (IWindowsAccount group : identity.getGroups()) {
-            this.groupFqns.add(group.getFqn());
-        }
+        this(WindowsIdentitySnapshot.of(identity));
+    }
+
+    WaffleFqnPrincipal(final WindowsIdentitySnapshot snapshot) {
+        this.fqn = snapshot.getFqn();
+        this.groups = WindowsGroupSet.of(snapshot.getGroups());
     }
 
     /**
@@ -44,7 +48,18 @@ public class WaffleFqnPrincipal implements Serializable {
      * Returns the fully qualified names of all groups that the use belongs to
      */
     public Set<String> getGroupFqns() {
-        return Collections.unmodifiableSet(this.groupFqns);
+        final Set<String> groupFqns = new HashSet<String>();
+        for (WindowsAccount group : this.groups.getGroups()) {
+            groupFqns.add(group.getFqn());
+        }
+        return Collections.unmodifiableSet(groupFqns);
+    }
+
+    /**
+     * Returns the groups that the user belongs to, as ids into the process-wide group dictionary
+     */
+    public WindowsGroupSet getGroups() {
+        return this.groups;
     }
 
     @Override
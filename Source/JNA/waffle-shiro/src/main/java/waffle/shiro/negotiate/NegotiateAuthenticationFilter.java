@@ -37,11 +37,16 @@ import org.slf4j.LoggerFactory;
 
 import com.google.common.io.BaseEncoding;
 
+import waffle.servlet.spi.ChallengeMode;
+import waffle.servlet.spi.ConnectionIdStrategy;
 import waffle.util.AuthorizationHeader;
 import waffle.util.NtlmServletRequest;
+import waffle.util.WaffleMetrics;
+import waffle.windows.auth.impl.WindowsTopologyCache;
 
 import java.io.IOException;
-import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
 import java.util.List;
 
 /**
@@ -63,16 +68,18 @@ public class NegotiateAuthenticationFilter extends AuthenticatingFilter {
     // related to setSPN and running tomcat server as NT Service account vs. as normal user account.
     // http://waffle.codeplex.com/discussions/254748
     // setspn -A HTTP/<server-fqdn> <user_tomcat_running_under>
-    private static final List<String> PROTOCOLS           = new ArrayList<String>();
+    private static final List<String> PROTOCOLS           = Collections.unmodifiableList(Arrays.asList("Negotiate",
+                                                                  "NTLM"));
 
     private String                    failureKeyAttribute = FormAuthenticationFilter.DEFAULT_ERROR_KEY_ATTRIBUTE_NAME;
 
     private String                    rememberMeParam     = FormAuthenticationFilter.DEFAULT_REMEMBER_ME_PARAM;
 
-    public NegotiateAuthenticationFilter() {
-        NegotiateAuthenticationFilter.PROTOCOLS.add("Negotiate");
-        NegotiateAuthenticationFilter.PROTOCOLS.add("NTLM");
-    }
+    private ConnectionIdStrategy      connectionIdStrategy;
+
+    private ChallengeMode             challengeMode       = ChallengeMode.ERROR;
+    private boolean                   metrics;
+    private boolean                   topology;
 
     public String getRememberMeParam() {
         return this.rememberMeParam;
@@ -93,6 +100,77 @@ public class NegotiateAuthenticationFilter extends AuthenticatingFilter {
         this.rememberMeParam = value;
     }
 
+    public ConnectionIdStrategy getConnectionIdStrategy() {
+        return this.connectionIdStrategy;
+    }
+
+    /**
+     * Sets the strategy identifying the connection an NTLM or Negotiate handshake is in progress on. Unless overridden
+     * by calling this method, connections are identified by the remote address and port.
+     * 
+     * @param value
+     *            Connection id strategy.
+     */
+    public void setConnectionIdStrategy(final ConnectionIdStrategy value) {
+        this.connectionIdStrategy = value;
+    }
+
+    public ChallengeMode getChallengeMode() {
+        return this.challengeMode;
+    }
+
+    /**
+     * Sets how a failed negotiation is answered. Unless overridden by calling this method, the default is
+     * <code>error</code>, which renders the container's error page; <code>status</code> sends an empty body.
+     * 
+     * @param value
+     *            Challenge mode.
+     */
+    public void setChallengeMode(final String value) {
+        this.challengeMode = ChallengeMode.parse(value);
+    }
+
+    public boolean isMetrics() {
+        return WaffleMetrics.getDefault().isEnabled();
+    }
+
+    /**
+     * Records authentication counters and latencies in {@link WaffleMetrics}, exposed over JMX.
+     * 
+     * @param value
+     *            True to record metrics.
+     */
+    public void setMetrics(final boolean value) {
+        if (value == this.metrics) {
+            return;
+        }
+        this.metrics = value;
+        if (value) {
+            WaffleMetrics.getDefault().enable();
+        } else {
+            WaffleMetrics.getDefault().disable();
+        }
+    }
+
+    @Override
+    protected void onFilterConfigSet() throws Exception {
+        super.onFilterConfigSet();
+        if (!this.topology) {
+            WindowsTopologyCache.getDefault().acquire();
+            this.topology = true;
+        }
+    }
+
+    @Override
+    public void destroy() {
+        setMetrics(false);
+        if (this.topology) {
+            WindowsTopologyCache.getDefault().release();
+            this.topology = false;
+        }
+        super.destroy();
+    }
+
     @Override
     protected boolean isRememberMe(final ServletRequest request) {
         return WebUtils.isTrue(request, getRememberMeParam());
@@ -106,11 +184,13 @@ public class NegotiateAuthenticationFilter extends AuthenticatingFilter {
 
         // maintain a connection-based session for NTLM tokens
         // TODO see about changing this parameter to ServletRequest in waffle
-        final String connectionId = NtlmServletRequest.getConnectionId((HttpServletRequest) request);
+        final HttpServletRequest httpRequest = (HttpServletRequest) request;
+        final String connectionId = this.connectionIdStrategy == null ? NtlmServletRequest.getConnectionId(httpRequest)
+                : this.connectionIdStrategy.getConnectionId(httpRequest);
         final String securityPackage = elements[0];
 
         // TODO see about changing this parameter to ServletRequest in waffle
-        final AuthorizationHeader authorizationHeader = new AuthorizationHeader((HttpServletRequest) request);
+        final AuthorizationHeader authorizationHeader = AuthorizationHeader.of((HttpServletRequest) request);
         final boolean ntlmPost = authorizationHeader.isNtlmType1PostAuthorizationHeader();
 
         LOGGER.debug("security package: {}, connection id: {}, ntlmPost: {}", securityPackage, connectionId,
@@ -180,7 +260,7 @@ public class NegotiateAuthenticationFilter extends AuthenticatingFilter {
      * <p/>
      * The default implementation obtains the value of the request's
      * {@link org.apache.shiro.web.filter.authc.BasicHttpAuthenticationFilter#AUTHORIZATION_HEADER AUTHORIZATION_HEADER}
-     * , and if it is not <code>null</code>, delegates to
+     * , and if it is a well-formed header (see {@link AuthorizationHeader#isValid()}), delegates to
      * {@link org.apache.shiro.web.filter.authc.BasicHttpAuthenticationFilter#isLoginAttempt(String)
      * isLoginAttempt(authzHeaderValue)}. If the header is <code>null</code>, <code>false</code> is returned.
      * 
@@ -189,8 +269,8 @@ public class NegotiateAuthenticationFilter extends AuthenticatingFilter {
      * @return true if the incoming request is an attempt to log in based, false otherwise
      */
     boolean isLoginAttempt(final ServletRequest request) {
-        final String authzHeader = getAuthzHeader(request);
-        return authzHeader != null && isLoginAttempt(authzHeader);
+        final AuthorizationHeader authorizationHeader = AuthorizationHeader.of(WebUtils.toHttp(request));
+        return authorizationHeader.isValid() && isLoginAttempt(authorizationHeader.getHeader());
     }
 
     /**
@@ -261,9 +341,7 @@ public class NegotiateAuthenticationFilter extends AuthenticatingFilter {
 
     void sendChallengeDuringNegotiate(final String protocol, final ServletResponse response, final byte[] out) {
 
-        final List<String> protocolsList = new ArrayList<String>();
-        protocolsList.add(protocol);
-        sendChallenge(protocolsList, response, out);
+        sendChallenge(Collections.singletonList(protocol), response, out);
     }
 
     void sendChallengeOnFailure(final ServletResponse response) {
@@ -271,8 +349,7 @@ public class NegotiateAuthenticationFilter extends AuthenticatingFilter {
         sendUnauthorized(PROTOCOLS, null, httpResponse);
         httpResponse.setHeader("Connection", "close");
         try {
-            httpResponse.sendError(HttpServletResponse.SC_UNAUTHORIZED);
-            httpResponse.flushBuffer();
+            this.challengeMode.sendUnauthorized(httpResponse);
         } catch (IOException e) {
             throw new RuntimeException(e);
         }
@@ -31,10 +31,14 @@ import org.springframework.security.context.SecurityContextHolder;
 import org.springframework.web.filter.GenericFilterBean;
 
 import waffle.servlet.WindowsPrincipal;
+import waffle.servlet.spi.ChallengeMode;
 import waffle.servlet.spi.SecurityFilterProviderCollection;
-import waffle.util.AuthorizationHeader;
+import waffle.util.AuthorizationHeaderStatus;
+import waffle.util.WaffleMetrics;
 import waffle.windows.auth.IWindowsIdentity;
 import waffle.windows.auth.PrincipalFormat;
+import waffle.windows.auth.WindowsGroupFilter;
+import waffle.windows.auth.impl.WindowsTopologyCache;
 
 /**
  * A Spring Negotiate security filter.
@@ -49,6 +53,10 @@ public class NegotiateSecurityFilter extends GenericFilterBean {
     private PrincipalFormat                  principalFormat         = PrincipalFormat.FQN;
     private PrincipalFormat                  roleFormat              = PrincipalFormat.FQN;
     private boolean                          allowGuestLogin         = true;
+    private WindowsGroupFilter               groupFilter             = WindowsGroupFilter.all();
+    private ChallengeMode                    challengeMode           = ChallengeMode.ERROR;
+    private boolean                          metrics;
+    private boolean                          topology;
 
     private GrantedAuthorityFactory          grantedAuthorityFactory = WindowsAuthenticationToken.DEFAULT_GRANTED_AUTHORITY_FACTORY;
     private GrantedAuthority                 defaultGrantedAuthority = WindowsAuthenticationToken.DEFAULT_GRANTED_AUTHORITY;
@@ -68,11 +76,10 @@ public class NegotiateSecurityFilter extends GenericFilterBean {
         LOGGER.debug("{} {}, contentlength: {}", request.getMethod(), request.getRequestURI(),
                 Integer.valueOf(request.getContentLength()));
 
-        final AuthorizationHeader authorizationHeader = new AuthorizationHeader(request);
+        final AuthorizationHeaderStatus status = this.provider.validate(request);
 
         // authenticate user
-        if (!authorizationHeader.isNull()
-                && this.provider.isSecurityPackageSupported(authorizationHeader.getSecurityPackage())) {
+        if (status == AuthorizationHeaderStatus.VALID) {
 
             // log the user in using the token
             IWindowsIdentity windowsIdentity;
@@ -99,9 +106,11 @@ public class NegotiateSecurityFilter extends GenericFilterBean {
                 LOGGER.debug("logged in user: {} ({})", windowsIdentity.getFqn(), windowsIdentity.getSidString());
 
                 final WindowsPrincipal principal = new WindowsPrincipal(windowsIdentity, this.principalFormat,
-                        this.roleFormat);
+                        this.roleFormat, this.groupFilter);
 
-                LOGGER.debug("roles: {}", principal.getRolesString());
+                if (LOGGER.isDebugEnabled()) {
+                    LOGGER.debug("roles: {}", principal.getRolesString());
+                }
 
                 final Authentication authentication = new WindowsAuthenticationToken(principal,
                         this.grantedAuthorityFactory, this.defaultGrantedAuthority);
@@ -125,6 +134,21 @@ public class NegotiateSecurityFilter extends GenericFilterBean {
         if (this.provider == null) {
             throw new ServletException("Missing NegotiateSecurityFilter.Provider");
         }
+
+        if (!this.topology) {
+            WindowsTopologyCache.getDefault().acquire();
+            this.topology = true;
+        }
+    }
+
+    @Override
+    public void destroy() {
+        setMetrics(false);
+        if (this.topology) {
+            WindowsTopologyCache.getDefault().release();
+            this.topology = false;
+        }
+        super.destroy();
     }
 
     /**
@@ -143,8 +167,7 @@ public class NegotiateSecurityFilter extends GenericFilterBean {
             } else {
                 response.setHeader("Connection", "keep-alive");
             }
-            response.sendError(HttpServletResponse.SC_UNAUTHORIZED);
-            response.flushBuffer();
+            this.challengeMode.sendUnauthorized(response);
         } catch (IOException e) {
             throw new RuntimeException(e);
         }
@@ -190,6 +213,52 @@ public class NegotiateSecurityFilter extends GenericFilterBean {
         this.allowGuestLogin = value;
     }
 
+    public WindowsGroupFilter getGroupFilter() {
+        return this.groupFilter;
+    }
+
+    public void setGroupFilter(final WindowsGroupFilter value) {
+        this.groupFilter = value;
+    }
+
+    public ChallengeMode getChallengeModeEnum() {
+        return this.challengeMode;
+    }
+
+    public String getChallengeMode() {
+        return String.valueOf(this.getChallengeModeEnum());
+    }
+
+    public void setChallengeModeEnum(final ChallengeMode value) {
+        this.challengeMode = value;
+    }
+
+    public void setChallengeMode(final String value) {
+        this.setChallengeModeEnum(ChallengeMode.parse(value));
+    }
+
+    public boolean isMetrics() {
+        return WaffleMetrics.getDefault().isEnabled();
+    }
+
+    /**
+     * Record authentication counters and latencies in {@link WaffleMetrics}, exposed over JMX.
+     * 
+     * @param value
+     *            True to record metrics.
+     */
+    public void setMetrics(final boolean value) {
+        if (value == this.metrics) {
+            return;
+        }
+        this.metrics = value;
+        if (value) {
+            WaffleMetrics.getDefault().enable();
+        } else {
+            WaffleMetrics.getDefault().disable();
+        }
+    }
+
     public SecurityFilterProviderCollection getProvider() {
         return this.provider;
     }
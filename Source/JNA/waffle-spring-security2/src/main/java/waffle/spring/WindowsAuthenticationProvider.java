@@ -26,6 +26,7 @@ import waffle.servlet.WindowsPrincipal;
 import waffle.windows.auth.IWindowsAuthProvider;
 import waffle.windows.auth.IWindowsIdentity;
 import waffle.windows.auth.PrincipalFormat;
+import waffle.windows.auth.WindowsGroupFilter;
 
 /**
  * A Waffle authentication provider for Spring-security.
@@ -39,6 +40,7 @@ public class WindowsAuthenticationProvider implements AuthenticationProvider {
     private PrincipalFormat         principalFormat         = PrincipalFormat.FQN;
     private PrincipalFormat         roleFormat              = PrincipalFormat.FQN;
     private boolean                 allowGuestLogin         = true;
+    private WindowsGroupFilter      groupFilter             = WindowsGroupFilter.all();
     private IWindowsAuthProvider    authProvider;
     private GrantedAuthorityFactory grantedAuthorityFactory = WindowsAuthenticationToken.DEFAULT_GRANTED_AUTHORITY_FACTORY;
     private GrantedAuthority        defaultGrantedAuthority = WindowsAuthenticationToken.DEFAULT_GRANTED_AUTHORITY;
@@ -60,8 +62,10 @@ public class WindowsAuthenticationProvider implements AuthenticationProvider {
         }
 
         final WindowsPrincipal windowsPrincipal = new WindowsPrincipal(windowsIdentity, this.principalFormat,
-                this.roleFormat);
-        LOGGER.debug("roles: {}", windowsPrincipal.getRolesString());
+                this.roleFormat, this.groupFilter);
+        if (LOGGER.isDebugEnabled()) {
+            LOGGER.debug("roles: {}", windowsPrincipal.getRolesString());
+        }
 
         final WindowsAuthenticationToken token = new WindowsAuthenticationToken(windowsPrincipal,
                 this.grantedAuthorityFactory, this.defaultGrantedAuthority);
@@ -117,6 +121,14 @@ public class WindowsAuthenticationProvider implements AuthenticationProvider {
         this.allowGuestLogin = value;
     }
 
+    public WindowsGroupFilter getGroupFilter() {
+        return this.groupFilter;
+    }
+
+    public void setGroupFilter(final WindowsGroupFilter value) {
+        this.groupFilter = value;
+    }
+
     public IWindowsAuthProvider getAuthProvider() {
         return this.authProvider;
     }
@@ -14,6 +14,7 @@
 package waffle.mock;
 
 import waffle.windows.auth.IWindowsAccount;
+import waffle.windows.auth.Sid;
 
 /**
  * @author dblock[at]dblock[dot]org
@@ -63,4 +64,9 @@ public class MockWindowsAccount implements IWindowsAccount {
     public String getSidString() {
         return this.sid;
     }
+
+    @Override
+    public Sid getSecurityIdentifier() {
+        return Sid.tryParse(getSidString());
+    }
 }
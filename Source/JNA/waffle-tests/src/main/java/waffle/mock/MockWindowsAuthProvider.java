@@ -36,6 +36,8 @@ public class MockWindowsAuthProvider implements IWindowsAuthProvider {
 
     private List<String>        groups = new ArrayList<String>();
 
+    private long                latency;
+
     public MockWindowsAuthProvider() {
         this.groups.add("Users");
         this.groups.add("Everyone");
@@ -45,9 +47,30 @@ public class MockWindowsAuthProvider implements IWindowsAuthProvider {
         this.groups.add(name);
     }
 
+    /**
+     * Simulate a slow domain controller.
+     * 
+     * @param millis
+     *            Time each token validation and logon takes, in milliseconds.
+     */
+    public void setLatency(final long millis) {
+        this.latency = millis;
+    }
+
+    private void sleep() {
+        if (this.latency > 0) {
+            try {
+                Thread.sleep(this.latency);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
     @Override
     public IWindowsSecurityContext acceptSecurityToken(final String connectionId, final byte[] token,
             final String securityPackage) {
+        sleep();
         return new MockWindowsSecurityContext(new String(token, Charsets.UTF_8));
     }
 
@@ -77,6 +100,7 @@ public class MockWindowsAuthProvider implements IWindowsAuthProvider {
      */
     @Override
     public IWindowsIdentity logonUser(final String username, final String password) {
+        sleep();
         final String currentUsername = Secur32Util.getUserNameEx(EXTENDED_NAME_FORMAT.NameSamCompatible);
         if (username.equals(currentUsername)) {
             return new MockWindowsIdentity(currentUsername, this.groups);
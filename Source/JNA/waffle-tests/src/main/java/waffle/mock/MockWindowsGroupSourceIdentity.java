@@ -0,0 +1,100 @@
+/**
+ * Waffle (https://github.com/dblock/waffle)
+ *
+ * Copyright (c) 2010 - 2014 Application Security, Inc.
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors:
+ *     Application Security, Inc.
+ */
+package waffle.mock;
+
+import java.util.List;
+
+import waffle.windows.auth.IWindowsAccount;
+import waffle.windows.auth.IWindowsGroupSource;
+import waffle.windows.auth.WindowsGroupFilter;
+
+/**
+ * A mock windows identity that hands out its groups like an access token does: groups are read when detached and
+ * resolved later, and the identity can no longer be queried for groups once disposed. Group SIDs are returned without
+ * counting as a resolution.
+ * 
+ * @author dblock[at]dblock[dot]org
+ */
+public class MockWindowsGroupSourceIdentity extends MockWindowsIdentity implements IWindowsGroupSource {
+
+    private boolean disposed;
+    private int     resolveCount;
+
+    public MockWindowsGroupSourceIdentity(final String newFqn, final List<String> newGroups) {
+        super(newFqn, newGroups);
+    }
+
+    @Override
+    public IWindowsAccount[] getGroups() {
+        if (this.disposed) {
+            throw new IllegalStateException("identity disposed");
+        }
+        return super.getGroups();
+    }
+
+    @Override
+    public IWindowsAccount[] getGroups(final WindowsGroupFilter filter) {
+        this.resolveCount++;
+        return getGroups();
+    }
+
+    @Override
+    public IWindowsAccount[] getGroupSids(final WindowsGroupFilter filter) {
+        return toSidAccounts(getGroups());
+    }
+
+    private static IWindowsAccount[] toSidAccounts(final IWindowsAccount[] groups) {
+        final IWindowsAccount[] accounts = new IWindowsAccount[groups.length];
+        for (int i = 0; i < groups.length; i++) {
+            accounts[i] = new MockWindowsAccount(groups[i].getSidString(), groups[i].getSidString());
+        }
+        return accounts;
+    }
+
+    @Override
+    public IWindowsGroupSource detach() {
+        final IWindowsAccount[] groups = getGroups();
+        return new IWindowsGroupSource() {
+            @Override
+            public IWindowsAccount[] getGroups(final WindowsGroupFilter filter) {
+                MockWindowsGroupSourceIdentity.this.resolveCount++;
+                return groups.clone();
+            }
+
+            @Override
+            public IWindowsAccount[] getGroupSids(final WindowsGroupFilter filter) {
+                return toSidAccounts(groups);
+            }
+
+            @Override
+            public IWindowsGroupSource detach() {
+                return this;
+            }
+        };
+    }
+
+    @Override
+    public void dispose() {
+        this.disposed = true;
+    }
+
+    /**
+     * Number of times group names were resolved.
+     * 
+     * @return Resolve count.
+     */
+    public int getResolveCount() {
+        return this.resolveCount;
+    }
+}
@@ -19,6 +19,7 @@ import java.util.List;
 import waffle.windows.auth.IWindowsAccount;
 import waffle.windows.auth.IWindowsIdentity;
 import waffle.windows.auth.IWindowsImpersonationContext;
+import waffle.windows.auth.Sid;
 
 /**
  * A Mock windows identity.
@@ -59,6 +60,11 @@ public class MockWindowsIdentity implements IWindowsIdentity {
         return "S-" + this.fqn.hashCode();
     }
 
+    @Override
+    public Sid getSecurityIdentifier() {
+        return Sid.tryParse(getSidString());
+    }
+
     @Override
     public void dispose() {
         // Do Nothing
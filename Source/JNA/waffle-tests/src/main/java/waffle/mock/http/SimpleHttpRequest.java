@@ -18,6 +18,7 @@ import java.util.Enumeration;
 import java.util.HashMap;
 import java.util.Map;
 
+import javax.servlet.http.Cookie;
 import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletRequestWrapper;
 import javax.servlet.http.HttpSession;
@@ -34,6 +35,7 @@ public class SimpleHttpRequest extends HttpServletRequestWrapper {
     private static int          remotePortS = 0;
 
     private String              requestURI;
+    private String              servletPath;
     private String              queryString;
     private String              remoteUser;
     private String              method      = "GET";
@@ -42,9 +44,11 @@ public class SimpleHttpRequest extends HttpServletRequestWrapper {
     private int                 remotePort  = -1;
     private Map<String, String> headers     = new HashMap<String, String>();
     private Map<String, String> parameters  = new HashMap<String, String>();
+    private Map<String, Object> attributes  = new HashMap<String, Object>();
     private byte[]              content;
     private HttpSession         session     = new SimpleHttpSession();
     private Principal           principal;
+    private Cookie[]            cookies;
 
     public SimpleHttpRequest() {
         super(Mockito.mock(HttpServletRequest.class));
@@ -59,6 +63,35 @@ public class SimpleHttpRequest extends HttpServletRequestWrapper {
         remotePortS = 0;
     }
 
+    @Override
+    public Object getAttribute(final String name) {
+        return this.attributes.get(name);
+    }
+
+    @Override
+    public Enumeration<String> getAttributeNames() {
+        return Iterators.asEnumeration(this.attributes.keySet().iterator());
+    }
+
+    @Override
+    public void setAttribute(final String name, final Object value) {
+        this.attributes.put(name, value);
+    }
+
+    @Override
+    public void removeAttribute(final String name) {
+        this.attributes.remove(name);
+    }
+
+    @Override
+    public Cookie[] getCookies() {
+        return this.cookies;
+    }
+
+    public void setCookies(final Cookie... values) {
+        this.cookies = values;
+    }
+
     public void addHeader(final String headerName, final String headerValue) {
         this.headers.put(headerName, headerValue);
     }
@@ -143,6 +176,15 @@ public class SimpleHttpRequest extends HttpServletRequestWrapper {
         return this.requestURI;
     }
 
+    public void setServletPath(final String path) {
+        this.servletPath = path;
+    }
+
+    @Override
+    public String getServletPath() {
+        return this.servletPath;
+    }
+
     @Override
     public String getParameter(final String parameterName) {
         return this.parameters.get(parameterName);
@@ -0,0 +1,146 @@
+/**
+ * Waffle (https://github.com/dblock/waffle)
+ *
+ * Copyright (c) 2010 - 2014 Application Security, Inc.
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors:
+ *     Application Security, Inc.
+ */
+package waffle.servlet;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import waffle.windows.auth.IWindowsAccount;
+import waffle.windows.auth.IWindowsIdentity;
+import waffle.windows.auth.PrincipalFormat;
+import waffle.windows.auth.WindowsAccount;
+import waffle.windows.auth.WindowsIdentitySnapshot;
+
+/**
+ * The fields of a {@link WindowsPrincipal} with default Java serialization, as principals were serialized before the
+ * compact format, and built from an identity as before identity snapshots, for comparison.
+ * 
+ * @author dblock[at]dblock[dot]org
+ */
+class LegacyWindowsPrincipal implements Serializable {
+
+    private static final long           serialVersionUID = 1L;
+    private String                      fqn;
+    private byte[]                      sid;
+    private String                      sidString;
+    private List<String>                roles;
+    private Map<String, WindowsAccount> groups;
+
+    LegacyWindowsPrincipal(final WindowsIdentitySnapshot snapshot, final List<String> newRoles) {
+        this.fqn = snapshot.getFqn();
+        this.sid = snapshot.getSid();
+        this.sidString = snapshot.getSidString();
+        this.roles = new ArrayList<String>(newRoles);
+        this.groups = new LinkedHashMap<String, WindowsAccount>(snapshot.getGroupMap());
+    }
+
+    /**
+     * A principal built as before identity snapshots: the groups of the identity are read once for the group map and
+     * once more for the roles.
+     * 
+     * @param identity
+     *            Windows identity.
+     * @param principalFormat
+     *            Principal format.
+     * @param roleFormat
+     *            Role format.
+     */
+    LegacyWindowsPrincipal(final IWindowsIdentity identity, final PrincipalFormat principalFormat,
+            final PrincipalFormat roleFormat) {
+        this.fqn = identity.getFqn();
+        this.sid = identity.getSid();
+        this.sidString = identity.getSidString();
+        this.groups = new HashMap<String, WindowsAccount>();
+        for (IWindowsAccount group : identity.getGroups()) {
+            this.groups.put(group.getFqn(), new WindowsAccount(group));
+        }
+        this.roles = new ArrayList<String>();
+        addNames(this.roles, identity.getFqn(), identity.getSidString(), principalFormat);
+        for (IWindowsAccount group : identity.getGroups()) {
+            addNames(this.roles, group.getFqn(), group.getSidString(), roleFormat);
+        }
+    }
+
+    private static void addNames(final List<String> names, final String fqn, final String sidString,
+            final PrincipalFormat format) {
+        if (format == PrincipalFormat.FQN || format == PrincipalFormat.BOTH) {
+            names.add(fqn);
+        }
+        if (format == PrincipalFormat.SID || format == PrincipalFormat.BOTH) {
+            names.add(sidString);
+        }
+    }
+
+    /**
+     * A snapshot of a domain user with many group memberships.
+     * 
+     * @param count
+     *            Number of groups.
+     * @return Windows identity snapshot.
+     */
+    static WindowsIdentitySnapshot newSnapshot(final int count) {
+        final List<WindowsAccount> groups = new ArrayList<WindowsAccount>();
+        groups.add(new WindowsAccount("S-1-1-0", "Everyone", "Everyone", ""));
+        for (int i = 0; i < count; i++) {
+            groups.add(new WindowsAccount("S-1-5-21-1004336348-1177238915-682003330-" + (2000 + i), "DOMAIN\\Group"
+                    + i, "Group" + i, "DOMAIN"));
+        }
+        return WindowsIdentitySnapshot.of("DOMAIN\\user", new byte[] { 1, 5, 0, 0, 0, 0, 0, 5, 21, 0, 0, 0, 1, 0, 0,
+                0, 2, 0, 0, 0, 3, 0, 0, 0, (byte) 0xE9, 3, 0, 0 }, "S-1-5-21-1-2-3-1001", groups);
+    }
+
+    /**
+     * Roles of a principal in BOTH format.
+     * 
+     * @param snapshot
+     *            Windows identity snapshot.
+     * @return Role names.
+     */
+    static List<String> getRoles(final WindowsIdentitySnapshot snapshot) {
+        final List<String> roles = new ArrayList<String>();
+        roles.add(snapshot.getFqn());
+        roles.add(snapshot.getSidString());
+        for (WindowsAccount group : snapshot.getGroups()) {
+            roles.add(group.getFqn());
+            roles.add(group.getSidString());
+        }
+        return roles;
+    }
+
+    static byte[] serialize(final Object object) throws IOException {
+        final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        final ObjectOutputStream out = new ObjectOutputStream(bytes);
+        out.writeObject(object);
+        out.close();
+        return bytes.toByteArray();
+    }
+
+    static Object deserialize(final byte[] bytes) throws IOException, ClassNotFoundException {
+        final ObjectInputStream in = new ObjectInputStream(new ByteArrayInputStream(bytes));
+        try {
+            return in.readObject();
+        } finally {
+            in.close();
+        }
+    }
+}
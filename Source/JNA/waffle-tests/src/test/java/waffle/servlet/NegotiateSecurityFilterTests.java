@@ -14,6 +14,7 @@
 package waffle.servlet;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
 import static org.junit.Assert.assertTrue;
 import static org.junit.Assert.fail;
 
@@ -27,6 +28,7 @@ import org.assertj.core.api.Assertions;
 import org.junit.After;
 import org.junit.Before;
 import org.junit.Test;
+import org.mockito.Mockito;
 
 import waffle.mock.MockWindowsAuthProvider;
 import waffle.mock.MockWindowsIdentity;
@@ -34,8 +36,11 @@ import waffle.mock.http.SimpleFilterChain;
 import waffle.mock.http.SimpleFilterConfig;
 import waffle.mock.http.SimpleHttpRequest;
 import waffle.mock.http.SimpleHttpResponse;
+import waffle.util.AuthorizationHeader;
+import waffle.util.AuthorizationHeaderStatus;
 import waffle.windows.auth.IWindowsCredentialsHandle;
 import waffle.windows.auth.PrincipalFormat;
+import waffle.windows.auth.impl.BoundedWindowsAuthProvider;
 import waffle.windows.auth.impl.WindowsAccountImpl;
 import waffle.windows.auth.impl.WindowsAuthProviderImpl;
 import waffle.windows.auth.impl.WindowsCredentialsHandleImpl;
@@ -88,6 +93,31 @@ public class NegotiateSecurityFilterTests {
         assertEquals(401, response.getStatus());
     }
 
+    @Test
+    public void testMalformedAuthorizationRejected() throws IOException, ServletException {
+        final long before = AuthorizationHeader.getRejectionCount(AuthorizationHeaderStatus.INVALID_TOKEN);
+        SimpleHttpRequest request = new SimpleHttpRequest();
+        request.setMethod("GET");
+        request.addHeader("Authorization", "NTLM not%base64");
+        SimpleHttpResponse response = new SimpleHttpResponse();
+        this.filter.doFilter(request, response, null);
+        assertEquals(401, response.getStatus());
+        assertEquals("close", response.getHeader("Connection"));
+        assertEquals(before + 1, AuthorizationHeader.getRejectionCount(AuthorizationHeaderStatus.INVALID_TOKEN));
+    }
+
+    @Test
+    public void testUnsupportedSecurityPackageRejected() throws IOException, ServletException {
+        final long before = AuthorizationHeader.getRejectionCount(AuthorizationHeaderStatus.UNSUPPORTED);
+        SimpleHttpRequest request = new SimpleHttpRequest();
+        request.setMethod("GET");
+        request.addHeader("Authorization", "Bearer dG9rZW4=");
+        SimpleHttpResponse response = new SimpleHttpResponse();
+        this.filter.doFilter(request, response, null);
+        assertEquals(401, response.getStatus());
+        assertEquals(before + 1, AuthorizationHeader.getRejectionCount(AuthorizationHeaderStatus.UNSUPPORTED));
+    }
+
     @Test
     public void testChallengePOST() throws IOException, ServletException {
         String securityPackage = NEGOTIATE;
@@ -208,6 +238,43 @@ public class NegotiateSecurityFilterTests {
         assertEquals(windowsPrincipal, wrappedRequest.getUserPrincipal());
     }
 
+    @Test
+    public void testPathPolicySkip() throws IOException, ServletException {
+        SimpleFilterConfig filterConfig = new SimpleFilterConfig();
+        filterConfig.setParameter("pathPolicies", "/static skip; /admin roles=Administrators");
+        this.filter.init(filterConfig);
+        SimpleHttpRequest request = new SimpleHttpRequest();
+        request.setServletPath("/static/waffle.css");
+        SimpleFilterChain filterChain = new SimpleFilterChain();
+        SimpleHttpResponse response = new SimpleHttpResponse();
+        this.filter.doFilter(request, response, filterChain);
+        assertEquals(request, filterChain.getRequest());
+        assertEquals(0, response.getHeaderNamesSize());
+    }
+
+    @Test
+    public void testPathPolicyForbidden() throws IOException, ServletException {
+        SimpleFilterConfig filterConfig = new SimpleFilterConfig();
+        filterConfig.setParameter("pathPolicies", "/admin roles=Administrators");
+        this.filter.init(filterConfig);
+        MockWindowsIdentity mockWindowsIdentity = new MockWindowsIdentity("user", new ArrayList<String>());
+        SimpleHttpRequest request = new SimpleHttpRequest();
+        request.setServletPath("/admin/users");
+        request.setUserPrincipal(new WindowsPrincipal(mockWindowsIdentity));
+        SimpleFilterChain filterChain = new SimpleFilterChain();
+        SimpleHttpResponse response = new SimpleHttpResponse();
+        this.filter.doFilter(request, response, filterChain);
+        assertEquals(null, filterChain.getRequest());
+        assertEquals(403, response.getStatus());
+    }
+
+    @Test(expected = ServletException.class)
+    public void testInitInvalidPathPolicies() throws ServletException {
+        SimpleFilterConfig filterConfig = new SimpleFilterConfig();
+        filterConfig.setParameter("pathPolicies", "/static ignore");
+        this.filter.init(filterConfig);
+    }
+
     @Test
     public void testChallengeNTLMPOST() throws IOException, ServletException {
         MockWindowsIdentity mockWindowsIdentity = new MockWindowsIdentity("user", new ArrayList<String>());
@@ -250,6 +317,46 @@ public class NegotiateSecurityFilterTests {
         assertEquals(401, response.getStatus());
     }
 
+    @Test
+    public void testServiceUnavailable() throws IOException, ServletException {
+        MockWindowsAuthProvider auth = new MockWindowsAuthProvider();
+        auth.setLatency(500);
+        NegotiateSecurityFilter boundedFilter = new NegotiateSecurityFilter();
+        boundedFilter.setAuth(auth);
+        SimpleFilterConfig filterConfig = new SimpleFilterConfig();
+        filterConfig.setParameter("authMaxConcurrency", "1");
+        filterConfig.setParameter("authTimeout", "50");
+        filterConfig.setParameter("authRetryAfter", "10");
+        boundedFilter.init(filterConfig);
+        try {
+            assertTrue(boundedFilter.getAuth() instanceof BoundedWindowsAuthProvider);
+            SimpleHttpRequest request = new SimpleHttpRequest();
+            request.setMethod("GET");
+            request.addHeader("Authorization", NEGOTIATE + " " + BaseEncoding.base64().encode("user".getBytes()));
+            SimpleHttpResponse response = new SimpleHttpResponse();
+            boundedFilter.doFilter(request, response, new SimpleFilterChain());
+            assertEquals(503, response.getStatus());
+            assertEquals("10", response.getHeader("Retry-After"));
+        } finally {
+            boundedFilter.destroy();
+        }
+    }
+
+    @Test
+    public void testDestroyKeepsInjectedAuth() throws ServletException {
+        WindowsAuthProviderImpl auth = Mockito.mock(WindowsAuthProviderImpl.class);
+        NegotiateSecurityFilter boundedFilter = new NegotiateSecurityFilter();
+        boundedFilter.setAuth(auth);
+        SimpleFilterConfig filterConfig = new SimpleFilterConfig();
+        filterConfig.setParameter("authMaxConcurrency", "1");
+        boundedFilter.init(filterConfig);
+        assertTrue(boundedFilter.getAuth() instanceof BoundedWindowsAuthProvider);
+        boundedFilter.destroy();
+        // the wrapper is disposed, the injected provider belongs to the caller
+        Mockito.verify(auth, Mockito.never()).dispose();
+        assertSame(auth, boundedFilter.getAuth());
+    }
+
     @Test
     public void testInitBasicSecurityFilterProvider() throws ServletException {
         SimpleFilterConfig filterConfig = new SimpleFilterConfig();
@@ -0,0 +1,221 @@
+/**
+ * Waffle (https://github.com/dblock/waffle)
+ *
+ * Copyright (c) 2010 - 2014 Application Security, Inc.
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors:
+ *     Application Security, Inc.
+ */
+package waffle.servlet;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import javax.servlet.ServletException;
+import javax.servlet.http.Cookie;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import org.junit.Test;
+
+import com.google.common.base.Charsets;
+import com.google.common.io.BaseEncoding;
+
+import waffle.mock.MockWindowsAuthProvider;
+import waffle.mock.MockWindowsIdentity;
+import waffle.mock.http.SimpleFilterChain;
+import waffle.mock.http.SimpleFilterConfig;
+import waffle.mock.http.SimpleHttpRequest;
+import waffle.mock.http.SimpleHttpResponse;
+import waffle.servlet.spi.SecurityFilterProvider;
+import waffle.windows.auth.IWindowsAuthProvider;
+import waffle.windows.auth.IWindowsIdentity;
+import waffle.windows.auth.WindowsIdentitySnapshot;
+
+/**
+ * @author dblock[at]dblock[dot]org
+ */
+public class WindowsPrincipalCookieTests {
+
+    private static final byte[] KEY = "0123456789abcdef0123456789abcdef".getBytes(Charsets.US_ASCII);
+
+    /**
+     * Logs on a user with too many groups to fit in a cookie.
+     */
+    public static class OversizeSecurityFilterProvider implements SecurityFilterProvider {
+
+        public OversizeSecurityFilterProvider(final IWindowsAuthProvider auth) {
+            // Do Nothing
+        }
+
+        @Override
+        public void sendUnauthorized(final HttpServletResponse response) {
+            response.addHeader("WWW-Authenticate", "Negotiate");
+        }
+
+        @Override
+        public boolean isPrincipalException(final HttpServletRequest request) {
+            return false;
+        }
+
+        @Override
+        public IWindowsIdentity doFilter(final HttpServletRequest request, final HttpServletResponse response) {
+            return new MockWindowsIdentity("DOMAIN\\user", newGroups(500));
+        }
+
+        @Override
+        public boolean isSecurityPackageSupported(final String securityPackage) {
+            return "Negotiate".equals(securityPackage);
+        }
+
+        @Override
+        public void initParameter(final String parameterName, final String parameterValue) {
+            // Do Nothing
+        }
+    }
+
+    private static List<String> newGroups(final int count) {
+        // random names, so that the groups do not deflate away
+        final Random random = new Random(0);
+        final List<String> groups = new ArrayList<String>(count);
+        for (int i = 0; i < count; i++) {
+            groups.add("DOMAIN\\" + Long.toHexString(random.nextLong()));
+        }
+        return groups;
+    }
+
+    private static WindowsIdentitySnapshot newSnapshot() {
+        final List<String> groups = new ArrayList<String>();
+        groups.add("Everyone");
+        groups.add("DOMAIN\\Users");
+        return WindowsIdentitySnapshot.of(new MockWindowsIdentity("DOMAIN\\user", groups));
+    }
+
+    @Test
+    public void testEncodeDecode() {
+        final WindowsPrincipalCookie cookie = new WindowsPrincipalCookie(KEY, 60);
+        final WindowsIdentitySnapshot snapshot = newSnapshot();
+        final long now = System.currentTimeMillis();
+        final WindowsIdentitySnapshot decoded = cookie.decode(cookie.encode(snapshot, now), now);
+        assertEquals("DOMAIN\\user", decoded.getFqn());
+        assertEquals(snapshot.getSidString(), decoded.getSidString());
+        assertArrayEquals(snapshot.getSid(), decoded.getSid());
+        assertEquals(snapshot.getGroups(), decoded.getGroups());
+        assertEquals("Users", decoded.getGroupMap().get("DOMAIN\\Users").getName());
+        assertEquals("DOMAIN", decoded.getGroupMap().get("DOMAIN\\Users").getDomain());
+        // expired
+        assertNull(cookie.decode(cookie.encode(snapshot, now), now + 60000));
+    }
+
+    @Test
+    public void testRejectsForgedValues() {
+        final WindowsPrincipalCookie cookie = new WindowsPrincipalCookie(KEY, 60);
+        final long now = System.currentTimeMillis();
+        final String value = cookie.encode(newSnapshot(), now);
+        final int separator = value.indexOf('.');
+        final String forged = value.substring(0, separator - 2) + (value.charAt(separator - 2) == 'A' ? 'B' : 'A')
+                + value.substring(separator - 1);
+        assertNull(cookie.decode(forged, now));
+        assertNull(cookie.decode(value.substring(0, separator), now));
+        assertNull(cookie.decode("!@#.$%^", now));
+        final byte[] otherKey = KEY.clone();
+        otherKey[0] = 'x';
+        assertNull(new WindowsPrincipalCookie(otherKey, 60).decode(value, now));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testShortKey() {
+        new WindowsPrincipalCookie(new byte[8], 60);
+    }
+
+    @Test
+    public void testWrite() {
+        final WindowsPrincipalCookie cookie = new WindowsPrincipalCookie(KEY, 60);
+        final SimpleHttpRequest request = new SimpleHttpRequest();
+        final SimpleHttpResponse response = new SimpleHttpResponse();
+        assertTrue(cookie.write(request, response, newSnapshot()));
+        final String header = response.getHeader("Set-Cookie");
+        assertTrue(header.startsWith(WindowsPrincipalCookie.DEFAULT_NAME + "="));
+        assertTrue(header.endsWith("; Path=/; Max-Age=60; HttpOnly"));
+        request.setCookies(new Cookie(WindowsPrincipalCookie.DEFAULT_NAME, header.substring(
+                WindowsPrincipalCookie.DEFAULT_NAME.length() + 1, header.indexOf(';'))));
+        assertEquals("DOMAIN\\user", cookie.read(request).getFqn());
+    }
+
+    @Test
+    public void testFilterAcceptsCookieWithoutSession() throws IOException, ServletException {
+        final WindowsPrincipalCookie cookie = new WindowsPrincipalCookie(KEY, 60);
+        final NegotiateSecurityFilter filter = new NegotiateSecurityFilter();
+        filter.setAuth(new MockWindowsAuthProvider());
+        filter.setPrincipalCookie(cookie);
+        filter.init(null);
+        try {
+            final SimpleHttpRequest request = new SimpleHttpRequest();
+            request.setCookies(new Cookie(cookie.getName(), cookie.encode(newSnapshot(), System.currentTimeMillis())));
+            final SimpleHttpResponse response = new SimpleHttpResponse();
+            final SimpleFilterChain chain = new SimpleFilterChain();
+            filter.doFilter(request, response, chain);
+            final WindowsPrincipal principal = (WindowsPrincipal) ((HttpServletRequest) chain.getRequest())
+                    .getUserPrincipal();
+            assertEquals("DOMAIN\\user", principal.getName());
+            assertTrue(principal.hasRole("DOMAIN\\Users"));
+            assertNull(request.getSession().getAttribute("javax.security.auth.subject"));
+
+            // a forged cookie is ignored
+            request.setCookies(new Cookie(cookie.getName(), "forged.value"));
+            final SimpleFilterChain rejectedChain = new SimpleFilterChain();
+            filter.doFilter(request, new SimpleHttpResponse(), rejectedChain);
+            assertNull(rejectedChain.getRequest());
+        } finally {
+            filter.destroy();
+        }
+    }
+
+    @Test
+    public void testFilterKeepsOversizePrincipalInSession() throws IOException, ServletException {
+        final SimpleFilterConfig filterConfig = new SimpleFilterConfig();
+        filterConfig.setParameter("securityFilterProviders", OversizeSecurityFilterProvider.class.getName());
+        filterConfig.setParameter("principalCookieKey", BaseEncoding.base64().encode(KEY));
+        final NegotiateSecurityFilter filter = new NegotiateSecurityFilter();
+        filter.setAuth(new MockWindowsAuthProvider());
+        filter.init(filterConfig);
+        try {
+            final SimpleHttpRequest request = new SimpleHttpRequest();
+            request.addHeader("Authorization", "Negotiate " + BaseEncoding.base64().encode(new byte[] { 1, 2, 3 }));
+            final SimpleHttpResponse response = new SimpleHttpResponse();
+            final SimpleFilterChain chain = new SimpleFilterChain();
+            filter.doFilter(request, response, chain);
+            assertNotNull(chain.getRequest());
+            // too large for a cookie, kept in the session instead
+            assertNull(response.getHeader("Set-Cookie"));
+            assertNotNull(request.getSession().getAttribute("javax.security.auth.subject"));
+
+            // later requests of the session are authenticated without a cookie
+            request.addHeader("Authorization", null);
+            final SimpleHttpResponse sessionResponse = new SimpleHttpResponse();
+            final SimpleFilterChain sessionChain = new SimpleFilterChain();
+            filter.doFilter(request, sessionResponse, sessionChain);
+            final WindowsPrincipal principal = (WindowsPrincipal) ((HttpServletRequest) sessionChain.getRequest())
+                    .getUserPrincipal();
+            assertEquals("DOMAIN\\user", principal.getName());
+            assertTrue(principal.hasRole(newGroups(500).get(499)));
+            assertFalse(sessionResponse.getStatus() == 401);
+        } finally {
+            filter.destroy();
+        }
+    }
+}
@@ -0,0 +1,96 @@
+/**
+ * Waffle (https://github.com/dblock/waffle)
+ *
+ * Copyright (c) 2010 - 2014 Application Security, Inc.
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors:
+ *     Application Security, Inc.
+ */
+package waffle.servlet;
+
+import static org.junit.Assert.assertTrue;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.databene.contiperf.PerfTest;
+import org.databene.contiperf.junit.ContiPerfRule;
+import org.junit.Assume;
+import org.junit.Rule;
+import org.junit.Test;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import waffle.mock.MockWindowsIdentity;
+import waffle.windows.auth.PrincipalFormat;
+
+/**
+ * Principal construction for a user with many group memberships, from an identity snapshot and as before snapshots.
+ * 
+ * @author dblock[at]dblock[dot]org
+ */
+public class WindowsPrincipalLoadTests {
+
+    private static final Logger       LOGGER        = LoggerFactory.getLogger(WindowsPrincipalLoadTests.class);
+
+    @Rule
+    public ContiPerfRule              contiPerfRule = new ContiPerfRule();
+
+    private final MockWindowsIdentity identity;
+
+    public WindowsPrincipalLoadTests() {
+        final List<String> groups = new ArrayList<String>();
+        for (int i = 0; i < 500; i++) {
+            groups.add("DOMAIN\\Group" + i);
+        }
+        this.identity = new MockWindowsIdentity("DOMAIN\\user", groups);
+    }
+
+    @Test
+    @PerfTest(invocations = 10000, threads = 4)
+    public void testLoad() {
+        new WindowsPrincipal(this.identity, PrincipalFormat.FQN, PrincipalFormat.BOTH);
+    }
+
+    @Test
+    @PerfTest(invocations = 10000, threads = 4)
+    public void testLegacy() {
+        new LegacyWindowsPrincipal(this.identity, PrincipalFormat.FQN, PrincipalFormat.BOTH);
+    }
+
+    @Test
+    public void testAllocatedBytes() {
+        final ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+        Assume.assumeTrue(threads instanceof com.sun.management.ThreadMXBean
+                && ((com.sun.management.ThreadMXBean) threads).isThreadAllocatedMemorySupported());
+        final com.sun.management.ThreadMXBean allocations = (com.sun.management.ThreadMXBean) threads;
+        allocations.setThreadAllocatedMemoryEnabled(true);
+        final long threadId = Thread.currentThread().getId();
+        final int count = 1000;
+        long snapshot = 0;
+        long legacy = 0;
+        // the first round warms up
+        for (int round = 0; round < 2; round++) {
+            long start = allocations.getThreadAllocatedBytes(threadId);
+            for (int i = 0; i < count; i++) {
+                new WindowsPrincipal(this.identity, PrincipalFormat.FQN, PrincipalFormat.BOTH);
+            }
+            snapshot = (allocations.getThreadAllocatedBytes(threadId) - start) / count;
+            start = allocations.getThreadAllocatedBytes(threadId);
+            for (int i = 0; i < count; i++) {
+                new LegacyWindowsPrincipal(this.identity, PrincipalFormat.FQN, PrincipalFormat.BOTH);
+            }
+            legacy = (allocations.getThreadAllocatedBytes(threadId) - start) / count;
+        }
+        LOGGER.info("allocated bytes per principal: {} from a snapshot, {} as before snapshots",
+                Long.valueOf(snapshot), Long.valueOf(legacy));
+        assertTrue(snapshot < legacy);
+    }
+}
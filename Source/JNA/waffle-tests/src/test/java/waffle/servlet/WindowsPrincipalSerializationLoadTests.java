@@ -0,0 +1,57 @@
+/**
+ * Waffle (https://github.com/dblock/waffle)
+ *
+ * Copyright (c) 2010 - 2014 Application Security, Inc.
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors:
+ *     Application Security, Inc.
+ */
+package waffle.servlet;
+
+import java.io.IOException;
+
+import org.databene.contiperf.PerfTest;
+import org.databene.contiperf.junit.ContiPerfRule;
+import org.junit.Rule;
+import org.junit.Test;
+
+import waffle.windows.auth.PrincipalFormat;
+import waffle.windows.auth.WindowsIdentitySnapshot;
+
+/**
+ * Serialization round trips of a principal with many group memberships, in the compact format and in default Java
+ * serialization of the same fields.
+ * 
+ * @author dblock[at]dblock[dot]org
+ */
+public class WindowsPrincipalSerializationLoadTests {
+
+    @Rule
+    public ContiPerfRule                 contiPerfRule = new ContiPerfRule();
+
+    private final WindowsPrincipal       principal;
+    private final LegacyWindowsPrincipal legacyPrincipal;
+
+    public WindowsPrincipalSerializationLoadTests() {
+        final WindowsIdentitySnapshot snapshot = LegacyWindowsPrincipal.newSnapshot(500);
+        this.principal = new WindowsPrincipal(snapshot, PrincipalFormat.FQN, PrincipalFormat.BOTH);
+        this.legacyPrincipal = new LegacyWindowsPrincipal(snapshot, LegacyWindowsPrincipal.getRoles(snapshot));
+    }
+
+    @Test
+    @PerfTest(invocations = 2000, threads = 4)
+    public void testCompact() throws IOException, ClassNotFoundException {
+        LegacyWindowsPrincipal.deserialize(LegacyWindowsPrincipal.serialize(this.principal));
+    }
+
+    @Test
+    @PerfTest(invocations = 2000, threads = 4)
+    public void testLegacy() throws IOException, ClassNotFoundException {
+        LegacyWindowsPrincipal.deserialize(LegacyWindowsPrincipal.serialize(this.legacyPrincipal));
+    }
+}
@@ -15,6 +15,7 @@ package waffle.servlet;
 
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
 import static org.junit.Assert.assertTrue;
 
 import java.io.ByteArrayInputStream;
@@ -23,13 +24,19 @@ import java.io.IOException;
 import java.io.InputStream;
 import java.io.ObjectInputStream;
 import java.io.ObjectOutputStream;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.List;
 
 import org.assertj.core.api.Assertions;
 import org.junit.Before;
 import org.junit.Test;
 
+import waffle.mock.MockWindowsGroupSourceIdentity;
 import waffle.mock.MockWindowsSecurityContext;
+import waffle.windows.auth.PrincipalFormat;
+import waffle.windows.auth.WindowsAccount;
+import waffle.windows.auth.WindowsIdentitySnapshot;
 
 /**
  * @author dblock[at]dblock[dot]org
@@ -63,11 +70,119 @@ public class WindowsPrincipalTests {
         assertEquals(Boolean.valueOf(Arrays.equals(this.windowsPrincipal.getSid(), copy.getSid())), Boolean.TRUE);
     }
 
+    @Test
+    public void testCompactSerialization() throws IOException, ClassNotFoundException {
+        final WindowsIdentitySnapshot snapshot = LegacyWindowsPrincipal.newSnapshot(500);
+        final WindowsPrincipal principal = new WindowsPrincipal(snapshot, PrincipalFormat.FQN, PrincipalFormat.BOTH);
+        final byte[] compact = LegacyWindowsPrincipal.serialize(principal);
+        final byte[] legacy = LegacyWindowsPrincipal.serialize(new LegacyWindowsPrincipal(snapshot,
+                LegacyWindowsPrincipal.getRoles(snapshot)));
+        Assertions.assertThat(compact.length).isLessThan(legacy.length / 2);
+
+        final WindowsPrincipal copy = (WindowsPrincipal) LegacyWindowsPrincipal.deserialize(compact);
+        assertEquals(principal.getRolesString(), copy.getRolesString());
+        assertEquals(principal.getGroups(), copy.getGroups());
+        assertEquals(principal.getSidString(), copy.getSidString());
+        assertTrue(copy.hasRole("S-1-5-21-1004336348-1177238915-682003330-2499"));
+    }
+
+    @Test
+    public void testSerializationKeepsFormats() throws IOException, ClassNotFoundException {
+        final WindowsAccount developers = new WindowsAccount("S-1-5-21-1-2-3-1106", "DOMAIN\\Developers",
+                "Developers", "DOMAIN");
+        // a group named after its SID
+        final WindowsIdentitySnapshot sidNamed = WindowsIdentitySnapshot.of("DOMAIN\\user", null,
+                "S-1-5-21-1-2-3-1001", Arrays.asList(new WindowsAccount("S-1-5-32-545", "S-1-5-32-545",
+                        "S-1-5-32-545", null), developers));
+        // a group without a name, as when the role format does not require names
+        final WindowsIdentitySnapshot unnamed = WindowsIdentitySnapshot.of("DOMAIN\\user", null,
+                "S-1-5-21-1-2-3-1001", Arrays.asList(new WindowsAccount("S-1-5-21-1-2-3-1105", null, null, null),
+                        developers));
+        for (PrincipalFormat principalFormat : PrincipalFormat.values()) {
+            for (PrincipalFormat roleFormat : PrincipalFormat.values()) {
+                assertSerializationKeepsRoles(new WindowsPrincipal(sidNamed, principalFormat, roleFormat));
+            }
+            assertSerializationKeepsRoles(new WindowsPrincipal(unnamed, principalFormat, PrincipalFormat.SID));
+            assertSerializationKeepsRoles(new WindowsPrincipal(unnamed, principalFormat, PrincipalFormat.NONE));
+        }
+    }
+
+    private static void assertSerializationKeepsRoles(final WindowsPrincipal principal) throws IOException,
+            ClassNotFoundException {
+        final WindowsPrincipal copy = (WindowsPrincipal) LegacyWindowsPrincipal.deserialize(LegacyWindowsPrincipal
+                .serialize(principal));
+        assertEquals(principal.getRolesString(), copy.getRolesString());
+        for (String role : new String[] { "DOMAIN\\user", "S-1-5-21-1-2-3-1001", "S-1-5-32-545",
+                "S-1-5-21-1-2-3-1105", "DOMAIN\\Developers", "S-1-5-21-1-2-3-1106" }) {
+            assertEquals(principal.getRolesString() + ": " + role, Boolean.valueOf(principal.hasRole(role)),
+                    Boolean.valueOf(copy.hasRole(role)));
+        }
+    }
+
     @Test
     public void testHasRole() {
         assertTrue(this.windowsPrincipal.hasRole("Administrator"));
         assertTrue(this.windowsPrincipal.hasRole("Users"));
         assertTrue(this.windowsPrincipal.hasRole("Everyone"));
         assertFalse(this.windowsPrincipal.hasRole("RoleDoesNotExist"));
+        assertFalse(this.windowsPrincipal.hasRole(null));
+    }
+
+    @Test
+    public void testGroupsAreShared() {
+        final WindowsPrincipal first = new WindowsPrincipal(LegacyWindowsPrincipal.newSnapshot(10),
+                PrincipalFormat.FQN, PrincipalFormat.FQN);
+        final WindowsPrincipal second = new WindowsPrincipal(LegacyWindowsPrincipal.newSnapshot(10),
+                PrincipalFormat.FQN, PrincipalFormat.FQN);
+        assertEquals(11, second.getGroupSet().size());
+        assertSame(first.getGroups().get("DOMAIN\\Group3"), second.getGroups().get("DOMAIN\\Group3"));
+    }
+
+    @Test
+    public void testHasRoleIgnoresCaseAndMatchesAliases() {
+        final WindowsIdentitySnapshot snapshot = LegacyWindowsPrincipal.newSnapshot(10);
+        final WindowsPrincipal fqnPrincipal = new WindowsPrincipal(snapshot, PrincipalFormat.FQN, PrincipalFormat.FQN);
+        assertTrue(fqnPrincipal.hasRole("domain\\GROUP7"));
+        assertTrue(fqnPrincipal.hasRole("S-1-5-21-1004336348-1177238915-682003330-2007"));
+        assertTrue(fqnPrincipal.hasRole("s-1-1-0"));
+        assertTrue(fqnPrincipal.hasRole("Domain\\User"));
+        assertFalse(fqnPrincipal.hasRole("DOMAIN\\Group10"));
+
+        final WindowsPrincipal sidPrincipal = new WindowsPrincipal(snapshot, PrincipalFormat.SID, PrincipalFormat.SID);
+        assertTrue(sidPrincipal.hasRole("DOMAIN\\Group3"));
+        assertTrue(sidPrincipal.hasRole("everyone"));
+
+        final WindowsPrincipal noRoles = new WindowsPrincipal(snapshot, PrincipalFormat.NONE, PrincipalFormat.NONE);
+        assertFalse(noRoles.hasRole("Everyone"));
+        assertFalse(noRoles.hasRole("S-1-1-0"));
+    }
+
+    @Test
+    public void testGroupsResolvedOnFirstUse() {
+        final List<String> groups = new ArrayList<String>();
+        groups.add("Everyone");
+        groups.add("DOMAIN\\Users");
+        final MockWindowsGroupSourceIdentity identity = new MockWindowsGroupSourceIdentity("DOMAIN\\user", groups);
+        final WindowsPrincipal principal = new WindowsPrincipal(identity);
+        identity.dispose();
+        assertTrue(principal.hasRole("DOMAIN\\user"));
+        assertEquals(0, identity.getResolveCount());
+        assertTrue(principal.hasRole("DOMAIN\\Users"));
+        assertEquals("DOMAIN\\user, Everyone, DOMAIN\\Users", principal.getRolesString());
+        assertEquals(2, principal.getGroups().size());
+        assertEquals(1, identity.getResolveCount());
+    }
+
+    @Test
+    public void testSidRolesDoNotResolveGroupNames() {
+        final List<String> groups = new ArrayList<String>();
+        groups.add("Everyone");
+        final MockWindowsGroupSourceIdentity identity = new MockWindowsGroupSourceIdentity("DOMAIN\\user", groups);
+        final WindowsPrincipal principal = new WindowsPrincipal(identity, PrincipalFormat.SID, PrincipalFormat.SID);
+        identity.dispose();
+        assertTrue(principal.hasRole(identity.getSidString()));
+        assertTrue(principal.hasRole("S-" + "Everyone".hashCode()));
+        assertEquals(identity.getSidString() + ", S-" + "Everyone".hashCode(), principal.getRolesString());
+        assertEquals(0, identity.getResolveCount());
     }
 }
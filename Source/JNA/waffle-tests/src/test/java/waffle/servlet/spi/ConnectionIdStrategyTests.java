@@ -0,0 +1,107 @@
+/**
+ * Waffle (https://github.com/dblock/waffle)
+ *
+ * Copyright (c) 2010 - 2014 Application Security, Inc.
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors:
+ *     Application Security, Inc.
+ */
+package waffle.servlet.spi;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertTrue;
+
+import javax.servlet.http.HttpServletRequest;
+
+import org.junit.Test;
+
+import waffle.mock.http.SimpleHttpRequest;
+import waffle.util.NtlmServletRequest;
+
+/**
+ * @author dblock[at]dblock[dot]org
+ */
+public class ConnectionIdStrategyTests {
+
+    private static class TestContainerConnectionIdStrategy extends ContainerConnectionIdStrategy {
+
+        private Object connection;
+
+        TestContainerConnectionIdStrategy() {
+            super();
+        }
+
+        @Override
+        protected Object getConnection(final HttpServletRequest request) {
+            return this.connection;
+        }
+    }
+
+    private static SimpleHttpRequest newRequest(final String remoteAddr) {
+        final SimpleHttpRequest request = new SimpleHttpRequest();
+        request.setRemoteAddr(remoteAddr);
+        request.setRemoteHost("client.example.com");
+        return request;
+    }
+
+    @Test
+    public void testRemoteAddress() {
+        final SimpleHttpRequest request = newRequest("10.0.0.1");
+        final ConnectionIdStrategy strategy = new RemoteAddressConnectionIdStrategy();
+        assertEquals("10.0.0.1:" + request.getRemotePort(), strategy.getConnectionId(request));
+        request.setRemoteAddr(null);
+        assertEquals(":" + request.getRemotePort(), strategy.getConnectionId(request));
+    }
+
+    @Test
+    public void testSslSession() {
+        final SimpleHttpRequest request = newRequest("10.0.0.1");
+        final ConnectionIdStrategy strategy = new SslSessionConnectionIdStrategy();
+        assertEquals("10.0.0.1:" + request.getRemotePort(), strategy.getConnectionId(request));
+        request.setAttribute(SslSessionConnectionIdStrategy.SSL_SESSION_ATTRIBUTE, "0a1b");
+        assertEquals("tls:0a1b", strategy.getConnectionId(request));
+        request.setAttribute(SslSessionConnectionIdStrategy.SSL_SESSION_ID_ATTRIBUTE, "2c3d");
+        assertEquals("tls:2c3d", strategy.getConnectionId(request));
+    }
+
+    @Test
+    public void testContainer() {
+        final SimpleHttpRequest request = newRequest("10.0.0.1");
+        // no Jetty on the class path
+        assertEquals("10.0.0.1:" + request.getRemotePort(),
+                new ContainerConnectionIdStrategy().getConnectionId(request));
+
+        final TestContainerConnectionIdStrategy strategy = new TestContainerConnectionIdStrategy();
+        strategy.connection = new Object();
+        final String first = strategy.getConnectionId(request);
+        assertTrue(first.startsWith("c:"));
+        // the same connection behind a proxy, seen with another address
+        assertEquals(first, strategy.getConnectionId(newRequest("10.0.0.2")));
+        strategy.connection = new Object();
+        assertNotEquals(first, strategy.getConnectionId(request));
+        assertEquals(2, strategy.size());
+    }
+
+    @Test
+    public void testGetConnectionIdStrategy() {
+        assertEquals(RemoteAddressConnectionIdStrategy.class, NtlmServletRequest.getConnectionIdStrategy("address")
+                .getClass());
+        assertEquals(ContainerConnectionIdStrategy.class, NtlmServletRequest.getConnectionIdStrategy("Container")
+                .getClass());
+        assertEquals(SslSessionConnectionIdStrategy.class, NtlmServletRequest.getConnectionIdStrategy(" tls ")
+                .getClass());
+        assertEquals(SslSessionConnectionIdStrategy.class,
+                NtlmServletRequest.getConnectionIdStrategy(SslSessionConnectionIdStrategy.class.getName()).getClass());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testGetConnectionIdStrategyInvalid() {
+        NtlmServletRequest.getConnectionIdStrategy("java.lang.String");
+    }
+}
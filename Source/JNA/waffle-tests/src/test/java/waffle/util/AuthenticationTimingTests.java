@@ -0,0 +1,78 @@
+/**
+ * Waffle (https://github.com/dblock/waffle)
+ *
+ * Copyright (c) 2010 - 2014 Application Security, Inc.
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors:
+ *     Application Security, Inc.
+ */
+package waffle.util;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+import waffle.mock.http.SimpleHttpRequest;
+import waffle.mock.http.SimpleHttpResponse;
+import waffle.util.AuthenticationTiming.Phase;
+
+/**
+ * @author dblock[at]dblock[dot]org
+ */
+public class AuthenticationTimingTests {
+
+    @Test
+    public void testStartDisabled() {
+        final SimpleHttpRequest request = new SimpleHttpRequest();
+        assertNull(AuthenticationTiming.start(request, false, 0));
+        assertNull(AuthenticationTiming.of(request));
+    }
+
+    @Test
+    public void testServerTiming() {
+        final SimpleHttpRequest request = new SimpleHttpRequest();
+        final AuthenticationTiming timing = AuthenticationTiming.start(request, true, 0);
+        assertSame(timing, AuthenticationTiming.of(request));
+        timing.lap(Phase.HANDSHAKE);
+        timing.addNested(Phase.GROUPS, 2500000L);
+        timing.lap(Phase.PRINCIPAL);
+        final SimpleHttpResponse response = new SimpleHttpResponse();
+        timing.end(response, "user");
+        final String header = response.getHeader(AuthenticationTiming.SERVER_TIMING);
+        assertTrue(header, header.contains("groups;dur=2.500, "));
+        assertTrue(header, header.matches(".*total;dur=\\d+\\.\\d{3}"));
+        assertEquals(2500000L, timing.getNanos(Phase.GROUPS));
+        assertEquals(0L, timing.getNanos(Phase.SESSION));
+        assertTrue(timing.getTotalNanos() >= timing.getNanos(Phase.HANDSHAKE));
+    }
+
+    @Test
+    public void testEndOnce() {
+        final SimpleHttpRequest request = new SimpleHttpRequest();
+        final AuthenticationTiming timing = AuthenticationTiming.start(request, false, 1);
+        final SimpleHttpResponse response = new SimpleHttpResponse();
+        timing.end(response, null);
+        final long total = timing.getTotalNanos();
+        timing.end(response, null);
+        assertEquals(total, timing.getTotalNanos());
+        assertNull(response.getHeader(AuthenticationTiming.SERVER_TIMING));
+        assertTrue(timing.toString().startsWith("total="));
+    }
+
+    @Test
+    public void testAttach() {
+        final AuthenticationTiming timing = AuthenticationTiming.start(new SimpleHttpRequest(), true, 0);
+        timing.attach();
+        assertSame(timing, AuthenticationTiming.current());
+        timing.detach(Phase.PRINCIPAL);
+        assertNull(AuthenticationTiming.current());
+    }
+}
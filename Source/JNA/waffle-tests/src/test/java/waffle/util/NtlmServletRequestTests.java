@@ -33,7 +33,8 @@ public class NtlmServletRequestTests {
         assertEquals(":2", NtlmServletRequest.getConnectionId(request2));
         request2.setRemoteAddr("192.168.1.1");
         assertEquals("192.168.1.1:2", NtlmServletRequest.getConnectionId(request2));
+        // the remote host name is never used, it may require a reverse DNS lookup
         request2.setRemoteHost("codeplex.com");
-        assertEquals("codeplex.com:2", NtlmServletRequest.getConnectionId(request2));
+        assertEquals("192.168.1.1:2", NtlmServletRequest.getConnectionId(request2));
     }
 }
@@ -0,0 +1,109 @@
+/**
+ * Waffle (https://github.com/dblock/waffle)
+ *
+ * Copyright (c) 2010 - 2014 Application Security, Inc.
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors:
+ *     Application Security, Inc.
+ */
+package waffle.windows.auth;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.Test;
+
+import waffle.mock.MockWindowsIdentity;
+import waffle.servlet.WindowsPrincipal;
+
+/**
+ * @author dblock[at]dblock[dot]org
+ */
+public class WindowsIdentitySnapshotTests {
+
+    /**
+     * A mock identity that counts how many times its groups were read.
+     */
+    public static class CountingWindowsIdentity extends MockWindowsIdentity {
+
+        private int getGroupsCount;
+
+        public CountingWindowsIdentity(final String newFqn, final List<String> newGroups) {
+            super(newFqn, newGroups);
+        }
+
+        @Override
+        public IWindowsAccount[] getGroups() {
+            this.getGroupsCount++;
+            return super.getGroups();
+        }
+
+        public int getGroupsCount() {
+            return this.getGroupsCount;
+        }
+    }
+
+    @Test
+    public void testSnapshot() {
+        final List<String> groups = new ArrayList<String>();
+        groups.add("Users");
+        groups.add("Everyone");
+        final CountingWindowsIdentity identity = new CountingWindowsIdentity("localhost\\user", groups);
+        final WindowsIdentitySnapshot snapshot = WindowsIdentitySnapshot.of(identity);
+        assertEquals(1, identity.getGroupsCount());
+        assertEquals("localhost\\user", snapshot.getFqn());
+        assertEquals(identity.getSidString(), snapshot.getSidString());
+        assertEquals(2, snapshot.getGroups().size());
+        assertEquals("Users", snapshot.getGroups().get(0).getFqn());
+        assertEquals("Everyone", snapshot.getGroups().get(1).getFqn());
+        assertTrue(snapshot.getGroupMap().containsKey("Everyone"));
+    }
+
+    @Test
+    public void testSnapshotWithGroupFilter() {
+        final List<String> groups = new ArrayList<String>();
+        groups.add("Everyone");
+        groups.add("CORP\\App Users");
+        groups.add("BUILTIN\\Users");
+        final CountingWindowsIdentity identity = new CountingWindowsIdentity("CORP\\user", groups);
+        final WindowsIdentitySnapshot snapshot = WindowsIdentitySnapshot.of(identity,
+                WindowsGroupFilter.of(null, "CORP", null));
+        assertEquals(1, snapshot.getGroups().size());
+        assertEquals("CORP\\App Users", snapshot.getGroups().get(0).getFqn());
+
+        final WindowsPrincipal principal = new WindowsPrincipal(identity, PrincipalFormat.FQN, PrincipalFormat.FQN,
+                WindowsGroupFilter.of(null, null, "builtin\\\\.*"));
+        assertEquals(1, principal.getGroups().size());
+        assertTrue(principal.hasRole("BUILTIN\\Users"));
+        assertFalse(principal.hasRole("Everyone"));
+    }
+
+    @Test(expected = UnsupportedOperationException.class)
+    public void testSnapshotIsImmutable() {
+        final List<String> groups = new ArrayList<String>();
+        groups.add("Users");
+        WindowsIdentitySnapshot.of(new MockWindowsIdentity("localhost\\user", groups)).getGroups().clear();
+    }
+
+    @Test
+    public void testPrincipalReadsGroupsOnce() {
+        final List<String> groups = new ArrayList<String>();
+        groups.add("Users");
+        groups.add("Everyone");
+        final CountingWindowsIdentity identity = new CountingWindowsIdentity("localhost\\user", groups);
+        final WindowsPrincipal principal = new WindowsPrincipal(identity, PrincipalFormat.BOTH, PrincipalFormat.BOTH);
+        assertEquals(1, identity.getGroupsCount());
+        assertEquals(2, principal.getGroups().size());
+        assertTrue(principal.hasRole("Users"));
+        assertTrue(principal.hasRole("localhost\\user"));
+    }
+}
@@ -0,0 +1,113 @@
+/**
+ * Waffle (https://github.com/dblock/waffle)
+ *
+ * Copyright (c) 2010 - 2014 Application Security, Inc.
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors:
+ *     Application Security, Inc.
+ */
+package waffle.windows.auth.impl;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import org.junit.Test;
+
+import waffle.mock.MockWindowsAuthProvider;
+import waffle.windows.auth.IWindowsIdentity;
+import waffle.windows.auth.IWindowsSecurityContext;
+import waffle.windows.auth.WindowsAuthProviderBusyException;
+
+import com.google.common.base.Charsets;
+
+/**
+ * @author dblock[at]dblock[dot]org
+ */
+public class BoundedWindowsAuthProviderTests {
+
+    private static final byte[] TOKEN = "user".getBytes(Charsets.UTF_8);
+
+    private static Thread acceptInBackground(final BoundedWindowsAuthProvider provider, final String connectionId) {
+        final Thread thread = new Thread() {
+            @Override
+            public void run() {
+                provider.acceptSecurityToken(connectionId, TOKEN, "Negotiate");
+            }
+        };
+        thread.start();
+        return thread;
+    }
+
+    private static void waitFor(final BoundedWindowsAuthProvider provider, final int active, final int queued)
+            throws InterruptedException {
+        final long deadline = System.currentTimeMillis() + 5000;
+        while (provider.getActiveCount() < active || provider.getQueueDepth() < queued) {
+            assertTrue(System.currentTimeMillis() < deadline);
+            Thread.sleep(5);
+        }
+    }
+
+    @Test
+    public void testAcceptSecurityToken() {
+        final BoundedWindowsAuthProvider provider = new BoundedWindowsAuthProvider(new MockWindowsAuthProvider(), 2,
+                0, 5000);
+        try {
+            final IWindowsSecurityContext securityContext = provider.acceptSecurityToken("1", TOKEN, "Negotiate");
+            final IWindowsIdentity identity = securityContext.getIdentity();
+            assertEquals("user", identity.getFqn());
+            assertEquals(2, provider.getCompletedCount());
+            assertEquals(0, provider.getRejectedCount());
+        } finally {
+            provider.dispose();
+        }
+    }
+
+    @Test
+    public void testRejectWhenBusy() throws InterruptedException {
+        final MockWindowsAuthProvider auth = new MockWindowsAuthProvider();
+        auth.setLatency(500);
+        final BoundedWindowsAuthProvider provider = new BoundedWindowsAuthProvider(auth, 1, 1, 5000, 7);
+        try {
+            final Thread first = acceptInBackground(provider, "1");
+            waitFor(provider, 1, 0);
+            final Thread second = acceptInBackground(provider, "2");
+            waitFor(provider, 1, 1);
+            try {
+                provider.acceptSecurityToken("3", TOKEN, "Negotiate");
+                fail("expected WindowsAuthProviderBusyException");
+            } catch (WindowsAuthProviderBusyException e) {
+                assertEquals(7, e.getRetryAfter());
+            }
+            first.join();
+            second.join();
+            assertEquals(1, provider.getRejectedCount());
+            assertEquals(2, provider.getCompletedCount());
+            assertEquals(1, provider.getPeakQueueDepth());
+        } finally {
+            provider.dispose();
+        }
+    }
+
+    @Test
+    public void testTimeout() {
+        final MockWindowsAuthProvider auth = new MockWindowsAuthProvider();
+        auth.setLatency(500);
+        final BoundedWindowsAuthProvider provider = new BoundedWindowsAuthProvider(auth, 1, 0, 50);
+        try {
+            provider.acceptSecurityToken("1", TOKEN, "Negotiate");
+            fail("expected WindowsAuthProviderBusyException");
+        } catch (WindowsAuthProviderBusyException e) {
+            assertEquals(BoundedWindowsAuthProvider.DEFAULT_RETRY_AFTER, e.getRetryAfter());
+            assertEquals(1, provider.getTimeoutCount());
+            assertEquals(0, provider.getCompletedCount());
+        } finally {
+            provider.dispose();
+        }
+    }
+}
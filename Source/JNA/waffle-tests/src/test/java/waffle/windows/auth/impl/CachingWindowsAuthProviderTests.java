@@ -0,0 +1,169 @@
+/**
+ * Waffle (https://github.com/dblock/waffle)
+ *
+ * Copyright (c) 2010 - 2014 Application Security, Inc.
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors:
+ *     Application Security, Inc.
+ */
+package waffle.windows.auth.impl;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Test;
+
+import waffle.mock.MockWindowsAuthProvider;
+import waffle.mock.MockWindowsIdentity;
+import waffle.windows.auth.IWindowsIdentity;
+
+/**
+ * @author dblock[at]dblock[dot]org
+ */
+public class CachingWindowsAuthProviderTests {
+
+    private static class TestWindowsIdentity extends MockWindowsIdentity {
+
+        private boolean disposed;
+
+        TestWindowsIdentity(final String newFqn) {
+            super(newFqn, new ArrayList<String>());
+        }
+
+        @Override
+        public void dispose() {
+            this.disposed = true;
+        }
+    }
+
+    private static class TestWindowsAuthProvider extends MockWindowsAuthProvider {
+
+        private final AtomicInteger             logons     = new AtomicInteger();
+        private final List<TestWindowsIdentity> identities = new ArrayList<TestWindowsIdentity>();
+        private long                            latency;
+
+        @Override
+        public IWindowsIdentity logonUser(final String username, final String password) {
+            this.logons.incrementAndGet();
+            if (this.latency > 0) {
+                try {
+                    Thread.sleep(this.latency);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+            if (!"password".equals(password)) {
+                throw new RuntimeException("Mock error: " + username);
+            }
+            final TestWindowsIdentity identity = new TestWindowsIdentity(username);
+            synchronized (this.identities) {
+                this.identities.add(identity);
+            }
+            return identity;
+        }
+    }
+
+    @Test
+    public void testCachesSuccessfulLogons() {
+        final TestWindowsAuthProvider auth = new TestWindowsAuthProvider();
+        final CachingWindowsAuthProvider provider = new CachingWindowsAuthProvider(auth, 60, 10);
+        try {
+            final IWindowsIdentity first = provider.logonUser("user", "password");
+            final IWindowsIdentity second = provider.logonUser("user", "password");
+            assertEquals("user", second.getFqn());
+            assertEquals(1, auth.logons.get());
+            first.dispose();
+            second.dispose();
+            assertEquals(1, provider.getHitCount());
+            for (int i = 0; i < 2; i++) {
+                try {
+                    provider.logonUser("user", "wrong");
+                    fail("expected RuntimeException");
+                } catch (RuntimeException e) {
+                    assertEquals("Mock error: user", e.getMessage());
+                }
+            }
+            // failed logons are not cached
+            assertEquals(3, auth.logons.get());
+            assertEquals(1, provider.size());
+        } finally {
+            provider.dispose();
+        }
+        assertTrue(auth.identities.get(0).disposed);
+    }
+
+    @Test
+    public void testCoalescesConcurrentLogons() throws InterruptedException {
+        final TestWindowsAuthProvider auth = new TestWindowsAuthProvider();
+        auth.latency = 200;
+        final CachingWindowsAuthProvider provider = new CachingWindowsAuthProvider(auth, 60, 10);
+        try {
+            final List<Thread> threads = new ArrayList<Thread>();
+            for (int i = 0; i < 5; i++) {
+                final Thread thread = new Thread() {
+                    @Override
+                    public void run() {
+                        provider.logonUser("user", "password").dispose();
+                    }
+                };
+                thread.start();
+                threads.add(thread);
+            }
+            for (Thread thread : threads) {
+                thread.join();
+            }
+            assertEquals(1, auth.logons.get());
+            assertEquals(4, provider.getHitCount());
+        } finally {
+            provider.dispose();
+        }
+    }
+
+    @Test
+    public void testEvictedIdentityIsDisposedWhenReleased() {
+        final TestWindowsAuthProvider auth = new TestWindowsAuthProvider();
+        final CachingWindowsAuthProvider provider = new CachingWindowsAuthProvider(auth, 60, 1);
+        try {
+            final IWindowsIdentity first = provider.logonUser("first", "password");
+            provider.logonUser("second", "password").dispose();
+            assertEquals(1, provider.size());
+            // evicted but still in use
+            assertFalse(auth.identities.get(0).disposed);
+            first.dispose();
+            first.dispose();
+            assertTrue(auth.identities.get(0).disposed);
+            // the second identity is cached and not in use
+            assertFalse(auth.identities.get(1).disposed);
+        } finally {
+            provider.dispose();
+        }
+        assertTrue(auth.identities.get(1).disposed);
+    }
+
+    @Test
+    public void testGetKey() {
+        final CachingWindowsAuthProvider provider = new CachingWindowsAuthProvider(new MockWindowsAuthProvider(), 60,
+                10, 10);
+        final String key = provider.getKey("secret", "U", "user");
+        assertEquals(key, provider.getKey("secret", "U", "user"));
+        assertFalse(key.contains("secret"));
+        assertFalse(key.equals(provider.getKey("secret2", "U", "user")));
+        assertFalse(key.equals(provider.getKey("secret", "U", "user2")));
+        assertFalse(key.equals(provider.getKey("secret", "D", "user")));
+        // salted per provider
+        final CachingWindowsAuthProvider other = new CachingWindowsAuthProvider(new MockWindowsAuthProvider(), 60, 10,
+                10);
+        assertFalse(key.equals(other.getKey("secret", "U", "user")));
+    }
+}
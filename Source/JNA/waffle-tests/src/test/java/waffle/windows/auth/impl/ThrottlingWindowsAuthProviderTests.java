@@ -0,0 +1,168 @@
+/**
+ * Waffle (https://github.com/dblock/waffle)
+ *
+ * Copyright (c) 2010 - 2014 Application Security, Inc.
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors:
+ *     Application Security, Inc.
+ */
+package waffle.windows.auth.impl;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.util.ArrayList;
+
+import org.junit.After;
+import org.junit.Test;
+import org.mockito.Mockito;
+
+import com.sun.jna.platform.win32.W32Errors;
+import com.sun.jna.platform.win32.Win32Exception;
+import com.sun.jna.platform.win32.WinError;
+import com.sun.jna.platform.win32.WinNT.HRESULT;
+
+import waffle.mock.MockWindowsAuthProvider;
+import waffle.mock.MockWindowsIdentity;
+import waffle.windows.auth.IWindowsIdentity;
+import waffle.windows.auth.WindowsLogonThrottledException;
+
+/**
+ * @author dblock[at]dblock[dot]org
+ */
+public class ThrottlingWindowsAuthProviderTests {
+
+    private static class TestWindowsAuthProvider extends MockWindowsAuthProvider {
+
+        private int logons;
+        private int error = WinError.ERROR_LOGON_FAILURE;
+
+        @Override
+        public IWindowsIdentity logonUser(final String username, final String password) {
+            this.logons++;
+            if (!"password".equals(password)) {
+                final Win32Exception e = Mockito.mock(Win32Exception.class);
+                Mockito.when(e.getHR()).thenReturn(W32Errors.HRESULT_FROM_WIN32(this.error));
+                Mockito.when(e.getMessage()).thenReturn("Mock error: " + username);
+                throw e;
+            }
+            return new MockWindowsIdentity(username, new ArrayList<String>());
+        }
+    }
+
+    private static void logonFails(final ThrottlingWindowsAuthProvider provider, final String username,
+            final String password, final Class<? extends RuntimeException> expected) {
+        try {
+            provider.logonUser(username, password);
+            fail("expected " + expected.getSimpleName());
+        } catch (RuntimeException e) {
+            assertTrue(e.getClass().getName(), expected.isInstance(e));
+        }
+    }
+
+    @After
+    public void tearDown() {
+        ThrottlingWindowsAuthProvider.setSource(null);
+    }
+
+    @Test
+    public void testThrottlesUser() {
+        final TestWindowsAuthProvider auth = new TestWindowsAuthProvider();
+        final ThrottlingWindowsAuthProvider provider = new ThrottlingWindowsAuthProvider(auth, 3, 0, 60);
+        for (int i = 0; i < 3; i++) {
+            logonFails(provider, "user", "wrong", Win32Exception.class);
+        }
+        assertEquals(3, auth.logons);
+        try {
+            provider.logonUser("USER", "password");
+            fail("expected WindowsLogonThrottledException");
+        } catch (WindowsLogonThrottledException e) {
+            assertTrue(e.getRetryAfter() > 0 && e.getRetryAfter() <= 60);
+        }
+        // rejected without a logon
+        assertEquals(3, auth.logons);
+        assertEquals(1, provider.getRejectedCount());
+        assertEquals(3, provider.getFailureCount());
+        // other users are not affected
+        assertEquals("other", provider.logonUser("other", "password").getFqn());
+    }
+
+    @Test
+    public void testSuccessResetsUser() {
+        final TestWindowsAuthProvider auth = new TestWindowsAuthProvider();
+        final ThrottlingWindowsAuthProvider provider = new ThrottlingWindowsAuthProvider(auth, 3, 0, 60);
+        logonFails(provider, "user", "wrong", Win32Exception.class);
+        logonFails(provider, "user", "wrong", Win32Exception.class);
+        provider.logonUser("user", "password");
+        logonFails(provider, "user", "wrong", Win32Exception.class);
+        logonFails(provider, "user", "wrong", Win32Exception.class);
+        assertEquals("user", provider.logonUser("user", "password").getFqn());
+        assertEquals(0, provider.getRejectedCount());
+    }
+
+    @Test
+    public void testThrottlesSource() {
+        final TestWindowsAuthProvider auth = new TestWindowsAuthProvider();
+        final ThrottlingWindowsAuthProvider provider = new ThrottlingWindowsAuthProvider(auth, 0, 2, 60);
+        ThrottlingWindowsAuthProvider.setSource("10.0.0.1");
+        logonFails(provider, "user1", "wrong", Win32Exception.class);
+        logonFails(provider, "user2", "wrong", Win32Exception.class);
+        logonFails(provider, "user3", "password", WindowsLogonThrottledException.class);
+        assertEquals(2, auth.logons);
+        assertEquals(1, provider.getSourceCount());
+        ThrottlingWindowsAuthProvider.setSource("10.0.0.2");
+        assertEquals("user3", provider.logonUser("user3", "password").getFqn());
+    }
+
+    @Test
+    public void testWindowSlides() throws InterruptedException {
+        final TestWindowsAuthProvider auth = new TestWindowsAuthProvider();
+        final ThrottlingWindowsAuthProvider provider = new ThrottlingWindowsAuthProvider(auth, 1, 0, 1);
+        logonFails(provider, "user", "wrong", Win32Exception.class);
+        logonFails(provider, "user", "password", WindowsLogonThrottledException.class);
+        Thread.sleep(1100);
+        assertEquals("user", provider.logonUser("user", "password").getFqn());
+    }
+
+    @Test
+    public void testOtherErrorsNotCounted() {
+        final TestWindowsAuthProvider auth = new TestWindowsAuthProvider();
+        auth.error = WinError.ERROR_NO_LOGON_SERVERS;
+        final ThrottlingWindowsAuthProvider provider = new ThrottlingWindowsAuthProvider(auth, 1, 1, 60);
+        ThrottlingWindowsAuthProvider.setSource("10.0.0.1");
+        for (int i = 0; i < 3; i++) {
+            logonFails(provider, "user", "wrong", Win32Exception.class);
+        }
+        assertEquals(3, auth.logons);
+        assertEquals(0, provider.getFailureCount());
+        assertEquals(0, provider.getRejectedCount());
+        assertEquals("user", provider.logonUser("user", "password").getFqn());
+    }
+
+    @Test
+    public void testCredentialFailures() {
+        assertTrue(ThrottlingWindowsAuthProvider.isCredentialFailure(mockWin32Exception(W32Errors.HRESULT_FROM_WIN32(
+                WinError.ERROR_LOGON_FAILURE).intValue())));
+        assertTrue(ThrottlingWindowsAuthProvider.isCredentialFailure(mockWin32Exception(W32Errors.HRESULT_FROM_WIN32(
+                WinError.ERROR_ACCOUNT_RESTRICTION).intValue())));
+        assertTrue(ThrottlingWindowsAuthProvider.isCredentialFailure(mockWin32Exception(WinError.SEC_E_LOGON_DENIED)));
+        assertFalse(ThrottlingWindowsAuthProvider.isCredentialFailure(mockWin32Exception(W32Errors.HRESULT_FROM_WIN32(
+                WinError.ERROR_NO_LOGON_SERVERS).intValue())));
+        assertFalse(ThrottlingWindowsAuthProvider
+                .isCredentialFailure(mockWin32Exception(WinError.SEC_E_INTERNAL_ERROR)));
+        assertFalse(ThrottlingWindowsAuthProvider.isCredentialFailure(new RuntimeException("Mock error")));
+    }
+
+    private static Win32Exception mockWin32Exception(final int hr) {
+        final Win32Exception e = Mockito.mock(Win32Exception.class);
+        Mockito.when(e.getHR()).thenReturn(new HRESULT(hr));
+        return e;
+    }
+}
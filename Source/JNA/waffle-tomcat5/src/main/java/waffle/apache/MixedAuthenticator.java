@@ -29,10 +29,13 @@ import org.slf4j.LoggerFactory;
 
 import com.google.common.io.BaseEncoding;
 
+import waffle.util.AuthenticationTiming;
+import waffle.util.AuthenticationTiming.Phase;
 import waffle.util.AuthorizationHeader;
-import waffle.util.NtlmServletRequest;
 import waffle.windows.auth.IWindowsIdentity;
 import waffle.windows.auth.IWindowsSecurityContext;
+import waffle.windows.auth.WindowsAuthProviderBusyException;
+import waffle.windows.auth.impl.ThrottlingWindowsAuthProvider;
 
 /**
  * Mixed Negotiate + Form Authenticator.
@@ -51,10 +54,13 @@ public class MixedAuthenticator extends WaffleAuthenticatorBase {
     @Override
     public void start() {
         this.log.info("[waffle.apache.MixedAuthenticator] started");
+        startAuth();
     }
 
     @Override
     public void stop() {
+        disposeAuth();
+        setMetrics(false);
         this.log.info("[waffle.apache.MixedAuthenticator] stopped");
     }
 
@@ -78,7 +84,7 @@ public class MixedAuthenticator extends WaffleAuthenticatorBase {
 
         final Principal principal = request.getUserPrincipal();
 
-        final AuthorizationHeader authorizationHeader = new AuthorizationHeader(request);
+        final AuthorizationHeader authorizationHeader = AuthorizationHeader.of(request);
         final boolean ntlmPost = authorizationHeader.isNtlmType1PostAuthorizationHeader();
         this.log.debug("authorization: {}, ntlm post: {}", authorizationHeader, Boolean.valueOf(ntlmPost));
 
@@ -87,13 +93,23 @@ public class MixedAuthenticator extends WaffleAuthenticatorBase {
             return true;
         } else if (negotiateCheck) {
             if (!authorizationHeader.isNull()) {
+                if (!isSupported(authorizationHeader)) {
+                    sendUnauthorized(response);
+                    return false;
+                }
                 return negotiate(request, response, authorizationHeader);
             }
             this.log.debug("authorization required");
-            sendUnauthorized(response);
+            sendChallenge(response);
             return false;
         } else if (securityCheck) {
-            final boolean postResult = post(request, response);
+            final boolean postResult;
+            try {
+                postResult = post(request, response);
+            } catch (WindowsAuthProviderBusyException e) {
+                sendServiceUnavailable(response, e);
+                return false;
+            }
             if (postResult) {
                 redirectTo(request, response, request.getServletPath());
             } else {
@@ -111,7 +127,7 @@ public class MixedAuthenticator extends WaffleAuthenticatorBase {
 
         final String securityPackage = authorizationHeader.getSecurityPackage();
         // maintain a connection-based session for NTLM tokens
-        final String connectionId = NtlmServletRequest.getConnectionId(request);
+        final String connectionId = getConnectionId(request);
 
         this.log.debug("security package: {}, connection id: {}", securityPackage, connectionId);
 
@@ -122,6 +138,9 @@ public class MixedAuthenticator extends WaffleAuthenticatorBase {
             this.auth.resetSecurityToken(connectionId);
         }
 
+        final AuthenticationTiming timing = AuthenticationTiming.start(request, this.serverTiming,
+                this.slowAuthenticationThreshold);
+
         // log the user in using the token
         IWindowsSecurityContext securityContext;
 
@@ -129,6 +148,9 @@ public class MixedAuthenticator extends WaffleAuthenticatorBase {
             final byte[] tokenBuffer = authorizationHeader.getTokenBytes();
             this.log.debug("token buffer: {} byte(s)", Integer.valueOf(tokenBuffer.length));
             securityContext = this.auth.acceptSecurityToken(connectionId, tokenBuffer, securityPackage);
+            if (timing != null) {
+                timing.lap(Phase.HANDSHAKE);
+            }
             this.log.debug("continue required: {}", Boolean.valueOf(securityContext.isContinue()));
 
             final byte[] continueTokenBytes = securityContext.getToken();
@@ -140,8 +162,10 @@ public class MixedAuthenticator extends WaffleAuthenticatorBase {
 
             if (securityContext.isContinue() || ntlmPost) {
                 response.setHeader("Connection", "keep-alive");
-                response.sendError(HttpServletResponse.SC_UNAUTHORIZED);
-                response.flushBuffer();
+                if (timing != null) {
+                    timing.end(response, null);
+                }
+                this.challengeMode.sendUnauthorized(response);
                 return false;
             }
 
@@ -150,10 +174,22 @@ public class MixedAuthenticator extends WaffleAuthenticatorBase {
             this.log.trace("{}", e);
             sendUnauthorized(response);
             return false;
+        } catch (WindowsAuthProviderBusyException e) {
+            sendServiceUnavailable(response, e);
+            return false;
         }
 
         // create and register the user principal with the session
-        final IWindowsIdentity windowsIdentity = securityContext.getIdentity();
+        final IWindowsIdentity windowsIdentity;
+        try {
+            windowsIdentity = securityContext.getIdentity();
+            if (timing != null) {
+                timing.lap(Phase.IDENTITY);
+            }
+        } catch (WindowsAuthProviderBusyException e) {
+            sendServiceUnavailable(response, e);
+            return false;
+        }
 
         // disable guest login
         if (!this.allowGuestLogin && windowsIdentity.isGuest()) {
@@ -165,16 +201,32 @@ public class MixedAuthenticator extends WaffleAuthenticatorBase {
         try {
             this.log.debug("successfully logged in {} ({})", windowsIdentity.getFqn(), windowsIdentity.getSidString());
 
-            final GenericWindowsPrincipal windowsPrincipal = new GenericWindowsPrincipal(windowsIdentity,
-                    this.context.getRealm(), this.principalFormat, this.roleFormat);
+            if (timing != null) {
+                timing.attach();
+            }
+            final GenericWindowsPrincipal windowsPrincipal;
+            try {
+                windowsPrincipal = new GenericWindowsPrincipal(windowsIdentity, this.context.getRealm(),
+                        this.principalFormat, this.roleFormat, this.groupFilter);
+            } finally {
+                if (timing != null) {
+                    timing.detach(Phase.PRINCIPAL);
+                }
+            }
 
-            this.log.debug("roles: {}", windowsPrincipal.getRolesString());
+            if (this.log.isDebugEnabled()) {
+                this.log.debug("roles: {}", windowsPrincipal.getRolesString());
+            }
 
             // create a session associated with this request if there's none
             final HttpSession session = request.getSession(true);
             this.log.debug("session id: {}", session == null ? "null" : session.getId());
 
             register(request, response, windowsPrincipal, securityPackage, windowsPrincipal.getName(), null);
+            if (timing != null) {
+                timing.lap(Phase.SESSION);
+                timing.end(response, windowsPrincipal.getName());
+            }
             this.log.info("successfully logged in user: {}", windowsPrincipal.getName());
 
         } finally {
@@ -192,12 +244,17 @@ public class MixedAuthenticator extends WaffleAuthenticatorBase {
         this.log.debug("logging in: {}", username);
 
         IWindowsIdentity windowsIdentity;
+        ThrottlingWindowsAuthProvider.setSource(request.getRemoteAddr());
         try {
             windowsIdentity = this.auth.logonUser(username, password);
+        } catch (WindowsAuthProviderBusyException e) {
+            throw e;
         } catch (Exception e) {
             this.log.error(e.getMessage());
             this.log.trace("{}", e);
             return false;
+        } finally {
+            ThrottlingWindowsAuthProvider.setSource(null);
         }
 
         // disable guest login
@@ -210,9 +267,11 @@ public class MixedAuthenticator extends WaffleAuthenticatorBase {
             this.log.debug("successfully logged in {} ({})", username, windowsIdentity.getSidString());
 
             final GenericWindowsPrincipal windowsPrincipal = new GenericWindowsPrincipal(windowsIdentity,
-                    this.context.getRealm(), this.principalFormat, this.roleFormat);
+                    this.context.getRealm(), this.principalFormat, this.roleFormat, this.groupFilter);
 
-            this.log.debug("roles: {}", windowsPrincipal.getRolesString());
+            if (this.log.isDebugEnabled()) {
+                this.log.debug("roles: {}", windowsPrincipal.getRolesString());
+            }
 
             // create a session associated with this request if there's none
             final HttpSession session = request.getSession(true);
@@ -0,0 +1,79 @@
+/**
+ * Waffle (https://github.com/dblock/waffle)
+ *
+ * Copyright (c) 2010 - 2014 Application Security, Inc.
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors:
+ *     Application Security, Inc.
+ */
+package waffle.apache;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.Test;
+
+import waffle.mock.MockWindowsGroupSourceIdentity;
+import waffle.mock.MockWindowsIdentity;
+import waffle.windows.auth.PrincipalFormat;
+
+/**
+ * @author dblock[at]dblock[dot]org
+ */
+public class GenericWindowsPrincipalTests {
+
+    @Test
+    public void testIsSerializable() throws IOException, ClassNotFoundException {
+        final List<String> groups = new ArrayList<String>();
+        groups.add("Everyone");
+        groups.add("DOMAIN\\Users");
+        final GenericWindowsPrincipal principal = new GenericWindowsPrincipal(new MockWindowsIdentity(
+                "DOMAIN\\user", groups), null, PrincipalFormat.FQN, PrincipalFormat.BOTH);
+
+        final ByteArrayOutputStream out = new ByteArrayOutputStream();
+        final ObjectOutputStream oos = new ObjectOutputStream(out);
+        oos.writeObject(principal);
+        oos.close();
+        final ObjectInputStream ois = new ObjectInputStream(new ByteArrayInputStream(out.toByteArray()));
+        final GenericWindowsPrincipal copy = (GenericWindowsPrincipal) ois.readObject();
+
+        assertEquals(principal.getName(), copy.getName());
+        assertEquals(principal.getSidString(), copy.getSidString());
+        assertArrayEquals(principal.getSid(), copy.getSid());
+        assertArrayEquals(principal.getRoles(), copy.getRoles());
+        assertEquals(principal.getGroups().keySet(), copy.getGroups().keySet());
+        assertTrue(copy.hasRole("DOMAIN\\Users"));
+    }
+
+    @Test
+    public void testRolesBuiltOnFirstUse() {
+        final List<String> groups = new ArrayList<String>();
+        groups.add("Everyone");
+        groups.add("DOMAIN\\Users");
+        final MockWindowsGroupSourceIdentity identity = new MockWindowsGroupSourceIdentity("DOMAIN\\user", groups);
+        final GenericWindowsPrincipal principal = new GenericWindowsPrincipal(identity, null, PrincipalFormat.FQN,
+                PrincipalFormat.FQN);
+        identity.dispose();
+        assertEquals(0, identity.getResolveCount());
+        assertTrue(principal.hasRole("DOMAIN\\Users"));
+        assertTrue(principal.hasRole("*"));
+        assertFalse(principal.hasRole("DOMAIN\\Admins"));
+        assertArrayEquals(new String[] { "DOMAIN\\Users", "DOMAIN\\user", "Everyone" }, principal.getRoles());
+        assertEquals(1, identity.getResolveCount());
+    }
+}
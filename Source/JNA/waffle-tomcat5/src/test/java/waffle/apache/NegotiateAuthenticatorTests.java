@@ -27,6 +27,7 @@ import waffle.apache.catalina.SimpleHttpRequest;
 import waffle.apache.catalina.SimpleHttpResponse;
 import waffle.apache.catalina.SimpleRealm;
 import waffle.apache.catalina.SimpleServletContext;
+import waffle.servlet.spi.ChallengeMode;
 import waffle.windows.auth.IWindowsCredentialsHandle;
 import waffle.windows.auth.PrincipalFormat;
 import waffle.windows.auth.impl.WindowsAccountImpl;
@@ -87,6 +88,22 @@ public class NegotiateAuthenticatorTests {
         Assert.assertEquals(401, response.getStatus());
     }
 
+    @Test
+    public void testChallengeGETStatusMode() {
+        this.authenticator.setChallengeMode("status");
+        Assert.assertEquals(ChallengeMode.STATUS, this.authenticator.getChallengeMode());
+        final SimpleHttpRequest request = new SimpleHttpRequest();
+        request.setMethod("GET");
+        final SimpleHttpResponse response = new SimpleHttpResponse();
+        this.authenticator.authenticate(request, response, null);
+        final String[] wwwAuthenticates = response.getHeaderValues("WWW-Authenticate");
+        Assert.assertNotNull(wwwAuthenticates);
+        Assert.assertEquals(2, wwwAuthenticates.length);
+        Assert.assertEquals("keep-alive", response.getHeader("Connection"));
+        Assert.assertEquals("0", response.getHeader("Content-Length"));
+        Assert.assertEquals(401, response.getStatus());
+    }
+
     @Test
     public void testChallengePOST() {
         final String securityPackage = "Negotiate";
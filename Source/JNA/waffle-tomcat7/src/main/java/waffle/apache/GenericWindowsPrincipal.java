@@ -13,8 +13,14 @@
  */
 package waffle.apache;
 
+import java.io.Externalizable;
+import java.io.IOException;
+import java.io.ObjectInput;
+import java.io.ObjectOutput;
+import java.io.Serializable;
 import java.util.ArrayList;
-import java.util.HashMap;
+import java.util.Arrays;
+import java.util.Collections;
 import java.util.List;
 import java.util.Map;
 
@@ -22,21 +28,41 @@ import org.apache.catalina.realm.GenericPrincipal;
 
 import com.google.common.base.Joiner;
 
-import waffle.windows.auth.IWindowsAccount;
 import waffle.windows.auth.IWindowsIdentity;
 import waffle.windows.auth.PrincipalFormat;
+import waffle.windows.auth.Sid;
 import waffle.windows.auth.WindowsAccount;
+import waffle.windows.auth.WindowsGroupFilter;
+import waffle.windows.auth.WindowsGroupSet;
+import waffle.windows.auth.WindowsIdentitySnapshot;
+import waffle.windows.auth.WindowsLazyGroupSet;
+import waffle.windows.auth.WindowsPrincipalCodec;
 
 /**
  * A Windows Principal.
  * 
+ * <p>
+ * Roles are built on first use: a principal created from an identity only keeps the group SIDs of the identity until
+ * a role check or the group map needs them, so that logons of applications that never check roles do not resolve
+ * group names.
+ * </p>
+ * 
+ * <p>
+ * Principals are serialized in the compact format of {@link WindowsPrincipalCodec}.
+ * </p>
+ * 
  * @author dblock[at]dblock[dot]org
  */
-public class GenericWindowsPrincipal extends GenericPrincipal {
+public class GenericWindowsPrincipal extends GenericPrincipal implements Serializable {
 
-    private byte[]                      sid;
-    private String                      sidString;
-    private Map<String, WindowsAccount> groups;
+    private static final long   serialVersionUID = 1L;
+    private byte[]              sid;
+    private String              sidString;
+    private transient Sid       securityIdentifier;
+    private WindowsLazyGroupSet groups;
+    private PrincipalFormat     principalFormat;
+    private PrincipalFormat     roleFormat;
+    private volatile String[]   sortedRoles;
 
     /**
      * A windows principal.
@@ -50,28 +76,102 @@ public class GenericWindowsPrincipal extends GenericPrincipal {
      */
     public GenericWindowsPrincipal(final IWindowsIdentity windowsIdentity, final PrincipalFormat principalFormat,
             final PrincipalFormat roleFormat) {
-        super(windowsIdentity.getFqn(), "", getRoles(windowsIdentity, principalFormat, roleFormat));
+        this(windowsIdentity, principalFormat, roleFormat, WindowsGroupFilter.all());
+    }
+
+    /**
+     * A windows principal with the groups kept by a filter. Groups are resolved on first use.
+     * 
+     * @param windowsIdentity
+     *            Windows identity.
+     * @param principalFormat
+     *            Principal format.
+     * @param roleFormat
+     *            Role format.
+     * @param groupFilter
+     *            Group filter.
+     */
+    public GenericWindowsPrincipal(final IWindowsIdentity windowsIdentity, final PrincipalFormat principalFormat,
+            final PrincipalFormat roleFormat, final WindowsGroupFilter groupFilter) {
+        super(windowsIdentity.getFqn(), "", Collections.<String> emptyList());
         this.sid = windowsIdentity.getSid();
         this.sidString = windowsIdentity.getSidString();
-        this.groups = getGroups(windowsIdentity.getGroups());
+        this.groups = WindowsLazyGroupSet.of(windowsIdentity, groupFilter, roleFormat);
+        this.principalFormat = principalFormat;
+        this.roleFormat = roleFormat;
     }
 
-    private static List<String> getRoles(final IWindowsIdentity windowsIdentity, final PrincipalFormat principalFormat,
+    /**
+     * A windows principal built from an identity snapshot.
+     * 
+     * @param snapshot
+     *            Windows identity snapshot.
+     * @param principalFormat
+     *            Principal format.
+     * @param roleFormat
+     *            Role format.
+     */
+    public GenericWindowsPrincipal(final WindowsIdentitySnapshot snapshot, final PrincipalFormat principalFormat,
             final PrincipalFormat roleFormat) {
-        final List<String> roles = new ArrayList<String>();
-        roles.addAll(getPrincipalNames(windowsIdentity, principalFormat));
-        for (IWindowsAccount group : windowsIdentity.getGroups()) {
-            roles.addAll(getRoleNames(group, roleFormat));
+        super(snapshot.getFqn(), "", Collections.<String> emptyList());
+        this.sid = snapshot.getSid();
+        this.sidString = snapshot.getSidString();
+        this.groups = WindowsLazyGroupSet.of(WindowsGroupSet.of(snapshot.getGroups()));
+        this.principalFormat = principalFormat;
+        this.roleFormat = roleFormat;
+    }
+
+    private GenericWindowsPrincipal(final WindowsIdentitySnapshot snapshot, final List<PrincipalFormat> formats,
+            final List<String> roles) {
+        super(snapshot.getFqn(), "", Collections.<String> emptyList());
+        this.sid = snapshot.getSid();
+        this.sidString = snapshot.getSidString();
+        this.groups = WindowsLazyGroupSet.of(WindowsGroupSet.of(snapshot.getGroups()));
+        this.principalFormat = formats.get(0);
+        this.roleFormat = formats.get(1);
+        this.sortedRoles = toSortedArray(roles);
+    }
+
+    /**
+     * Roles of the principal, sorted for binary search like those of {@link GenericPrincipal}, built on first use.
+     * 
+     * @return Sorted array of role names.
+     */
+    private String[] getSortedRoles() {
+        String[] value = this.sortedRoles;
+        if (value == null) {
+            final List<String> roles = getPrincipalNames(getName(), this.sidString, this.principalFormat);
+            // role names are taken from the shared groups of the dictionary
+            for (WindowsAccount group : getGroupSet().getGroups()) {
+                roles.addAll(getRoleNames(group, this.roleFormat));
+            }
+            value = toSortedArray(roles);
+            this.sortedRoles = value;
         }
-        return roles;
+        return value;
+    }
+
+    private static String[] toSortedArray(final List<String> roles) {
+        final String[] array = roles.toArray(new String[roles.size()]);
+        Arrays.sort(array);
+        return array;
+    }
+
+    @Override
+    public String[] getRoles() {
+        return getSortedRoles().clone();
     }
 
-    private static Map<String, WindowsAccount> getGroups(final IWindowsAccount[] groups) {
-        final Map<String, WindowsAccount> groupMap = new HashMap<String, WindowsAccount>();
-        for (IWindowsAccount group : groups) {
-            groupMap.put(group.getFqn(), new WindowsAccount(group));
+    @Override
+    public boolean hasRole(final String role) {
+        // same semantics as GenericPrincipal, on the lazily built roles
+        if ("*".equals(role)) {
+            return true;
+        }
+        if (role == null) {
+            return false;
         }
-        return groupMap;
+        return Arrays.binarySearch(getSortedRoles(), role) >= 0;
     }
 
     /**
@@ -83,6 +183,20 @@ public class GenericWindowsPrincipal extends GenericPrincipal {
         return this.sid.clone();
     }
 
+    /**
+     * Security identifier, shared rather than copied like {@link #getSid()}.
+     * 
+     * @return Sid, or null if the principal does not carry a valid SID.
+     */
+    public Sid getSecurityIdentifier() {
+        Sid value = this.securityIdentifier;
+        if (value == null) {
+            value = Sid.isValid(this.sid) ? Sid.of(this.sid) : Sid.tryParse(this.sidString);
+            this.securityIdentifier = value;
+        }
+        return value;
+    }
+
     /**
      * String representation of the SID.
      * 
@@ -98,7 +212,17 @@ public class GenericWindowsPrincipal extends GenericPrincipal {
      * @return A map of group names to groups.
      */
     public Map<String, WindowsAccount> getGroups() {
-        return this.groups;
+        return getGroupSet().getGroupMap();
+    }
+
+    /**
+     * Windows groups that the user is a member of, as ids into the process-wide group dictionary. Group names are
+     * resolved on the first call.
+     * 
+     * @return Group set.
+     */
+    public WindowsGroupSet getGroupSet() {
+        return this.groups.get();
     }
 
     /**
@@ -110,7 +234,7 @@ public class GenericWindowsPrincipal extends GenericPrincipal {
      *            Principal format.
      * @return List of role principal objects.
      */
-    private static List<String> getRoleNames(final IWindowsAccount group, final PrincipalFormat principalFormat) {
+    private static List<String> getRoleNames(final WindowsAccount group, final PrincipalFormat principalFormat) {
         final List<String> principals = new ArrayList<String>();
         switch (principalFormat) {
             case FQN:
@@ -134,25 +258,27 @@ public class GenericWindowsPrincipal extends GenericPrincipal {
     /**
      * Returns a list of user principal objects.
      * 
-     * @param windowsIdentity
-     *            Windows identity.
+     * @param fqn
+     *            Fully qualified name.
+     * @param sidString
+     *            String representation of the SID.
      * @param principalFormat
      *            Principal format.
      * @return A list of user principal objects.
      */
-    private static List<String> getPrincipalNames(final IWindowsIdentity windowsIdentity,
+    private static List<String> getPrincipalNames(final String fqn, final String sidString,
             final PrincipalFormat principalFormat) {
         final List<String> principals = new ArrayList<String>();
         switch (principalFormat) {
             case FQN:
-                principals.add(windowsIdentity.getFqn());
+                principals.add(fqn);
                 break;
             case SID:
-                principals.add(windowsIdentity.getSidString());
+                principals.add(sidString);
                 break;
             case BOTH:
-                principals.add(windowsIdentity.getFqn());
-                principals.add(windowsIdentity.getSidString());
+                principals.add(fqn);
+                principals.add(sidString);
                 break;
             case NONE:
                 break;
@@ -170,4 +296,52 @@ public class GenericWindowsPrincipal extends GenericPrincipal {
     public String getRolesString() {
         return Joiner.on(", ").join(getRoles());
     }
+
+    /**
+     * Replace this principal with its compact serialized form.
+     * 
+     * @return Serialized form.
+     */
+    protected Object writeReplace() {
+        return new SerializedForm(this);
+    }
+
+    /**
+     * Serialized form of a {@link GenericWindowsPrincipal}.
+     */
+    private static final class SerializedForm implements Externalizable {
+
+        private static final long       serialVersionUID = 1L;
+        private GenericWindowsPrincipal principal;
+
+        /**
+         * Used by deserialization only.
+         */
+        public SerializedForm() {
+            // Do Nothing
+        }
+
+        SerializedForm(final GenericWindowsPrincipal newPrincipal) {
+            this.principal = newPrincipal;
+        }
+
+        @Override
+        public void writeExternal(final ObjectOutput out) throws IOException {
+            WindowsPrincipalCodec.write(out, this.principal.getName(), this.principal.sid,
+                    this.principal.sidString, this.principal.principalFormat, this.principal.roleFormat,
+                    this.principal.getGroupSet().getGroups(), Arrays.asList(this.principal.getRoles()));
+        }
+
+        @Override
+        public void readExternal(final ObjectInput in) throws IOException {
+            final List<PrincipalFormat> formats = new ArrayList<PrincipalFormat>(2);
+            final List<String> roles = new ArrayList<String>();
+            final WindowsIdentitySnapshot snapshot = WindowsPrincipalCodec.read(in, formats, roles);
+            this.principal = new GenericWindowsPrincipal(snapshot, formats, roles);
+        }
+
+        private Object readResolve() {
+            return this.principal;
+        }
+    }
 }
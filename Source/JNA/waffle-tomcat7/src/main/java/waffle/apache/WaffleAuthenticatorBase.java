@@ -20,16 +20,32 @@ import java.util.Locale;
 import java.util.Set;
 
 import javax.servlet.ServletException;
+import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
 
 import org.apache.catalina.authenticator.AuthenticatorBase;
 import org.apache.catalina.connector.Request;
 import org.slf4j.Logger;
 
+import waffle.servlet.spi.ChallengeMode;
+import waffle.servlet.spi.ConnectionIdStrategy;
+import waffle.util.AuthenticationTiming;
+import waffle.util.AuthorizationHeader;
+import waffle.util.AuthorizationHeaderStatus;
+import waffle.util.NtlmServletRequest;
+import waffle.util.WaffleMetrics;
 import waffle.windows.auth.IWindowsAuthProvider;
 import waffle.windows.auth.IWindowsIdentity;
 import waffle.windows.auth.PrincipalFormat;
+import waffle.windows.auth.WindowsAuthProviderBusyException;
+import waffle.windows.auth.WindowsGroupFilter;
+import waffle.windows.auth.WindowsLogonThrottledException;
+import waffle.windows.auth.impl.BoundedWindowsAuthProvider;
+import waffle.windows.auth.impl.CachingWindowsAuthProvider;
+import waffle.windows.auth.impl.ForwardingWindowsAuthProvider;
+import waffle.windows.auth.impl.ThrottlingWindowsAuthProvider;
 import waffle.windows.auth.impl.WindowsAuthProviderImpl;
+import waffle.windows.auth.impl.WindowsTopologyCache;
 import static java.util.Arrays.asList;
 
 /**
@@ -45,8 +61,28 @@ abstract class WaffleAuthenticatorBase extends AuthenticatorBase {
     protected PrincipalFormat        roleFormat          = PrincipalFormat.FQN;
     protected boolean                allowGuestLogin     = true;
     protected Set<String>            protocols           = SUPPORTED_PROTOCOLS;
+    protected ChallengeMode          challengeMode       = ChallengeMode.ERROR;
+    protected boolean                serverTiming;
+    protected int                    slowAuthenticationThreshold;
+    private boolean                  metrics;
+
+    protected int                    authMaxConcurrency;
+    protected int                    authQueueSize;
+    protected long                   authTimeout         = 30000;
+    protected int                    authRetryAfter      = BoundedWindowsAuthProvider.DEFAULT_RETRY_AFTER;
+    protected int                    logonCacheTtl;
+    protected int                    logonCacheMaxSize   = CachingWindowsAuthProvider.DEFAULT_MAX_SIZE;
+    protected int                    logonMaxFailures;
+    protected int                    logonMaxSourceFailures;
+    protected int                    logonFailureWindow  = ThrottlingWindowsAuthProvider.DEFAULT_WINDOW;
+    protected ConnectionIdStrategy   connectionIdStrategy;
+    protected WindowsGroupFilter     groupFilter         = WindowsGroupFilter.all();
+    private String                   groupFilterSids;
+    private String                   groupFilterDomains;
+    private String                   groupFilterPattern;
 
     protected IWindowsAuthProvider   auth                = new WindowsAuthProviderImpl();
+    private IWindowsAuthProvider     unwrappedAuth;
 
     /**
      * Windows authentication provider.
@@ -156,24 +192,473 @@ abstract class WaffleAuthenticatorBase extends AuthenticatorBase {
     }
 
     /**
-     * Send a 401 Unauthorized along with protocol authentication headers.
+     * Set how 401 Unauthorized challenges are sent. Default is "error", which renders the container's error page and
+     * closes the connection after the first challenge; "status" sends an empty body and keeps the connection alive.
+     * 
+     * @param value
+     *            Challenge mode.
+     */
+    public void setChallengeMode(final String value) {
+        this.challengeMode = ChallengeMode.parse(value);
+        this.log.debug("challenge mode: {}", this.challengeMode);
+    }
+
+    /**
+     * Challenge mode.
+     * 
+     * @return Challenge mode.
+     */
+    public ChallengeMode getChallengeMode() {
+        return this.challengeMode;
+    }
+
+    /**
+     * Record authentication counters and latencies in {@link WaffleMetrics}, exposed over JMX. The metrics are shared
+     * by the whole process, they are released when the authenticator stops.
+     * 
+     * @param value
+     *            True to record metrics.
+     */
+    public void setMetrics(final boolean value) {
+        if (value == this.metrics) {
+            return;
+        }
+        this.metrics = value;
+        if (value) {
+            WaffleMetrics.getDefault().enable();
+        } else {
+            WaffleMetrics.getDefault().disable();
+        }
+    }
+
+    /**
+     * True if authentication metrics are recorded.
+     * 
+     * @return True if metrics are enabled.
+     */
+    public boolean isMetrics() {
+        return WaffleMetrics.getDefault().isEnabled();
+    }
+
+    /**
+     * Send a Server-Timing header with the duration of each authentication phase, see {@link AuthenticationTiming}.
+     * 
+     * @param value
+     *            True to send the header.
+     */
+    public void setServerTiming(final boolean value) {
+        this.serverTiming = value;
+    }
+
+    /**
+     * True if a Server-Timing header with the duration of each authentication phase is sent.
+     * 
+     * @return True if the header is sent.
+     */
+    public boolean isServerTiming() {
+        return this.serverTiming;
+    }
+
+    /**
+     * Log authentications that take at least the given time with the time of each phase.
+     * 
+     * @param value
+     *            Threshold in milliseconds, 0 (default) to not log slow authentications.
+     */
+    public void setSlowAuthenticationThreshold(final int value) {
+        this.slowAuthenticationThreshold = value;
+    }
+
+    /**
+     * Duration from which authentications are logged with the time of each phase.
+     * 
+     * @return Threshold in milliseconds, 0 if slow authentications are not logged.
+     */
+    public int getSlowAuthenticationThreshold() {
+        return this.slowAuthenticationThreshold;
+    }
+
+    /**
+     * Maximum number of concurrent calls to the Windows auth provider.
+     * 
+     * @return Maximum number of concurrent calls, 0 if unlimited.
+     */
+    public int getAuthMaxConcurrency() {
+        return this.authMaxConcurrency;
+    }
+
+    /**
+     * Set the maximum number of concurrent calls to the Windows auth provider. Logons and security token validation
+     * beyond this limit wait in a queue and are rejected with "503 Service Unavailable" when the queue is full or when
+     * they time out. Default is 0, unlimited.
+     * 
+     * @param value
+     *            Maximum number of concurrent calls.
+     */
+    public void setAuthMaxConcurrency(final int value) {
+        this.authMaxConcurrency = value;
+    }
+
+    /**
+     * Maximum number of calls waiting for the Windows auth provider.
+     * 
+     * @return Queue size.
+     */
+    public int getAuthQueueSize() {
+        return this.authQueueSize;
+    }
+
+    /**
+     * Set the maximum number of calls waiting for the Windows auth provider. Default is 0, reject as soon as all
+     * calls are busy.
+     * 
+     * @param value
+     *            Queue size.
+     */
+    public void setAuthQueueSize(final int value) {
+        this.authQueueSize = value;
+    }
+
+    /**
+     * Maximum time to wait for a call to the Windows auth provider.
+     * 
+     * @return Timeout in milliseconds.
+     */
+    public long getAuthTimeout() {
+        return this.authTimeout;
+    }
+
+    /**
+     * Set the maximum time to wait for a call to the Windows auth provider, including queueing. Default is 30000.
+     * 
+     * @param value
+     *            Timeout in milliseconds.
+     */
+    public void setAuthTimeout(final long value) {
+        this.authTimeout = value;
+    }
+
+    /**
+     * Retry-After sent with "503 Service Unavailable".
+     * 
+     * @return Number of seconds.
+     */
+    public int getAuthRetryAfter() {
+        return this.authRetryAfter;
+    }
+
+    /**
+     * Set the Retry-After sent with "503 Service Unavailable".
+     * 
+     * @param value
+     *            Number of seconds.
+     */
+    public void setAuthRetryAfter(final int value) {
+        this.authRetryAfter = value;
+    }
+
+    /**
+     * Time to live of cached successful username/password logons.
+     * 
+     * @return Number of seconds, 0 when logons are not cached.
+     */
+    public int getLogonCacheTtl() {
+        return this.logonCacheTtl;
+    }
+
+    /**
+     * Set the time to live of cached successful username/password logons. Default is 0, logons are not cached.
+     * 
+     * @param value
+     *            Number of seconds.
+     */
+    public void setLogonCacheTtl(final int value) {
+        this.logonCacheTtl = value;
+    }
+
+    /**
+     * Maximum number of cached username/password logons.
+     * 
+     * @return Number of logons.
+     */
+    public int getLogonCacheMaxSize() {
+        return this.logonCacheMaxSize;
+    }
+
+    /**
+     * Set the maximum number of cached username/password logons. Default is 1000.
+     * 
+     * @param value
+     *            Number of logons.
+     */
+    public void setLogonCacheMaxSize(final int value) {
+        this.logonCacheMaxSize = value;
+    }
+
+    /**
+     * Number of failed logons of a user after which further logons are rejected.
+     * 
+     * @return Number of failures, 0 for no limit.
+     */
+    public int getLogonMaxFailures() {
+        return this.logonMaxFailures;
+    }
+
+    /**
+     * Set the number of failed logons of a user, within the failure window, after which further logons are rejected
+     * without contacting the domain controller. Default is 0, no limit.
+     * 
+     * @param value
+     *            Number of failures.
+     */
+    public void setLogonMaxFailures(final int value) {
+        this.logonMaxFailures = value;
+    }
+
+    /**
+     * Number of failed logons from a client address after which further logons are rejected.
+     * 
+     * @return Number of failures, 0 for no limit.
+     */
+    public int getLogonMaxSourceFailures() {
+        return this.logonMaxSourceFailures;
+    }
+
+    /**
+     * Set the number of failed logons from a client address, within the failure window, after which further logons
+     * from that address are rejected without contacting the domain controller. Default is 0, no limit.
+     * 
+     * @param value
+     *            Number of failures.
+     */
+    public void setLogonMaxSourceFailures(final int value) {
+        this.logonMaxSourceFailures = value;
+    }
+
+    /**
+     * Length of the sliding window in which failed logons are counted.
+     * 
+     * @return Number of seconds.
+     */
+    public int getLogonFailureWindow() {
+        return this.logonFailureWindow;
+    }
+
+    /**
+     * Set the length of the sliding window in which failed logons are counted. Default is 300.
+     * 
+     * @param value
+     *            Number of seconds.
+     */
+    public void setLogonFailureWindow(final int value) {
+        this.logonFailureWindow = value;
+    }
+
+    /**
+     * Strategy identifying the connection an NTLM or Negotiate handshake is in progress on.
+     * 
+     * @return Connection id strategy or null for the remote address and port.
+     */
+    public ConnectionIdStrategy getConnectionIdStrategy() {
+        return this.connectionIdStrategy;
+    }
+
+    /**
+     * Set the strategy identifying the connection an NTLM or Negotiate handshake is in progress on: "address"
+     * (default), "container", "tls" or a class name.
+     * 
+     * @param value
+     *            Connection id strategy.
+     */
+    public void setConnectionIdStrategy(final String value) {
+        this.connectionIdStrategy = NtlmServletRequest.getConnectionIdStrategy(value);
+    }
+
+    /**
+     * Returns the connection id of a request.
+     * 
+     * @param request
+     *            Http Request.
+     * @return Connection id.
+     */
+    protected String getConnectionId(final HttpServletRequest request) {
+        return this.connectionIdStrategy == null ? NtlmServletRequest.getConnectionId(request)
+                : this.connectionIdStrategy.getConnectionId(request);
+    }
+
+    /**
+     * Filter selecting the groups that principals keep.
+     * 
+     * @return Group filter.
+     */
+    public WindowsGroupFilter getGroupFilter() {
+        return this.groupFilter;
+    }
+
+    /**
+     * Keep the groups with the given SIDs, separated by commas or whitespace.
+     * 
+     * @param value
+     *            Group SIDs.
+     */
+    public void setGroupFilterSids(final String value) {
+        this.groupFilterSids = value;
+        updateGroupFilter();
+    }
+
+    /**
+     * Keep the groups of the given domains, separated by commas or whitespace.
+     * 
+     * @param value
+     *            Domain names.
+     */
+    public void setGroupFilterDomains(final String value) {
+        this.groupFilterDomains = value;
+        updateGroupFilter();
+    }
+
+    /**
+     * Keep the groups whose fully qualified name matches a regular expression.
+     * 
+     * @param value
+     *            Regular expression.
+     */
+    public void setGroupFilterPattern(final String value) {
+        this.groupFilterPattern = value;
+        updateGroupFilter();
+    }
+
+    private void updateGroupFilter() {
+        this.groupFilter = WindowsGroupFilter.of(this.groupFilterSids, this.groupFilterDomains,
+                this.groupFilterPattern);
+    }
+
+
+    /**
+     * Wrap the Windows auth provider with a concurrency limit, failed logon throttling and a logon cache, when
+     * configured.
+     */
+    protected void startAuth() {
+        if (this.unwrappedAuth != null) {
+            return;
+        }
+        this.unwrappedAuth = this.auth;
+        WindowsTopologyCache.getDefault().acquire();
+        if (this.authMaxConcurrency > 0) {
+            this.log.debug("limiting auth provider to {} concurrent call(s), {} queued, {} ms",
+                    Integer.valueOf(this.authMaxConcurrency), Integer.valueOf(this.authQueueSize),
+                    Long.valueOf(this.authTimeout));
+            this.auth = new BoundedWindowsAuthProvider(this.auth, this.authMaxConcurrency, this.authQueueSize,
+                    this.authTimeout, this.authRetryAfter);
+        }
+        if (this.logonMaxFailures > 0 || this.logonMaxSourceFailures > 0) {
+            this.log.debug("throttling logons after {} failure(s) per user, {} per source, in {} second(s)",
+                    Integer.valueOf(this.logonMaxFailures), Integer.valueOf(this.logonMaxSourceFailures),
+                    Integer.valueOf(this.logonFailureWindow));
+            this.auth = new ThrottlingWindowsAuthProvider(this.auth, this.logonMaxFailures,
+                    this.logonMaxSourceFailures, this.logonFailureWindow);
+        }
+        if (this.logonCacheTtl > 0) {
+            this.log.debug("caching successful logons for {} second(s), up to {} logon(s)",
+                    Integer.valueOf(this.logonCacheTtl), Integer.valueOf(this.logonCacheMaxSize));
+            this.auth = new CachingWindowsAuthProvider(this.auth, this.logonCacheTtl, this.logonCacheMaxSize);
+        }
+    }
+
+    /**
+     * Free native resources held by the Windows auth provider and release the topology cache, whose background refresh
+     * stops with its last user.
+     */
+    protected void disposeAuth() {
+        ForwardingWindowsAuthProvider.dispose(this.auth);
+        if (this.unwrappedAuth != null) {
+            WindowsTopologyCache.getDefault().release();
+            // wrapped again on start
+            this.auth = this.unwrappedAuth;
+            this.unwrappedAuth = null;
+        }
+    }
+
+    /**
+     * Returns whether an authorization header is well-formed and of a configured protocol, without throwing. A header
+     * of another protocol is counted as rejected.
+     * 
+     * @param authorizationHeader
+     *            Authorization header.
+     * @return True if the header can be authenticated.
+     */
+    protected boolean isSupported(final AuthorizationHeader authorizationHeader) {
+        final AuthorizationHeaderStatus status = authorizationHeader.getStatus();
+        if (status != AuthorizationHeaderStatus.VALID) {
+            this.log.debug("rejected authorization header: {}", status);
+            return false;
+        }
+        final String securityPackage = authorizationHeader.getSecurityPackage();
+        for (String protocol : this.protocols) {
+            if (protocol.equalsIgnoreCase(securityPackage)) {
+                return true;
+            }
+        }
+        this.log.debug("unsupported security package: {}", securityPackage);
+        AuthorizationHeader.countRejection(AuthorizationHeaderStatus.UNSUPPORTED);
+        return false;
+    }
+
+    /**
+     * Send a 401 Unauthorized along with protocol authentication headers, closing the connection.
      * 
      * @param response
      *            HTTP Response
      */
     protected void sendUnauthorized(final HttpServletResponse response) {
+        sendUnauthorized(response, true);
+    }
+
+    /**
+     * Send the first 401 Unauthorized of a handshake. The connection is kept alive unless challenges render the
+     * container's error page.
+     * 
+     * @param response
+     *            HTTP Response
+     */
+    protected void sendChallenge(final HttpServletResponse response) {
+        sendUnauthorized(response, this.challengeMode == ChallengeMode.ERROR);
+    }
+
+    /**
+     * Send a 401 Unauthorized along with protocol authentication headers.
+     * 
+     * @param response
+     *            HTTP Response
+     * @param close
+     *            Close connection.
+     */
+    protected void sendUnauthorized(final HttpServletResponse response, final boolean close) {
         try {
             for (String protocol : this.protocols) {
                 response.addHeader("WWW-Authenticate", protocol);
             }
-            response.setHeader("Connection", "close");
-            response.sendError(HttpServletResponse.SC_UNAUTHORIZED);
-            response.flushBuffer();
+            response.setHeader("Connection", close ? "close" : "keep-alive");
+            this.challengeMode.sendUnauthorized(response);
         } catch (IOException e) {
             throw new RuntimeException(e);
         }
     }
 
+    /**
+     * Send a 503 Service Unavailable when the Windows auth provider is too busy to process the request.
+     * 
+     * @param response
+     *            HTTP Response
+     * @param e
+     *            Rejection.
+     */
+    protected void sendServiceUnavailable(final HttpServletResponse response, final WindowsAuthProviderBusyException e) {
+        this.log.warn("error logging in user: {}", e.getMessage());
+        response.setHeader("Retry-After", String.valueOf(e.getRetryAfter()));
+        sendError(response, HttpServletResponse.SC_SERVICE_UNAVAILABLE);
+    }
+
     /**
      * Send an error code.
      * 
@@ -202,12 +687,22 @@ abstract class WaffleAuthenticatorBase extends AuthenticatorBase {
             throws ServletException {
         this.log.debug("logging in: {}", username);
         IWindowsIdentity windowsIdentity;
+        ThrottlingWindowsAuthProvider.setSource(request.getRemoteAddr());
         try {
             windowsIdentity = this.auth.logonUser(username, password);
+        } catch (WindowsAuthProviderBusyException e) {
+            // not a failed logon, the client is asked to come back rather than checked against the container realm
+            sendServiceUnavailable(request.getResponse(), e);
+            throw new ServletException(e);
+        } catch (WindowsLogonThrottledException e) {
+            this.log.warn("error logging in user: {}", e.getMessage());
+            return null;
         } catch (Exception e) {
             this.log.error(e.getMessage());
             this.log.trace("{}", e);
             return super.doLogin(request, username, password);
+        } finally {
+            ThrottlingWindowsAuthProvider.setSource(null);
         }
         // disable guest login
         if (!this.allowGuestLogin && windowsIdentity.isGuest()) {
@@ -217,8 +712,10 @@ abstract class WaffleAuthenticatorBase extends AuthenticatorBase {
         try {
             this.log.debug("successfully logged in {} ({})", username, windowsIdentity.getSidString());
             final GenericWindowsPrincipal windowsPrincipal = new GenericWindowsPrincipal(windowsIdentity,
-                    this.principalFormat, this.roleFormat);
-            this.log.debug("roles: {}", windowsPrincipal.getRolesString());
+                    this.principalFormat, this.roleFormat, this.groupFilter);
+            if (this.log.isDebugEnabled()) {
+                this.log.debug("roles: {}", windowsPrincipal.getRolesString());
+            }
             return windowsPrincipal;
         } finally {
             windowsIdentity.dispose();
@@ -29,10 +29,13 @@ import org.slf4j.LoggerFactory;
 
 import com.google.common.io.BaseEncoding;
 
+import waffle.util.AuthenticationTiming;
+import waffle.util.AuthenticationTiming.Phase;
 import waffle.util.AuthorizationHeader;
-import waffle.util.NtlmServletRequest;
 import waffle.windows.auth.IWindowsIdentity;
 import waffle.windows.auth.IWindowsSecurityContext;
+import waffle.windows.auth.WindowsAuthProviderBusyException;
+import waffle.windows.auth.impl.ThrottlingWindowsAuthProvider;
 
 /**
  * Mixed Negotiate + Form Authenticator.
@@ -51,12 +54,15 @@ public class MixedAuthenticator extends WaffleAuthenticatorBase {
     @Override
     public synchronized void startInternal() throws LifecycleException {
         this.log.info("[waffle.apache.MixedAuthenticator] started");
+        startAuth();
         super.startInternal();
     }
 
     @Override
     public synchronized void stopInternal() throws LifecycleException {
         super.stopInternal();
+        disposeAuth();
+        setMetrics(false);
         this.log.info("[waffle.apache.MixedAuthenticator] stopped");
     }
 
@@ -80,7 +86,7 @@ public class MixedAuthenticator extends WaffleAuthenticatorBase {
 
         final Principal principal = request.getUserPrincipal();
 
-        final AuthorizationHeader authorizationHeader = new AuthorizationHeader(request);
+        final AuthorizationHeader authorizationHeader = AuthorizationHeader.of(request);
         final boolean ntlmPost = authorizationHeader.isNtlmType1PostAuthorizationHeader();
         this.log.debug("authorization: {}, ntlm post: {}", authorizationHeader, Boolean.valueOf(ntlmPost));
 
@@ -93,13 +99,23 @@ public class MixedAuthenticator extends WaffleAuthenticatorBase {
             return true;
         } else if (negotiateCheck) {
             if (!authorizationHeader.isNull()) {
+                if (!isSupported(authorizationHeader)) {
+                    sendUnauthorized(response);
+                    return false;
+                }
                 return negotiate(request, response, authorizationHeader);
             }
             this.log.debug("authorization required");
-            sendUnauthorized(response);
+            sendChallenge(response);
             return false;
         } else if (securityCheck) {
-            final boolean postResult = post(request, response);
+            final boolean postResult;
+            try {
+                postResult = post(request, response);
+            } catch (WindowsAuthProviderBusyException e) {
+                sendServiceUnavailable(response, e);
+                return false;
+            }
             if (postResult) {
                 redirectTo(request, response, request.getServletPath());
             } else {
@@ -117,7 +133,7 @@ public class MixedAuthenticator extends WaffleAuthenticatorBase {
 
         final String securityPackage = authorizationHeader.getSecurityPackage();
         // maintain a connection-based session for NTLM tokens
-        final String connectionId = NtlmServletRequest.getConnectionId(request);
+        final String connectionId = getConnectionId(request);
 
         this.log.debug("security package: {}, connection id: {}", securityPackage, connectionId);
 
@@ -128,6 +144,9 @@ public class MixedAuthenticator extends WaffleAuthenticatorBase {
             this.auth.resetSecurityToken(connectionId);
         }
 
+        final AuthenticationTiming timing = AuthenticationTiming.start(request, this.serverTiming,
+                this.slowAuthenticationThreshold);
+
         // log the user in using the token
         IWindowsSecurityContext securityContext;
 
@@ -135,6 +154,9 @@ public class MixedAuthenticator extends WaffleAuthenticatorBase {
             final byte[] tokenBuffer = authorizationHeader.getTokenBytes();
             this.log.debug("token buffer: {} byte(s)", Integer.valueOf(tokenBuffer.length));
             securityContext = this.auth.acceptSecurityToken(connectionId, tokenBuffer, securityPackage);
+            if (timing != null) {
+                timing.lap(Phase.HANDSHAKE);
+            }
             this.log.debug("continue required: {}", Boolean.valueOf(securityContext.isContinue()));
 
             final byte[] continueTokenBytes = securityContext.getToken();
@@ -146,8 +168,10 @@ public class MixedAuthenticator extends WaffleAuthenticatorBase {
 
             if (securityContext.isContinue() || ntlmPost) {
                 response.setHeader("Connection", "keep-alive");
-                response.sendError(HttpServletResponse.SC_UNAUTHORIZED);
-                response.flushBuffer();
+                if (timing != null) {
+                    timing.end(response, null);
+                }
+                this.challengeMode.sendUnauthorized(response);
                 return false;
             }
 
@@ -156,10 +180,22 @@ public class MixedAuthenticator extends WaffleAuthenticatorBase {
             this.log.trace("{}", e);
             sendUnauthorized(response);
             return false;
+        } catch (WindowsAuthProviderBusyException e) {
+            sendServiceUnavailable(response, e);
+            return false;
         }
 
         // create and register the user principal with the session
-        final IWindowsIdentity windowsIdentity = securityContext.getIdentity();
+        final IWindowsIdentity windowsIdentity;
+        try {
+            windowsIdentity = securityContext.getIdentity();
+            if (timing != null) {
+                timing.lap(Phase.IDENTITY);
+            }
+        } catch (WindowsAuthProviderBusyException e) {
+            sendServiceUnavailable(response, e);
+            return false;
+        }
 
         // disable guest login
         if (!this.allowGuestLogin && windowsIdentity.isGuest()) {
@@ -172,16 +208,32 @@ public class MixedAuthenticator extends WaffleAuthenticatorBase {
 
             this.log.debug("logged in user: {} ({})", windowsIdentity.getFqn(), windowsIdentity.getSidString());
 
-            final GenericWindowsPrincipal windowsPrincipal = new GenericWindowsPrincipal(windowsIdentity,
-                    this.principalFormat, this.roleFormat);
+            if (timing != null) {
+                timing.attach();
+            }
+            final GenericWindowsPrincipal windowsPrincipal;
+            try {
+                windowsPrincipal = new GenericWindowsPrincipal(windowsIdentity, this.principalFormat, this.roleFormat,
+                        this.groupFilter);
+            } finally {
+                if (timing != null) {
+                    timing.detach(Phase.PRINCIPAL);
+                }
+            }
 
-            this.log.debug("roles: {}", windowsPrincipal.getRolesString());
+            if (this.log.isDebugEnabled()) {
+                this.log.debug("roles: {}", windowsPrincipal.getRolesString());
+            }
 
             // create a session associated with this request if there's none
             final HttpSession session = request.getSession(true);
             this.log.debug("session id: {}", session == null ? "null" : session.getId());
 
             register(request, response, windowsPrincipal, securityPackage, windowsPrincipal.getName(), null);
+            if (timing != null) {
+                timing.lap(Phase.SESSION);
+                timing.end(response, windowsPrincipal.getName());
+            }
             this.log.info("successfully logged in user: {}", windowsPrincipal.getName());
 
         } finally {
@@ -199,12 +251,17 @@ public class MixedAuthenticator extends WaffleAuthenticatorBase {
         this.log.debug("logging in: {}", username);
 
         IWindowsIdentity windowsIdentity;
+        ThrottlingWindowsAuthProvider.setSource(request.getRemoteAddr());
         try {
             windowsIdentity = this.auth.logonUser(username, password);
+        } catch (WindowsAuthProviderBusyException e) {
+            throw e;
         } catch (Exception e) {
             this.log.error(e.getMessage());
             this.log.trace("{}", e);
             return false;
+        } finally {
+            ThrottlingWindowsAuthProvider.setSource(null);
         }
 
         // disable guest login
@@ -217,9 +274,11 @@ public class MixedAuthenticator extends WaffleAuthenticatorBase {
             this.log.debug("successfully logged in {} ({})", username, windowsIdentity.getSidString());
 
             final GenericWindowsPrincipal windowsPrincipal = new GenericWindowsPrincipal(windowsIdentity,
-                    this.principalFormat, this.roleFormat);
+                    this.principalFormat, this.roleFormat, this.groupFilter);
 
-            this.log.debug("roles: {}", windowsPrincipal.getRolesString());
+            if (this.log.isDebugEnabled()) {
+                this.log.debug("roles: {}", windowsPrincipal.getRolesString());
+            }
 
             // create a session associated with this request if there's none
             final HttpSession session = request.getSession(true);
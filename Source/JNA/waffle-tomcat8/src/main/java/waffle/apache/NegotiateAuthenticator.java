@@ -25,10 +25,12 @@ import org.slf4j.LoggerFactory;
 
 import com.google.common.io.BaseEncoding;
 
+import waffle.util.AuthenticationTiming;
+import waffle.util.AuthenticationTiming.Phase;
 import waffle.util.AuthorizationHeader;
-import waffle.util.NtlmServletRequest;
 import waffle.windows.auth.IWindowsIdentity;
 import waffle.windows.auth.IWindowsSecurityContext;
+import waffle.windows.auth.WindowsAuthProviderBusyException;
 
 /**
  * An Apache Negotiate (NTLM, Kerberos) Authenticator.
@@ -47,12 +49,15 @@ public class NegotiateAuthenticator extends WaffleAuthenticatorBase {
     @Override
     public synchronized void startInternal() throws LifecycleException {
         this.log.info("[waffle.apache.NegotiateAuthenticator] started");
+        startAuth();
         super.startInternal();
     }
 
     @Override
     public synchronized void stopInternal() throws LifecycleException {
         super.stopInternal();
+        disposeAuth();
+        setMetrics(false);
         this.log.info("[waffle.apache.NegotiateAuthenticator] stopped");
     }
 
@@ -60,7 +65,7 @@ public class NegotiateAuthenticator extends WaffleAuthenticatorBase {
     public boolean authenticate(final Request request, final HttpServletResponse response) {
 
         Principal principal = request.getUserPrincipal();
-        final AuthorizationHeader authorizationHeader = new AuthorizationHeader(request);
+        final AuthorizationHeader authorizationHeader = AuthorizationHeader.of(request);
         final boolean ntlmPost = authorizationHeader.isNtlmType1PostAuthorizationHeader();
 
         this.log.debug("{} {}, contentlength: {}", request.getMethod(), request.getRequestURI(),
@@ -76,9 +81,14 @@ public class NegotiateAuthenticator extends WaffleAuthenticatorBase {
         // authenticate user
         if (!authorizationHeader.isNull()) {
 
+            if (!isSupported(authorizationHeader)) {
+                sendUnauthorized(response);
+                return false;
+            }
+
             final String securityPackage = authorizationHeader.getSecurityPackage();
             // maintain a connection-based session for NTLM tokens
-            final String connectionId = NtlmServletRequest.getConnectionId(request);
+            final String connectionId = getConnectionId(request);
 
             this.log.debug("security package: {}, connection id: {}", securityPackage, connectionId);
 
@@ -87,6 +97,9 @@ public class NegotiateAuthenticator extends WaffleAuthenticatorBase {
                 this.auth.resetSecurityToken(connectionId);
             }
 
+            final AuthenticationTiming timing = AuthenticationTiming.start(request, this.serverTiming,
+                    this.slowAuthenticationThreshold);
+
             // log the user in using the token
             IWindowsSecurityContext securityContext;
 
@@ -94,6 +107,9 @@ public class NegotiateAuthenticator extends WaffleAuthenticatorBase {
                 final byte[] tokenBuffer = authorizationHeader.getTokenBytes();
                 this.log.debug("token buffer: {} byte(s)", Integer.valueOf(tokenBuffer.length));
                 securityContext = this.auth.acceptSecurityToken(connectionId, tokenBuffer, securityPackage);
+                if (timing != null) {
+                    timing.lap(Phase.HANDSHAKE);
+                }
                 this.log.debug("continue required: {}", Boolean.valueOf(securityContext.isContinue()));
 
                 final byte[] continueTokenBytes = securityContext.getToken();
@@ -105,8 +121,10 @@ public class NegotiateAuthenticator extends WaffleAuthenticatorBase {
 
                 if (securityContext.isContinue() || ntlmPost) {
                     response.setHeader("Connection", "keep-alive");
-                    response.sendError(HttpServletResponse.SC_UNAUTHORIZED);
-                    response.flushBuffer();
+                    if (timing != null) {
+                        timing.end(response, null);
+                    }
+                    this.challengeMode.sendUnauthorized(response);
                     return false;
                 }
 
@@ -115,6 +133,9 @@ public class NegotiateAuthenticator extends WaffleAuthenticatorBase {
                 this.log.trace("{}", e);
                 sendUnauthorized(response);
                 return false;
+            } catch (WindowsAuthProviderBusyException e) {
+                sendServiceUnavailable(response, e);
+                return false;
             }
 
             // realm: fail if no realm is configured
@@ -125,7 +146,16 @@ public class NegotiateAuthenticator extends WaffleAuthenticatorBase {
             }
 
             // create and register the user principal with the session
-            final IWindowsIdentity windowsIdentity = securityContext.getIdentity();
+            final IWindowsIdentity windowsIdentity;
+            try {
+                windowsIdentity = securityContext.getIdentity();
+                if (timing != null) {
+                    timing.lap(Phase.IDENTITY);
+                }
+            } catch (WindowsAuthProviderBusyException e) {
+                sendServiceUnavailable(response, e);
+                return false;
+            }
 
             // disable guest login
             if (!this.allowGuestLogin && windowsIdentity.isGuest()) {
@@ -137,10 +167,22 @@ public class NegotiateAuthenticator extends WaffleAuthenticatorBase {
             try {
                 this.log.debug("logged in user: {} ({})", windowsIdentity.getFqn(), windowsIdentity.getSidString());
 
-                final GenericWindowsPrincipal windowsPrincipal = new GenericWindowsPrincipal(windowsIdentity,
-                        this.principalFormat, this.roleFormat);
+                if (timing != null) {
+                    timing.attach();
+                }
+                final GenericWindowsPrincipal windowsPrincipal;
+                try {
+                    windowsPrincipal = new GenericWindowsPrincipal(windowsIdentity, this.principalFormat,
+                            this.roleFormat, this.groupFilter);
+                } finally {
+                    if (timing != null) {
+                        timing.detach(Phase.PRINCIPAL);
+                    }
+                }
 
-                this.log.debug("roles: {}", windowsPrincipal.getRolesString());
+                if (this.log.isDebugEnabled()) {
+                    this.log.debug("roles: {}", windowsPrincipal.getRolesString());
+                }
 
                 principal = windowsPrincipal;
 
@@ -150,6 +192,10 @@ public class NegotiateAuthenticator extends WaffleAuthenticatorBase {
 
                 // register the authenticated principal
                 register(request, response, principal, securityPackage, principal.getName(), null);
+                if (timing != null) {
+                    timing.lap(Phase.SESSION);
+                    timing.end(response, principal.getName());
+                }
                 this.log.info("successfully logged in user: {}", principal.getName());
 
             } finally {
@@ -160,7 +206,7 @@ public class NegotiateAuthenticator extends WaffleAuthenticatorBase {
         }
 
         this.log.debug("authorization required");
-        sendUnauthorized(response);
+        sendChallenge(response);
         return false;
     }
 }
@@ -92,6 +92,11 @@ public class SimpleHttpResponse extends Response {
         this.status = rc;
     }
 
+    @Override
+    public void setContentLength(final int length) {
+        this.setHeader("Content-Length", String.valueOf(length));
+    }
+
     @Override
     public void setHeader(final String headerName, final String headerValue) {
         List<String> current = this.headers.get(headerName);